@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A timed step of the processing of a traced request, such as the evaluation of a condition, the execution of an action or a persistence
+ * call, with the steps it is made of. Times are in microseconds, relative to the start of the trace.
+ */
+@XmlRootElement
+public class TraceSpan {
+
+    private String category;
+    private String name;
+    private long start;
+    private long duration;
+    private Map<String, Object> attributes;
+    private List<TraceSpan> children;
+
+    public TraceSpan() {
+    }
+
+    public TraceSpan(String category, String name, long start) {
+        this.category = category;
+        this.name = name;
+        this.start = start;
+    }
+
+    /**
+     * Retrieves the kind of step this span measures, for example {@code rule}, {@code condition}, {@code action} or {@code persistence}.
+     *
+     * @return the category of this span
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    /**
+     * Retrieves the identifier of what this span measures within its category, such as a rule, condition type or action type identifier.
+     *
+     * @return the name of this span
+     */
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Retrieves the time this span started at, in microseconds since the start of the trace.
+     *
+     * @return the start of this span
+     */
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    /**
+     * Retrieves the time this span took, in microseconds.
+     *
+     * @return the duration of this span
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(Map<String, Object> attributes) {
+        this.attributes = attributes;
+    }
+
+    public void setAttribute(String key, Object value) {
+        if (attributes == null) {
+            attributes = new LinkedHashMap<>();
+        }
+        attributes.put(key, value);
+    }
+
+    public List<TraceSpan> getChildren() {
+        return children;
+    }
+
+    public void setChildren(List<TraceSpan> children) {
+        this.children = children;
+    }
+
+    public void addChild(TraceSpan child) {
+        if (children == null) {
+            children = new ArrayList<>();
+        }
+        children.add(child);
+    }
+}
@@ -25,6 +25,7 @@ import org.apache.unomi.api.actions.ActionPostExecutor;
 import org.apache.unomi.api.conditions.Condition;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -120,4 +121,15 @@ public interface EventService {
      * @return {@code true} if the event has already been raised, {@code false} otherwise
      */
     boolean hasEventAlreadyBeenRaised(Event event, boolean session);
+
+    /**
+     * Retrieves the counters of the internal event cascades: the {@code ruleFired} and {@code profileUpdated} events sent while an event
+     * is processed are queued and processed breadth-first once it is done, with at most one {@code profileUpdated} event per profile.
+     * The {@code cascades} key contains the number of processed external events, {@code cascadedEvents} the total number of internal
+     * events processed in their cascades, {@code deduplicatedEvents} the number of internal events that were dropped as duplicates, and
+     * {@code maxDepth} and {@code maxFanOut} the maximum depth and number of internal events seen in a single cascade.
+     *
+     * @return a map of counter names to counter values
+     */
+    Map<String, Long> getEventCascadeStatistics();
 }
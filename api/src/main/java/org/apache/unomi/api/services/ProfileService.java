@@ -35,6 +35,15 @@ public interface ProfileService {
      */
     long getAllProfilesCount();
 
+    /**
+     * Retrieves the statistics of the write-behind of profiles and sessions: the number of items waiting to be written, the saves
+     * requested and the writes issued since startup, the coalescing ratio (saves per write, in percent), and the average and maximum
+     * flush lag, in milliseconds.
+     *
+     * @return a map of statistic names to values, empty when profiles and sessions are written synchronously
+     */
+    Map<String, Long> getWriteBehindStatistics();
+
     /**
      * Retrieves profiles or personas matching the specified query.
      *
@@ -20,11 +20,13 @@ package org.apache.unomi.api.services;
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.Metadata;
 import org.apache.unomi.api.PartialList;
+import org.apache.unomi.api.TraceSpan;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.query.Query;
 import org.apache.unomi.api.rules.Rule;
 import org.apache.unomi.api.rules.RuleStatistics;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -69,6 +71,68 @@ public interface RulesService {
      */
     Map<String,RuleStatistics> getAllRuleStatistics();
 
+    /**
+     * Retrieves the size of each bucket of the index used to select candidate rules for incoming events, so that its selectivity can be
+     * monitored. Keys are of the form {@code scope/eventType}, the {@code *} event type being used for rules that apply to any event type.
+     * @return a map containing bucket keys as key, and the number of rules in the bucket as a value
+     */
+    Map<String,Integer> getRuleIndexStatistics();
+
+    /**
+     * Retrieves the latency percentiles of the conditions and actions of each rule, as measured on this node since it started. Keys of the
+     * inner maps are of the form {@code conditions.p99} or {@code actions.max}, values are in milliseconds, except for the {@code .count}
+     * keys that contain the number of measures.
+     * @return a map containing rule IDs as key, and the latency percentiles of the rule as a value
+     */
+    Map<String,Map<String,Double>> getRuleLatencyPercentiles();
+
+    /**
+     * Retrieves the counters of the memoization of shared sub-conditions: structurally identical conditions used by several rules, segments
+     * or scoring elements are evaluated once per event or profile. The {@code hits} key contains the number of evaluations that were
+     * answered from the memo, and the {@code evaluations} key the number of evaluations that had to be computed, since startup. The
+     * {@code propertyAccessors.*} keys contain the counters of the compilation of the expressions used to resolve condition properties, and
+     * the {@code raisedEvents.*} keys tell how the checks of the {@code raiseEventOnlyOnce} rules were answered, locally or by a query.
+     * @return a map of counter names to counter values
+     */
+    Map<String,Long> getConditionEvaluationStatistics();
+
+    /**
+     * Retrieves the statistics of the caches of compiled scripts used in condition and action parameters: {@code size},
+     * {@code maxSize}, {@code hits}, {@code misses}, {@code evictions} and {@code compilationFailures} since startup.
+     * @return a map containing cache names as key, and the statistics of the cache as a value
+     */
+    Map<String,Map<String,Long>> getScriptCacheStatistics();
+
+    /**
+     * Retrieves the slowest traced requests since startup. Requests are traced when the client asks for it or when they are sampled, and
+     * their trace breaks down the time spent selecting candidate rules, evaluating each condition, executing each action and calling the
+     * persistence service.
+     * @return the root spans of the slowest traces, slowest first
+     */
+    List<TraceSpan> getSlowestTraces();
+
+    /**
+     * Retrieves the statistics of the stages processing the requests of the public servlets when they run asynchronously: queue depth
+     * and capacity, active threads, task counters, and the average time tasks spend queued and executing, in microseconds.
+     * @return a map containing stage names as key, and the statistics of the stage as a value, empty when requests are processed
+     * synchronously
+     */
+    Map<String,Map<String,Long>> getProcessingStageStatistics();
+
+    /**
+     * Retrieves the number of condition evaluations that could not be performed in memory, because their condition type has no evaluator,
+     * and were sent as queries to Elasticsearch, since startup.
+     * @return a map containing condition type IDs as key, and the number of queries as a value
+     */
+    Map<String,Long> getQueryFallbackStatistics();
+
+    /**
+     * Retrieves the loaded rules for which some conditions evaluated on each event have no in-memory evaluator, and require a query to
+     * Elasticsearch.
+     * @return a map containing rule IDs as key, and the condition type IDs without evaluator as a value
+     */
+    Map<String,Set<String>> getRulesWithQueryFallback();
+
     /**
      * Persists the specified rule to the context server.
      *
@@ -153,6 +153,7 @@ public class PrivacyServiceImpl implements PrivacyService {
         if (anonymous) {
             profile.getSystemProperties().remove("goals");
             profile.getSystemProperties().remove("pastEvents");
+            profile.getSystemProperties().remove("pastEventBuckets");
         }
         Event profileUpdated = new Event("profileUpdated", null, profile, null, null, profile, new Date());
         profileUpdated.setPersistent(false);
@@ -32,6 +32,7 @@ import org.junit.runners.Suite.SuiteClasses;
         ConditionEvaluatorIT.class,
         ConditionESQueryBuilderIT.class,
         SegmentIT.class,
+        RulesServiceIT.class,
         ProfileServiceIT.class,
         ProfileImportBasicIT.class,
         ProfileImportSurfersIT.class,
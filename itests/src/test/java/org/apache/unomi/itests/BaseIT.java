@@ -114,6 +114,8 @@ public abstract class BaseIT {
                 features(karafCellarRepo, "cellar"),
                 features(contextServerRepo, "unomi-kar"),
                 features(routerRepo, "unomi-router-karaf-feature"),
+                // the hover event plugin is not part of the default features, its condition is tested by ConditionEvaluatorIT
+                mavenBundle("org.apache.unomi", "unomi-plugins-hover-event").versionAsInProject(),
                 // we need to wrap the HttpComponents libraries ourselves since the OSGi bundles provided by the project are incorrect
                 wrappedBundle(mavenBundle("org.apache.httpcomponents",
                         "httpcore").versionAsInProject()),
@@ -55,6 +55,11 @@ public class ConditionBuilder {
         return new CompoundCondition(condition1, condition2, "or");
     }
 
+    public ConditionItem condition(String conditionTypeId) {
+        return new ConditionItem(conditionTypeId, definitionsService) {
+        };
+    }
+
     public PropertyCondition profileProperty(String propertyName) {
         return new PropertyCondition("profilePropertyCondition", propertyName, definitionsService);
     }
@@ -173,6 +178,10 @@ public class ConditionBuilder {
             return op("missing");
         }
 
+        public ComparisonCondition notContains(String value) {
+            return op("notContains").stringValue(value);
+        }
+
         public ComparisonCondition notEqualTo(String value) {
             return op("notEquals").stringValue(value);
         }
@@ -44,6 +44,14 @@ public class ConditionESQueryBuilderIT extends ConditionEvaluatorIT {
         return list.contains(item);
     }
 
+    @Override
+    protected void setItem(Item item) {
+        persistenceService.remove(this.item.getItemId(), this.item.getClass());
+        super.setItem(item);
+        persistenceService.save(item);
+        persistenceService.refresh();
+    }
+
     @Before
     public void setUp() {
         super.setUp();
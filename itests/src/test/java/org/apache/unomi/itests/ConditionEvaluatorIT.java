@@ -17,10 +17,14 @@
 
 package org.apache.unomi.itests;
 
+import org.apache.unomi.api.CustomItem;
+import org.apache.unomi.api.Event;
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.Profile;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.DefinitionsService;
+import org.apache.unomi.persistence.spi.ConditionEvaluationScope;
+import org.apache.unomi.persistence.spi.PastEventCounters;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.junit.Before;
 import org.junit.Test;
@@ -51,8 +55,21 @@ public class ConditionEvaluatorIT extends BaseIT {
     @Inject
     private DefinitionsService definitionsService;
 
+    /**
+     * Evaluates a condition as is, then compiled, and checks that both evaluations agree.
+     */
     protected boolean eval(Condition c) {
-        return persistenceService.testMatch(c, item);
+        boolean result = persistenceService.testMatch(c, item);
+        persistenceService.compileCondition(c);
+        assertEquals("Compiled condition evaluated differently: " + c, result, persistenceService.testMatch(c, item));
+        return result;
+    }
+
+    /**
+     * Replaces the item that the conditions are evaluated against.
+     */
+    protected void setItem(Item item) {
+        this.item = item;
     }
 
     @Before
@@ -117,6 +134,20 @@ public class ConditionEvaluatorIT extends BaseIT {
         assertTrue(eval(builder.profileProperty("properties.lastVisit").isNotDay(new Date(lastVisit.getTime() + 10000)).build()));
     }
 
+    @Test
+    public void testDateExpression() {
+        assertTrue(eval(builder.profileProperty("properties.lastVisit").parameter("comparisonOperator", "greaterThan")
+                .parameter("propertyValueDateExpr", "now-100000d").build()));
+        assertTrue(eval(builder.profileProperty("properties.lastVisit").parameter("comparisonOperator", "lessThan")
+                .parameter("propertyValueDateExpr", "now-1d").build()));
+        assertFalse(eval(builder.profileProperty("properties.lastVisit").parameter("comparisonOperator", "greaterThan")
+                .parameter("propertyValueDateExpr", "now-1d/d").build()));
+        assertTrue(eval(builder.profileProperty("properties.lastVisit").parameter("comparisonOperator", "between")
+                .parameter("propertyValuesDateExpr", "now-100000d", "now").build()));
+        assertFalse(eval(builder.profileProperty("properties.lastVisit").parameter("comparisonOperator", "between")
+                .parameter("propertyValuesDateExpr", "now-1d", "now").build()));
+    }
+
     @Test
     public void testExistence() {
         assertTrue("Gender property does not exist",
@@ -160,6 +191,214 @@ public class ConditionEvaluatorIT extends BaseIT {
                 .parameter("segments", "s1", "s5").build()));
     }
 
+    @Test
+    public void testHoverEvent() {
+        // the fields are indexed with the folding analyzer, the evaluation must match what the term queries match
+        CustomItem target = new CustomItem("Bouton-Élevé", "button");
+        Map<String, Object> pageInfo = new HashMap<>();
+        pageInfo.put("pagePath", "/Site/Accueil");
+        target.getProperties().put("pageInfo", pageInfo);
+        setItem(new Event("hover", null, (Profile) item, "testScope", null, target, new Date()));
+
+        assertTrue(eval(hoverCondition("targetId", "bouton-eleve")));
+        assertFalse(eval(hoverCondition("targetId", "Bouton-Élevé")));
+        assertFalse(eval(hoverCondition("targetId", "bouton")));
+        assertTrue(eval(hoverCondition("targetPath", "/site/accueil")));
+        assertFalse(eval(hoverCondition("targetPath", "/Site/Accueil")));
+        assertFalse(eval(hoverCondition("targetPath", "/site")));
+
+        setItem(new Event("click", null, ((Event) item).getProfile(), "testScope", null, target, new Date()));
+        assertFalse(eval(hoverCondition("targetId", "bouton-eleve")));
+    }
+
+    private Condition hoverCondition(String parameterName, String value) {
+        Condition condition = new Condition(definitionsService.getConditionType("hoverEventCondition"));
+        condition.setParameter(parameterName, value);
+        return condition;
+    }
+
+    @Test
+    public void testPastEventCounters() {
+        Profile profile = (Profile) item;
+        long today = PastEventCounters.getDay(System.currentTimeMillis());
+        Date windowStart = PastEventCounters.getWindowStart(3, today);
+
+        // the counters and the queries on the events use the same window: the current day and the two previous ones
+        List<Event> events = Arrays.asList(new Event("pastEventTest", null, profile, "testScope", null, null, new Date()),
+                new Event("pastEventTest", null, profile, "testScope", null, null, windowStart),
+                new Event("pastEventTest", null, profile, "testScope", null, null, new Date(windowStart.getTime() - 1)));
+        for (Event event : events) {
+            persistenceService.save(event);
+        }
+        persistenceService.refresh();
+        setBuckets(profile.getSystemProperties(), "testCounters", today - 3, 1L, today - 2, 1L, today, 1L);
+        setItem(profile);
+
+        try {
+            assertTrue(eval(pastEventCondition("testCounters", 3, 2, null)));
+            assertFalse(eval(pastEventCondition("testCounters", 3, 3, null)));
+            assertFalse(eval(pastEventCondition("testCounters", 3, null, 1)));
+            assertTrue(eval(pastEventCondition("testCounters", 1, null, 1)));
+        } finally {
+            persistenceService.removeByQuery(builder.property("eventPropertyCondition", "profileId").equalTo(profile.getItemId()).build(), Event.class);
+        }
+    }
+
+    @Test
+    public void testPastEventBucketExpiry() {
+        Profile profile = (Profile) item;
+        Map<String, Object> systemProperties = profile.getSystemProperties();
+        long today = PastEventCounters.getDay(System.currentTimeMillis());
+        setBuckets(systemProperties, "testExpiry", today - 3, 2L, today - 1, 1L);
+
+        // buckets out of the window are ignored, and dropped along with their events once a new event is counted
+        assertEquals(1L, PastEventCounters.getCount(systemProperties, "testExpiry", 3, today));
+        assertTrue(PastEventCounters.increment(systemProperties, "testExpiry", 3, today, today));
+        assertEquals(2L, PastEventCounters.getCount(systemProperties, "testExpiry", 3, today));
+        assertEquals(2, ((List<?>) ((Map<?, ?>) systemProperties.get(PastEventCounters.PAST_EVENT_BUCKETS)).get("testExpiry")).size());
+        assertEquals(1L, PastEventCounters.getCount(systemProperties, "testExpiry", 3, today + 2));
+        // events older than the window are not counted
+        assertTrue(PastEventCounters.increment(systemProperties, "testExpiry", 3, today - 3, today));
+        assertEquals(2L, PastEventCounters.getCount(systemProperties, "testExpiry", 3, today));
+
+        setItem(profile);
+        assertTrue(eval(pastEventCondition("testExpiry", null, 2, 2)));
+        assertFalse(eval(pastEventCondition("testExpiry", null, 3, null)));
+    }
+
+    @Test
+    public void testPastEventCountRange() {
+        Profile profile = (Profile) item;
+        PastEventCounters.setCount(profile.getSystemProperties(), "testRange", 4);
+        PastEventCounters.setCount(profile.getSystemProperties(), "testNoEvent", 0);
+        setItem(profile);
+
+        // counters that are not limited to a number of days are queried with a range on the profiles
+        assertTrue(eval(pastEventCondition("testRange", null, 3, null)));
+        assertTrue(eval(pastEventCondition("testRange", null, 4, 4)));
+        assertFalse(eval(pastEventCondition("testRange", null, 5, null)));
+        assertFalse(eval(pastEventCondition("testRange", null, null, 3)));
+        assertFalse(eval(pastEventCondition("testNoEvent", null, null, null)));
+        assertFalse(eval(pastEventCondition("testUnknown", null, null, null)));
+    }
+
+    private Condition pastEventCondition(String key, Integer numberOfDays, Integer minimumEventCount, Integer maximumEventCount) {
+        Condition eventCondition = new Condition(definitionsService.getConditionType("eventTypeCondition"));
+        eventCondition.setParameter("eventTypeId", "pastEventTest");
+        Condition condition = new Condition(definitionsService.getConditionType("pastEventCondition"));
+        condition.setParameter("eventCondition", eventCondition);
+        condition.setParameter("generatedPropertyKey", key);
+        if (numberOfDays != null) {
+            condition.setParameter("numberOfDays", numberOfDays);
+        }
+        if (minimumEventCount != null) {
+            condition.setParameter("minimumEventCount", minimumEventCount);
+        }
+        if (maximumEventCount != null) {
+            condition.setParameter("maximumEventCount", maximumEventCount);
+        }
+        return condition;
+    }
+
+    /**
+     * Stores daily buckets as they are kept in the system properties, including the ones out of the window.
+     */
+    private static void setBuckets(Map<String, Object> systemProperties, String key, long... daysAndCounts) {
+        List<List<Long>> buckets = new ArrayList<>();
+        long count = 0;
+        for (int i = 0; i < daysAndCounts.length; i += 2) {
+            buckets.add(Arrays.asList(daysAndCounts[i], daysAndCounts[i + 1]));
+            count += daysAndCounts[i + 1];
+        }
+        Map<String, Object> allBuckets = new HashMap<>();
+        allBuckets.put(key, buckets);
+        systemProperties.put(PastEventCounters.PAST_EVENT_BUCKETS, allBuckets);
+        PastEventCounters.setCount(systemProperties, key, count);
+    }
+
+    @Test
+    public void testStringPatterns() {
+        Profile profile = (Profile) item;
+        profile.setProperty("patternTest", "welcome-to-the-homepage");
+        setItem(profile);
+
+        // overlapping and contained patterns
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").contains("home").build());
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").contains("homepage").build());
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").contains("page").build());
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").contains("the-home").build());
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").contains("e-to-the-h").build());
+        assertPatternMatch(false, builder.profileProperty("properties.patternTest").contains("homepages").build());
+        assertPatternMatch(false, builder.profileProperty("properties.patternTest").contains("pageh").build());
+
+        // the empty pattern
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").contains("").build());
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").startsWith("").build());
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").endsWith("").build());
+
+        // prefixes and suffixes
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").startsWith("welcome").build());
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").startsWith("welcome-to").build());
+        assertPatternMatch(false, builder.profileProperty("properties.patternTest").startsWith("elcome").build());
+        assertPatternMatch(false, builder.profileProperty("properties.patternTest").startsWith("welcome-to-the-homepage-").build());
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").endsWith("homepage").build());
+        assertPatternMatch(true, builder.profileProperty("properties.patternTest").endsWith("page").build());
+        assertPatternMatch(false, builder.profileProperty("properties.patternTest").endsWith("homepag").build());
+        assertPatternMatch(false, builder.profileProperty("properties.patternTest").endsWith("-welcome-to-the-homepage").build());
+    }
+
+    @Test
+    public void testStringPatternsRegisteredAfterMatching() {
+        ((Profile) item).setProperty("patternTest", "welcome-to-the-homepage");
+        Condition home = builder.profileProperty("properties.patternTest").contains("home").build();
+        persistenceService.compileCondition(home);
+
+        ConditionEvaluationScope scope = ConditionEvaluationScope.open();
+        try {
+            assertTrue(persistenceService.testMatch(home, item));
+            // the value was already matched against the patterns of the index in this scope, new patterns are matched directly
+            Condition comeTo = builder.profileProperty("properties.patternTest").contains("come-to").build();
+            persistenceService.compileCondition(comeTo);
+            Condition homepagePrefix = builder.profileProperty("properties.patternTest").startsWith("homepage").build();
+            persistenceService.compileCondition(homepagePrefix);
+            assertTrue(persistenceService.testMatch(comeTo, item));
+            assertFalse(persistenceService.testMatch(homepagePrefix, item));
+            assertTrue(persistenceService.testMatch(home, item));
+        } finally {
+            scope.close();
+        }
+    }
+
+    @Test
+    public void testStringPatternsOnMissingValue() {
+        // in memory, string comparisons on a missing value are false, whether the patterns are indexed or not
+        Condition notContains = builder.profileProperty("properties.patternMissingTest").notContains("home").build();
+        assertFalse(persistenceService.testMatch(notContains, item));
+        assertFalse(evalIndexed(notContains));
+        Condition contains = builder.profileProperty("properties.patternMissingTest").contains("home").build();
+        assertFalse(persistenceService.testMatch(contains, item));
+        assertFalse(evalIndexed(contains));
+    }
+
+    private void assertPatternMatch(boolean expected, Condition c) {
+        assertEquals(expected, eval(c));
+        assertEquals(expected, evalIndexed(c));
+    }
+
+    /**
+     * Evaluates a compiled condition within an evaluation scope, where the string patterns of the compiled conditions on a property are
+     * all matched at once against the value of the property.
+     */
+    private boolean evalIndexed(Condition c) {
+        persistenceService.compileCondition(c);
+        ConditionEvaluationScope scope = ConditionEvaluationScope.open();
+        try {
+            return persistenceService.testMatch(c, item);
+        } finally {
+            scope.close();
+        }
+    }
+
     @Test
     public void testString() {
         assertTrue(eval(builder.profileProperty("properties.gender").equalTo("female").build()));
@@ -171,11 +410,15 @@ public class ConditionEvaluatorIT extends BaseIT {
         assertTrue(eval(builder.profileProperty("properties.gender").contains("fem").build()));
         assertFalse(eval(builder.profileProperty("properties.gender").contains("mu").build()));
         assertTrue(eval(builder.profileProperty("properties.gender").matchesRegex(".*ale").build()));
+        assertTrue(eval(builder.profileProperty("properties.gender").matchesRegex("f[ae]m.*").build()));
+        assertFalse(eval(builder.profileProperty("properties.gender").matchesRegex("male").build()));
+        assertFalse(eval(builder.profileProperty("properties.gender").matchesRegex("fem").build()));
 
         assertTrue(eval(builder.profileProperty("properties.gender").in("male", "female").build()));
         assertTrue(eval(builder.profileProperty("properties.gender").notIn("one", "two").build()));
         assertFalse(eval(builder.profileProperty("properties.gender").notIn("one", "two", "female").build()));
         assertTrue(eval(builder.profileProperty("properties.gender").all("female").build()));
+        assertFalse(eval(builder.profileProperty("properties.gender").in("male", "other").build()));
         //assertFalse(eval(builder.profileProperty("properties.gender").all("male", "female").build()));
     }
 }
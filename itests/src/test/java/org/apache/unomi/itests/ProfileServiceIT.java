@@ -16,8 +16,11 @@
  */
 package org.apache.unomi.itests;
 
+import org.apache.unomi.api.Item;
 import org.apache.unomi.api.Profile;
 import org.apache.unomi.api.services.ProfileService;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.UnitOfWork;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.ops4j.pax.exam.junit.PaxExam;
@@ -27,6 +30,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
 
 /**
  * An integration test for the profile service
@@ -39,6 +47,8 @@ public class ProfileServiceIT extends BaseIT {
     private final static String TEST_PROFILE_ID = "test-profile-id";
     @Inject
     protected ProfileService profileService;
+    @Inject
+    protected PersistenceService persistenceService;
 
     @Test
     public void testProfileDelete() {
@@ -50,4 +60,85 @@ public class ProfileServiceIT extends BaseIT {
         LOGGER.info("Profile deleted successfully.");
     }
 
+    @Test
+    public void testUnitOfWorkCoalescing() {
+        final List<Item> writes = new ArrayList<>();
+        UnitOfWork.ItemWriter writer = new UnitOfWork.ItemWriter() {
+            @Override
+            public boolean save(Item item) {
+                writes.add(item);
+                return true;
+            }
+        };
+
+        UnitOfWork unitOfWork = UnitOfWork.begin();
+        assertNotNull("A unit of work should be started", unitOfWork);
+        try {
+            assertNull("Nested units of work should not be started", UnitOfWork.begin());
+            assertSame(unitOfWork, UnitOfWork.current());
+
+            Profile first = new Profile("profile-" + UUID.randomUUID().toString());
+            Profile second = new Profile("profile-" + UUID.randomUUID().toString());
+            unitOfWork.save(Profile.class, first, writer);
+            first.setProperty("count", 1);
+            unitOfWork.save(Profile.class, first, writer);
+            unitOfWork.save(Profile.class, second, writer);
+            Profile latest = new Profile(first.getItemId());
+            latest.setProperty("count", 2);
+            unitOfWork.save(Profile.class, latest, writer);
+            assertTrue("Nothing should be written before the flush", writes.isEmpty());
+            assertSame(latest, unitOfWork.get(first.getItemId(), Profile.class));
+
+            assertEquals(2, unitOfWork.flush());
+            assertEquals(2, writes.size());
+            assertSame("The latest state should be written", latest, writes.get(0));
+            assertSame(second, writes.get(1));
+            assertSame("Flushed items should stay memoized", latest, unitOfWork.get(first.getItemId(), Profile.class));
+
+            writes.clear();
+            unitOfWork.save(Profile.class, second, writer);
+            unitOfWork.evict(second.getItemId(), Profile.class);
+            assertNull(unitOfWork.get(second.getItemId(), Profile.class));
+            assertEquals("Evicted items should not be written", 0, unitOfWork.flush());
+        } finally {
+            unitOfWork.end();
+        }
+        assertNull("The unit of work should be detached once ended", UnitOfWork.current());
+        assertTrue(writes.isEmpty());
+    }
+
+    @Test
+    public void testProfileSaveInUnitOfWork() {
+        String profileId = "profile-" + UUID.randomUUID().toString();
+
+        Profile withoutUnitOfWork = new Profile(profileId + "-reference");
+        withoutUnitOfWork.setProperty("count", 2);
+        profileService.save(withoutUnitOfWork);
+
+        UnitOfWork unitOfWork = UnitOfWork.begin();
+        assertNotNull("A unit of work should be started", unitOfWork);
+        try {
+            Profile profile = new Profile(profileId);
+            profile.setProperty("count", 1);
+            assertSame(profile, profileService.save(profile));
+            profile.setProperty("count", 2);
+            assertSame(profile, profileService.save(profile));
+            assertSame("Saved profiles should be memoized", profile, profileService.load(profileId));
+
+            persistenceService.refresh();
+            assertNull("Nothing should be written before the unit of work ends", persistenceService.load(profileId, Profile.class));
+        } finally {
+            unitOfWork.end();
+        }
+
+        persistenceService.refresh();
+        Profile persisted = persistenceService.load(profileId, Profile.class);
+        Profile reference = persistenceService.load(withoutUnitOfWork.getItemId(), Profile.class);
+        assertNotNull("The profile should be written when the unit of work ends", persisted);
+        assertNotNull(reference);
+        assertEquals(reference.getProperties(), persisted.getProperties());
+
+        profileService.delete(profileId, false);
+        profileService.delete(withoutUnitOfWork.getItemId(), false);
+    }
 }
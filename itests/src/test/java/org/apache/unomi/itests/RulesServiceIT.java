@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.apache.unomi.itests;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.actions.Action;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.rules.Rule;
+import org.apache.unomi.api.services.DefinitionsService;
+import org.apache.unomi.api.services.EventService;
+import org.apache.unomi.api.services.RulesService;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import javax.inject.Inject;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the selection of the rules evaluated for an event: the rules fired through the rule index must be the ones a
+ * scan of all the rules would fire.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+public class RulesServiceIT extends BaseIT {
+
+    private static final String SCOPE_1 = "itScope1";
+    private static final String SCOPE_2 = "itScope2";
+
+    @Inject
+    protected RulesService rulesService;
+    @Inject
+    protected EventService eventService;
+    @Inject
+    protected DefinitionsService definitionsService;
+    @Inject
+    protected PersistenceService persistenceService;
+
+    private ConditionBuilder builder;
+    private List<String> ruleIds;
+
+    @Before
+    public void setUp() {
+        assertNotNull("Rules service should be available", rulesService);
+        builder = new ConditionBuilder(definitionsService);
+        ruleIds = new ArrayList<>();
+
+        addRule("itRuleView", Metadata.SYSTEM_SCOPE, eventType("itruleview"), true);
+        addRule("itRuleClick", SCOPE_1, eventType("itruleclick"), true);
+        addRule("itRuleViewOrClick", Metadata.SYSTEM_SCOPE, builder.or(eventTypeItem("itruleview"), eventTypeItem("itruleclick")).build(), true);
+        addRule("itRuleFlag", Metadata.SYSTEM_SCOPE, builder.property("eventPropertyCondition", "properties.itRuleFlag").equalTo("on").build(), true);
+        addRule("itRuleDisabled", Metadata.SYSTEM_SCOPE, eventType("itruleview"), false);
+        addRule("itRuleScope2", SCOPE_2, eventType("itruleclick"), true);
+        addRule("itRuleAccented", Metadata.SYSTEM_SCOPE, eventType("itrule-evenement"), true);
+        // the periodic reload of the rules must see them as well
+        persistenceService.refresh();
+    }
+
+    @After
+    public void tearDown() {
+        for (String ruleId : ruleIds) {
+            rulesService.removeRule(ruleId);
+        }
+    }
+
+    @Test
+    public void testCandidateRules() {
+        assertFired(newEvent("itruleview", SCOPE_1, null), "itRuleView", "itRuleViewOrClick");
+        assertFired(newEvent("itruleclick", SCOPE_1, null), "itRuleClick", "itRuleViewOrClick");
+        assertFired(newEvent("itruleclick", SCOPE_2, null), "itRuleViewOrClick", "itRuleScope2");
+        assertFired(newEvent("itruleclick", Metadata.SYSTEM_SCOPE, null), "itRuleViewOrClick");
+        assertFired(newEvent("itruleother", SCOPE_1, "on"), "itRuleFlag");
+        assertFired(newEvent("itruleview", SCOPE_2, "on"), "itRuleView", "itRuleViewOrClick", "itRuleFlag");
+        assertFired(newEvent("itruleother", SCOPE_1, null));
+    }
+
+    @Test
+    public void testCandidateRulesOnFoldedEventTypes() {
+        // the expected rules depend on how event types are folded, they must only be the same with and without the index
+        assertFiredAsScanned(newEvent("ITRULEVIEW", SCOPE_1, null));
+        assertFiredAsScanned(newEvent("itRuleClick", SCOPE_1, null));
+        assertFiredAsScanned(newEvent("itrule-événement", SCOPE_1, null));
+        assertFiredAsScanned(newEvent("itrule-evenement", SCOPE_2, null));
+    }
+
+    private void assertFired(Event event, String... expectedRuleIds) {
+        assertEquals("Unexpected rules fired for " + event.getEventType() + " in " + event.getScope(),
+                new HashSet<>(Arrays.asList(expectedRuleIds)), assertFiredAsScanned(event));
+    }
+
+    /**
+     * Sends an event and checks that the rules it fires are the ones matching it when all the rules are scanned, with their conditions
+     * loaded again rather than compiled.
+     */
+    private Set<String> assertFiredAsScanned(Event event) {
+        Set<String> expected = new HashSet<>();
+        for (String ruleId : ruleIds) {
+            Rule rule = rulesService.getRule(ruleId);
+            String scope = rule.getMetadata().getScope();
+            if (rule.getMetadata().isEnabled() && (scope.equals(Metadata.SYSTEM_SCOPE) || scope.equals(event.getScope()))
+                    && persistenceService.testMatch(rule.getCondition(), event)) {
+                expected.add(ruleId);
+            }
+        }
+
+        eventService.send(event);
+
+        Set<String> fired = new HashSet<>();
+        for (String ruleId : ruleIds) {
+            if ("true".equals(event.getProfile().getProperty(ruleId + "Fired"))) {
+                fired.add(ruleId);
+            }
+        }
+        assertEquals("Rules fired through the index differ from the scanned rules for " + event.getEventType() + " in "
+                + event.getScope(), expected, fired);
+        return fired;
+    }
+
+    private Event newEvent(String eventType, String scope, String flag) {
+        Profile profile = new Profile("profile-" + UUID.randomUUID().toString());
+        Map<String, Object> properties = new HashMap<>();
+        if (flag != null) {
+            properties.put("itRuleFlag", flag);
+        }
+        Event event = new Event(eventType, null, profile, scope, null, null, properties, new Date());
+        event.setPersistent(false);
+        return event;
+    }
+
+    private void addRule(String ruleId, String scope, Condition condition, boolean enabled) {
+        Rule rule = new Rule(new Metadata(scope, ruleId, ruleId, "Rule candidate selection test"));
+        rule.getMetadata().setEnabled(enabled);
+        rule.setCondition(condition);
+        Action action = new Action(definitionsService.getActionType("setPropertyAction"));
+        action.setParameter("setPropertyName", "properties." + ruleId + "Fired");
+        action.setParameter("setPropertyValue", "true");
+        rule.setActions(Collections.singletonList(action));
+        rulesService.setRule(rule);
+        ruleIds.add(ruleId);
+    }
+
+    private Condition eventType(String eventTypeId) {
+        return eventTypeItem(eventTypeId).build();
+    }
+
+    private ConditionBuilder.ConditionItem eventTypeItem(String eventTypeId) {
+        return builder.condition("eventTypeCondition").parameter("eventTypeId", eventTypeId);
+    }
+}
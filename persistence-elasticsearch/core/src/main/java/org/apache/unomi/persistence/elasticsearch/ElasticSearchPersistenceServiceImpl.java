@@ -21,6 +21,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.PartialList;
 import org.apache.unomi.api.TimestampedItem;
+import org.apache.unomi.api.TraceSpan;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.query.DateRange;
 import org.apache.unomi.api.query.IpRange;
@@ -28,6 +29,7 @@ import org.apache.unomi.api.query.NumericRange;
 import org.apache.unomi.persistence.elasticsearch.conditions.*;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
 import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.Tracer;
 import org.apache.unomi.persistence.spi.aggregate.*;
 import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
 import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
@@ -677,30 +679,8 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         Boolean result =  new InClassLoaderExecute<Boolean>() {
             protected Boolean execute(Object... args) throws Exception {
                 try {
-                    String source = CustomObjectMapper.getObjectMapper().writeValueAsString(item);
-                    String itemType = item.getItemType();
-                    String index = indexNames.containsKey(itemType) ? indexNames.get(itemType) :
-                            (itemsMonthlyIndexed.contains(itemType) ? getMonthlyIndex(((TimestampedItem) item).getTimeStamp()) : indexName);
-                    IndexRequestBuilder indexBuilder = client.prepareIndex(index, itemType, item.getItemId())
-                            .setSource(source);
-                    if (routingByType.containsKey(itemType)) {
-                        indexBuilder = indexBuilder.setRouting(routingByType.get(itemType));
-                    }
-
-                    if (!existingIndexNames.contains(index)) {
-                        // index probably doesn't exist, unless something else has already created it.
-                        if (itemsMonthlyIndexed.contains(itemType)) {
-                            Date timeStamp = ((TimestampedItem) item).getTimeStamp();
-                            if (timeStamp != null) {
-                                getMonthlyIndex(timeStamp, true);
-                            } else {
-                                logger.warn("Missing time stamp on item " + item + " id=" + item.getItemId() + " can't create related monthly index !");
-                            }
-                        } else {
-                            // this is not a timestamped index, should we create it anyway ?
-                            createIndex(index);
-                        }
-                    }
+                    IndexRequestBuilder indexBuilder = prepareIndex(item);
+                    String index = indexBuilder.request().index();
 
                     try {
                         if (bulkProcessor == null || !useBatching) {
@@ -726,6 +706,66 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }
     }
 
+    @Override
+    public <T extends Item> List<T> save(final List<T> items) {
+        if (items.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        List<T> failedItems = new InClassLoaderExecute<List<T>>() {
+            protected List<T> execute(Object... args) throws Exception {
+                BulkRequestBuilder bulkRequest = client.prepareBulk();
+                for (T item : items) {
+                    bulkRequest.add(prepareIndex(item));
+                }
+                BulkResponse response = bulkRequest.get();
+                List<T> failedItems = new ArrayList<T>();
+                if (response.hasFailures()) {
+                    // the item responses are in the order of the requests
+                    BulkItemResponse[] itemResponses = response.getItems();
+                    for (int i = 0; i < itemResponses.length; i++) {
+                        if (itemResponses[i].isFailed()) {
+                            logger.warn("Couldn't save {} {}: {}", items.get(i).getItemType(), items.get(i).getItemId(), itemResponses[i].getFailureMessage());
+                            failedItems.add(items.get(i));
+                        }
+                    }
+                }
+                return failedItems;
+            }
+        }.catchingExecuteInClassLoader(true);
+        return failedItems != null ? failedItems : new ArrayList<T>(items);
+    }
+
+    /**
+     * Prepares the request indexing an item, creating its index if needed.
+     */
+    private IndexRequestBuilder prepareIndex(Item item) throws IOException {
+        String source = CustomObjectMapper.getObjectMapper().writeValueAsString(item);
+        String itemType = item.getItemType();
+        String index = indexNames.containsKey(itemType) ? indexNames.get(itemType) :
+                (itemsMonthlyIndexed.contains(itemType) ? getMonthlyIndex(((TimestampedItem) item).getTimeStamp()) : indexName);
+        IndexRequestBuilder indexBuilder = client.prepareIndex(index, itemType, item.getItemId())
+                .setSource(source);
+        if (routingByType.containsKey(itemType)) {
+            indexBuilder = indexBuilder.setRouting(routingByType.get(itemType));
+        }
+
+        if (!existingIndexNames.contains(index)) {
+            // index probably doesn't exist, unless something else has already created it.
+            if (itemsMonthlyIndexed.contains(itemType)) {
+                Date timeStamp = ((TimestampedItem) item).getTimeStamp();
+                if (timeStamp != null) {
+                    getMonthlyIndex(timeStamp, true);
+                } else {
+                    logger.warn("Missing time stamp on item " + item + " id=" + item.getItemId() + " can't create related monthly index !");
+                }
+            } else {
+                // this is not a timestamped index, should we create it anyway ?
+                createIndex(index);
+            }
+        }
+        return indexBuilder;
+    }
+
     @Override
     public boolean update(final String itemId, final Date dateHint, final Class clazz, final String propertyName, final Object propertyValue) {
         return update(itemId, dateHint, clazz, Collections.singletonMap(propertyName, propertyValue));
@@ -1170,8 +1210,11 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         try {
             return conditionEvaluatorDispatcher.eval(query, item);
         } catch (UnsupportedOperationException e) {
-            logger.error("Eval not supported, continue with query", e);
+            // each condition type without evaluator is reported once and counted by the dispatcher
+            logger.debug("Eval not supported, continue with query", e);
         }
+        TraceSpan span = Tracer.begin("condition", query.getConditionTypeId());
+        Tracer.setAttribute("esFallback", true);
         try {
             final Class<? extends Item> clazz = item.getClass();
             String itemType = (String) clazz.getField("ITEM_TYPE").get(null);
@@ -1184,10 +1227,29 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
             logger.error("Error getting query for item=" + item, e);
         } catch (NoSuchFieldException e) {
             logger.error("Error getting query for item=" + item, e);
+        } finally {
+            Tracer.end(span);
         }
         return false;
     }
 
+    @Override
+    public void compileCondition(Condition condition) {
+        if (condition != null) {
+            conditionEvaluatorDispatcher.compile(condition);
+        }
+    }
+
+    @Override
+    public Set<String> getConditionTypesWithoutEvaluator(Condition condition) {
+        return conditionEvaluatorDispatcher.getConditionTypesWithoutEvaluator(condition);
+    }
+
+    @Override
+    public Map<String, Long> getQueryFallbackStatistics() {
+        return conditionEvaluatorDispatcher.getQueryFallbackStatistics();
+    }
+
     @Override
     public <T extends Item> List<T> query(final Condition query, String sortBy, final Class<T> clazz) {
         return query(query, sortBy, clazz, 0, -1).getList();
@@ -1543,6 +1605,63 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }.catchingExecuteInClassLoader(true);
     }
 
+    @Override
+    public Map<String, Map<String, Long>> aggregateQuery(final Condition filter, final BaseAggregate aggregate, final BaseAggregate subAggregate, final String itemType) {
+        return new InClassLoaderExecute<Map<String, Map<String, Long>>>() {
+
+            @Override
+            protected Map<String, Map<String, Long>> execute(Object... args) {
+                Map<String, Map<String, Long>> results = new LinkedHashMap<String, Map<String, Long>>();
+
+                AggregationBuilder bucketsAggregation = getBucketsAggregation("buckets", aggregate, itemType);
+                AggregationBuilder subBucketsAggregation = getBucketsAggregation("subBuckets", subAggregate, itemType);
+                if (bucketsAggregation == null || subBucketsAggregation == null) {
+                    // no existing data for the aggregated fields
+                    return results;
+                }
+                bucketsAggregation.subAggregation(subBucketsAggregation);
+
+                SearchRequestBuilder builder = client.prepareSearch(getIndexNameForQuery(itemType))
+                        .setTypes(itemType)
+                        .setSize(0)
+                        .setQuery(filter != null ? conditionESQueryBuilderDispatcher.buildFilter(filter) : QueryBuilders.matchAllQuery())
+                        .addAggregation(bucketsAggregation);
+
+                SearchResponse response = builder.execute().actionGet();
+
+                Aggregations aggregations = response.getAggregations();
+                if (aggregations != null && aggregations.get("buckets") != null) {
+                    MultiBucketsAggregation buckets = aggregations.get("buckets");
+                    for (MultiBucketsAggregation.Bucket bucket : buckets.getBuckets()) {
+                        Map<String, Long> subResults = new LinkedHashMap<String, Long>();
+                        MultiBucketsAggregation subBuckets = bucket.getAggregations().get("subBuckets");
+                        for (MultiBucketsAggregation.Bucket subBucket : subBuckets.getBuckets()) {
+                            if (subBucket.getDocCount() > 0) {
+                                subResults.put(subBucket.getKeyAsString(), subBucket.getDocCount());
+                            }
+                        }
+                        results.put(bucket.getKeyAsString(), subResults);
+                    }
+                }
+
+                return results;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    private AggregationBuilder getBucketsAggregation(String name, BaseAggregate aggregate, String itemType) {
+        if (aggregate instanceof DateAggregate) {
+            DateAggregate dateAggregate = (DateAggregate) aggregate;
+            DateHistogramAggregationBuilder dateHistogramBuilder = AggregationBuilders.dateHistogram(name).field(aggregate.getField()).dateHistogramInterval(new DateHistogramInterval((dateAggregate.getInterval())));
+            if (dateAggregate.getFormat() != null) {
+                dateHistogramBuilder.format(dateAggregate.getFormat());
+            }
+            return dateHistogramBuilder;
+        }
+        String fieldName = getPropertyNameWithData(aggregate.getField(), itemType);
+        return fieldName != null ? AggregationBuilders.terms(name).field(fieldName).size(5000) : null;
+    }
+
     private <T extends Item> String getItemType(Class<T> clazz) {
         try {
             return (String) clazz.getField("ITEM_TYPE").get(null);
@@ -1732,15 +1851,25 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
     public abstract static class InClassLoaderExecute<T> {
 
+        // traced under the name of the method declaring the anonymous subclass
+        private static final ClassValue<String> operationNames = new ClassValue<String>() {
+            @Override
+            protected String computeValue(Class<?> type) {
+                return type.getEnclosingMethod() != null ? type.getEnclosingMethod().getName() : type.getSimpleName();
+            }
+        };
+
         protected abstract T execute(Object... args) throws Exception;
 
         public T executeInClassLoader(Object... args) throws Exception {
+            TraceSpan span = Tracer.begin("persistence", operationNames.get(getClass()));
             ClassLoader tccl = Thread.currentThread().getContextClassLoader();
             try {
                 Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
                 return execute(args);
             } finally {
                 Thread.currentThread().setContextClassLoader(tccl);
+                Tracer.end(span);
             }
         }
 
@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch.conditions;
+
+import org.apache.unomi.api.conditions.Condition;
+
+import java.util.Map;
+
+/**
+ * A {@link ConditionEvaluator} that is also able to compile the conditions it evaluates into {@link CompiledCondition}s.
+ */
+public interface CompilableConditionEvaluator extends ConditionEvaluator {
+
+    /**
+     * Compiles the specified condition.
+     *
+     * @param condition  the condition to compile, with its contextual parameters already resolved
+     * @param context    the parameters of the parent conditions, to be used when compiling sub-conditions
+     * @param dispatcher the dispatcher to use to compile sub-conditions
+     * @return the compiled condition, or {@code null} if the condition cannot be compiled
+     */
+    CompiledCondition compile(Condition condition, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher);
+
+}
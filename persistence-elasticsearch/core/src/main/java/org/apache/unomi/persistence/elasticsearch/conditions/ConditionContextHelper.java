@@ -20,39 +20,93 @@ package org.apache.unomi.persistence.elasticsearch.conditions;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.logging.log4j.core.util.IOUtils;
-import org.apache.lucene.analysis.charfilter.MappingCharFilterFactory;
-import org.apache.lucene.analysis.util.ClasspathResourceLoader;
 import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.spi.ScriptCache;
 import org.mvel2.MVEL;
 import org.mvel2.ParserConfiguration;
 import org.mvel2.ParserContext;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Serializable;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ConditionContextHelper {
-    private static Map<String,Serializable> mvelExpressions = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_SCRIPTS = 1000;
+
+    /**
+     * Scripts used by conditions that are evaluated without being compiled, compiled conditions hold their own compiled scripts.
+     */
+    private static final ScriptCache<Serializable> mvelExpressions = new ScriptCache<>("conditions", MAX_CACHED_SCRIPTS, new ScriptCache.Compiler<Serializable>() {
+        @Override
+        public Serializable compile(String script) {
+            return compileExpression(script);
+        }
+    });
+
+    static final String FOLDING_MAPPING = "mapping-FoldToASCII.txt";
+
+    /**
+     * Size of the folding lookup table, which covers Latin-1 and Latin Extended-A and B. Other characters of the mapping are looked up
+     * in {@link #extendedFoldings}.
+     */
+    private static final int FOLDING_TABLE_SIZE = 0x250;
+
+    private static final String[] foldingTable = new String[FOLDING_TABLE_SIZE];
+    private static final Map<Character, String> extendedFoldings = new HashMap<>();
+
+    private static final Pattern MAPPING_PATTERN = Pattern.compile("\"(.*)\"\\s*=>\\s*\"(.*)\"\\s*$");
 
-    private static MappingCharFilterFactory mappingCharFilterFactory;
     static {
-        Map<String,String> args = new HashMap<>();
-        args.put("mapping", "mapping-FoldToASCII.txt");
-        mappingCharFilterFactory = new MappingCharFilterFactory(args);
-        try {
-            mappingCharFilterFactory.inform(new ClasspathResourceLoader(ConditionContextHelper.class.getClassLoader()));
-        } catch (IOException e) {
-            e.printStackTrace();
+        InputStream stream = ConditionContextHelper.class.getClassLoader().getResourceAsStream(FOLDING_MAPPING);
+        if (stream != null) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Matcher matcher = MAPPING_PATTERN.matcher(line);
+                    if (line.startsWith("#") || !matcher.matches()) {
+                        continue;
+                    }
+                    String key = unescapeMapping(matcher.group(1));
+                    if (key.length() != 1) {
+                        // the mapping only contains single characters
+                        continue;
+                    }
+                    char c = key.charAt(0);
+                    if (c < FOLDING_TABLE_SIZE) {
+                        foldingTable[c] = unescapeMapping(matcher.group(2));
+                    } else {
+                        extendedFoldings.put(c, unescapeMapping(matcher.group(2)));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
+    /**
+     * A script parameter compiled along with its condition, see {@link #compileScripts(Condition)}.
+     */
+    private static final class CompiledScript {
+        private final Serializable expression;
+
+        CompiledScript(Serializable expression) {
+            this.expression = expression;
+        }
+    }
+
+    public static void setMaxCachedScripts(int maxCachedScripts) {
+        mvelExpressions.setMaxSize(maxCachedScripts);
+    }
+
     public static Condition getContextualCondition(Condition condition, Map<String, Object> context) {
         if (!hasContextualParameter(condition.getParameterValues())) {
             return condition;
@@ -76,14 +130,11 @@ public class ConditionContextHelper {
                     return context.get(StringUtils.substringAfter(s, "parameter::"));
                 } else if (s.startsWith("script::")) {
                     String script = StringUtils.substringAfter(s, "script::");
-                    if (!mvelExpressions.containsKey(script)) {
-                        ParserConfiguration parserConfiguration = new ParserConfiguration();
-                        parserConfiguration.setClassLoader(ConditionContextHelper.class.getClassLoader());
-                        mvelExpressions.put(script,MVEL.compileExpression(script, new ParserContext(parserConfiguration)));
-                    }
                     return MVEL.executeExpression(mvelExpressions.get(script), context);
                 }
             }
+        } else if (value instanceof CompiledScript) {
+            return MVEL.executeExpression(((CompiledScript) value).expression, context);
         } else if (value instanceof Map) {
             Map<String, Object> values = new HashMap<String, Object>();
             for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
@@ -107,11 +158,82 @@ public class ConditionContextHelper {
         return value;
     }
 
+    /**
+     * Compiles the scripts used as parameters of the specified condition, so that they are not looked up again on each evaluation.
+     *
+     * @param condition the condition
+     * @return a copy of the condition holding the compiled scripts in place of the script parameters
+     * @throws IllegalArgumentException if a script cannot be compiled
+     */
+    @SuppressWarnings("unchecked")
+    public static Condition compileScripts(Condition condition) {
+        Condition compiledCondition = new Condition(condition.getConditionType());
+        compiledCondition.setParameterValues((Map<String, Object>) compileScripts(condition.getParameterValues()));
+        return compiledCondition;
+    }
+
+    private static Object compileScripts(Object value) {
+        if (value instanceof String) {
+            if (((String) value).startsWith("script::")) {
+                String script = StringUtils.substringAfter((String) value, "script::");
+                try {
+                    return new CompiledScript(compileExpression(script));
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Cannot compile script " + script + ": " + e.getMessage(), e);
+                }
+            }
+        } else if (value instanceof Map) {
+            Map<Object, Object> values = new HashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                values.put(entry.getKey(), compileScripts(entry.getValue()));
+            }
+            return values;
+        } else if (value instanceof List) {
+            List<Object> values = new ArrayList<>();
+            for (Object o : ((List<?>) value)) {
+                values.add(compileScripts(o));
+            }
+            return values;
+        }
+        return value;
+    }
+
+    private static Serializable compileExpression(String script) {
+        ParserConfiguration parserConfiguration = new ParserConfiguration();
+        parserConfiguration.setClassLoader(ConditionContextHelper.class.getClassLoader());
+        return MVEL.compileExpression(script, new ParserContext(parserConfiguration));
+    }
+
+    public static boolean hasScriptParameter(Condition condition) {
+        return hasScriptParameter(condition.getParameterValues());
+    }
+
+    private static boolean hasScriptParameter(Object value) {
+        if (value instanceof String) {
+            return ((String) value).startsWith("script::");
+        } else if (value instanceof Map) {
+            for (Object o : ((Map<?, ?>) value).values()) {
+                if (hasScriptParameter(o)) {
+                    return true;
+                }
+            }
+        } else if (value instanceof List) {
+            for (Object o : ((List<?>) value)) {
+                if (hasScriptParameter(o)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private static boolean hasContextualParameter(Object value) {
         if (value instanceof String) {
             if (((String) value).startsWith("parameter::") || ((String) value).startsWith("script::")) {
                 return true;
             }
+        } else if (value instanceof CompiledScript) {
+            return true;
         } else if (value instanceof Map) {
             for (Object o : ((Map<?, ?>) value).values()) {
                 if (hasContextualParameter(o)) {
@@ -137,18 +259,81 @@ public class ConditionContextHelper {
         return s;
     }
 
+    /**
+     * Lowercases the specified string and folds its characters to ASCII, using the same mapping as the ASCII folding char filter of
+     * the index. Strings which are plain ASCII are returned as soon as they are lowercased.
+     *
+     * @param s the string to fold
+     * @return the folded string
+     */
     public static String foldToASCII(String s) {
-        if (s != null) {
-            s = s.toLowerCase();
-            StringReader stringReader = new StringReader(s);
-            Reader foldedStringReader = mappingCharFilterFactory.create(stringReader);
-            try {
-                return IOUtils.toString(foldedStringReader);
-            } catch (IOException e) {
-                e.printStackTrace();
+        if (s == null) {
+            return null;
+        }
+        s = s.toLowerCase();
+        int length = s.length();
+        int i = 0;
+        while (i < length && s.charAt(i) < 0x80) {
+            i++;
+        }
+        if (i == length) {
+            return s;
+        }
+        StringBuilder folded = null;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            String replacement = null;
+            if (c >= 0x80) {
+                replacement = c < FOLDING_TABLE_SIZE ? foldingTable[c] : extendedFoldings.get(c);
+            }
+            if (replacement != null && folded == null) {
+                folded = new StringBuilder(length + 16);
+                folded.append(s, 0, i);
+            }
+            if (replacement != null) {
+                folded.append(replacement);
+            } else if (folded != null) {
+                folded.append(c);
             }
         }
-        return null;
+        return folded != null ? folded.toString() : s;
+    }
+
+    private static String unescapeMapping(String s) {
+        StringBuilder unescaped = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char escaped = s.charAt(++i);
+                switch (escaped) {
+                    case 'u':
+                        unescaped.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    case 'n':
+                        unescaped.append('\n');
+                        break;
+                    case 't':
+                        unescaped.append('\t');
+                        break;
+                    case 'r':
+                        unescaped.append('\r');
+                        break;
+                    case 'b':
+                        unescaped.append('\b');
+                        break;
+                    case 'f':
+                        unescaped.append('\f');
+                        break;
+                    default:
+                        unescaped.append(escaped);
+                        break;
+                }
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
     }
 
     public static <T> List<T> foldToASCII(List<T> s) {
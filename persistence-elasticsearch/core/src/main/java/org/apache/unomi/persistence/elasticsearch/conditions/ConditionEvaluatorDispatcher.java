@@ -17,14 +17,26 @@
 
 package org.apache.unomi.persistence.elasticsearch.conditions;
 
+import com.google.common.collect.MapMaker;
 import org.apache.unomi.api.Item;
+import org.apache.unomi.api.TraceSpan;
 import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.spi.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Entry point for condition evaluation. Will dispatch to all evaluators.
@@ -34,19 +46,61 @@ public class ConditionEvaluatorDispatcher {
 
     private Map<String, ConditionEvaluator> evaluators = new ConcurrentHashMap<>();
 
+    // compiled conditions are looked up by condition instance, and dropped once the condition is not referenced anymore: they are
+    // compiled from a copy of the condition, as a value referencing its own key would never be collected
+    private ConcurrentMap<Condition, CompiledCondition> compiledConditions = new MapMaker().weakKeys().makeMap();
+
+    // structurally identical conditions share the same compiled node, which is dropped once no compiled condition uses it anymore
+    private ConcurrentMap<SharedConditionKey, SharedCondition> sharedConditions = new MapMaker().weakValues().makeMap();
+
+    // the condition rebuilt from contextual parameters that the current thread is evaluating, if any
+    private final ThreadLocal<Condition> contextualConditions = new ThreadLocal<>();
+
+    /**
+     * The number of evaluations that had to fall back to an Elasticsearch query, by condition type.
+     */
+    private ConcurrentMap<String, LongAdder> queryFallbacks = new ConcurrentHashMap<>();
+
+    /**
+     * Sets the maximum number of scripts cached for the conditions that are evaluated without being compiled.
+     *
+     * @param maxCachedScripts the maximum number of cached scripts
+     */
+    public void setMaxCachedScripts(int maxCachedScripts) {
+        ConditionContextHelper.setMaxCachedScripts(maxCachedScripts);
+    }
+
     public void addEvaluator(String name, ConditionEvaluator evaluator) {
         evaluators.put(name, evaluator);
+        compiledConditions.clear();
+        sharedConditions.clear();
     }
 
     public void removeEvaluator(String name) {
         evaluators.remove(name);
+        compiledConditions.clear();
+        sharedConditions.clear();
     }
 
     public boolean eval(Condition condition, Item item) {
-        return eval(condition, item, new HashMap<String, Object>());
+        CompiledCondition compiledCondition = compiledConditions.get(condition);
+        if (compiledCondition != null) {
+            return compiledCondition.eval(item);
+        }
+        return doEval(condition, item, new HashMap<String, Object>());
     }
 
     public boolean eval(Condition condition, Item item, Map<String, Object> context) {
+        if (context.isEmpty()) {
+            CompiledCondition compiledCondition = compiledConditions.get(condition);
+            if (compiledCondition != null) {
+                return compiledCondition.eval(item);
+            }
+        }
+        return doEval(condition, item, context);
+    }
+
+    private boolean doEval(Condition condition, Item item, Map<String, Object> context) {
         String conditionEvaluatorKey = condition.getConditionType().getConditionEvaluator();
         if (condition.getConditionType().getParentCondition() != null) {
             context.putAll(condition.getParameterValues());
@@ -54,6 +108,7 @@ public class ConditionEvaluatorDispatcher {
         }
 
         if (conditionEvaluatorKey == null) {
+            recordQueryFallback(condition.getConditionTypeId());
             throw new UnsupportedOperationException("No evaluator defined for : " + condition.getConditionTypeId());
         }
 
@@ -61,7 +116,21 @@ public class ConditionEvaluatorDispatcher {
             ConditionEvaluator evaluator = evaluators.get(conditionEvaluatorKey);
             Condition contextualCondition = ConditionContextHelper.getContextualCondition(condition, context);
             if (contextualCondition != null) {
-                return evaluator.eval(contextualCondition, item, context, this);
+                TraceSpan span = Tracer.begin("condition", condition.getConditionTypeId());
+                boolean rebuilt = contextualCondition != condition;
+                Condition previousContextualCondition = null;
+                if (rebuilt) {
+                    previousContextualCondition = contextualConditions.get();
+                    contextualConditions.set(contextualCondition);
+                }
+                try {
+                    return evaluator.eval(contextualCondition, item, context, this);
+                } finally {
+                    if (rebuilt) {
+                        contextualConditions.set(previousContextualCondition);
+                    }
+                    Tracer.end(span);
+                }
             } else {
                 return true;
             }
@@ -70,4 +139,266 @@ public class ConditionEvaluatorDispatcher {
         // if no matching
         return false;
     }
+
+    /**
+     * Determines whether the specified condition, being evaluated by the current thread, was rebuilt from contextual parameters for this
+     * evaluation only. Evaluators should not keep anything derived from such conditions.
+     *
+     * @param condition the condition passed to an evaluator
+     * @return {@code true} if the condition is only used for the current evaluation
+     */
+    public boolean isContextualCondition(Condition condition) {
+        return condition == contextualConditions.get();
+    }
+
+    private void recordQueryFallback(String conditionTypeId) {
+        String key = conditionTypeId != null ? conditionTypeId : "unknown";
+        LongAdder counter = queryFallbacks.get(key);
+        if (counter == null) {
+            counter = new LongAdder();
+            LongAdder previousCounter = queryFallbacks.putIfAbsent(key, counter);
+            if (previousCounter != null) {
+                counter = previousCounter;
+            } else {
+                logger.warn("No evaluator defined for condition type " + key + ", conditions of this type are evaluated with Elasticsearch queries");
+            }
+        }
+        counter.increment();
+    }
+
+    /**
+     * Retrieves the number of evaluations that could not be performed in memory and fell back to an Elasticsearch query, since startup.
+     *
+     * @return a map of condition type identifiers to fallback counts
+     */
+    public Map<String, Long> getQueryFallbackStatistics() {
+        Map<String, Long> statistics = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : queryFallbacks.entrySet()) {
+            statistics.put(entry.getKey(), entry.getValue().sum());
+        }
+        return statistics;
+    }
+
+    /**
+     * Retrieves the condition types which prevent the specified condition from being evaluated in memory, without falling back to an
+     * Elasticsearch query: its condition type, or the parent condition of its type, must have a registered evaluator, and so must the
+     * nested conditions found in its parameters.
+     *
+     * @param condition the condition to check
+     * @return the identifiers of the condition types that cannot be evaluated in memory, empty if the whole condition can be
+     */
+    public Set<String> getConditionTypesWithoutEvaluator(Condition condition) {
+        Set<String> conditionTypes = new TreeSet<>();
+        collectConditionTypesWithoutEvaluator(condition, conditionTypes);
+        return conditionTypes;
+    }
+
+    private void collectConditionTypesWithoutEvaluator(Object value, Set<String> conditionTypes) {
+        if (value instanceof Condition) {
+            Condition condition = (Condition) value;
+            if (condition.getConditionType() == null) {
+                conditionTypes.add(String.valueOf(condition.getConditionTypeId()));
+            } else if (condition.getConditionType().getParentCondition() != null) {
+                collectConditionTypesWithoutEvaluator(condition.getConditionType().getParentCondition(), conditionTypes);
+            } else {
+                String conditionEvaluatorKey = condition.getConditionType().getConditionEvaluator();
+                if (conditionEvaluatorKey == null || !evaluators.containsKey(conditionEvaluatorKey)) {
+                    conditionTypes.add(condition.getConditionTypeId());
+                }
+            }
+            collectConditionTypesWithoutEvaluator(condition.getParameterValues().values(), conditionTypes);
+        } else if (value instanceof Collection) {
+            for (Object o : (Collection<?>) value) {
+                collectConditionTypesWithoutEvaluator(o, conditionTypes);
+            }
+        } else if (value instanceof Map) {
+            collectConditionTypesWithoutEvaluator(((Map<?, ?>) value).values(), conditionTypes);
+        }
+    }
+
+    /**
+     * Compiles the specified condition, so that subsequent evaluations of the same condition instance use the compiled form. Parts of
+     * the condition that cannot be compiled are still evaluated through this dispatcher.
+     *
+     * @param condition the condition to compile
+     * @return the compiled condition
+     */
+    public CompiledCondition compile(Condition condition) {
+        return compile(condition, Collections.<String, Object>emptyMap());
+    }
+
+    public CompiledCondition compile(final Condition condition, final Map<String, Object> context) {
+        CompiledCondition compiledCondition;
+        if (context.isEmpty()) {
+            compiledCondition = compiledConditions.get(condition);
+            if (compiledCondition != null) {
+                return compiledCondition;
+            }
+        }
+
+        if (context.isEmpty()) {
+            compiledCondition = doCompile((Condition) copy(condition), context);
+            compiledConditions.put(condition, compiledCondition);
+        } else {
+            compiledCondition = doCompile(condition, context);
+        }
+        return compiledCondition;
+    }
+
+    /**
+     * Copies conditions along with their nested conditions, lists and maps, so that compiled conditions do not reference the condition
+     * instances they are looked up by.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object copy(Object value) {
+        if (value instanceof Condition) {
+            Condition condition = (Condition) value;
+            Condition copy = new Condition();
+            if (condition.getConditionType() != null) {
+                copy.setConditionType(condition.getConditionType());
+            } else {
+                copy.setConditionTypeId(condition.getConditionTypeId());
+            }
+            copy.setParameterValues((Map<String, Object>) copy(condition.getParameterValues()));
+            return copy;
+        } else if (value instanceof Map) {
+            Map<Object, Object> copy = new HashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object o : (List<?>) value) {
+                copy.add(copy(o));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    private CompiledCondition doCompile(final Condition condition, final Map<String, Object> context) {
+        if (condition.getConditionType() == null) {
+            return getFallbackCondition(condition, context);
+        }
+        if (condition.getConditionType().getParentCondition() != null) {
+            Map<String, Object> parentContext = new HashMap<>(context);
+            parentContext.putAll(condition.getParameterValues());
+            return compile(condition.getConditionType().getParentCondition(), parentContext);
+        }
+
+        String conditionEvaluatorKey = condition.getConditionType().getConditionEvaluator();
+        ConditionEvaluator evaluator = conditionEvaluatorKey != null ? evaluators.get(conditionEvaluatorKey) : null;
+        if (ConditionContextHelper.hasScriptParameter(condition)) {
+            // scripts are executed on each evaluation, the compiled condition holds them compiled, which also reports invalid scripts
+            // when definitions are saved
+            return getFallbackCondition(ConditionContextHelper.compileScripts(condition), context);
+        }
+        if (!(evaluator instanceof CompilableConditionEvaluator)) {
+            return share(condition, context, getFallbackCondition(condition, context));
+        }
+
+        try {
+            Condition contextualCondition = ConditionContextHelper.getContextualCondition(condition, context);
+            if (contextualCondition == null) {
+                return new CompiledCondition() {
+                    @Override
+                    public boolean eval(Item item) {
+                        return true;
+                    }
+                };
+            }
+            CompiledCondition compiledCondition = ((CompilableConditionEvaluator) evaluator).compile(contextualCondition, context, this);
+            if (compiledCondition != null) {
+                // once parameters are resolved, only nested conditions still depend on the context
+                return share(contextualCondition, hasNestedCondition(contextualCondition.getParameterValues()) ? context : Collections.<String, Object>emptyMap(), compiledCondition);
+            }
+        } catch (RuntimeException e) {
+            logger.debug("Cannot compile condition " + condition.getConditionTypeId() + ", it will be evaluated without compilation", e);
+        }
+        return getFallbackCondition(condition, context);
+    }
+
+    private CompiledCondition share(Condition condition, Map<String, Object> context, CompiledCondition compiledCondition) {
+        if (condition.getConditionTypeId() == null) {
+            return compiledCondition;
+        }
+        SharedConditionKey key = new SharedConditionKey(condition, context);
+        SharedCondition sharedCondition = sharedConditions.get(key);
+        if (sharedCondition == null) {
+            sharedCondition = new SharedCondition(condition.getConditionTypeId(), compiledCondition);
+            SharedCondition previousSharedCondition = sharedConditions.putIfAbsent(key, sharedCondition);
+            if (previousSharedCondition != null) {
+                sharedCondition = previousSharedCondition;
+            }
+        }
+        return sharedCondition;
+    }
+
+    /**
+     * Retrieves the number of distinct compiled condition nodes currently shared between conditions.
+     *
+     * @return the number of shared condition nodes
+     */
+    public int getSharedConditionCount() {
+        return sharedConditions.size();
+    }
+
+    private static boolean hasNestedCondition(Object value) {
+        if (value instanceof Condition) {
+            return true;
+        } else if (value instanceof Map) {
+            for (Object o : ((Map<?, ?>) value).values()) {
+                if (hasNestedCondition(o)) {
+                    return true;
+                }
+            }
+        } else if (value instanceof List) {
+            for (Object o : ((List<?>) value)) {
+                if (hasNestedCondition(o)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private CompiledCondition getFallbackCondition(final Condition condition, final Map<String, Object> context) {
+        final Map<String, Object> fallbackContext = new HashMap<>(context);
+        return new CompiledCondition() {
+            @Override
+            public boolean eval(Item item) {
+                return doEval(condition, item, new HashMap<String, Object>(fallbackContext));
+            }
+        };
+    }
+
+    /**
+     * Identifies structurally identical conditions, using the condition type and parameters of the condition along with the context in
+     * which it is compiled.
+     */
+    private static final class SharedConditionKey {
+        private final Condition condition;
+        private final Map<String, Object> context;
+        private final int hashCode;
+
+        SharedConditionKey(Condition condition, Map<String, Object> context) {
+            this.condition = condition;
+            this.context = context.isEmpty() ? Collections.<String, Object>emptyMap() : new HashMap<>(context);
+            this.hashCode = 31 * condition.hashCode() + this.context.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SharedConditionKey)) return false;
+            SharedConditionKey that = (SharedConditionKey) o;
+            return hashCode == that.hashCode && condition.equals(that.condition) && context.equals(that.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
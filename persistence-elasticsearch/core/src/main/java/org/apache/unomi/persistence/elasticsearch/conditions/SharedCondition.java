@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch.conditions;
+
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.TraceSpan;
+import org.apache.unomi.persistence.spi.ConditionEvaluationScope;
+import org.apache.unomi.persistence.spi.Tracer;
+
+/**
+ * A compiled condition shared by all the structurally identical conditions. When a {@link ConditionEvaluationScope} is opened, its result
+ * is memoized for each evaluated item, so that it is only evaluated once whatever the number of rules or segments using it.
+ */
+class SharedCondition implements CompiledCondition {
+
+    private final String conditionTypeId;
+
+    private final CompiledCondition delegate;
+
+    SharedCondition(String conditionTypeId, CompiledCondition delegate) {
+        this.conditionTypeId = conditionTypeId;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean eval(Item item) {
+        ConditionEvaluationScope scope = ConditionEvaluationScope.current();
+        if (scope == null) {
+            return trace(item);
+        }
+        Boolean result = scope.getResult(this, item);
+        if (result == null) {
+            result = trace(item);
+            scope.putResult(this, item, result);
+        }
+        return result;
+    }
+
+    private boolean trace(Item item) {
+        TraceSpan span = Tracer.begin("condition", conditionTypeId);
+        try {
+            return delegate.eval(item);
+        } finally {
+            Tracer.end(span);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import org.apache.unomi.api.Item;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A scope in which the results of shared condition nodes are memoized, so that a sub-condition used by many rules, segments or scoring
+ * elements is evaluated only once per item. A scope is bound to the current thread, and must only be opened around evaluations during
+ * which the evaluated items are not modified, typically the selection of the rules matching an event or of the segments matching a
+ * profile:
+ * <pre>
+ * ConditionEvaluationScope scope = ConditionEvaluationScope.open();
+ * try {
+ *     ...
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ * Scopes may be nested, a nested scope starts with an empty memo. Evaluators may also memoize in a scope values they derive from the
+ * evaluated items, and which are shared by the evaluation of many conditions.
+ *
+ * A scope opened with {@link #openConcurrent()} can also be attached to the threads evaluating conditions on behalf of the thread that
+ * opened it, such as the workers evaluating the conditions of rules in parallel.
+ */
+public class ConditionEvaluationScope {
+
+    private static final ThreadLocal<ConditionEvaluationScope> currentScope = new ThreadLocal<>();
+
+    private static final LongAdder hitCount = new LongAdder();
+    private static final LongAdder evaluationCount = new LongAdder();
+
+    private final ConditionEvaluationScope parent;
+
+    private final boolean concurrent;
+
+    // in a concurrent scope, the maps of items are copied on write, and the maps of nodes and values are concurrent maps
+    private volatile Map<Item, Map<Object, Boolean>> results = new IdentityHashMap<>();
+
+    private volatile Map<Item, Map<Object, Object>> values = new IdentityHashMap<>();
+
+    private ConditionEvaluationScope(ConditionEvaluationScope parent, boolean concurrent) {
+        this.parent = parent;
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Opens a new scope for the current thread.
+     *
+     * @return the opened scope, which must be closed by the caller
+     */
+    public static ConditionEvaluationScope open() {
+        ConditionEvaluationScope scope = new ConditionEvaluationScope(currentScope.get(), false);
+        currentScope.set(scope);
+        return scope;
+    }
+
+    /**
+     * Opens a new scope for the current thread, which can also be attached to other threads with {@link #attach()}. Its memos are
+     * thread-safe, and the condition nodes and value keys memoized in it must not override {@code equals}. A node evaluated at the same
+     * time by several threads may be computed more than once.
+     *
+     * @return the opened scope, which must be closed by the caller
+     */
+    public static ConditionEvaluationScope openConcurrent() {
+        ConditionEvaluationScope scope = new ConditionEvaluationScope(currentScope.get(), true);
+        currentScope.set(scope);
+        return scope;
+    }
+
+    /**
+     * Checks whether this scope can be attached to other threads than the one that opened it.
+     *
+     * @return {@code true} if the scope was opened with {@link #openConcurrent()}
+     */
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Attaches this scope to the current thread, which evaluates conditions on behalf of the thread that opened it. Only concurrent
+     * scopes may be attached to other threads.
+     *
+     * @return the scope previously bound to the current thread, to restore with {@link #detach(ConditionEvaluationScope)}
+     */
+    public ConditionEvaluationScope attach() {
+        ConditionEvaluationScope previous = currentScope.get();
+        currentScope.set(this);
+        return previous;
+    }
+
+    /**
+     * Detaches the scope attached to the current thread with {@link #attach()}, restoring the scope previously bound to it.
+     *
+     * @param previous the scope returned by {@link #attach()}
+     */
+    public static void detach(ConditionEvaluationScope previous) {
+        if (previous != null) {
+            currentScope.set(previous);
+        } else {
+            currentScope.remove();
+        }
+    }
+
+    /**
+     * Retrieves the scope opened for the current thread.
+     *
+     * @return the current scope, or {@code null} if no scope is opened
+     */
+    public static ConditionEvaluationScope current() {
+        return currentScope.get();
+    }
+
+    /**
+     * Closes this scope, restoring the enclosing scope if any.
+     */
+    public void close() {
+        results = new IdentityHashMap<>();
+        values = new IdentityHashMap<>();
+        if (parent != null) {
+            currentScope.set(parent);
+        } else {
+            currentScope.remove();
+        }
+    }
+
+    /**
+     * Retrieves the memoized result of a condition node for the specified item.
+     *
+     * @param node the shared condition node
+     * @param item the evaluated item
+     * @return the memoized result, or {@code null} if the node has not been evaluated for this item in this scope
+     */
+    public Boolean getResult(Object node, Item item) {
+        Map<Object, Boolean> itemResults = results.get(item);
+        Boolean result = itemResults != null ? itemResults.get(node) : null;
+        if (result != null) {
+            hitCount.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Memoizes the result of a condition node for the specified item.
+     *
+     * @param node   the shared condition node
+     * @param item   the evaluated item
+     * @param result the result of the evaluation
+     */
+    public void putResult(Object node, Item item, boolean result) {
+        Map<Object, Boolean> itemResults = results.get(item);
+        if (itemResults == null) {
+            itemResults = getItemResults(item);
+        }
+        itemResults.put(node, result);
+        evaluationCount.increment();
+    }
+
+    /**
+     * Retrieves a value derived from the specified item by an evaluator, and shared by the evaluations of several conditions in this
+     * scope.
+     *
+     * @param key  the key of the derived value, compared by identity
+     * @param item the evaluated item
+     * @return the memoized value, or {@code null} if it was not computed for this item in this scope
+     */
+    public Object getValue(Object key, Item item) {
+        Map<Object, Object> itemValues = values.get(item);
+        return itemValues != null ? itemValues.get(key) : null;
+    }
+
+    /**
+     * Memoizes a value derived from the specified item.
+     *
+     * @param key   the key of the derived value, compared by identity
+     * @param item  the evaluated item
+     * @param value the derived value
+     */
+    public void putValue(Object key, Item item, Object value) {
+        Map<Object, Object> itemValues = values.get(item);
+        if (itemValues == null) {
+            itemValues = getItemValues(item);
+        }
+        itemValues.put(key, value);
+    }
+
+    private Map<Object, Boolean> getItemResults(Item item) {
+        if (!concurrent) {
+            Map<Object, Boolean> itemResults = new IdentityHashMap<>();
+            results.put(item, itemResults);
+            return itemResults;
+        }
+        synchronized (this) {
+            Map<Object, Boolean> itemResults = results.get(item);
+            if (itemResults == null) {
+                itemResults = new ConcurrentHashMap<>();
+                Map<Item, Map<Object, Boolean>> newResults = new IdentityHashMap<>(results);
+                newResults.put(item, itemResults);
+                results = newResults;
+            }
+            return itemResults;
+        }
+    }
+
+    private Map<Object, Object> getItemValues(Item item) {
+        if (!concurrent) {
+            Map<Object, Object> itemValues = new IdentityHashMap<>();
+            values.put(item, itemValues);
+            return itemValues;
+        }
+        synchronized (this) {
+            Map<Object, Object> itemValues = values.get(item);
+            if (itemValues == null) {
+                itemValues = new ConcurrentHashMap<>();
+                Map<Item, Map<Object, Object>> newValues = new IdentityHashMap<>(values);
+                newValues.put(item, itemValues);
+                values = newValues;
+            }
+            return itemValues;
+        }
+    }
+
+    /**
+     * Retrieves the number of evaluations of shared condition nodes that were answered from a memo, since startup.
+     *
+     * @return the number of memo hits
+     */
+    public static long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * Retrieves the number of evaluations of shared condition nodes that had to be computed inside a scope, since startup.
+     *
+     * @return the number of computed evaluations
+     */
+    public static long getEvaluationCount() {
+        return evaluationCount.sum();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads and updates the past event counters kept in the system properties of a profile.
+ * <p>
+ * Each past event condition is identified by its generated property key. The number of matching events is stored under
+ * {@code pastEvents.<key>}, so that it can be queried, and for conditions limited to a number of days the counts are also
+ * kept per day under {@code pastEventBuckets.<key>}, as a list of {@code [day, count]} pairs where the day is the number of
+ * days since the epoch (UTC). A window of N days covers the buckets of the current day and of the N-1 previous days, older
+ * buckets are dropped whenever the counter is updated.
+ * <p>
+ * Past events counted with queries use the same window, with a lower bound on the event time stamp given by
+ * {@link #getWindowStart(int, long)}: the start (UTC) of the first day of the window.
+ */
+public class PastEventCounters {
+
+    public static final String PAST_EVENTS = "pastEvents";
+    public static final String PAST_EVENT_BUCKETS = "pastEventBuckets";
+
+    private static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private PastEventCounters() {
+    }
+
+    public static long getDay(Date date) {
+        return getDay(date.getTime());
+    }
+
+    public static long getDay(long timestamp) {
+        return timestamp >= 0 ? timestamp / DAY_IN_MILLIS : (timestamp - DAY_IN_MILLIS + 1) / DAY_IN_MILLIS;
+    }
+
+    public static Date getDayStart(long day) {
+        return new Date(day * DAY_IN_MILLIS);
+    }
+
+    /**
+     * Retrieves the start of a window ending on the specified day: events are within the window if their time stamp is greater than
+     * or equal to it.
+     *
+     * @param numberOfDays the size of the window
+     * @param today        the last day of the window
+     * @return the start of the first day of the window
+     */
+    public static Date getWindowStart(int numberOfDays, long today) {
+        return getDayStart(today - numberOfDays + 1);
+    }
+
+    /**
+     * Checks whether a day falls within a window ending on the specified day.
+     *
+     * @param day          the day to check
+     * @param numberOfDays the size of the window, or {@code null} for an unbounded window
+     * @param today        the last day of the window
+     * @return {@code true} if the day is within the window
+     */
+    public static boolean isInWindow(long day, Integer numberOfDays, long today) {
+        return numberOfDays == null || day > today - numberOfDays;
+    }
+
+    /**
+     * Retrieves the number of events counted for a past event condition.
+     *
+     * @param systemProperties the system properties of the profile
+     * @param key              the generated property key of the past event condition
+     * @param numberOfDays     the number of days the condition is limited to, or {@code null}
+     * @param today            the current day
+     * @return the number of events within the window, read from the daily buckets when they are available
+     */
+    public static long getCount(Map<String, Object> systemProperties, String key, Integer numberOfDays, long today) {
+        if (numberOfDays != null) {
+            Map<Long, Long> buckets = getBuckets(systemProperties, key);
+            if (buckets != null) {
+                long count = 0;
+                for (Map.Entry<Long, Long> bucket : buckets.entrySet()) {
+                    if (isInWindow(bucket.getKey(), numberOfDays, today)) {
+                        count += bucket.getValue();
+                    }
+                }
+                return count;
+            }
+        }
+        Map<String, Object> pastEvents = getMap(systemProperties, PAST_EVENTS, false);
+        Object count = pastEvents != null ? pastEvents.get(key) : null;
+        return count instanceof Number ? ((Number) count).longValue() : 0L;
+    }
+
+    /**
+     * Adds an event to the counter of a past event condition, if the counter has already been initialized.
+     *
+     * @param systemProperties the system properties of the profile
+     * @param key              the generated property key of the past event condition
+     * @param numberOfDays     the number of days the condition is limited to, or {@code null}
+     * @param day              the day of the event
+     * @param today            the current day
+     * @return {@code true} if the counter was updated, {@code false} if it has to be initialized first
+     */
+    public static boolean increment(Map<String, Object> systemProperties, String key, Integer numberOfDays, long day, long today) {
+        if (numberOfDays == null) {
+            Map<String, Object> pastEvents = getMap(systemProperties, PAST_EVENTS, false);
+            Object count = pastEvents != null ? pastEvents.get(key) : null;
+            if (!(count instanceof Number)) {
+                return false;
+            }
+            pastEvents.put(key, ((Number) count).longValue() + 1);
+            return true;
+        }
+        Map<Long, Long> buckets = getBuckets(systemProperties, key);
+        if (buckets == null) {
+            return false;
+        }
+        if (isInWindow(day, numberOfDays, today)) {
+            Long count = buckets.get(day);
+            buckets.put(day, count != null ? count + 1 : 1L);
+        }
+        setBuckets(systemProperties, key, buckets, numberOfDays, today);
+        return true;
+    }
+
+    /**
+     * Replaces the daily buckets of a past event condition, dropping the ones outside of the window, and updates its total.
+     *
+     * @param systemProperties the system properties to update
+     * @param key              the generated property key of the past event condition
+     * @param buckets          the number of events per day
+     * @param numberOfDays     the number of days the condition is limited to
+     * @param today            the current day
+     */
+    public static void setBuckets(Map<String, Object> systemProperties, String key, Map<Long, Long> buckets, Integer numberOfDays, long today) {
+        List<List<Long>> values = new ArrayList<List<Long>>();
+        long count = 0;
+        for (Map.Entry<Long, Long> bucket : new TreeMap<Long, Long>(buckets).entrySet()) {
+            if (isInWindow(bucket.getKey(), numberOfDays, today) && bucket.getValue() > 0) {
+                List<Long> value = new ArrayList<Long>(2);
+                value.add(bucket.getKey());
+                value.add(bucket.getValue());
+                values.add(value);
+                count += bucket.getValue();
+            }
+        }
+        getMap(systemProperties, PAST_EVENT_BUCKETS, true).put(key, values);
+        setCount(systemProperties, key, count);
+    }
+
+    public static void setCount(Map<String, Object> systemProperties, String key, long count) {
+        getMap(systemProperties, PAST_EVENTS, true).put(key, count);
+    }
+
+    private static Map<Long, Long> getBuckets(Map<String, Object> systemProperties, String key) {
+        Map<String, Object> allBuckets = getMap(systemProperties, PAST_EVENT_BUCKETS, false);
+        Object values = allBuckets != null ? allBuckets.get(key) : null;
+        if (!(values instanceof List)) {
+            return null;
+        }
+        Map<Long, Long> buckets = new TreeMap<Long, Long>();
+        for (Object value : (List<?>) values) {
+            if (value instanceof List && ((List<?>) value).size() == 2) {
+                Object day = ((List<?>) value).get(0);
+                Object count = ((List<?>) value).get(1);
+                if (day instanceof Number && count instanceof Number) {
+                    buckets.put(((Number) day).longValue(), ((Number) count).longValue());
+                }
+            }
+        }
+        return buckets;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getMap(Map<String, Object> systemProperties, String name, boolean create) {
+        Object value = systemProperties.get(name);
+        if (value instanceof Map) {
+            return (Map<String, Object>) value;
+        }
+        if (!create) {
+            return null;
+        }
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        systemProperties.put(name, map);
+        return map;
+    }
+}
@@ -25,6 +25,7 @@ import org.apache.unomi.persistence.spi.aggregate.BaseAggregate;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A service to provide persistence and retrieval of context server entities.
@@ -78,6 +79,15 @@ public interface PersistenceService {
      */
     boolean save(Item item, boolean useBatching);
 
+    /**
+     * Persists the specified Items in the context server synchronously, in a single request.
+     *
+     * @param items the items to persist
+     * @param <T>   the type of the items
+     * @return the items that couldn't be persisted, an empty list if all of them were properly persisted
+     */
+    <T extends Item> List<T> save(List<T> items);
+
     /**
      * Updates the item of the specified class and identified by the specified identifier with new property values provided as name - value pairs in the specified Map.
      *
@@ -224,6 +234,34 @@ public interface PersistenceService {
      */
     boolean testMatch(Condition query, Item item);
 
+    /**
+     * Prepares the specified condition for repeated evaluation with {@link #testMatch(Condition, Item)}. The condition is compiled into an
+     * in-memory representation which is reused as long as the same condition instance is tested, and discarded once it is not referenced
+     * anymore. Parts of the condition that cannot be compiled are evaluated as usual. Scripts used as condition parameters are compiled
+     * along with the condition.
+     *
+     * @param condition the condition to compile
+     * @throws IllegalArgumentException if a script used by the condition cannot be compiled
+     */
+    void compileCondition(Condition condition);
+
+    /**
+     * Retrieves the condition types used by the specified condition which have no in-memory evaluator, so that
+     * {@link #testMatch(Condition, Item)} has to send a query to the persistence backend to evaluate them.
+     *
+     * @param condition the condition to check
+     * @return the identifiers of the condition types without in-memory evaluator, empty if the whole condition is evaluated in memory
+     */
+    Set<String> getConditionTypesWithoutEvaluator(Condition condition);
+
+    /**
+     * Retrieves the number of times {@link #testMatch(Condition, Item)} had to query the persistence backend because a condition type has
+     * no in-memory evaluator, since startup.
+     *
+     * @return a map of condition type identifiers to query counts
+     */
+    Map<String, Long> getQueryFallbackStatistics();
+
     /**
      * Same as {@code query(fieldName, fieldValue, sortBy, clazz, 0, -1).getList()}
      *
@@ -402,6 +440,19 @@ public interface PersistenceService {
      */
     Map<String, Long> aggregateQuery(Condition filter, BaseAggregate aggregate, String itemType);
 
+    /**
+     * Retrieves the number of items with the specified type as defined by the Item subclass public field {@code ITEM_TYPE} matching the optional specified condition,
+     * aggregated according to the specified {@link BaseAggregate} and then, within each bucket, according to the specified sub-aggregate, with a single query.
+     * Terms and date aggregates are supported, items missing the field of either aggregate are not counted.
+     *
+     * @param filter       the condition the items must match or {@code null} if no filtering is needed
+     * @param aggregate    an aggregate specifying how matching items must be bundled
+     * @param subAggregate an aggregate specifying how the items of each bundle must be bundled
+     * @param itemType     the String representation of the item type we want to retrieve the count of, as defined by its class' {@code ITEM_TYPE} field
+     * @return a Map associating the dimension names of the aggregate with Maps associating the dimension names of the sub-aggregate and their cardinality
+     */
+    Map<String, Map<String, Long>> aggregateQuery(Condition filter, BaseAggregate aggregate, BaseAggregate subAggregate, String itemType);
+
     /**
      * Updates the persistence's engine indices if needed.
      */
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage of a request processing pipeline: a fixed pool of threads fed by a bounded queue, which measures the time tasks spend
+ * waiting in the queue and executing. A task needs a slot of the stage, reserved with {@link #tryReserve()} before the task is
+ * submitted, possibly long before, so that a pipeline can reject a request up front when any of its stages is full rather than drop
+ * it half processed. The stages currently running are registered by name, so that their statistics can be reported by other bundles.
+ */
+public class ProcessingStage {
+
+    private static final ConcurrentMap<String, ProcessingStage> stages = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+    // a slot is held from its reservation until its task has been executed, so that the queue never overflows
+    private final Semaphore slots;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalQueueTime = new AtomicLong();
+    private final AtomicLong totalExecutionTime = new AtomicLong();
+    private final AtomicLong maxExecutionTime = new AtomicLong();
+
+    private ProcessingStage(final String name, int threadCount, int queueSize) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.slots = new Semaphore(queueSize);
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "unomi-" + name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Starts a stage and registers it, replacing and shutting down any running stage with the same name.
+     *
+     * @param name        the name of the stage
+     * @param threadCount the number of threads executing the tasks of the stage
+     * @param queueSize   the maximum number of tasks waiting for a thread
+     * @return the started stage
+     */
+    public static ProcessingStage start(String name, int threadCount, int queueSize) {
+        ProcessingStage stage = new ProcessingStage(name, threadCount, queueSize);
+        ProcessingStage previousStage = stages.put(name, stage);
+        if (previousStage != null) {
+            previousStage.executor.shutdown();
+        }
+        return stage;
+    }
+
+    /**
+     * Stops accepting tasks and unregisters this stage. The tasks already queued are still executed.
+     */
+    public void shutdown() {
+        stages.remove(name, this);
+        executor.shutdown();
+    }
+
+    /**
+     * Reserves a slot for a task, without waiting.
+     *
+     * @return {@code true} if a slot has been reserved, {@code false} if the stage is full
+     */
+    public boolean tryReserve() {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Releases a reserved slot that will not be used.
+     */
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * Queues a task for execution in a slot reserved with {@link #tryReserve()}, which is released once the task has been executed. If
+     * the stage has been shut down, the task is executed on the calling thread, as the work has already been accepted.
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        TimedTask timedTask = new TimedTask(task);
+        submitted.incrementAndGet();
+        try {
+            executor.execute(timedTask);
+        } catch (RejectedExecutionException e) {
+            timedTask.run();
+        }
+    }
+
+    /**
+     * Retrieves the statistics of this stage: queue depth and capacity, slots reserved, active threads, task counters, and the average
+     * time tasks spent in the queue and executing, in microseconds.
+     *
+     * @return a map of statistic names to values
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        long completedCount = completed.get();
+        statistics.put("queueDepth", (long) queue.size());
+        statistics.put("queueCapacity", (long) (queue.size() + queue.remainingCapacity()));
+        statistics.put("activeThreads", (long) executor.getActiveCount());
+        statistics.put("threads", (long) executor.getMaximumPoolSize());
+        statistics.put("submitted", submitted.get());
+        statistics.put("rejected", rejected.get());
+        statistics.put("reservedSlots", (long) (queue.size() + queue.remainingCapacity() - slots.availablePermits()));
+        statistics.put("completed", completedCount);
+        statistics.put("averageQueueTimeMicros", completedCount > 0 ? totalQueueTime.get() / completedCount / 1000L : 0L);
+        statistics.put("averageExecutionTimeMicros", completedCount > 0 ? totalExecutionTime.get() / completedCount / 1000L : 0L);
+        statistics.put("maxExecutionTimeMicros", maxExecutionTime.get() / 1000L);
+        return statistics;
+    }
+
+    /**
+     * Retrieves the statistics of all the running stages.
+     *
+     * @return a map of stage names to stage statistics
+     */
+    public static Map<String, Map<String, Long>> getAllStatistics() {
+        Map<String, Map<String, Long>> statistics = new TreeMap<>();
+        for (ProcessingStage stage : stages.values()) {
+            statistics.put(stage.name, stage.getStatistics());
+        }
+        return statistics;
+    }
+
+    private class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long queuedTime = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                slots.release();
+                long executionTime = System.nanoTime() - startTime;
+                totalQueueTime.addAndGet(startTime - queuedTime);
+                totalExecutionTime.addAndGet(executionTime);
+                long max;
+                while ((max = maxExecutionTime.get()) < executionTime && !maxExecutionTime.compareAndSet(max, executionTime)) {
+                }
+                completed.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters maintained by the condition evaluators that resolve item properties through compiled expressions, exposed along with the
+ * other condition evaluation statistics.
+ */
+public class PropertyAccessorStatistics {
+
+    private static final LongAdder compilationCount = new LongAdder();
+    private static final LongAdder compilationFailureCount = new LongAdder();
+    private static final LongAdder compilationTime = new LongAdder();
+    private static final LongAdder cachedAccessorCount = new LongAdder();
+    private static final LongAdder fastPathCount = new LongAdder();
+
+    private PropertyAccessorStatistics() {
+    }
+
+    /**
+     * Records the compilation of an expression.
+     *
+     * @param nanos   the time the compilation took, in nanoseconds
+     * @param success whether an accessor could be compiled
+     */
+    public static void recordCompilation(long nanos, boolean success) {
+        compilationCount.increment();
+        compilationTime.add(nanos);
+        if (!success) {
+            compilationFailureCount.increment();
+        }
+    }
+
+    /**
+     * Records the addition of a compiled accessor to an accessor cache.
+     */
+    public static void recordCachedAccessor() {
+        cachedAccessorCount.increment();
+    }
+
+    /**
+     * Records a property resolved without any expression.
+     */
+    public static void recordFastPath() {
+        fastPathCount.increment();
+    }
+
+    public static long getCompilationCount() {
+        return compilationCount.sum();
+    }
+
+    public static long getCompilationFailureCount() {
+        return compilationFailureCount.sum();
+    }
+
+    /**
+     * Retrieves the total time spent compiling expressions.
+     *
+     * @return the total compilation time, in milliseconds
+     */
+    public static long getCompilationTime() {
+        return compilationTime.sum() / 1000000L;
+    }
+
+    public static long getCachedAccessorCount() {
+        return cachedAccessorCount.sum();
+    }
+
+    public static long getFastPathCount() {
+        return fastPathCount.sum();
+    }
+}
@@ -18,8 +18,8 @@
 package org.apache.unomi.persistence.spi;
 
 import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.beanutils.ConvertUtils;
 import org.apache.commons.beanutils.NestedNullException;
-import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.beanutils.expression.DefaultResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Helper method for properties
@@ -40,16 +41,13 @@ public class PropertyHelper {
 
     public static boolean setProperty(Object target, String propertyName, Object propertyValue, String setPropertyStrategy) {
         try {
-            String parentPropertyName =  null;
-            Object parentTarget = null;
             if(setPropertyStrategy!=null && setPropertyStrategy.equals("remove")){
                 if(resolver.hasNested(propertyName)) {
-                    parentPropertyName = propertyName.substring(0, propertyName.lastIndexOf('.'));
+                    String parentPropertyName = propertyName.substring(0, propertyName.lastIndexOf('.'));
                     try{
-                        Object parentPropertyValue = PropertyUtils.getNestedProperty(target, parentPropertyName);
+                        Object parentPropertyValue = PropertyPath.compile(parentPropertyName).getValue(target);
                         if(parentPropertyValue instanceof HashMap){
                             ((HashMap)parentPropertyValue).remove(propertyName.substring(propertyName.lastIndexOf('.')+1));
-                            PropertyUtils.setNestedProperty(target, parentPropertyName, parentPropertyValue);
                             return true;
                         }
                     } catch(NestedNullException ex){
@@ -59,18 +57,20 @@ public class PropertyHelper {
                 }
                 return false;
             }
-            while (resolver.hasNested(propertyName)) {
-                Object v = PropertyUtils.getProperty(target, resolver.next(propertyName));
+            PropertyPath propertyPath = PropertyPath.compile(propertyName);
+            String[] segments = propertyPath.getSegments();
+            for (int i = 0; i < segments.length - 1; i++) {
+                Object v = PropertyPath.getProperty(target, segments[i]);
                 if (v == null) {
                     v = new LinkedHashMap<>();
-                    PropertyUtils.setProperty(target, resolver.next(propertyName), v);
+                    PropertyPath.setProperty(target, segments[i], v);
                 }
-                propertyName = resolver.remove(propertyName);
                 target = v;
             }
+            propertyName = propertyPath.getName();
 
             if (setPropertyStrategy != null && setPropertyStrategy.equals("addValue")) {
-                Object previousValue = PropertyUtils.getProperty(target, propertyName);
+                Object previousValue = PropertyPath.getProperty(target, propertyName);
                 List<Object> values = new ArrayList<>();
                 if (previousValue != null && previousValue instanceof List) {
                     values.addAll((List) previousValue);
@@ -79,14 +79,16 @@ public class PropertyHelper {
                 }
                 if (!values.contains(propertyValue)) {
                     values.add(propertyValue);
-                    BeanUtils.setProperty(target, propertyName, values);
+                    setConvertedProperty(target, propertyName, values);
                     return true;
                 }
-            } else if (propertyValue != null && !propertyValue.equals(BeanUtils.getProperty(target, propertyName))) {
-                if (setPropertyStrategy == null ||
+            } else if (propertyValue != null) {
+                // compare with the string form of the current value, as BeanUtils.getProperty would return it
+                String currentValue = ConvertUtils.convert(PropertyPath.getProperty(target, propertyName));
+                if (!propertyValue.equals(currentValue) && (setPropertyStrategy == null ||
                         setPropertyStrategy.equals("alwaysSet") ||
-                        (setPropertyStrategy.equals("setIfMissing") && BeanUtils.getProperty(target, propertyName) == null)) {
-                    BeanUtils.setProperty(target, propertyName, propertyValue);
+                        (setPropertyStrategy.equals("setIfMissing") && currentValue == null))) {
+                    setConvertedProperty(target, propertyName, propertyValue);
                     return true;
                 }
             }
@@ -96,6 +98,15 @@ public class PropertyHelper {
         return false;
     }
 
+    @SuppressWarnings("unchecked")
+    private static void setConvertedProperty(Object target, String propertyName, Object propertyValue) throws IllegalAccessException, InvocationTargetException {
+        if (target instanceof Map) {
+            ((Map<String, Object>) target).put(propertyName, propertyValue);
+        } else {
+            BeanUtils.setProperty(target, propertyName, propertyValue);
+        }
+    }
+
     public static Integer getInteger(Object value) {
         if (value instanceof Number) {
             return ((Number)value).intValue();
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import org.apache.commons.beanutils.NestedNullException;
+import org.apache.commons.beanutils.PropertyUtils;
+import org.apache.commons.beanutils.expression.DefaultResolver;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A dotted property path, such as {@code properties.foo.bar}, {@code systemProperties.pastEvents} or {@code target.itemId}, split
+ * once into its segments. Map segments are resolved with direct {@link Map#get(Object)} / {@link Map#put(Object, Object)} calls, and
+ * bean segments with method handles on the bean getters and setters, cached per class. Indexed and mapped segments
+ * ({@code a[0]}, {@code a(key)}) are delegated to commons-beanutils.
+ * <p>
+ * Paths are resolved the same way as {@link PropertyUtils#getNestedProperty(Object, String)}, and are meant to replace it on hot paths.
+ */
+public class PropertyPath {
+
+    private static final int MAX_CACHED_PATHS = 10000;
+
+    private static final DefaultResolver resolver = new DefaultResolver();
+
+    private static final ConcurrentMap<String, PropertyPath> paths = new ConcurrentHashMap<>();
+
+    private static final ClassValue<ConcurrentMap<String, PropertyAccessor>> accessors = new ClassValue<ConcurrentMap<String, PropertyAccessor>>() {
+        @Override
+        protected ConcurrentMap<String, PropertyAccessor> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final String path;
+
+    private final String[] segments;
+
+    private PropertyPath(String path, String[] segments) {
+        this.path = path;
+        this.segments = segments;
+    }
+
+    /**
+     * Retrieves the compiled form of the specified property path.
+     *
+     * @param path a dotted property path
+     * @return the compiled property path
+     */
+    public static PropertyPath compile(String path) {
+        PropertyPath propertyPath = paths.get(path);
+        if (propertyPath == null) {
+            List<String> segments = new ArrayList<>();
+            String remaining = path;
+            while (resolver.hasNested(remaining)) {
+                segments.add(resolver.next(remaining));
+                remaining = resolver.remove(remaining);
+            }
+            segments.add(remaining);
+            propertyPath = new PropertyPath(path, segments.toArray(new String[segments.size()]));
+            // paths built from request values must not make the cache grow without bounds
+            if (paths.size() < MAX_CACHED_PATHS) {
+                paths.putIfAbsent(path, propertyPath);
+            }
+        }
+        return propertyPath;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Retrieves the segments of this path.
+     *
+     * @return a copy of the segments of this path
+     */
+    public String[] getSegments() {
+        return Arrays.copyOf(segments, segments.length);
+    }
+
+    /**
+     * Retrieves the last segment of this path.
+     *
+     * @return the name of the property designated by this path on its parent
+     */
+    public String getName() {
+        return segments[segments.length - 1];
+    }
+
+    /**
+     * Retrieves the value of this path on the specified bean.
+     *
+     * @param bean the bean to start the resolution from
+     * @return the value of the property designated by this path
+     * @throws NestedNullException if an intermediate segment resolves to {@code null}
+     */
+    public Object getValue(Object bean) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+        return getValue(bean, segments.length);
+    }
+
+    /**
+     * Retrieves the value of the parent of the property designated by this path.
+     *
+     * @param bean the bean to start the resolution from
+     * @return the value of the parent, or {@code bean} itself if this path has a single segment
+     * @throws NestedNullException if an intermediate segment resolves to {@code null}
+     */
+    public Object getParentValue(Object bean) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+        return getValue(bean, segments.length - 1);
+    }
+
+    private Object getValue(Object bean, int length) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+        if (bean == null) {
+            throw new IllegalArgumentException("No bean specified");
+        }
+        Object value = bean;
+        for (int i = 0; i < length; i++) {
+            if (value == null) {
+                throw new NestedNullException("Null property value for '" + segments[i - 1] + "' on path '" + path + "'");
+            }
+            value = getProperty(value, segments[i]);
+        }
+        return value;
+    }
+
+    /**
+     * Retrieves the value of a single property segment.
+     *
+     * @param bean the bean or map holding the property
+     * @param name the property name, or the key if {@code bean} is a {@link Map}
+     * @return the property value
+     */
+    public static Object getProperty(Object bean, String name) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+        if (bean instanceof Map) {
+            return ((Map<?, ?>) bean).get(name);
+        }
+        if (resolver.isIndexed(name) || resolver.isMapped(name)) {
+            return PropertyUtils.getProperty(bean, name);
+        }
+        return getAccessor(bean.getClass(), name).get(bean);
+    }
+
+    /**
+     * Sets the value of a single property segment. Unlike {@link org.apache.commons.beanutils.BeanUtils#setProperty(Object, String, Object)},
+     * no type conversion is performed.
+     *
+     * @param bean  the bean or map holding the property
+     * @param name  the property name, or the key if {@code bean} is a {@link Map}
+     * @param value the new property value
+     */
+    @SuppressWarnings("unchecked")
+    public static void setProperty(Object bean, String name, Object value) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+        if (bean instanceof Map) {
+            ((Map<String, Object>) bean).put(name, value);
+        } else if (resolver.isIndexed(name) || resolver.isMapped(name)) {
+            PropertyUtils.setProperty(bean, name, value);
+        } else {
+            getAccessor(bean.getClass(), name).set(bean, value);
+        }
+    }
+
+    private static PropertyAccessor getAccessor(Class<?> type, String name) throws IllegalAccessException, NoSuchMethodException {
+        ConcurrentMap<String, PropertyAccessor> classAccessors = accessors.get(type);
+        PropertyAccessor accessor = classAccessors.get(name);
+        if (accessor == null) {
+            accessor = new PropertyAccessor(type, name);
+            classAccessors.putIfAbsent(name, accessor);
+        }
+        return accessor;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    /**
+     * The getter and setter of a bean property, as method handles adapted to {@code (Object)Object} and {@code (Object,Object)void}.
+     */
+    private static class PropertyAccessor {
+
+        private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+        private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+        private final Class<?> type;
+        private final String name;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        PropertyAccessor(Class<?> type, String name) throws IllegalAccessException, NoSuchMethodException {
+            this.type = type;
+            this.name = name;
+            PropertyDescriptor descriptor = null;
+            try {
+                for (PropertyDescriptor propertyDescriptor : Introspector.getBeanInfo(type).getPropertyDescriptors()) {
+                    if (propertyDescriptor.getName().equals(name)) {
+                        descriptor = propertyDescriptor;
+                        break;
+                    }
+                }
+            } catch (IntrospectionException e) {
+                throw new NoSuchMethodException("Cannot introspect class '" + type.getName() + "': " + e.getMessage());
+            }
+            if (descriptor == null) {
+                throw new NoSuchMethodException("Unknown property '" + name + "' on class '" + type.getName() + "'");
+            }
+            this.getter = unreflect(descriptor.getReadMethod(), GETTER_TYPE);
+            this.setter = unreflect(descriptor.getWriteMethod(), SETTER_TYPE);
+        }
+
+        private static MethodHandle unreflect(Method method, MethodType methodType) throws IllegalAccessException {
+            if (method == null) {
+                return null;
+            }
+            if (!method.isAccessible()) {
+                method.setAccessible(true);
+            }
+            return MethodHandles.lookup().unreflect(method).asType(methodType);
+        }
+
+        Object get(Object bean) throws InvocationTargetException, NoSuchMethodException {
+            if (getter == null) {
+                throw new NoSuchMethodException("Property '" + name + "' has no getter method in class '" + type.getName() + "'");
+            }
+            try {
+                return (Object) getter.invokeExact(bean);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+
+        void set(Object bean, Object value) throws InvocationTargetException, NoSuchMethodException {
+            if (setter == null) {
+                throw new NoSuchMethodException("Property '" + name + "' has no setter method in class '" + type.getName() + "'");
+            }
+            try {
+                setter.invokeExact(bean, value);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of compiled scripts, keyed by script text. Lookups do not take any lock, so once the cache is full, arbitrary scripts
+ * are evicted rather than the least recently used ones. Caches are registered by name so that their statistics can be reported
+ * together.
+ *
+ * @param <T> the type of the compiled scripts
+ */
+public class ScriptCache<T> {
+
+    /**
+     * Compiles scripts on cache misses.
+     *
+     * @param <T> the type of the compiled scripts
+     */
+    public interface Compiler<T> {
+        /**
+         * Compiles a script.
+         *
+         * @param script the script text
+         * @return the compiled script
+         * @throws RuntimeException if the script cannot be compiled
+         */
+        T compile(String script);
+    }
+
+    private static final Map<String, ScriptCache<?>> caches = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final Compiler<T> compiler;
+    private volatile int maxSize;
+
+    private final ConcurrentHashMap<String, T> scripts = new ConcurrentHashMap<>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder compilationFailureCount = new LongAdder();
+
+    public ScriptCache(String name, int maxSize, Compiler<T> compiler) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.compiler = compiler;
+        caches.put(name, this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the maximum number of scripts kept in this cache, scripts in excess are evicted on the next cache miss.
+     *
+     * @param maxSize the maximum number of cached scripts
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Retrieves the compiled form of a script, compiling it if it is not cached.
+     *
+     * @param script the script text
+     * @return the compiled script
+     * @throws IllegalArgumentException if the script cannot be compiled
+     */
+    public T get(String script) {
+        T compiledScript = scripts.get(script);
+        if (compiledScript != null) {
+            hitCount.increment();
+            return compiledScript;
+        }
+        missCount.increment();
+        // a script compiled concurrently by two threads is simply compiled twice
+        try {
+            compiledScript = compiler.compile(script);
+        } catch (RuntimeException e) {
+            compilationFailureCount.increment();
+            throw new IllegalArgumentException("Cannot compile script " + script + ": " + e.getMessage(), e);
+        }
+        T previousScript = scripts.putIfAbsent(script, compiledScript);
+        if (previousScript != null) {
+            return previousScript;
+        }
+        evict();
+        return compiledScript;
+    }
+
+    private void evict() {
+        Iterator<String> iterator = scripts.keySet().iterator();
+        while (scripts.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictionCount.increment();
+        }
+    }
+
+    public int size() {
+        return scripts.size();
+    }
+
+    /**
+     * Retrieves the statistics of this cache: size, hits, misses, evictions and compilation failures since startup.
+     *
+     * @return a map of counter names to counter values
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("size", (long) size());
+        statistics.put("maxSize", (long) maxSize);
+        statistics.put("hits", hitCount.sum());
+        statistics.put("misses", missCount.sum());
+        statistics.put("evictions", evictionCount.sum());
+        statistics.put("compilationFailures", compilationFailureCount.sum());
+        return statistics;
+    }
+
+    /**
+     * Retrieves the statistics of all the script caches.
+     *
+     * @return a map of cache names to cache statistics
+     */
+    public static Map<String, Map<String, Long>> getAllStatistics() {
+        Map<String, Map<String, Long>> statistics = new TreeMap<>();
+        for (ScriptCache<?> cache : caches.values()) {
+            statistics.put(cache.getName(), cache.getStatistics());
+        }
+        return statistics;
+    }
+}
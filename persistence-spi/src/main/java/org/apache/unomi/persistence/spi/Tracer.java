@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import org.apache.unomi.api.TraceSpan;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records a tree of {@link TraceSpan}s for the request processed by the current thread. A trace is started by the servlet receiving the
+ * request, either because the client asked for it or because the request was sampled, and the code it goes through opens spans around
+ * the steps worth measuring:
+ * <pre>
+ * TraceSpan span = Tracer.begin("action", actionTypeId);
+ * try {
+ *     ...
+ * } finally {
+ *     Tracer.end(span);
+ * }
+ * </pre>
+ * Opening a span costs a single volatile read when no trace is running on any thread. Steps executed on other threads, such as rule
+ * conditions evaluated in parallel, are not traced. The slowest traces completed since startup are kept for inspection.
+ */
+public class Tracer {
+
+    private static final int MAX_SPANS = 10000;
+    private static final int MAX_SLOWEST_TRACES = 20;
+
+    private static final ThreadLocal<Tracer> currentTracer = new ThreadLocal<>();
+
+    private static final AtomicInteger activeTraceCount = new AtomicInteger();
+
+    private static final Comparator<TraceSpan> DURATION_COMPARATOR = new Comparator<TraceSpan>() {
+        @Override
+        public int compare(TraceSpan span1, TraceSpan span2) {
+            return Long.compare(span1.getDuration(), span2.getDuration());
+        }
+    };
+
+    private static final PriorityQueue<TraceSpan> slowestTraces = new PriorityQueue<>(MAX_SLOWEST_TRACES, DURATION_COMPARATOR);
+
+    private final long startTime = System.nanoTime();
+    private final TraceSpan root;
+    private final Deque<TraceSpan> openSpans = new ArrayDeque<>();
+    private int spanCount;
+    private boolean stopped;
+
+    private Tracer(String name) {
+        root = new TraceSpan("request", name, 0);
+        openSpans.push(root);
+    }
+
+    /**
+     * Checks whether a request should be traced, according to a sampling ratio.
+     *
+     * @param samplingRatio the ratio of requests to trace, between {@code 0} and {@code 1}
+     * @return {@code true} if the request should be traced
+     */
+    public static boolean isSampled(double samplingRatio) {
+        return samplingRatio > 0 && ThreadLocalRandom.current().nextDouble() < samplingRatio;
+    }
+
+    /**
+     * Starts a trace for the current thread.
+     *
+     * @param name the name of the traced request
+     * @return the started trace, which must be stopped by the caller
+     */
+    public static Tracer start(String name) {
+        Tracer tracer = new Tracer(name);
+        if (currentTracer.get() == null) {
+            activeTraceCount.incrementAndGet();
+        }
+        currentTracer.set(tracer);
+        return tracer;
+    }
+
+    /**
+     * Stops this trace, and keeps it if it is one of the slowest ones. Stopping an already stopped trace has no effect.
+     *
+     * @return the root span of the trace
+     */
+    public TraceSpan stop() {
+        if (stopped) {
+            return root;
+        }
+        stopped = true;
+        root.setDuration((System.nanoTime() - startTime) / 1000L);
+        if (currentTracer.get() == this) {
+            currentTracer.remove();
+            activeTraceCount.decrementAndGet();
+        }
+        synchronized (slowestTraces) {
+            if (slowestTraces.size() < MAX_SLOWEST_TRACES) {
+                slowestTraces.add(root);
+            } else if (slowestTraces.peek().getDuration() < root.getDuration()) {
+                slowestTraces.poll();
+                slowestTraces.add(root);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Detaches the trace of the current thread, so that the processing of the request can continue on another thread.
+     *
+     * @return the detached trace, or {@code null} if the current thread is not traced
+     */
+    public static Tracer detach() {
+        Tracer tracer = currentTracer.get();
+        if (tracer != null) {
+            currentTracer.remove();
+            activeTraceCount.decrementAndGet();
+        }
+        return tracer;
+    }
+
+    /**
+     * Attaches this trace to the current thread, after it has been detached from the thread that started it.
+     */
+    public void attach() {
+        if (stopped) {
+            return;
+        }
+        if (currentTracer.get() == null) {
+            activeTraceCount.incrementAndGet();
+        }
+        currentTracer.set(this);
+    }
+
+    /**
+     * Opens a span in the trace of the current thread, as a child of the innermost open span.
+     *
+     * @param category the category of the span
+     * @param name     the name of the span
+     * @return the opened span, or {@code null} if the current thread is not traced
+     */
+    public static TraceSpan begin(String category, String name) {
+        if (activeTraceCount.get() == 0) {
+            return null;
+        }
+        Tracer tracer = currentTracer.get();
+        if (tracer == null || tracer.spanCount >= MAX_SPANS) {
+            return null;
+        }
+        tracer.spanCount++;
+        TraceSpan span = new TraceSpan(category, name, (System.nanoTime() - tracer.startTime) / 1000L);
+        tracer.openSpans.peek().addChild(span);
+        tracer.openSpans.push(span);
+        return span;
+    }
+
+    /**
+     * Closes a span opened by {@link #begin(String, String)}.
+     *
+     * @param span the span to close, may be {@code null}
+     */
+    public static void end(TraceSpan span) {
+        if (span == null) {
+            return;
+        }
+        Tracer tracer = currentTracer.get();
+        if (tracer == null) {
+            return;
+        }
+        span.setDuration((System.nanoTime() - tracer.startTime) / 1000L - span.getStart());
+        // spans left open by an exception are closed along with their parent
+        while (!tracer.openSpans.isEmpty() && tracer.openSpans.pop() != span) {
+        }
+        if (tracer.openSpans.isEmpty()) {
+            tracer.openSpans.push(tracer.root);
+        }
+    }
+
+    /**
+     * Sets an attribute on the innermost open span of the current thread, if it is traced.
+     *
+     * @param key   the name of the attribute
+     * @param value the value of the attribute
+     */
+    public static void setAttribute(String key, Object value) {
+        if (activeTraceCount.get() == 0) {
+            return;
+        }
+        Tracer tracer = currentTracer.get();
+        if (tracer != null) {
+            tracer.openSpans.peek().setAttribute(key, value);
+        }
+    }
+
+    /**
+     * Retrieves the slowest traces completed since startup, slowest first.
+     *
+     * @return the root spans of the slowest traces
+     */
+    public static List<TraceSpan> getSlowestTraces() {
+        List<TraceSpan> traces;
+        synchronized (slowestTraces) {
+            traces = new ArrayList<>(slowestTraces);
+        }
+        Collections.sort(traces, Collections.reverseOrder(DURATION_COMPARATOR));
+        return traces;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import org.apache.unomi.api.Item;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memoizes the items read and written while the current thread processes a request, so that a profile or a session loaded by several
+ * services during the same request is read only once, and that the saves requested along the way are coalesced into a single write
+ * when the request completes. A unit of work is started by the servlet receiving the request:
+ * <pre>
+ * UnitOfWork unitOfWork = UnitOfWork.begin();
+ * try {
+ *     ...
+ * } finally {
+ *     if (unitOfWork != null) {
+ *         unitOfWork.end();
+ *     }
+ * }
+ * </pre>
+ * Only the services that explicitly consult the unit of work take part in it: writes issued directly against the persistence service are
+ * not reflected in the memoized items.
+ */
+public class UnitOfWork {
+
+    private static final Logger logger = LoggerFactory.getLogger(UnitOfWork.class.getName());
+
+    /**
+     * Writes the items saved during a unit of work when it is flushed, typically with {@link PersistenceService#save(Item)}.
+     */
+    public interface ItemWriter {
+        boolean save(Item item);
+    }
+
+    private static final ThreadLocal<UnitOfWork> currentUnitOfWork = new ThreadLocal<>();
+
+    private final Map<String, Item> items = new HashMap<>();
+    private final Map<String, PendingSave> pendingSaves = new LinkedHashMap<>();
+    private boolean ended;
+
+    private UnitOfWork() {
+    }
+
+    /**
+     * Starts a unit of work for the current thread, unless one is already running.
+     *
+     * @return the started unit of work, which must be ended by the caller, or {@code null} if the current thread already runs one
+     */
+    public static UnitOfWork begin() {
+        if (currentUnitOfWork.get() != null) {
+            return null;
+        }
+        UnitOfWork unitOfWork = new UnitOfWork();
+        currentUnitOfWork.set(unitOfWork);
+        return unitOfWork;
+    }
+
+    /**
+     * Retrieves the unit of work running on the current thread.
+     *
+     * @return the current unit of work, or {@code null} if there is none
+     */
+    public static UnitOfWork current() {
+        return currentUnitOfWork.get();
+    }
+
+    /**
+     * Detaches the unit of work of the current thread, so that the processing of the request can continue on another thread.
+     *
+     * @return the detached unit of work, or {@code null} if the current thread runs none
+     */
+    public static UnitOfWork detach() {
+        UnitOfWork unitOfWork = currentUnitOfWork.get();
+        currentUnitOfWork.remove();
+        return unitOfWork;
+    }
+
+    /**
+     * Attaches this unit of work to the current thread, after it has been detached from the thread that started it.
+     */
+    public void attach() {
+        if (!ended) {
+            currentUnitOfWork.set(this);
+        }
+    }
+
+    /**
+     * Retrieves an item read or written earlier in this unit of work.
+     *
+     * @param itemId the identifier of the item
+     * @param clazz  the class of the item
+     * @param <T>    the type of the item
+     * @return the memoized item, or {@code null} if it is not known to this unit of work
+     */
+    public <T extends Item> T get(String itemId, Class<T> clazz) {
+        Item item = items.get(getKey(clazz, itemId));
+        return clazz.isInstance(item) ? clazz.cast(item) : null;
+    }
+
+    /**
+     * Memoizes an item read from the persistence service.
+     *
+     * @param clazz the class the item was loaded as
+     * @param item  the item, ignored if {@code null}
+     */
+    public void put(Class<? extends Item> clazz, Item item) {
+        if (item != null && item.getItemId() != null) {
+            items.put(getKey(clazz, item.getItemId()), item);
+        }
+    }
+
+    /**
+     * Memoizes an item and defers its save until the unit of work is flushed. Saving the same item several times results in a single
+     * write of its latest state.
+     *
+     * @param clazz  the class the item is saved as
+     * @param item   the item to save
+     * @param writer the writer saving the item when the unit of work is flushed
+     */
+    public void save(Class<? extends Item> clazz, Item item, ItemWriter writer) {
+        String key = getKey(clazz, item.getItemId());
+        items.put(key, item);
+        pendingSaves.put(key, new PendingSave(item, writer));
+    }
+
+    /**
+     * Forgets an item, and drops its pending save, typically because it has been removed.
+     *
+     * @param itemId the identifier of the item
+     * @param clazz  the class of the item
+     */
+    public void evict(String itemId, Class<? extends Item> clazz) {
+        String key = getKey(clazz, itemId);
+        items.remove(key);
+        pendingSaves.remove(key);
+    }
+
+    /**
+     * Writes the items saved since the last flush. The memoized items are kept.
+     *
+     * @return the number of items written
+     */
+    public int flush() {
+        int count = 0;
+        while (!pendingSaves.isEmpty()) {
+            Map<String, PendingSave> saves = new LinkedHashMap<>(pendingSaves);
+            pendingSaves.clear();
+            for (PendingSave pendingSave : saves.values()) {
+                if (!pendingSave.writer.save(pendingSave.item)) {
+                    logger.error("Couldn't save " + pendingSave.item.getItemType() + " " + pendingSave.item.getItemId());
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Flushes the pending saves and detaches this unit of work from the current thread. Ending an already ended unit of work has no
+     * effect.
+     */
+    public void end() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        try {
+            flush();
+        } finally {
+            if (currentUnitOfWork.get() == this) {
+                currentUnitOfWork.remove();
+            }
+        }
+    }
+
+    private static String getKey(Class<? extends Item> clazz, String itemId) {
+        return clazz.getName() + "/" + itemId;
+    }
+
+    private static class PendingSave {
+        private final Item item;
+        private final ItemWriter writer;
+
+        PendingSave(Item item, ItemWriter writer) {
+            this.item = item;
+            this.writer = writer;
+        }
+    }
+}
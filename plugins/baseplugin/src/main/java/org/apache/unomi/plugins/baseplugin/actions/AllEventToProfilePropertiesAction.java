@@ -17,13 +17,13 @@
 
 package org.apache.unomi.plugins.baseplugin.actions;
 
-import org.apache.commons.beanutils.BeanUtilsBean;
 import org.apache.unomi.api.Event;
 import org.apache.unomi.api.actions.Action;
 import org.apache.unomi.api.actions.ActionExecutor;
 import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.api.services.PrivacyService;
 import org.apache.unomi.api.services.ProfileService;
+import org.apache.unomi.persistence.spi.PropertyPath;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -51,7 +51,7 @@ public class AllEventToProfilePropertiesAction implements ActionExecutor {
 
 
         try {
-            Object targetProperties = BeanUtilsBean.getInstance().getPropertyUtils().getProperty(event.getTarget(), "properties");
+            Object targetProperties = PropertyPath.getProperty(event.getTarget(), "properties");
             if (targetProperties instanceof Map) {
                 properties.putAll( (Map)targetProperties );
             }
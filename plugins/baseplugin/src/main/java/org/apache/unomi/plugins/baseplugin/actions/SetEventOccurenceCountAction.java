@@ -23,10 +23,12 @@ import org.apache.unomi.api.actions.ActionExecutor;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventService;
+import org.apache.unomi.persistence.spi.PastEventCounters;
 import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.aggregate.DateAggregate;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.Map;
 
 public class SetEventOccurenceCountAction implements ActionExecutor {
@@ -45,7 +47,39 @@ public class SetEventOccurenceCountAction implements ActionExecutor {
     @Override
     public int execute(Action action, Event event) {
         final Condition pastEventCondition = (Condition) action.getParameterValues().get("pastEventCondition");
+        String key = (String) pastEventCondition.getParameter("generatedPropertyKey");
+        Integer numberOfDays = (Integer) pastEventCondition.getParameter("numberOfDays");
+
+        Map<String, Object> systemProperties = event.getProfile().getSystemProperties();
+        long today = PastEventCounters.getDay(System.currentTimeMillis());
+        long day = event.getTimeStamp() != null ? PastEventCounters.getDay(event.getTimeStamp()) : today;
+
+        if (!PastEventCounters.increment(systemProperties, key, numberOfDays, day, today)) {
+            // First matching event seen for this profile since the counter was defined, count the previous ones once
+            Condition andCondition = getPastEventsCondition(pastEventCondition, event, today);
+            if (numberOfDays == null) {
+                long count = persistenceService.queryCount(andCondition, Event.ITEM_TYPE);
+                PastEventCounters.setCount(systemProperties, key, count + 1);
+            } else {
+                Map<Long, Long> buckets = new HashMap<>();
+                Map<String, Long> eventCountByDay = persistenceService.aggregateQuery(andCondition, new DateAggregate("timeStamp", "1d", "epoch_millis"), Event.ITEM_TYPE);
+                if (eventCountByDay != null) {
+                    for (Map.Entry<String, Long> entry : eventCountByDay.entrySet()) {
+                        if (!entry.getKey().startsWith("_")) {
+                            buckets.put(PastEventCounters.getDay(Long.parseLong(entry.getKey())), entry.getValue());
+                        }
+                    }
+                }
+                Long count = buckets.get(day);
+                buckets.put(day, count != null ? count + 1 : 1L);
+                PastEventCounters.setBuckets(systemProperties, key, buckets, numberOfDays, today);
+            }
+        }
 
+        return EventService.PROFILE_UPDATED;
+    }
+
+    private Condition getPastEventsCondition(Condition pastEventCondition, Event event, long today) {
         Condition andCondition = new Condition(definitionsService.getConditionType("booleanCondition"));
         andCondition.setParameter("operator", "and");
         ArrayList<Condition> conditions = new ArrayList<Condition>();
@@ -65,23 +99,13 @@ public class SetEventOccurenceCountAction implements ActionExecutor {
 
             Condition timeCondition = new Condition(definitionsService.getConditionType("eventPropertyCondition"));
             timeCondition.setParameter("propertyName","timeStamp");
-            timeCondition.setParameter("comparisonOperator","greaterThan");
-            timeCondition.setParameter("propertyValueDateExpr","now-"+i+"d");
+            timeCondition.setParameter("comparisonOperator","greaterThanOrEqualTo");
+            timeCondition.setParameter("propertyValueDate", PastEventCounters.getWindowStart(i, today));
 
             conditions.add(timeCondition);
         }
 
         andCondition.setParameter("subConditions", conditions);
-
-        long count = persistenceService.queryCount(andCondition, Event.ITEM_TYPE);
-
-        Map<String,Object> pastEvents = (Map<String,Object>) event.getProfile().getSystemProperties().get("pastEvents");
-        if (pastEvents == null) {
-            pastEvents = new LinkedHashMap<>();
-            event.getProfile().getSystemProperties().put("pastEvents", pastEvents);
-        }
-        pastEvents.put((String) pastEventCondition.getParameter("generatedPropertyKey"), count + 1);
-
-        return EventService.PROFILE_UPDATED;
+        return andCondition;
     }
 }
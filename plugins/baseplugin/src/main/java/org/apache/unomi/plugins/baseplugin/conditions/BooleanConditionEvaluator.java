@@ -19,7 +19,8 @@ package org.apache.unomi.plugins.baseplugin.conditions;
 
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.conditions.Condition;
-import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluator;
+import org.apache.unomi.persistence.elasticsearch.conditions.CompilableConditionEvaluator;
+import org.apache.unomi.persistence.elasticsearch.conditions.CompiledCondition;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
 
 import java.util.List;
@@ -28,7 +29,7 @@ import java.util.Map;
 /**
  * Evaluator for AND and OR conditions.
  */
-public class BooleanConditionEvaluator implements ConditionEvaluator {
+public class BooleanConditionEvaluator implements CompilableConditionEvaluator {
 
     @Override
     public boolean eval(Condition condition, Item item, Map<String, Object> context,
@@ -48,4 +49,29 @@ public class BooleanConditionEvaluator implements ConditionEvaluator {
         }
         return isAnd;
     }
+
+    @Override
+    public CompiledCondition compile(Condition condition, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
+        final boolean isAnd = "and".equalsIgnoreCase((String) condition.getParameter("operator"));
+        @SuppressWarnings("unchecked")
+        List<Condition> conditions = (List<Condition>) condition.getParameter("subConditions");
+        final CompiledCondition[] subConditions = new CompiledCondition[conditions.size()];
+        for (int i = 0; i < subConditions.length; i++) {
+            subConditions[i] = dispatcher.compile(conditions.get(i), context);
+        }
+        return new CompiledCondition() {
+            @Override
+            public boolean eval(Item item) {
+                for (CompiledCondition sub : subConditions) {
+                    boolean eval = sub.eval(item);
+                    if (!eval && isAnd) {
+                        return false;
+                    } else if (eval && !isAnd) {
+                        return true;
+                    }
+                }
+                return isAnd;
+            }
+        };
+    }
 }
@@ -0,0 +1,403 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.plugins.baseplugin.conditions;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.elasticsearch.conditions.CompiledCondition;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionContextHelper;
+import org.apache.unomi.persistence.spi.PropertyHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A property condition with its comparison operator and expected values resolved once, when the condition is compiled, instead of on
+ * each evaluation. Operands are prepared for the operator: regular expressions are compiled, the expected values of the multivalued
+ * operators are hashed, and date math expressions are only reparsed when their rounding period changes. The patterns of the
+ * {@code contains}, {@code notContains}, {@code startsWith} and {@code endsWith} operators of the conditions compiled when definitions are
+ * loaded are registered in the {@link StringPatternIndex} of their property, so that within an evaluation scope the property value is
+ * matched once against the patterns of all the conditions.
+ */
+public class CompiledPropertyCondition implements CompiledCondition {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledPropertyCondition.class.getName());
+
+    private static final ThreadLocal<SimpleDateFormat> yearMonthDayDateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyyMMdd");
+        }
+    };
+
+    private enum Operator {
+        EXISTS("exists"), MISSING("missing"), EQUALS("equals"), NOT_EQUALS("notEquals"),
+        GREATER_THAN("greaterThan"), GREATER_THAN_OR_EQUAL_TO("greaterThanOrEqualTo"), LESS_THAN("lessThan"), LESS_THAN_OR_EQUAL_TO("lessThanOrEqualTo"),
+        BETWEEN("between"), CONTAINS("contains"), NOT_CONTAINS("notContains"), STARTS_WITH("startsWith"), ENDS_WITH("endsWith"),
+        MATCHES_REGEX("matchesRegex"), IN("in"), IN_CONTAINS("inContains"), NOT_IN("notIn"), HAS_SOME_OF("hasSomeOf"), HAS_NONE_OF("hasNoneOf"),
+        ALL("all"), IS_DAY("isDay"), IS_NOT_DAY("isNotDay"), UNKNOWN(null);
+
+        private static final Map<String, Operator> OPERATORS_BY_NAME = new HashMap<>();
+
+        static {
+            for (Operator operator : values()) {
+                if (operator.name != null) {
+                    OPERATORS_BY_NAME.put(operator.name, operator);
+                }
+            }
+        }
+
+        private final String name;
+
+        Operator(String name) {
+            this.name = name;
+        }
+
+        static Operator fromName(String name) {
+            if (name == null) {
+                return null;
+            }
+            Operator operator = OPERATORS_BY_NAME.get(name);
+            return operator != null ? operator : UNKNOWN;
+        }
+    }
+
+    private final PropertyConditionEvaluator evaluator;
+
+    private final Operator operator;
+    private final String propertyName;
+
+    private final String expectedValue;
+    private final Object expectedValueInteger;
+    private final Object expectedValueDate;
+    private final Object expectedValueDateExpr;
+
+    private final Object lowerBoundDate;
+    private final Object lowerBoundInteger;
+    private final Object lowerBoundDateExpr;
+    private final Object upperBoundDate;
+    private final Object upperBoundInteger;
+    private final Object upperBoundDateExpr;
+
+    private final List<?> expectedValues;
+    private final List<?> expectedValuesInteger;
+    private final List<?> expectedValuesDate;
+    private final List<?> expectedValuesDateExpr;
+
+    private final Pattern expectedPattern;
+    private final List<?> expectedMultivalues;
+    private final Set<?> expectedMultivalueSet;
+
+    private final StringPatternIndex stringPatternIndex;
+    // keeps the pattern registered in the index as long as the condition is used
+    private final StringPatternIndex.Pattern stringPattern;
+
+    /**
+     * @param evaluator             the evaluator resolving property values
+     * @param condition             the property condition
+     * @param registerStringPattern whether to register the string pattern of the condition in the index of its property, which should
+     *                              only be done for the conditions of the definitions, not for the conditions built on each evaluation
+     */
+    public CompiledPropertyCondition(PropertyConditionEvaluator evaluator, Condition condition, boolean registerStringPattern) {
+        this.evaluator = evaluator;
+        this.operator = Operator.fromName((String) condition.getParameter("comparisonOperator"));
+        this.propertyName = (String) condition.getParameter("propertyName");
+
+        this.expectedValue = ConditionContextHelper.foldToASCII((String) condition.getParameter("propertyValue"));
+        this.expectedValueInteger = condition.getParameter("propertyValueInteger");
+        this.expectedValueDate = prepareDate(condition.getParameter("propertyValueDate"));
+        this.expectedValueDateExpr = prepareDate(condition.getParameter("propertyValueDateExpr"));
+
+        this.expectedValuesInteger = (List<?>) condition.getParameter("propertyValuesInteger");
+        this.expectedValuesDate = (List<?>) condition.getParameter("propertyValuesDate");
+        this.expectedValuesDateExpr = (List<?>) condition.getParameter("propertyValuesDateExpr");
+
+        if (operator == Operator.BETWEEN) {
+            this.lowerBoundDate = prepareDate(getElement(expectedValuesDate, 0));
+            this.lowerBoundInteger = getElement(expectedValuesInteger, 0);
+            this.lowerBoundDateExpr = prepareDate(getElement(expectedValuesDateExpr, 0));
+            this.upperBoundDate = prepareDate(getElement(expectedValuesDate, 1));
+            this.upperBoundInteger = getElement(expectedValuesInteger, 1);
+            this.upperBoundDateExpr = prepareDate(getElement(expectedValuesDateExpr, 1));
+        } else {
+            this.lowerBoundDate = this.lowerBoundInteger = this.lowerBoundDateExpr = null;
+            this.upperBoundDate = this.upperBoundInteger = this.upperBoundDateExpr = null;
+        }
+
+        List<?> propertyValues = ConditionContextHelper.foldToASCII((List<?>) condition.getParameter("propertyValues"));
+        this.expectedValues = propertyValues != null ? new ArrayList<Object>(propertyValues) : null;
+
+        this.expectedPattern = operator == Operator.MATCHES_REGEX ? compilePattern(expectedValue) : null;
+        this.expectedMultivalues = ObjectUtils.firstNonNull(expectedValues, expectedValuesDate, expectedValuesInteger);
+        this.expectedMultivalueSet = expectedMultivalues != null ? new HashSet<Object>(expectedMultivalues) : null;
+
+        StringPatternIndex.Kind patternKind = getStringPatternKind(operator);
+        StringPatternIndex index = null;
+        StringPatternIndex.Pattern pattern = null;
+        if (registerStringPattern && patternKind != null && propertyName != null && expectedValue != null) {
+            index = evaluator.getStringPatternIndex(propertyName);
+            pattern = index.register(patternKind, expectedValue);
+        }
+        this.stringPatternIndex = pattern != null ? index : null;
+        this.stringPattern = pattern;
+    }
+
+    private static StringPatternIndex.Kind getStringPatternKind(Operator operator) {
+        if (operator == null) {
+            return null;
+        }
+        switch (operator) {
+            case CONTAINS:
+            case NOT_CONTAINS:
+                return StringPatternIndex.Kind.CONTAINS;
+            case STARTS_WITH:
+                return StringPatternIndex.Kind.STARTS_WITH;
+            case ENDS_WITH:
+                return StringPatternIndex.Kind.ENDS_WITH;
+            default:
+                return null;
+        }
+    }
+
+    private static Pattern compilePattern(String regex) {
+        if (regex == null) {
+            return null;
+        }
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            logger.warn("Invalid regular expression " + regex, e);
+            return null;
+        }
+    }
+
+    private static Object prepareDate(Object value) {
+        return value instanceof String ? new DateMathExpression((String) value) : value;
+    }
+
+    @Override
+    public boolean eval(Item item) {
+        if (operator == null) {
+            return false;
+        }
+
+        if (stringPatternIndex != null) {
+            StringPatternMatcher.Matches matches = evaluator.getStringPatternMatches(item, stringPatternIndex);
+            if (matches != null) {
+                return evalStringPattern(matches);
+            }
+        }
+
+        Object actualValue = evaluator.getPropertyValue(item, propertyName);
+        if (actualValue instanceof String) {
+            actualValue = ConditionContextHelper.foldToASCII((String) actualValue);
+        }
+
+        if (actualValue == null) {
+            return operator == Operator.MISSING;
+        }
+
+        switch (operator) {
+            case EXISTS:
+                return true;
+            case EQUALS:
+                if (actualValue instanceof Collection) {
+                    for (Object o : ((Collection<?>) actualValue)) {
+                        if (o instanceof String) {
+                            o = ConditionContextHelper.foldToASCII((String) o);
+                        }
+                        if (compare(o, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) == 0) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) == 0;
+            case NOT_EQUALS:
+                return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) != 0;
+            case GREATER_THAN:
+                return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) > 0;
+            case GREATER_THAN_OR_EQUAL_TO:
+                return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) >= 0;
+            case LESS_THAN:
+                return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) < 0;
+            case LESS_THAN_OR_EQUAL_TO:
+                return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) <= 0;
+            case BETWEEN:
+                return compare(actualValue, null, lowerBoundDate, lowerBoundInteger, lowerBoundDateExpr) >= 0
+                        && compare(actualValue, null, upperBoundDate, upperBoundInteger, upperBoundDateExpr) <= 0;
+            case CONTAINS:
+                return actualValue.toString().contains(expectedValue);
+            case NOT_CONTAINS:
+                return !actualValue.toString().contains(expectedValue);
+            case STARTS_WITH:
+                return actualValue.toString().startsWith(expectedValue);
+            case ENDS_WITH:
+                return actualValue.toString().endsWith(expectedValue);
+            case MATCHES_REGEX:
+                return expectedPattern != null && expectedPattern.matcher(actualValue.toString()).matches();
+            case IN:
+            case IN_CONTAINS:
+            case NOT_IN:
+            case HAS_SOME_OF:
+            case HAS_NONE_OF:
+            case ALL:
+                return compareMultivalue(actualValue);
+            case IS_DAY:
+                return expectedValueDate != null && yearMonthDayDateFormat.get().format(getDate(actualValue)).equals(yearMonthDayDateFormat.get().format(getDate(expectedValueDate)));
+            case IS_NOT_DAY:
+                return expectedValueDate != null && !yearMonthDayDateFormat.get().format(getDate(actualValue)).equals(yearMonthDayDateFormat.get().format(getDate(expectedValueDate)));
+            default:
+                return false;
+        }
+    }
+
+    private boolean evalStringPattern(StringPatternMatcher.Matches matches) {
+        if (!matches.hasValue()) {
+            return false;
+        }
+        switch (operator) {
+            case CONTAINS:
+                return matches.contains(expectedValue);
+            case NOT_CONTAINS:
+                return !matches.contains(expectedValue);
+            case STARTS_WITH:
+                return matches.startsWith(expectedValue);
+            case ENDS_WITH:
+                return matches.endsWith(expectedValue);
+            default:
+                return false;
+        }
+    }
+
+    private int compare(Object actualValue, String expectedValue, Object expectedValueDate, Object expectedValueInteger, Object expectedValueDateExpr) {
+        if (expectedValue == null && expectedValueDate == null && expectedValueInteger == null && getDate(expectedValueDateExpr) == null) {
+            return actualValue == null ? 0 : 1;
+        } else if (actualValue == null) {
+            return -1;
+        }
+
+        if (expectedValueInteger != null) {
+            return PropertyHelper.getInteger(actualValue).compareTo(PropertyHelper.getInteger(expectedValueInteger));
+        } else if (expectedValueDate != null) {
+            return getDate(actualValue).compareTo(getDate(expectedValueDate));
+        } else if (expectedValueDateExpr != null) {
+            return getDate(actualValue).compareTo(getDate(expectedValueDateExpr));
+        } else {
+            return actualValue.toString().compareTo(expectedValue);
+        }
+    }
+
+    private boolean compareMultivalue(Object actualValue) {
+        List<?> expected = expectedMultivalues;
+        if (expected == null) {
+            return false;
+        }
+        Set<?> expectedSet = expectedMultivalueSet;
+
+        List<Object> actual = ConditionContextHelper.foldToASCII(getValueSet(actualValue));
+
+        boolean result = true;
+
+        switch (operator) {
+            case IN:
+                result = false;
+                for (Object a : actual) {
+                    if (expectedSet.contains(a)) {
+                        result = true;
+                        break;
+                    }
+                }
+                break;
+            case IN_CONTAINS:
+                result = false;
+                for (Object a : actual) {
+                    for (Object b : expected)
+                        if (((String) a).contains((String) b)) {
+                            result = true;
+                            break;
+                        }
+                }
+                break;
+            case NOT_IN:
+                for (Object a : actual) {
+                    if (expectedSet.contains(a)) {
+                        result = false;
+                        break;
+                    }
+                }
+                break;
+            case ALL:
+                Set<Object> actualSet = new HashSet<Object>(actual);
+                for (Object e : expectedSet) {
+                    if (!actualSet.contains(e)) {
+                        result = false;
+                        break;
+                    }
+                }
+                break;
+            case HAS_NONE_OF:
+                if (!Collections.disjoint(actual, expectedSet)) {
+                    return false;
+                }
+                break;
+            case HAS_SOME_OF:
+                if (Collections.disjoint(actual, expectedSet)) {
+                    return false;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown comparison operator " + operator.name);
+        }
+
+        return result;
+    }
+
+    private static Object getElement(List<?> values, int index) {
+        return values != null && values.size() > index ? values.get(index) : null;
+    }
+
+    static Date getDate(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Date) {
+            return ((Date) value);
+        } else if (value instanceof DateMathExpression) {
+            return ((DateMathExpression) value).getDate();
+        } else {
+            return DateMathExpression.parse(value.toString(), System.currentTimeMillis());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> getValueSet(Object expectedValue) {
+        if (expectedValue instanceof List) {
+            return (List<Object>) expectedValue;
+        } else if (expectedValue instanceof Collection) {
+            return new ArrayList<Object>((Collection<?>) expectedValue);
+        } else {
+            return Collections.singletonList(expectedValue);
+        }
+    }
+}
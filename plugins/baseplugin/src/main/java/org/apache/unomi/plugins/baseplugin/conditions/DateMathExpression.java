@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.plugins.baseplugin.conditions;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.joda.DateMathParser;
+import org.elasticsearch.index.mapper.DateFieldMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A date or date math expression used as the expected value of a property condition, such as {@code 2017-01-01}, {@code now-30d/d} or
+ * {@code 2017-01-01||+1M}. Expressions which do not depend on the current time are parsed once. Expressions relative to {@code now}
+ * that are rounded are only reparsed when the current time enters a new period of the finest unit they use: the value of
+ * {@code now-1h/d} can only change on an hour boundary. Expressions relative to {@code now} without rounding are parsed on each call.
+ */
+class DateMathExpression {
+
+    private static final Logger logger = LoggerFactory.getLogger(DateMathExpression.class.getName());
+
+    static final DateMathParser parser = new DateMathParser(DateFieldMapper.DEFAULT_DATE_TIME_FORMATTER);
+
+    private static final Pattern UNIT_PATTERN = Pattern.compile("(?:[+-]\\d*|/)([yMwdhHms])");
+
+    private static final long CONSTANT = 0L;
+    private static final long NOT_CACHEABLE = -1L;
+
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    private final String expression;
+
+    /**
+     * The length of the periods during which the value of the expression is stable, or {@link #CONSTANT} / {@link #NOT_CACHEABLE}.
+     */
+    private final long period;
+
+    private volatile CachedDate cachedDate;
+
+    DateMathExpression(String expression) {
+        this.expression = expression;
+        this.period = getPeriod(expression);
+    }
+
+    private static long getPeriod(String expression) {
+        if (!expression.startsWith("now")) {
+            // absolute date, possibly followed by date math
+            return CONSTANT;
+        }
+        long period = DAY;
+        boolean rounded = false;
+        Matcher matcher = UNIT_PATTERN.matcher(expression.substring(3));
+        while (matcher.find()) {
+            if (matcher.group().startsWith("/")) {
+                rounded = true;
+            }
+            switch (matcher.group(1).charAt(0)) {
+                case 'h':
+                case 'H':
+                    period = Math.min(period, HOUR);
+                    break;
+                case 'm':
+                    period = Math.min(period, MINUTE);
+                    break;
+                case 's':
+                    period = Math.min(period, SECOND);
+                    break;
+                default:
+                    // years, months and weeks start on a day boundary
+                    break;
+            }
+        }
+        return rounded ? period : NOT_CACHEABLE;
+    }
+
+    String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Evaluates this expression at the current time.
+     *
+     * @return the date, or {@code null} if the expression cannot be parsed
+     */
+    Date getDate() {
+        if (period == NOT_CACHEABLE) {
+            return parse(expression, System.currentTimeMillis());
+        }
+        long now = System.currentTimeMillis();
+        long start = period == CONSTANT ? 0L : now - now % period;
+        CachedDate cached = cachedDate;
+        if (cached == null || cached.start != start) {
+            cached = new CachedDate(start, parse(expression, now));
+            cachedDate = cached;
+        }
+        return cached.date;
+    }
+
+    static Date parse(String value, final long now) {
+        try {
+            return new Date(parser.parse(value, new LongSupplier() {
+                public long getAsLong() {
+                    return now;
+                }
+            }));
+        } catch (ElasticsearchParseException e) {
+            logger.warn("unable to parse date " + value, e);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private static class CachedDate {
+        private final long start;
+        private final Date date;
+
+        CachedDate(long start, Date date) {
+            this.start = start;
+            this.date = date;
+        }
+    }
+}
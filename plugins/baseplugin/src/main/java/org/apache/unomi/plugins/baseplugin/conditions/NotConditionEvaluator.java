@@ -19,7 +19,8 @@ package org.apache.unomi.plugins.baseplugin.conditions;
 
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.conditions.Condition;
-import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluator;
+import org.apache.unomi.persistence.elasticsearch.conditions.CompilableConditionEvaluator;
+import org.apache.unomi.persistence.elasticsearch.conditions.CompiledCondition;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
 
 import java.util.Map;
@@ -27,11 +28,22 @@ import java.util.Map;
 /**
  * Evaluator for NOT condition.
  */
-public class NotConditionEvaluator implements ConditionEvaluator {
+public class NotConditionEvaluator implements CompilableConditionEvaluator {
 
     @Override
     public boolean eval(Condition condition, Item item, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
         Condition subCondition = (Condition) condition.getParameter("subCondition");
         return !dispatcher.eval(subCondition, item, context);
     }
+
+    @Override
+    public CompiledCondition compile(Condition condition, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
+        final CompiledCondition subCondition = dispatcher.compile((Condition) condition.getParameter("subCondition"), context);
+        return new CompiledCondition() {
+            @Override
+            public boolean eval(Item item) {
+                return !subCondition.eval(item);
+            }
+        };
+    }
 }
@@ -24,6 +24,7 @@ import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionContextHelper;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionESQueryBuilder;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionESQueryBuilderDispatcher;
+import org.apache.unomi.persistence.spi.PastEventCounters;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
 import org.elasticsearch.index.query.QueryBuilder;
@@ -53,6 +54,16 @@ public class PastEventConditionESQueryBuilder implements ConditionESQueryBuilder
         if (eventCondition == null) {
             throw new IllegalArgumentException("No eventCondition");
         }
+        Integer minimumEventCount = condition.getParameter("minimumEventCount") == null ? 0 : (Integer) condition.getParameter("minimumEventCount");
+        Integer maximumEventCount = condition.getParameter("maximumEventCount") == null  ? Integer.MAX_VALUE : (Integer) condition.getParameter("maximumEventCount");
+
+        if (condition.getParameter("generatedPropertyKey") != null && condition.getParameter("numberOfDays") == null) {
+            // The counter is maintained on the profiles, no need to aggregate the events. Counters limited to a number of days are only
+            // expired when the profile receives a new event, so the events are still aggregated for them
+            String key = (String) condition.getParameter("generatedPropertyKey");
+            return QueryBuilders.rangeQuery("systemProperties." + PastEventCounters.PAST_EVENTS + "." + key).gte(Math.max(minimumEventCount, 1)).lte(maximumEventCount);
+        }
+
         List<Condition> l = new ArrayList<Condition>();
         Condition andCondition = new Condition();
         andCondition.setConditionType(definitionsService.getConditionType("booleanCondition"));
@@ -66,14 +77,12 @@ public class PastEventConditionESQueryBuilder implements ConditionESQueryBuilder
             Condition numberOfDaysCondition = new Condition();
             numberOfDaysCondition.setConditionType(definitionsService.getConditionType("sessionPropertyCondition"));
             numberOfDaysCondition.setParameter("propertyName", "timeStamp");
-            numberOfDaysCondition.setParameter("comparisonOperator", "greaterThan");
-            numberOfDaysCondition.setParameter("propertyValueDateExpr", "now-" + numberOfDays + "d");
+            numberOfDaysCondition.setParameter("comparisonOperator", "greaterThanOrEqualTo");
+            numberOfDaysCondition.setParameter("propertyValueDate", PastEventCounters.getWindowStart(numberOfDays, PastEventCounters.getDay(System.currentTimeMillis())));
             l.add(numberOfDaysCondition);
         }
         //todo : Check behaviour with important number of profiles
         Set<String> ids = new HashSet<String>();
-        Integer minimumEventCount = condition.getParameter("minimumEventCount") == null ? 0 : (Integer) condition.getParameter("minimumEventCount");
-        Integer maximumEventCount = condition.getParameter("maximumEventCount") == null  ? Integer.MAX_VALUE : (Integer) condition.getParameter("maximumEventCount");
 
         Map<String, Long> eventCountByProfile = persistenceService.aggregateQuery(andCondition, new TermsAggregate("profileId"), Event.ITEM_TYPE);
         if (eventCountByProfile != null) {
@@ -25,6 +25,7 @@ import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionContextHelper;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluator;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
+import org.apache.unomi.persistence.spi.PastEventCounters;
 import org.apache.unomi.persistence.spi.PersistenceService;
 
 import java.util.ArrayList;
@@ -57,13 +58,8 @@ public class PastEventConditionEvaluator implements ConditionEvaluator {
         if (parameters.containsKey("generatedPropertyKey")) {
             String key = (String) parameters.get("generatedPropertyKey");
             Profile profile = (Profile) item;
-            Map<String,Object> pastEvents = (Map<String, Object>) profile.getSystemProperties().get("pastEvents");
-            if (pastEvents != null) {
-                Number l = (Number) pastEvents.get(key);
-                count = l != null ? l.longValue() : 0L;
-            } else {
-                count = 0;
-            }
+            Integer numberOfDays = (Integer) parameters.get("numberOfDays");
+            count = PastEventCounters.getCount(profile.getSystemProperties(), key, numberOfDays, PastEventCounters.getDay(System.currentTimeMillis()));
 
         } else {
             if (eventCondition == null) {
@@ -90,8 +86,8 @@ public class PastEventConditionEvaluator implements ConditionEvaluator {
                 Condition numberOfDaysCondition = new Condition();
                 numberOfDaysCondition.setConditionType(definitionsService.getConditionType("sessionPropertyCondition"));
                 numberOfDaysCondition.setParameter("propertyName", "timeStamp");
-                numberOfDaysCondition.setParameter("comparisonOperator", "greaterThan");
-                numberOfDaysCondition.setParameter("propertyValueDateExpr", "now-" + numberOfDays + "d");
+                numberOfDaysCondition.setParameter("comparisonOperator", "greaterThanOrEqualTo");
+                numberOfDaysCondition.setParameter("propertyValueDate", PastEventCounters.getWindowStart(numberOfDays, PastEventCounters.getDay(System.currentTimeMillis())));
                 l.add(numberOfDaysCondition);
             }
             count = persistenceService.queryCount(andCondition, Event.ITEM_TYPE);
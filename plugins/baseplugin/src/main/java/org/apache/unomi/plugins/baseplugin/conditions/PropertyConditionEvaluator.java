@@ -22,243 +22,250 @@ import ognl.Ognl;
 import ognl.OgnlContext;
 import ognl.OgnlException;
 import ognl.enhance.ExpressionAccessor;
-import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.unomi.api.Event;
 import org.apache.unomi.api.Item;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.Session;
 import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.elasticsearch.conditions.CompilableConditionEvaluator;
+import org.apache.unomi.persistence.elasticsearch.conditions.CompiledCondition;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionContextHelper;
-import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluator;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
-import org.apache.unomi.persistence.spi.PropertyHelper;
-import org.elasticsearch.ElasticsearchParseException;
-import org.elasticsearch.common.joda.DateMathParser;
-import org.elasticsearch.index.mapper.DateFieldMapper;
+import org.apache.unomi.persistence.spi.ConditionEvaluationScope;
+import org.apache.unomi.persistence.spi.PropertyAccessorStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.text.SimpleDateFormat;
-import java.util.*;
-import java.util.function.LongSupplier;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Evaluator for property comparison conditions
+ * Evaluator for property comparison conditions. The comparison itself is implemented by {@link CompiledPropertyCondition}, which is
+ * reused as is when conditions are compiled.
  */
-public class PropertyConditionEvaluator implements ConditionEvaluator {
+public class PropertyConditionEvaluator implements CompilableConditionEvaluator {
 
     private static final Logger logger = LoggerFactory.getLogger(PropertyConditionEvaluator.class.getName());
 
-    private static final SimpleDateFormat yearMonthDayDateFormat = new SimpleDateFormat("yyyyMMdd");
+    private static final String[] NO_FAST_PATH = new String[0];
 
-    private Map<String, Map<String, ExpressionAccessor>> expressionCache = new HashMap<>(64);
+    private static final int MAX_CACHED_CONDITIONS = 1000;
 
-    private int compare(Object actualValue, String expectedValue, Object expectedValueDate, Object expectedValueInteger, Object expectedValueDateExpr) {
-        if (expectedValue == null && expectedValueDate == null && expectedValueInteger == null && getDate(expectedValueDateExpr) == null) {
-            return actualValue == null ? 0 : 1;
-        } else if (actualValue == null) {
-            return -1;
-        }
+    private final ConcurrentMap<String, ConcurrentMap<String, ExpressionAccessor>> expressionCache = new ConcurrentHashMap<>(64);
 
-        if (expectedValueInteger != null) {
-            return PropertyHelper.getInteger(actualValue).compareTo(PropertyHelper.getInteger(expectedValueInteger));
-        } else if (expectedValueDate != null) {
-            return getDate(actualValue).compareTo(getDate(expectedValueDate));
-        } else if (expectedValueDateExpr != null) {
-            return getDate(actualValue).compareTo(getDate(expectedValueDateExpr));
-        } else {
-            return actualValue.toString().compareTo(expectedValue);
-        }
-    }
+    private final ConcurrentMap<String, String[]> fastPaths = new ConcurrentHashMap<>(64);
 
-    private boolean compareMultivalue(Object actualValue, List<?> expectedValues, List<?> expectedValuesDate, List<?> expectedValuesNumber, List<?> expectedValuesDateExpr, String op) {
-        @SuppressWarnings("unchecked")
-        List<?> expected = ObjectUtils.firstNonNull(expectedValues, expectedValuesDate, expectedValuesNumber);
-        if (actualValue == null) {
-            return expected == null;
-        } else if (expected == null) {
-            return false;
-        }
+    private final ConcurrentMap<String, StringPatternIndex> stringPatternIndexes = new ConcurrentHashMap<>();
 
-        List<Object> actual = ConditionContextHelper.foldToASCII(getValueSet(actualValue));
+    private final ThreadLocal<OgnlContext> ognlContexts = new ThreadLocal<OgnlContext>() {
+        @Override
+        protected OgnlContext initialValue() {
+            return (OgnlContext) Ognl.createDefaultContext(null);
+        }
+    };
 
-        boolean result = true;
+    /**
+     * The conditions evaluated without being compiled first, with their prepared operands. Structurally identical conditions share the
+     * same operands, and the cache is cleared once full so that conditions that are not evaluated anymore do not stay in it.
+     */
+    private final ConcurrentMap<Condition, CompiledPropertyCondition> preparedConditions = new ConcurrentHashMap<>(64);
 
-        switch (op) {
-            case "in":
-                result = false;
-                for (Object a : actual) {
-                    if (expected.contains(a)) {
-                        result = true;
-                        break;
-                    }
-                }
-                break;
-            case "inContains":
-                result = false;
-                for (Object a : actual) {
-                    for (Object b : expected)
-                        if (((String) a).contains((String) b)) {
-                            result = true;
-                            break;
-                        }
-                }
-                break;
-            case "notIn":
-                for (Object a : actual) {
-                    if (expected.contains(a)) {
-                        result = false;
-                        break;
-                    }
-                }
-                break;
-            case "all":
-                for (Object e : expected) {
-                    if (!actual.contains(e)) {
-                        result = false;
-                        break;
-                    }
-                }
-                break;
-            case "hasNoneOf":
-                if (!Collections.disjoint(actual, expected)) {
-                    return false;
-                }
-                break;
-            case "hasSomeOf":
-                if (Collections.disjoint(actual, expected)) {
-                    return false;
-                }
-                break;
-
-            default:
-                throw new IllegalArgumentException("Unknown comparison operator " + op);
+    @Override
+    public boolean eval(Condition condition, Item item, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
+        if (dispatcher.isContextualCondition(condition)) {
+            // conditions rebuilt from contextual parameters are only used once, their patterns are not indexed
+            return new CompiledPropertyCondition(this, condition, false).eval(item);
         }
-
-        return result;
+        CompiledPropertyCondition compiledCondition = preparedConditions.get(condition);
+        if (compiledCondition == null) {
+            compiledCondition = new CompiledPropertyCondition(this, condition, false);
+            if (preparedConditions.size() >= MAX_CACHED_CONDITIONS) {
+                preparedConditions.clear();
+            }
+            preparedConditions.put(condition, compiledCondition);
+        }
+        return compiledCondition.eval(item);
     }
 
     @Override
-    public boolean eval(Condition condition, Item item, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
-        String op = (String) condition.getParameter("comparisonOperator");
-        String name = (String) condition.getParameter("propertyName");
+    public CompiledCondition compile(Condition condition, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
+        return new CompiledPropertyCondition(this, condition, true);
+    }
 
-        String expectedValue = ConditionContextHelper.foldToASCII((String) condition.getParameter("propertyValue"));
-        Object expectedValueInteger = condition.getParameter("propertyValueInteger");
-        Object expectedValueDate = condition.getParameter("propertyValueDate");
-        Object expectedValueDateExpr = condition.getParameter("propertyValueDateExpr");
+    StringPatternIndex getStringPatternIndex(String propertyName) {
+        StringPatternIndex index = stringPatternIndexes.get(propertyName);
+        if (index == null) {
+            index = new StringPatternIndex(propertyName);
+            StringPatternIndex previousIndex = stringPatternIndexes.putIfAbsent(propertyName, index);
+            if (previousIndex != null) {
+                index = previousIndex;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Retrieves the string patterns matched by the folded value of a property. The property is resolved and matched against all the
+     * patterns of the index once per item in the current evaluation scope, typically once per event for all the rules.
+     *
+     * @return the matched patterns, or {@code null} if no evaluation scope is opened
+     */
+    StringPatternMatcher.Matches getStringPatternMatches(Item item, StringPatternIndex index) {
+        ConditionEvaluationScope scope = ConditionEvaluationScope.current();
+        if (scope == null) {
+            return null;
+        }
+        StringPatternMatcher.Matches matches = (StringPatternMatcher.Matches) scope.getValue(index, item);
+        if (matches == null) {
+            Object actualValue = getPropertyValue(item, index.getPropertyName());
+            if (actualValue instanceof String) {
+                actualValue = ConditionContextHelper.foldToASCII((String) actualValue);
+            }
+            matches = actualValue != null ? index.getMatcher().match(actualValue.toString()) : StringPatternMatcher.Matches.MISSING;
+            scope.putValue(index, item, matches);
+        }
+        return matches;
+    }
 
-        Object actualValue;
+    Object getPropertyValue(Item item, String name) {
         if (item instanceof Event && "eventType".equals(name)) {
-            actualValue = ((Event) item).getEventType();
-        } else {
-            try {
-                long time = System.nanoTime();
-                //actualValue = beanUtilsBean.getPropertyUtils().getProperty(item, name);
-                actualValue = getPropertyValue(item, name);
-                time = System.nanoTime() - time;
-                if (time > 5000000L) {
-                    logger.info("eval took {} ms for {} {}", time / 1000000L, item.getClass().getName(), name);
-                }
-            } catch (NullPointerException e) {
-                // property not found
-                actualValue = null;
-            } catch (Exception e) {
-                if (!(e instanceof OgnlException)
-                        || (!StringUtils.startsWith(e.getMessage(),
-                        "source is null for getProperty(null"))) {
-                    logger.warn("Error evaluating value for " + item.getClass().getName() + " " + name, e);
+            return ((Event) item).getEventType();
+        }
+        String[] fastPath = getFastPath(name);
+        if (fastPath != NO_FAST_PATH) {
+            Object root = getFastPathRoot(item, fastPath[0]);
+            if (root != null) {
+                Object value = getFastPathValue(root, fastPath);
+                if (value != NO_FAST_PATH) {
+                    PropertyAccessorStatistics.recordFastPath();
+                    return value;
                 }
-                actualValue = null;
             }
         }
-        if (actualValue instanceof String) {
-            actualValue = ConditionContextHelper.foldToASCII((String) actualValue);
+        try {
+            long time = System.nanoTime();
+            //actualValue = beanUtilsBean.getPropertyUtils().getProperty(item, name);
+            Object actualValue = getOGNLPropertyValue(item, name);
+            time = System.nanoTime() - time;
+            if (time > 5000000L) {
+                logger.info("eval took {} ms for {} {}", time / 1000000L, item.getClass().getName(), name);
+            }
+            return actualValue;
+        } catch (NullPointerException e) {
+            // property not found
+            return null;
+        } catch (Exception e) {
+            if (!(e instanceof OgnlException)
+                    || (!StringUtils.startsWith(e.getMessage(),
+                    "source is null for getProperty(null"))) {
+                logger.warn("Error evaluating value for " + item.getClass().getName() + " " + name, e);
+            }
+            return null;
         }
+    }
 
-        if (op == null) {
-            return false;
-        } else if (actualValue == null) {
-            return op.equals("missing");
-        } else if (op.equals("exists")) {
-            return true;
-        } else if (op.equals("equals")) {
-            if (actualValue instanceof Collection) {
-                for (Object o : ((Collection<?>) actualValue)) {
-                    if (o instanceof String) {
-                        o = ConditionContextHelper.foldToASCII((String) o);
-                    }
-                    if (compare(o, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) == 0) {
-                        return true;
+    /**
+     * Splits the property names that can be resolved without OGNL: {@code segments}, and {@code properties.} or
+     * {@code systemProperties.} followed by plain identifiers.
+     */
+    private String[] getFastPath(String name) {
+        String[] fastPath = fastPaths.get(name);
+        if (fastPath == null) {
+            fastPath = NO_FAST_PATH;
+            String[] segments = StringUtils.splitPreserveAllTokens(name, '.');
+            if (name.equals("segments")
+                    || (segments.length > 1 && (segments[0].equals("properties") || segments[0].equals("systemProperties")))) {
+                fastPath = segments;
+                for (int i = 1; i < segments.length; i++) {
+                    if (!isMapKey(segments[i])) {
+                        fastPath = NO_FAST_PATH;
+                        break;
                     }
                 }
+            }
+            fastPaths.put(name, fastPath);
+        }
+        return fastPath;
+    }
+
+    private boolean isMapKey(String segment) {
+        // these names are not resolved as keys by the OGNL map accessor
+        if (segment.equals("size") || segment.equals("keys") || segment.equals("keySet") || segment.equals("values") || segment.equals("isEmpty")) {
+            return false;
+        }
+        if (segment.isEmpty() || !Character.isJavaIdentifierStart(segment.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < segment.length(); i++) {
+            if (!Character.isJavaIdentifierPart(segment.charAt(i))) {
                 return false;
             }
-            return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) == 0;
-        } else if (op.equals("notEquals")) {
-            return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) != 0;
-        } else if (op.equals("greaterThan")) {
-            return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) > 0;
-        } else if (op.equals("greaterThanOrEqualTo")) {
-            return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) >= 0;
-        } else if (op.equals("lessThan")) {
-            return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) < 0;
-        } else if (op.equals("lessThanOrEqualTo")) {
-            return compare(actualValue, expectedValue, expectedValueDate, expectedValueInteger, expectedValueDateExpr) <= 0;
-        } else if (op.equals("between")) {
-            List<?> expectedValuesInteger = (List<?>) condition.getParameter("propertyValuesInteger");
-            List<?> expectedValuesDate = (List<?>) condition.getParameter("propertyValuesDate");
-            List<?> expectedValuesDateExpr = (List<?>) condition.getParameter("propertyValuesDateExpr");
-            return compare(actualValue, null,
-                    (expectedValuesDate != null && expectedValuesDate.size() >= 1) ? getDate(expectedValuesDate.get(0)) : null,
-                    (expectedValuesInteger != null && expectedValuesInteger.size() >= 1) ? (Integer) expectedValuesInteger.get(0) : null,
-                    (expectedValuesDateExpr != null && expectedValuesDateExpr.size() >= 1) ? (String) expectedValuesDateExpr.get(0) : null) >= 0
-                    &&
-                    compare(actualValue, null,
-                            (expectedValuesDate != null && expectedValuesDate.size() >= 2) ? getDate(expectedValuesDate.get(1)) : null,
-                            (expectedValuesInteger != null && expectedValuesInteger.size() >= 2) ? (Integer) expectedValuesInteger.get(1) : null,
-                            (expectedValuesDateExpr != null && expectedValuesDateExpr.size() >= 2) ? (String) expectedValuesDateExpr.get(1) : null) <= 0;
-        } else if (op.equals("contains")) {
-            return actualValue.toString().contains(expectedValue);
-        } else if (op.equals("notContains")) {
-            return !actualValue.toString().contains(expectedValue);
-        } else if (op.equals("startsWith")) {
-            return actualValue.toString().startsWith(expectedValue);
-        } else if (op.equals("endsWith")) {
-            return actualValue.toString().endsWith(expectedValue);
-        } else if (op.equals("matchesRegex")) {
-            return expectedValue != null && Pattern.compile(expectedValue).matcher(actualValue.toString()).matches();
-        } else if (op.equals("in") || op.equals("inContains") || op.equals("notIn") || op.equals("hasSomeOf") || op.equals("hasNoneOf") || op.equals("all")) {
-            List<?> expectedValues = ConditionContextHelper.foldToASCII((List<?>) condition.getParameter("propertyValues"));
-            List<?> expectedValuesInteger = (List<?>) condition.getParameter("propertyValuesInteger");
-            List<?> expectedValuesDate = (List<?>) condition.getParameter("propertyValuesDate");
-            List<?> expectedValuesDateExpr = (List<?>) condition.getParameter("propertyValuesDateExpr");
+        }
+        return true;
+    }
 
-            return compareMultivalue(actualValue, expectedValues, expectedValuesDate, expectedValuesInteger, expectedValuesDateExpr, op);
-        } else if (op.equals("isDay") && expectedValueDate != null) {
-            return yearMonthDayDateFormat.format(getDate(actualValue)).equals(yearMonthDayDateFormat.format(getDate(expectedValueDate)));
-        } else if (op.equals("isNotDay") && expectedValueDate != null) {
-            return !yearMonthDayDateFormat.format(getDate(actualValue)).equals(yearMonthDayDateFormat.format(getDate(expectedValueDate)));
+    /**
+     * Retrieves the value of the first segment of a fast path, or {@code null} if it has to be resolved by OGNL.
+     */
+    private Object getFastPathRoot(Item item, String segment) {
+        Object root = null;
+        if (item instanceof Profile) {
+            Profile profile = (Profile) item;
+            root = segment.equals("properties") ? profile.getProperties() : segment.equals("systemProperties") ? profile.getSystemProperties() : profile.getSegments();
+        } else if (item instanceof Session) {
+            Session session = (Session) item;
+            root = segment.equals("properties") ? session.getProperties() : segment.equals("systemProperties") ? session.getSystemProperties() : null;
+        } else if (item instanceof Event) {
+            root = segment.equals("properties") ? ((Event) item).getProperties() : null;
         }
+        return root;
+    }
 
-        return false;
+    /**
+     * Walks the map segments of a fast path, returning {@link #NO_FAST_PATH} if an intermediate value is not a map and the property
+     * has to be resolved by OGNL.
+     */
+    private Object getFastPathValue(Object root, String[] fastPath) {
+        Object value = root;
+        for (int i = 1; i < fastPath.length; i++) {
+            if (value == null) {
+                // OGNL fails on a missing intermediate value, which is reported as a missing property
+                return null;
+            }
+            if (!(value instanceof Map)) {
+                return NO_FAST_PATH;
+            }
+            value = ((Map<?, ?>) value).get(fastPath[i]);
+        }
+        return value;
     }
 
-    private Object getPropertyValue(Item item, String expression) throws Exception {
+    private Object getOGNLPropertyValue(Item item, String expression) throws Exception {
         ExpressionAccessor accessor = getPropertyAccessor(item, expression);
-        return accessor != null ? accessor.get((OgnlContext) Ognl.createDefaultContext(null), item) : null;
+        if (accessor == null) {
+            return null;
+        }
+        OgnlContext ognlContext = ognlContexts.get();
+        try {
+            return accessor.get(ognlContext, item);
+        } finally {
+            ognlContext.clear();
+        }
     }
 
     private ExpressionAccessor getPropertyAccessor(Item item, String expression) throws Exception {
-        ExpressionAccessor accessor = null;
         String clazz = item.getClass().getName();
-        Map<String, ExpressionAccessor> expressions = expressionCache.get(clazz);
+        ConcurrentMap<String, ExpressionAccessor> expressions = expressionCache.get(clazz);
         if (expressions == null) {
-            expressions = new HashMap<>();
-            expressionCache.put(clazz, expressions);
-        } else {
-            accessor = expressions.get(expression);
+            expressions = new ConcurrentHashMap<>();
+            ConcurrentMap<String, ExpressionAccessor> previousExpressions = expressionCache.putIfAbsent(clazz, expressions);
+            if (previousExpressions != null) {
+                expressions = previousExpressions;
+            }
         }
+        ExpressionAccessor accessor = expressions.get(expression);
         if (accessor == null) {
             long time = System.nanoTime();
             Thread current = Thread.currentThread();
@@ -270,47 +277,22 @@ public class PropertyConditionEvaluator implements ConditionEvaluator {
             } finally {
                 current.setContextClassLoader(contextCL);
             }
+            time = System.nanoTime() - time;
+            PropertyAccessorStatistics.recordCompilation(time, accessor != null);
             if (accessor != null) {
-                expressions.put(expression, accessor);
+                // another thread may have compiled the same expression concurrently, keep the first accessor
+                ExpressionAccessor previousAccessor = expressions.putIfAbsent(expression, accessor);
+                if (previousAccessor != null) {
+                    accessor = previousAccessor;
+                } else {
+                    PropertyAccessorStatistics.recordCachedAccessor();
+                }
             } else {
                 logger.warn("Unable to compile expression for {} and {}", clazz, expression);
             }
-            time = System.nanoTime() - time;
             logger.info("Expression compilation for {} took {}", expression, time / 1000000L);
         }
 
         return accessor;
     }
-
-    private Date getDate(Object value) {
-        if (value == null) {
-            return null;
-        }
-        if (value instanceof Date) {
-            return ((Date) value);
-        } else {
-            DateMathParser parser = new DateMathParser(DateFieldMapper.DEFAULT_DATE_TIME_FORMATTER);
-            try {
-                return new Date(parser.parse(value.toString(), new LongSupplier() {
-                    public long getAsLong() {
-                        return System.currentTimeMillis();
-                    }
-                }));
-            } catch (ElasticsearchParseException e) {
-                logger.warn("unable to parse date " + value.toString(), e);
-            }
-        }
-        return null;
-    }
-
-    @SuppressWarnings("unchecked")
-    private List<Object> getValueSet(Object expectedValue) {
-        if (expectedValue instanceof List) {
-            return (List<Object>) expectedValue;
-        } else if (expectedValue instanceof Collection) {
-            return new ArrayList<Object>((Collection<?>) expectedValue);
-        } else {
-            return Collections.singletonList(expectedValue);
-        }
-    }
 }
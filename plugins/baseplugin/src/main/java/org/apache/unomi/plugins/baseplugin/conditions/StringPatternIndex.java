@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.plugins.baseplugin.conditions;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code contains}, {@code startsWith} and {@code endsWith} patterns of the compiled property conditions on a property. Patterns
+ * are registered when conditions are compiled, which happens when rules and segments are loaded, and stay in the index as long as a
+ * compiled condition uses them: once the rules and segments using a pattern are replaced or removed, the pattern is dropped. The
+ * {@link StringPatternMatcher} is rebuilt lazily, from the patterns still in use, on the first match following a change.
+ */
+class StringPatternIndex {
+
+    enum Kind {
+        CONTAINS, STARTS_WITH, ENDS_WITH
+    }
+
+    /**
+     * A registered pattern, referenced by the compiled conditions using it.
+     */
+    static final class Pattern {
+        private final Kind kind;
+        private final String value;
+
+        private Pattern(Kind kind, String value) {
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Beyond this number of distinct patterns per kind, conditions are evaluated on their own.
+     */
+    private static final int MAX_PATTERNS = 10000;
+
+    private final String propertyName;
+
+    private final Map<Kind, Map<String, Registration>> registrations = new EnumMap<>(Kind.class);
+
+    private final ReferenceQueue<Pattern> unusedPatterns = new ReferenceQueue<>();
+
+    private volatile StringPatternMatcher matcher;
+
+    StringPatternIndex(String propertyName) {
+        this.propertyName = propertyName;
+        for (Kind kind : Kind.values()) {
+            registrations.put(kind, new HashMap<String, Registration>());
+        }
+    }
+
+    String getPropertyName() {
+        return propertyName;
+    }
+
+    /**
+     * Registers a pattern. The pattern stays registered as long as the returned object is referenced.
+     *
+     * @param kind  the kind of matching
+     * @param value the folded pattern
+     * @return the registered pattern, or {@code null} if the index is full
+     */
+    synchronized Pattern register(Kind kind, String value) {
+        expungeUnusedPatterns();
+        Map<String, Registration> kindRegistrations = registrations.get(kind);
+        Registration registration = kindRegistrations.get(value);
+        Pattern pattern = registration != null ? registration.get() : null;
+        if (pattern == null) {
+            if (kindRegistrations.size() >= MAX_PATTERNS) {
+                return null;
+            }
+            pattern = new Pattern(kind, value);
+            kindRegistrations.put(value, new Registration(pattern, unusedPatterns));
+            matcher = null;
+        }
+        return pattern;
+    }
+
+    StringPatternMatcher getMatcher() {
+        StringPatternMatcher m = matcher;
+        Reference<? extends Pattern> unusedPattern = unusedPatterns.poll();
+        if (m == null || unusedPattern != null) {
+            synchronized (this) {
+                if (unusedPattern != null) {
+                    unregister((Registration) unusedPattern);
+                }
+                expungeUnusedPatterns();
+                m = matcher;
+                if (m == null) {
+                    m = new StringPatternMatcher(getPatterns(Kind.CONTAINS), getPatterns(Kind.STARTS_WITH), getPatterns(Kind.ENDS_WITH));
+                    matcher = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    private List<String> getPatterns(Kind kind) {
+        List<String> patterns = new ArrayList<>();
+        for (Registration registration : registrations.get(kind).values()) {
+            if (registration.get() != null) {
+                patterns.add(registration.value);
+            }
+        }
+        return patterns;
+    }
+
+    private void expungeUnusedPatterns() {
+        Reference<? extends Pattern> unusedPattern;
+        while ((unusedPattern = unusedPatterns.poll()) != null) {
+            unregister((Registration) unusedPattern);
+        }
+    }
+
+    private void unregister(Registration registration) {
+        Map<String, Registration> kindRegistrations = registrations.get(registration.kind);
+        // the pattern may have been registered again since
+        if (kindRegistrations.get(registration.value) == registration) {
+            kindRegistrations.remove(registration.value);
+            matcher = null;
+        }
+    }
+
+    private static final class Registration extends WeakReference<Pattern> {
+        private final Kind kind;
+        private final String value;
+
+        Registration(Pattern pattern, ReferenceQueue<Pattern> queue) {
+            super(pattern, queue);
+            this.kind = pattern.kind;
+            this.value = pattern.value;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.plugins.baseplugin.conditions;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches a text against many patterns in a single pass: an Aho-Corasick automaton finds all the patterns contained in the text, and
+ * tries find all the patterns the text starts or ends with. Patterns are numbered by their position in the lists the matcher is built
+ * from.
+ */
+class StringPatternMatcher {
+
+    private static final int[] NO_OUTPUTS = new int[0];
+
+    private final Node containsRoot;
+    private final Node prefixRoot;
+    private final Node suffixRoot;
+
+    private final Map<String, Integer> containsIds;
+    private final Map<String, Integer> prefixIds;
+    private final Map<String, Integer> suffixIds;
+
+    StringPatternMatcher(List<String> containsPatterns, List<String> prefixPatterns, List<String> suffixPatterns) {
+        this.containsRoot = buildTrie(containsPatterns, false);
+        buildFailureLinks(containsRoot);
+        this.prefixRoot = buildTrie(prefixPatterns, false);
+        this.suffixRoot = buildTrie(suffixPatterns, true);
+        this.containsIds = getIds(containsPatterns);
+        this.prefixIds = getIds(prefixPatterns);
+        this.suffixIds = getIds(suffixPatterns);
+    }
+
+    private static Map<String, Integer> getIds(List<String> patterns) {
+        Map<String, Integer> ids = new HashMap<>(patterns.size() * 2);
+        for (int id = 0; id < patterns.size(); id++) {
+            ids.put(patterns.get(id), id);
+        }
+        return ids;
+    }
+
+    /**
+     * Finds all the patterns matching the specified text.
+     *
+     * @param text the text to match
+     * @return the matching patterns
+     */
+    Matches match(String text) {
+        BitSet contains = new BitSet(containsIds.size());
+        Node state = containsRoot;
+        setAll(contains, state.outputs);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            Node next = state.getChild(c);
+            while (next == null && state != containsRoot) {
+                state = state.failure;
+                next = state.getChild(c);
+            }
+            state = next != null ? next : containsRoot;
+            setAll(contains, state.outputs);
+        }
+
+        BitSet prefixes = new BitSet(prefixIds.size());
+        Node node = prefixRoot;
+        setAll(prefixes, node.outputs);
+        for (int i = 0; i < text.length() && (node = node.getChild(text.charAt(i))) != null; i++) {
+            setAll(prefixes, node.outputs);
+        }
+
+        BitSet suffixes = new BitSet(suffixIds.size());
+        node = suffixRoot;
+        setAll(suffixes, node.outputs);
+        for (int i = text.length() - 1; i >= 0 && (node = node.getChild(text.charAt(i))) != null; i--) {
+            setAll(suffixes, node.outputs);
+        }
+
+        return new Matches(text, contains, containsIds, prefixes, prefixIds, suffixes, suffixIds);
+    }
+
+    private static void setAll(BitSet bits, int[] outputs) {
+        for (int output : outputs) {
+            bits.set(output);
+        }
+    }
+
+    private static Node buildTrie(List<String> patterns, boolean reversed) {
+        Node root = new Node();
+        for (int id = 0; id < patterns.size(); id++) {
+            String pattern = patterns.get(id);
+            Node node = root;
+            for (int i = 0; i < pattern.length(); i++) {
+                node = node.getOrAddChild(pattern.charAt(reversed ? pattern.length() - 1 - i : i));
+            }
+            node.outputs = append(node.outputs, id);
+        }
+        return root;
+    }
+
+    /**
+     * Computes the failure links of the automaton, breadth first, and merges into each node the outputs of the longest proper suffix
+     * of its path that is also in the trie.
+     */
+    private static void buildFailureLinks(Node root) {
+        Deque<Node> queue = new ArrayDeque<>();
+        root.failure = root;
+        for (Node child : root.children) {
+            child.failure = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (int i = 0; i < node.labels.length; i++) {
+                char c = node.labels[i];
+                Node child = node.children[i];
+                Node failure = node.failure;
+                Node target = failure.getChild(c);
+                while (target == null && failure != root) {
+                    failure = failure.failure;
+                    target = failure.getChild(c);
+                }
+                child.failure = target != null ? target : root;
+                if (child.failure.outputs.length > 0) {
+                    int[] outputs = Arrays.copyOf(child.outputs, child.outputs.length + child.failure.outputs.length);
+                    System.arraycopy(child.failure.outputs, 0, outputs, child.outputs.length, child.failure.outputs.length);
+                    child.outputs = outputs;
+                }
+                queue.add(child);
+            }
+        }
+    }
+
+    private static int[] append(int[] values, int value) {
+        int[] result = Arrays.copyOf(values, values.length + 1);
+        result[values.length] = value;
+        return result;
+    }
+
+    private static class Node {
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+        private Node failure;
+        private int[] outputs = NO_OUTPUTS;
+
+        Node getChild(char c) {
+            int index = Arrays.binarySearch(labels, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node getOrAddChild(char c) {
+            int index = Arrays.binarySearch(labels, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertion = -index - 1;
+            Node child = new Node();
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, insertion);
+            System.arraycopy(children, 0, newChildren, 0, insertion);
+            newLabels[insertion] = c;
+            newChildren[insertion] = child;
+            System.arraycopy(labels, insertion, newLabels, insertion + 1, labels.length - insertion);
+            System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    /**
+     * The patterns matched by a text. Patterns that were not registered when the matcher was built are matched directly against the text.
+     */
+    static class Matches {
+        /**
+         * The result of matching a missing property value.
+         */
+        static final Matches MISSING = new Matches(null, new BitSet(), Collections.<String, Integer>emptyMap(), new BitSet(),
+                Collections.<String, Integer>emptyMap(), new BitSet(), Collections.<String, Integer>emptyMap());
+
+        private final String text;
+        private final BitSet contains;
+        private final Map<String, Integer> containsIds;
+        private final BitSet prefixes;
+        private final Map<String, Integer> prefixIds;
+        private final BitSet suffixes;
+        private final Map<String, Integer> suffixIds;
+
+        Matches(String text, BitSet contains, Map<String, Integer> containsIds, BitSet prefixes, Map<String, Integer> prefixIds,
+                BitSet suffixes, Map<String, Integer> suffixIds) {
+            this.text = text;
+            this.contains = contains;
+            this.containsIds = containsIds;
+            this.prefixes = prefixes;
+            this.prefixIds = prefixIds;
+            this.suffixes = suffixes;
+            this.suffixIds = suffixIds;
+        }
+
+        boolean hasValue() {
+            return text != null;
+        }
+
+        boolean contains(String pattern) {
+            Integer id = containsIds.get(pattern);
+            return id != null ? contains.get(id) : text.contains(pattern);
+        }
+
+        boolean startsWith(String pattern) {
+            Integer id = prefixIds.get(pattern);
+            return id != null ? prefixes.get(id) : text.startsWith(pattern);
+        }
+
+        boolean endsWith(String pattern) {
+            Integer id = suffixIds.get(pattern);
+            return id != null ? suffixes.get(id) : text.endsWith(pattern);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.plugins.events.hover.conditions;
+
+import org.apache.unomi.api.CustomItem;
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionContextHelper;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluator;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
+
+import java.util.Map;
+
+/**
+ * Evaluator for hover event conditions, matching the same events as the hover event query builder without a round
+ * trip to Elasticsearch. The fields are indexed with the folding analyzer while the term queries are not analyzed, so
+ * the actual values are folded to lower case ASCII before being compared with the parameters as they are
+ */
+public class HoverEventConditionEvaluator implements ConditionEvaluator {
+
+    @Override
+    public boolean eval(Condition condition, Item item, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
+        if (!(item instanceof Event)) {
+            return false;
+        }
+        Event event = (Event) item;
+        if (!"hover".equals(ConditionContextHelper.foldToASCII(event.getEventType()))) {
+            return false;
+        }
+        Item target = event.getTarget();
+        if (target == null) {
+            return false;
+        }
+        String targetId = (String) condition.getParameter("targetId");
+        String targetPath = (String) condition.getParameter("targetPath");
+
+        if (targetId != null && targetId.trim().length() > 0) {
+            return targetId.equals(ConditionContextHelper.foldToASCII(target.getItemId()));
+        } else if (targetPath != null && targetPath.trim().length() > 0) {
+            Object pagePath = getPagePath(target);
+            return pagePath instanceof String && targetPath.equals(ConditionContextHelper.foldToASCII((String) pagePath));
+        } else {
+            return "".equals(target.getItemId());
+        }
+    }
+
+    private Object getPagePath(Item target) {
+        if (!(target instanceof CustomItem) || ((CustomItem) target).getProperties() == null) {
+            return null;
+        }
+        Object pageInfo = ((CustomItem) target).getProperties().get("pageInfo");
+        return pageInfo instanceof Map ? ((Map) pageInfo).get("pagePath") : null;
+    }
+}
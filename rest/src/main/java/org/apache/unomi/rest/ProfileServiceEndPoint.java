@@ -95,6 +95,17 @@ public class ProfileServiceEndPoint {
         return profileService.getAllProfilesCount();
     }
 
+    /**
+     * Retrieves the queue size, coalescing ratio and flush lag of the write-behind of profiles and sessions.
+     *
+     * @return a map of statistic names to values
+     */
+    @GET
+    @Path("/statistics/writeBehind")
+    public Map<String, Long> getWriteBehindStatistics() {
+        return profileService.getWriteBehindStatistics();
+    }
+
     /**
      * Retrieves profiles matching the specified query.
      *
@@ -20,6 +20,7 @@ package org.apache.unomi.rest;
 import org.apache.cxf.rs.security.cors.CrossOriginResourceSharing;
 import org.apache.unomi.api.Metadata;
 import org.apache.unomi.api.PartialList;
+import org.apache.unomi.api.TraceSpan;
 import org.apache.unomi.api.query.Query;
 import org.apache.unomi.api.rules.Rule;
 import org.apache.unomi.api.rules.RuleStatistics;
@@ -31,6 +32,7 @@ import javax.jws.WebMethod;
 import javax.jws.WebService;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -92,6 +94,96 @@ public class RulesServiceEndPoint {
         return rulesService.getAllRuleStatistics();
     }
 
+    /**
+     * Retrieves the size of each bucket of the index used to select candidate rules for incoming events.
+     *
+     * @return a map of {@code scope/eventType} bucket keys to the number of rules in the bucket
+     */
+    @GET
+    @Path("/statistics/index")
+    public Map<String,Integer> getRuleIndexStatistics() {
+        return rulesService.getRuleIndexStatistics();
+    }
+
+    /**
+     * Retrieves the latency percentiles of the conditions and actions of each rule, as measured on the node serving the request.
+     *
+     * @return a map of rule identifiers to the latency percentiles of the rule, in milliseconds
+     */
+    @GET
+    @Path("/statistics/latency")
+    public Map<String,Map<String,Double>> getRuleLatencyPercentiles() {
+        return rulesService.getRuleLatencyPercentiles();
+    }
+
+    /**
+     * Retrieves the hit and evaluation counters of the memoization of sub-conditions shared between rules and segments, and the
+     * compilation counters of property expressions.
+     *
+     * @return a map of counter names to counter values
+     */
+    @GET
+    @Path("/statistics/conditions")
+    public Map<String,Long> getConditionEvaluationStatistics() {
+        return rulesService.getConditionEvaluationStatistics();
+    }
+
+    /**
+     * Retrieves the statistics of the caches of compiled condition and action scripts.
+     *
+     * @return a map of cache names to cache statistics
+     */
+    @GET
+    @Path("/statistics/scripts")
+    public Map<String,Map<String,Long>> getScriptCacheStatistics() {
+        return rulesService.getScriptCacheStatistics();
+    }
+
+    /**
+     * Retrieves the slowest traced requests since startup, with the breakdown of the time spent in rules, conditions, actions and
+     * persistence calls.
+     *
+     * @return the root spans of the slowest traces, slowest first
+     */
+    @GET
+    @Path("/traces")
+    public List<TraceSpan> getSlowestTraces() {
+        return rulesService.getSlowestTraces();
+    }
+
+    /**
+     * Retrieves the queue depths, task counters and times of the stages processing the requests of the public servlets asynchronously.
+     *
+     * @return a map of stage names to stage statistics
+     */
+    @GET
+    @Path("/statistics/stages")
+    public Map<String,Map<String,Long>> getProcessingStageStatistics() {
+        return rulesService.getProcessingStageStatistics();
+    }
+
+    /**
+     * Retrieves the number of condition evaluations that fell back to Elasticsearch queries, by condition type.
+     *
+     * @return a map of condition type identifiers to query counts
+     */
+    @GET
+    @Path("/statistics/fallbacks")
+    public Map<String,Long> getQueryFallbackStatistics() {
+        return rulesService.getQueryFallbackStatistics();
+    }
+
+    /**
+     * Retrieves the rules whose conditions cannot be fully evaluated in memory, along with the condition types that have no evaluator.
+     *
+     * @return a map of rule identifiers to condition type identifiers
+     */
+    @GET
+    @Path("/statistics/fallbackRules")
+    public Map<String,Set<String>> getRulesWithQueryFallback() {
+        return rulesService.getRulesWithQueryFallback();
+    }
+
     /**
      * Retrieves rule metadatas for rules matching the specified {@link Query}.
      *
@@ -0,0 +1,679 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.replay;
+
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.PartialList;
+import org.apache.unomi.api.TimestampedItem;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
+import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.PropertyPath;
+import org.apache.unomi.persistence.spi.aggregate.BaseAggregate;
+import org.apache.unomi.persistence.spi.aggregate.DateAggregate;
+import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link PersistenceService} keeping all items in memory, so that rules can be replayed without an Elasticsearch cluster.
+ *
+ * Conditions are evaluated with the {@link ConditionEvaluatorDispatcher}, conditions whose type has no evaluator never match and are
+ * reported by {@link #getQueryFallbackStatistics()}, as they would require an Elasticsearch query. Loaded items are the stored instances
+ * and not copies, updates with scripts are not supported, and only terms and fixed interval date aggregations are implemented.
+ */
+public class InMemoryPersistenceService implements PersistenceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryPersistenceService.class.getName());
+
+    private final ConditionEvaluatorDispatcher conditionEvaluatorDispatcher;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Item>> itemsByType = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Iterator<? extends Item>> scrolls = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Condition> queries = new ConcurrentHashMap<>();
+
+    public InMemoryPersistenceService(ConditionEvaluatorDispatcher conditionEvaluatorDispatcher) {
+        this.conditionEvaluatorDispatcher = conditionEvaluatorDispatcher;
+    }
+
+    @Override
+    public <T extends Item> List<T> getAllItems(Class<T> clazz) {
+        return getAllItems(clazz, 0, -1, null).getList();
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> getAllItems(Class<T> clazz, int offset, int size, String sortBy) {
+        return query((Condition) null, sortBy, clazz, offset, size);
+    }
+
+    @Override
+    public boolean save(Item item) {
+        getItems(item.getItemType()).put(item.getItemId(), item);
+        return true;
+    }
+
+    @Override
+    public boolean save(Item item, boolean useBatching) {
+        return save(item);
+    }
+
+    @Override
+    public <T extends Item> List<T> save(List<T> items) {
+        for (T item : items) {
+            save(item);
+        }
+        return new ArrayList<>();
+    }
+
+    @Override
+    public boolean update(String itemId, Date dateHint, Class<?> clazz, Map<?, ?> source) {
+        Item item = getItems(getItemType(clazz)).get(itemId);
+        if (item == null) {
+            return false;
+        }
+        try {
+            for (Map.Entry<?, ?> entry : source.entrySet()) {
+                PropertyPath.setProperty(item, entry.getKey().toString(), entry.getValue());
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("Cannot update item " + itemId, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean update(String itemId, Date dateHint, Class<?> clazz, String propertyName, Object propertyValue) {
+        return update(itemId, dateHint, clazz, Collections.singletonMap(propertyName, propertyValue));
+    }
+
+    @Override
+    public boolean updateWithScript(String itemId, Date dateHint, Class<?> clazz, String script, Map<String, Object> scriptParams) {
+        logger.warn("Updates with scripts are not supported, item {} is not updated", itemId);
+        return false;
+    }
+
+    @Override
+    public boolean updateWithQueryAndScript(Date dateHint, Class<?> clazz, String[] scripts, Map<String, Object>[] scriptParams, Condition[] conditions) {
+        logger.warn("Updates with scripts are not supported, {} items are not updated", getItemType(clazz));
+        return false;
+    }
+
+    @Override
+    public <T extends Item> T load(String itemId, Class<T> clazz) {
+        Item item = getItems(getItemType(clazz)).get(itemId);
+        return clazz.isInstance(item) ? clazz.cast(item) : null;
+    }
+
+    @Override
+    public <T extends Item> T load(String itemId, Date dateHint, Class<T> clazz) {
+        return load(itemId, clazz);
+    }
+
+    @Override
+    public <T extends Item> boolean remove(String itemId, Class<T> clazz) {
+        return getItems(getItemType(clazz)).remove(itemId) != null;
+    }
+
+    @Override
+    public <T extends Item> boolean removeByQuery(Condition query, Class<T> clazz) {
+        for (T item : query(query, null, clazz)) {
+            remove(item.getItemId(), clazz);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean saveQuery(String queryName, Condition query) {
+        queries.put(queryName, query);
+        return true;
+    }
+
+    @Override
+    public boolean removeQuery(String queryName) {
+        return queries.remove(queryName) != null;
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> getPropertiesMapping(String itemType) {
+        return new HashMap<>();
+    }
+
+    @Override
+    public Map<String, Object> getPropertyMapping(String property, String itemType) {
+        return null;
+    }
+
+    @Override
+    public void createMapping(String type, String source) {
+    }
+
+    @Override
+    public boolean testMatch(Condition query, Item item) {
+        try {
+            return conditionEvaluatorDispatcher.eval(query, item);
+        } catch (UnsupportedOperationException e) {
+            // counted by the dispatcher as a query fallback
+            logger.debug("Eval not supported, condition does not match", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void compileCondition(Condition condition) {
+        if (condition != null) {
+            conditionEvaluatorDispatcher.compile(condition);
+        }
+    }
+
+    @Override
+    public Set<String> getConditionTypesWithoutEvaluator(Condition condition) {
+        return conditionEvaluatorDispatcher.getConditionTypesWithoutEvaluator(condition);
+    }
+
+    @Override
+    public Map<String, Long> getQueryFallbackStatistics() {
+        return conditionEvaluatorDispatcher.getQueryFallbackStatistics();
+    }
+
+    @Override
+    public <T extends Item> List<T> query(String fieldName, String fieldValue, String sortBy, Class<T> clazz) {
+        return query(fieldName, new String[]{fieldValue}, sortBy, clazz);
+    }
+
+    @Override
+    public <T extends Item> List<T> query(String fieldName, String[] fieldValues, String sortBy, Class<T> clazz) {
+        List<T> results = new ArrayList<>();
+        for (T item : getItems(clazz)) {
+            for (String fieldValue : fieldValues) {
+                if (hasValue(getValue(item, fieldName), fieldValue)) {
+                    results.add(item);
+                    break;
+                }
+            }
+        }
+        return sortAndPage(results, sortBy, 0, -1).getList();
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> query(String fieldName, String fieldValue, String sortBy, Class<T> clazz, int offset, int size) {
+        return sortAndPage(query(fieldName, fieldValue, null, clazz), sortBy, offset, size);
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> queryFullText(String fieldName, String fieldValue, String fulltext, String sortBy, Class<T> clazz, int offset, int size) {
+        return sortAndPage(filterFullText(query(fieldName, fieldValue, null, clazz), fulltext), sortBy, offset, size);
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> queryFullText(String fulltext, String sortBy, Class<T> clazz, int offset, int size) {
+        return sortAndPage(filterFullText(getItems(clazz), fulltext), sortBy, offset, size);
+    }
+
+    @Override
+    public <T extends Item> List<T> query(Condition query, String sortBy, Class<T> clazz) {
+        return query(query, sortBy, clazz, 0, -1).getList();
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> query(Condition query, String sortBy, Class<T> clazz, int offset, int size) {
+        return sortAndPage(filter(getItems(clazz), query), sortBy, offset, size);
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> query(Condition query, String sortBy, Class<T> clazz, int offset, int size, String scrollTimeValidity) {
+        if (scrollTimeValidity == null) {
+            return query(query, sortBy, clazz, offset, size);
+        }
+        List<T> results = sortAndPage(filter(getItems(clazz), query), sortBy, 0, -1).getList();
+        String scrollIdentifier = UUID.randomUUID().toString();
+        scrolls.put(scrollIdentifier, results.iterator());
+        PartialList<T> page = nextScrollPage(clazz, scrollIdentifier, size);
+        page.setScrollTimeValidity(scrollTimeValidity);
+        return new PartialList<>(page.getList(), 0, page.getPageSize(), results.size());
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> continueScrollQuery(Class<T> clazz, String scrollIdentifier, String scrollTimeValidity) {
+        PartialList<T> page = nextScrollPage(clazz, scrollIdentifier, 100);
+        page.setScrollTimeValidity(scrollTimeValidity);
+        return page;
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> queryFullText(String fulltext, Condition query, String sortBy, Class<T> clazz, int offset, int size) {
+        return sortAndPage(filterFullText(filter(getItems(clazz), query), fulltext), sortBy, offset, size);
+    }
+
+    @Override
+    public long queryCount(Condition query, String itemType) {
+        return filter(getItems(itemType).values(), query).size();
+    }
+
+    @Override
+    public long getAllItemsCount(String itemType) {
+        return getItems(itemType).size();
+    }
+
+    @Override
+    public Map<String, Long> aggregateQuery(Condition filter, BaseAggregate aggregate, String itemType) {
+        Collection<Item> items = getItems(itemType).values();
+        List<Item> filteredItems = filter(items, filter);
+
+        Map<String, Long> results = new LinkedHashMap<>();
+        results.put("_all", (long) items.size());
+        if (filter != null) {
+            results.put("_filtered", (long) filteredItems.size());
+        }
+        if (aggregate == null) {
+            return results;
+        }
+
+        long intervalMillis = 0;
+        if (aggregate instanceof DateAggregate) {
+            intervalMillis = getIntervalMillis(((DateAggregate) aggregate).getInterval());
+            if (intervalMillis <= 0) {
+                logger.warn("Date aggregations with a {} interval are not supported", ((DateAggregate) aggregate).getInterval());
+                return results;
+            }
+        } else if (!(aggregate instanceof TermsAggregate)) {
+            logger.warn("{} aggregations are not supported", aggregate.getClass().getSimpleName());
+            return results;
+        }
+
+        Map<String, Long> buckets = new HashMap<>();
+        long missing = 0;
+        for (Item item : filteredItems) {
+            Object value = getValue(item, aggregate.getField());
+            if (value == null) {
+                missing++;
+            } else if (intervalMillis > 0) {
+                Date date = toDate(value);
+                if (date != null) {
+                    // buckets are aligned on UTC, as Elasticsearch does by default
+                    long bucket = Math.floorDiv(date.getTime(), intervalMillis) * intervalMillis;
+                    increment(buckets, Long.toString(bucket));
+                }
+            } else if (value instanceof Collection) {
+                for (Object o : (Collection<?>) value) {
+                    increment(buckets, String.valueOf(o));
+                }
+            } else {
+                increment(buckets, String.valueOf(value));
+            }
+        }
+        results.putAll(buckets);
+        if (missing > 0) {
+            results.put("_missing", missing);
+        }
+        return results;
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> aggregateQuery(Condition filter, BaseAggregate aggregate, BaseAggregate subAggregate, String itemType) {
+        Map<String, Map<String, Long>> results = new LinkedHashMap<>();
+        for (Item item : filter(getItems(itemType).values(), filter)) {
+            List<String> subKeys = getBucketKeys(item, subAggregate);
+            if (subKeys.isEmpty()) {
+                continue;
+            }
+            for (String key : getBucketKeys(item, aggregate)) {
+                Map<String, Long> subResults = results.get(key);
+                if (subResults == null) {
+                    subResults = new LinkedHashMap<>();
+                    results.put(key, subResults);
+                }
+                for (String subKey : subKeys) {
+                    increment(subResults, subKey);
+                }
+            }
+        }
+        return results;
+    }
+
+    private List<String> getBucketKeys(Item item, BaseAggregate aggregate) {
+        Object value = getValue(item, aggregate.getField());
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (aggregate instanceof DateAggregate) {
+            long intervalMillis = getIntervalMillis(((DateAggregate) aggregate).getInterval());
+            Date date = toDate(value);
+            if (intervalMillis <= 0 || date == null) {
+                return Collections.emptyList();
+            }
+            // buckets are aligned on UTC, as Elasticsearch does by default
+            return Collections.singletonList(Long.toString(Math.floorDiv(date.getTime(), intervalMillis) * intervalMillis));
+        } else if (value instanceof Collection) {
+            List<String> keys = new ArrayList<>();
+            for (Object o : (Collection<?>) value) {
+                keys.add(String.valueOf(o));
+            }
+            return keys;
+        }
+        return Collections.singletonList(String.valueOf(value));
+    }
+
+    @Override
+    public void refresh() {
+    }
+
+    @Override
+    public void purge(Date date) {
+        for (ConcurrentMap<String, Item> items : itemsByType.values()) {
+            for (Iterator<Item> iterator = items.values().iterator(); iterator.hasNext(); ) {
+                Item item = iterator.next();
+                if (item instanceof TimestampedItem && ((TimestampedItem) item).getTimeStamp() != null && ((TimestampedItem) item).getTimeStamp().before(date)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> rangeQuery(String s, String from, String to, String sortBy, Class<T> clazz, int offset, int size) {
+        List<T> results = new ArrayList<>();
+        for (T item : getItems(clazz)) {
+            Object value = getValue(item, s);
+            if (value != null && (from == null || compare(value, from) >= 0) && (to == null || compare(value, to) < 0)) {
+                results.add(item);
+            }
+        }
+        return sortAndPage(results, sortBy, offset, size);
+    }
+
+    @Override
+    public Map<String, Double> getSingleValuesMetrics(Condition condition, String[] metrics, String field, String type) {
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        Set<Object> distinctValues = new HashSet<>();
+        long count = 0;
+        for (Item item : filter(getItems(type).values(), condition)) {
+            Object value = getValue(item, field);
+            if (value == null) {
+                continue;
+            }
+            distinctValues.add(value);
+            if (value instanceof Number) {
+                double doubleValue = ((Number) value).doubleValue();
+                sum += doubleValue;
+                min = Math.min(min, doubleValue);
+                max = Math.max(max, doubleValue);
+                count++;
+            }
+        }
+        Map<String, Double> results = new HashMap<>();
+        for (String metric : metrics) {
+            switch (metric) {
+                case "sum":
+                    results.put("_sum", sum);
+                    break;
+                case "avg":
+                    results.put("_avg", count > 0 ? sum / count : Double.NaN);
+                    break;
+                case "min":
+                    results.put("_min", min);
+                    break;
+                case "max":
+                    results.put("_max", max);
+                    break;
+                case "card":
+                    results.put("_card", (double) distinctValues.size());
+                    break;
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public boolean createIndex(String indexName) {
+        return true;
+    }
+
+    @Override
+    public boolean removeIndex(String indexName) {
+        return true;
+    }
+
+    @Override
+    public void purge(String scope) {
+        for (ConcurrentMap<String, Item> items : itemsByType.values()) {
+            for (Iterator<Item> iterator = items.values().iterator(); iterator.hasNext(); ) {
+                if (scope.equals(iterator.next().getScope())) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the items of the specified type.
+     *
+     * @param itemType the type of the items to remove
+     */
+    public void removeAll(String itemType) {
+        getItems(itemType).clear();
+    }
+
+    private ConcurrentMap<String, Item> getItems(String itemType) {
+        ConcurrentMap<String, Item> items = itemsByType.get(itemType);
+        if (items == null) {
+            items = new ConcurrentHashMap<>();
+            ConcurrentMap<String, Item> previousItems = itemsByType.putIfAbsent(itemType, items);
+            if (previousItems != null) {
+                items = previousItems;
+            }
+        }
+        return items;
+    }
+
+    private <T extends Item> List<T> getItems(Class<T> clazz) {
+        List<T> items = new ArrayList<>();
+        for (Item item : getItems(getItemType(clazz)).values()) {
+            if (clazz.isInstance(item)) {
+                items.add(clazz.cast(item));
+            }
+        }
+        return items;
+    }
+
+    private <T extends Item> List<T> filter(Collection<T> items, Condition condition) {
+        if (condition == null) {
+            return new ArrayList<>(items);
+        }
+        List<T> results = new ArrayList<>();
+        for (T item : items) {
+            if (testMatch(condition, item)) {
+                results.add(item);
+            }
+        }
+        return results;
+    }
+
+    private <T extends Item> List<T> filterFullText(List<T> items, String fulltext) {
+        if (StringUtils.isEmpty(fulltext)) {
+            return items;
+        }
+        List<T> results = new ArrayList<>();
+        for (T item : items) {
+            try {
+                if (StringUtils.containsIgnoreCase(CustomObjectMapper.getObjectMapper().writeValueAsString(item), fulltext)) {
+                    results.add(item);
+                }
+            } catch (IOException e) {
+                logger.debug("Cannot serialize item " + item.getItemId(), e);
+            }
+        }
+        return results;
+    }
+
+    private <T extends Item> PartialList<T> sortAndPage(List<T> items, String sortBy, int offset, int size) {
+        if (sortBy != null) {
+            final List<String> properties = new ArrayList<>();
+            final List<Boolean> descending = new ArrayList<>();
+            for (String sortByElement : sortBy.split(",")) {
+                if (!sortByElement.startsWith("geo:")) {
+                    properties.add(StringUtils.substringBeforeLast(sortByElement, ":"));
+                    descending.add(sortByElement.endsWith(":desc"));
+                }
+            }
+            Collections.sort(items, new Comparator<T>() {
+                @Override
+                public int compare(T item1, T item2) {
+                    for (int i = 0; i < properties.size(); i++) {
+                        Object value1 = getValue(item1, properties.get(i));
+                        Object value2 = getValue(item2, properties.get(i));
+                        int result = value1 == null ? (value2 == null ? 0 : 1) : (value2 == null ? -1 : InMemoryPersistenceService.compare(value1, value2));
+                        if (result != 0) {
+                            return descending.get(i) ? -result : result;
+                        }
+                    }
+                    return 0;
+                }
+            });
+        }
+        int fromIndex = Math.min(offset, items.size());
+        int toIndex = size < 0 ? items.size() : Math.min(fromIndex + size, items.size());
+        return new PartialList<>(new ArrayList<>(items.subList(fromIndex, toIndex)), offset, toIndex - fromIndex, items.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Item> PartialList<T> nextScrollPage(Class<T> clazz, String scrollIdentifier, int size) {
+        Iterator<T> iterator = (Iterator<T>) scrolls.get(scrollIdentifier);
+        List<T> page = new ArrayList<>();
+        while (iterator != null && iterator.hasNext() && (size < 0 || page.size() < size)) {
+            page.add(iterator.next());
+        }
+        if (iterator == null || !iterator.hasNext()) {
+            scrolls.remove(scrollIdentifier);
+        }
+        PartialList<T> partialList = new PartialList<>(page, 0, page.size(), page.size());
+        partialList.setScrollIdentifier(scrollIdentifier);
+        return partialList;
+    }
+
+    private static Object getValue(Item item, String path) {
+        try {
+            return PropertyPath.compile(path).getValue(item);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static boolean hasValue(Object value, String expectedValue) {
+        if (value instanceof Collection) {
+            for (Object o : (Collection<?>) value) {
+                if (hasValue(o, expectedValue)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return value != null && (expectedValue.equals(value.toString()) || (value instanceof Date && compare(value, expectedValue) == 0));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object value1, Object value2) {
+        if (value1 instanceof Number || value2 instanceof Number) {
+            try {
+                return Double.compare(Double.parseDouble(value1.toString()), Double.parseDouble(value2.toString()));
+            } catch (NumberFormatException e) {
+                // compared as strings
+            }
+        }
+        if (value1 instanceof Date || value2 instanceof Date) {
+            Date date1 = toDate(value1);
+            Date date2 = toDate(value2);
+            if (date1 != null && date2 != null) {
+                return date1.compareTo(date2);
+            }
+        }
+        if (value1 instanceof Comparable && value1.getClass().isInstance(value2)) {
+            return ((Comparable<Object>) value1).compareTo(value2);
+        }
+        return value1.toString().compareTo(value2.toString());
+    }
+
+    private static Date toDate(Object value) {
+        if (value instanceof Date) {
+            return (Date) value;
+        } else if (value instanceof Number) {
+            return new Date(((Number) value).longValue());
+        }
+        try {
+            return ISO8601Utils.parse(value.toString(), new ParsePosition(0));
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static long getIntervalMillis(String interval) {
+        if (interval == null || interval.length() < 2 || !StringUtils.isNumeric(interval.substring(0, interval.length() - 1))) {
+            return 0;
+        }
+        long value = Long.parseLong(interval.substring(0, interval.length() - 1));
+        switch (interval.charAt(interval.length() - 1)) {
+            case 's':
+                return value * 1000L;
+            case 'm':
+                return value * 60L * 1000L;
+            case 'h':
+                return value * 60L * 60L * 1000L;
+            case 'd':
+                return value * 24L * 60L * 60L * 1000L;
+            default:
+                return 0;
+        }
+    }
+
+    private static void increment(Map<String, Long> buckets, String key) {
+        Long count = buckets.get(key);
+        buckets.put(key, count != null ? count + 1 : 1L);
+    }
+
+    private static String getItemType(Class<?> clazz) {
+        try {
+            return (String) clazz.getField("ITEM_TYPE").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Class " + clazz.getName() + " doesn't define a publicly accessible ITEM_TYPE field", e);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.replay;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+
+/**
+ * Emulates the small part of the OSGi framework used by the services, with dynamic proxies, so that they can run outside of Karaf.
+ *
+ * Each classpath entry holding definitions under {@code META-INF/cxs} is exposed as a bundle whose entries can be found with
+ * {@link Bundle#findEntries(String, String, boolean)}, and services are kept in a registry supporting lookups by interface and simple
+ * {@code (key=value)} filters. Bundle and service listeners are ignored, as the bundles never change.
+ */
+public class OsgiEmulation {
+
+    private static final String DEFINITIONS_PATH = "META-INF/cxs";
+
+    private final List<Bundle> bundles = new ArrayList<>();
+    private final Map<ServiceReference<?>, Registration> registrations = new LinkedHashMap<>();
+    private final BundleContext bundleContext;
+
+    public OsgiEmulation(ClassLoader classLoader) throws IOException {
+        bundleContext = createBundle(0, OsgiEmulation.class.getPackage().getName(), null).getBundleContext();
+        long bundleId = 1;
+        Enumeration<URL> definitionRoots = classLoader.getResources(DEFINITIONS_PATH);
+        while (definitionRoots.hasMoreElements()) {
+            URL definitionRoot = definitionRoots.nextElement();
+            bundles.add(createBundle(bundleId++, definitionRoot.toString(), definitionRoot));
+        }
+    }
+
+    /**
+     * Retrieves the context of the bundle the services belong to. This bundle holds no definitions, they are provided by the other bundles.
+     *
+     * @return the bundle context to inject in the services
+     */
+    public BundleContext getBundleContext() {
+        return bundleContext;
+    }
+
+    /**
+     * Registers a service.
+     *
+     * @param clazz      the interface under which the service is registered
+     * @param service    the service
+     * @param properties the properties of the service
+     * @param <S>        the type of the service
+     * @return the reference of the registered service
+     */
+    @SuppressWarnings("unchecked")
+    public <S> ServiceReference<S> registerService(Class<S> clazz, S service, Map<String, Object> properties) {
+        final Registration registration = new Registration(clazz.getName(), service, properties != null ? properties : Collections.<String, Object>emptyMap());
+        ServiceReference<S> serviceReference = (ServiceReference<S>) newProxy(ServiceReference.class, new Handler() {
+            @Override
+            Object handle(Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getProperty":
+                        return registration.properties.get(args[0]);
+                    case "getPropertyKeys":
+                        return registration.properties.keySet().toArray(new String[registration.properties.size()]);
+                    case "getBundle":
+                        return bundleContext.getBundle();
+                    default:
+                        return null;
+                }
+            }
+        });
+        registrations.put(serviceReference, registration);
+        return serviceReference;
+    }
+
+    private Bundle createBundle(final long bundleId, final String symbolicName, final URL definitionRoot) {
+        final Bundle[] bundle = new Bundle[1];
+        final BundleContext context = newProxy(BundleContext.class, new Handler() {
+            @Override
+            Object handle(Method method, Object[] args) throws Exception {
+                switch (method.getName()) {
+                    case "getBundle":
+                        return args == null || args.length == 0 ? bundle[0] : null;
+                    case "getBundles":
+                        return bundles.toArray(new Bundle[bundles.size()]);
+                    case "getService":
+                        Registration registration = registrations.get(args[0]);
+                        return registration != null ? registration.service : null;
+                    case "getServiceReferences":
+                        if (args[0] instanceof Class) {
+                            return findServiceReferences(((Class<?>) args[0]).getName(), (String) args[1]);
+                        }
+                        // fall through
+                    case "getAllServiceReferences":
+                        Collection<ServiceReference<?>> serviceReferences = findServiceReferences((String) args[0], (String) args[1]);
+                        return serviceReferences.isEmpty() ? null : serviceReferences.toArray(new ServiceReference[serviceReferences.size()]);
+                    case "getServiceReference":
+                        Collection<ServiceReference<?>> references = findServiceReferences(args[0] instanceof Class ? ((Class<?>) args[0]).getName() : (String) args[0], null);
+                        return references.isEmpty() ? null : references.iterator().next();
+                    case "ungetService":
+                        return true;
+                    default:
+                        return null;
+                }
+            }
+        });
+        bundle[0] = newProxy(Bundle.class, new Handler() {
+            @Override
+            Object handle(Method method, Object[] args) throws Exception {
+                switch (method.getName()) {
+                    case "getBundleId":
+                        return bundleId;
+                    case "getSymbolicName":
+                        return symbolicName;
+                    case "getVersion":
+                        return Version.emptyVersion;
+                    case "getState":
+                        return Bundle.ACTIVE;
+                    case "getBundleContext":
+                        return context;
+                    case "findEntries":
+                        return definitionRoot != null ? findEntries(definitionRoot, (String) args[0], (String) args[1], (Boolean) args[2]) : null;
+                    case "toString":
+                        return symbolicName + " [" + bundleId + "]";
+                    default:
+                        return null;
+                }
+            }
+        });
+        return bundle[0];
+    }
+
+    private Collection<ServiceReference<?>> findServiceReferences(String className, String filter) {
+        String filterKey = null;
+        String filterValue = null;
+        if (filter != null && filter.startsWith("(") && filter.endsWith(")") && filter.indexOf('=') > 0) {
+            filterKey = filter.substring(1, filter.indexOf('='));
+            filterValue = filter.substring(filter.indexOf('=') + 1, filter.length() - 1);
+        }
+        List<ServiceReference<?>> serviceReferences = new ArrayList<>();
+        for (Map.Entry<ServiceReference<?>, Registration> entry : registrations.entrySet()) {
+            Registration registration = entry.getValue();
+            if ((className == null || className.equals(registration.className))
+                    && (filterKey == null || filterValue.equals(String.valueOf(registration.properties.get(filterKey))))) {
+                serviceReferences.add(entry.getKey());
+            }
+        }
+        return serviceReferences;
+    }
+
+    private static Enumeration<URL> findEntries(URL definitionRoot, String path, String filePattern, boolean recurse) throws IOException, URISyntaxException {
+        if (!path.startsWith(DEFINITIONS_PATH)) {
+            return null;
+        }
+        String subPath = path.substring(DEFINITIONS_PATH.length()).replaceAll("^/+|/+$", "");
+        Pattern pattern = Pattern.compile(("\\Q" + (filePattern != null ? filePattern : "*") + "\\E").replace("*", "\\E.*\\Q"));
+        List<URL> entries = new ArrayList<>();
+        if ("file".equals(definitionRoot.getProtocol())) {
+            collectFiles(new File(new File(definitionRoot.toURI()), subPath), pattern, recurse, entries);
+        } else if ("jar".equals(definitionRoot.getProtocol())) {
+            JarURLConnection connection = (JarURLConnection) definitionRoot.openConnection();
+            connection.setUseCaches(false);
+            String prefix = connection.getEntryName() + (subPath.isEmpty() ? "" : "/" + subPath) + "/";
+            try (JarFile jarFile = connection.getJarFile()) {
+                Enumeration<JarEntry> jarEntries = jarFile.entries();
+                while (jarEntries.hasMoreElements()) {
+                    String name = jarEntries.nextElement().getName();
+                    String relativeName = name.startsWith(prefix) ? name.substring(prefix.length()) : null;
+                    if (relativeName != null && !relativeName.isEmpty() && !name.endsWith("/") && (recurse || relativeName.indexOf('/') < 0)
+                            && pattern.matcher(relativeName.substring(relativeName.lastIndexOf('/') + 1)).matches()) {
+                        entries.add(new URL("jar:" + connection.getJarFileURL() + "!/" + name));
+                    }
+                }
+            }
+        }
+        return entries.isEmpty() ? null : Collections.enumeration(entries);
+    }
+
+    private static void collectFiles(File directory, Pattern pattern, boolean recurse, List<URL> entries) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (recurse) {
+                    collectFiles(file, pattern, true, entries);
+                }
+            } else if (pattern.matcher(file.getName()).matches()) {
+                entries.add(file.toURI().toURL());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T newProxy(Class<T> clazz, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(OsgiEmulation.class.getClassLoader(), new Class<?>[]{clazz}, handler);
+    }
+
+    /**
+     * Implements the methods of a proxy, returning default values for the methods that are not handled.
+     */
+    private abstract static class Handler implements InvocationHandler {
+
+        private static final Map<Class<?>, Object> DEFAULT_VALUES = new HashMap<>();
+
+        static {
+            DEFAULT_VALUES.put(boolean.class, false);
+            DEFAULT_VALUES.put(int.class, 0);
+            DEFAULT_VALUES.put(long.class, 0L);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    Object description = handle(method, args);
+                    return description != null ? description : method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    Object result = handle(method, args);
+                    return result != null ? result : DEFAULT_VALUES.get(method.getReturnType());
+            }
+        }
+
+        abstract Object handle(Method method, Object[] args) throws Exception;
+    }
+
+    private static class Registration {
+        private final String className;
+        private final Object service;
+        private final Map<String, Object> properties;
+
+        private Registration(String className, Object service, Map<String, Object> properties) {
+            this.className = className;
+            this.service = service;
+            this.properties = properties;
+        }
+    }
+}
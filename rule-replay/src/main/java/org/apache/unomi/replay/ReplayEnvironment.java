@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.replay;
+
+import org.apache.unomi.api.PropertyMergeStrategyExecutor;
+import org.apache.unomi.api.actions.ActionExecutor;
+import org.apache.unomi.api.services.EventListenerService;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluator;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
+import org.apache.unomi.plugins.baseplugin.actions.*;
+import org.apache.unomi.plugins.baseplugin.conditions.*;
+import org.apache.unomi.plugins.events.hover.conditions.HoverEventConditionEvaluator;
+import org.apache.unomi.privacy.internal.PrivacyServiceImpl;
+import org.apache.unomi.services.actions.ActionExecutorDispatcher;
+import org.apache.unomi.services.mergers.*;
+import org.apache.unomi.services.services.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Wires the services, condition evaluators and action executors the same way the blueprints of the services, base plugin, hover event
+ * plugin and privacy extension bundles do, on top of an {@link InMemoryPersistenceService}.
+ *
+ * Timers purging profiles are disabled, and definitions are loaded from the {@code META-INF/cxs} folders found on the classpath.
+ */
+public class ReplayEnvironment {
+
+    private final OsgiEmulation osgiEmulation;
+    private final ConditionEvaluatorDispatcher conditionEvaluatorDispatcher = new ConditionEvaluatorDispatcher();
+    private final ActionExecutorDispatcher actionExecutorDispatcher = new ActionExecutorDispatcher();
+    private final InMemoryPersistenceService persistenceService = new InMemoryPersistenceService(conditionEvaluatorDispatcher);
+    private final DefinitionChangeBus definitionChangeBus = new DefinitionChangeBus();
+    private final DefinitionsServiceImpl definitionsService = new DefinitionsServiceImpl();
+    private final EventServiceImpl eventService = new EventServiceImpl();
+    private final RulesServiceImpl rulesService = new RulesServiceImpl();
+    private final SegmentServiceImpl segmentService = new SegmentServiceImpl();
+    private final QueryServiceImpl queryService = new QueryServiceImpl();
+    private final ProfileServiceImpl profileService = new ProfileServiceImpl();
+    private final ConfigSharingServiceImpl configSharingService = new ConfigSharingServiceImpl();
+    private final PrivacyServiceImpl privacyService = new PrivacyServiceImpl();
+
+    /**
+     * Creates and starts the services.
+     *
+     * @param parallelEvaluation         {@code true} to evaluate the conditions of candidate rules in parallel
+     * @param parallelEvaluationThreads  the number of threads used to evaluate the conditions of candidate rules in parallel
+     * @param parallelEvaluationThreshold the minimum number of candidate rules for their conditions to be evaluated in parallel
+     * @throws IOException if the definitions found on the classpath cannot be listed
+     */
+    public ReplayEnvironment(boolean parallelEvaluation, int parallelEvaluationThreads, int parallelEvaluationThreshold) throws IOException {
+        osgiEmulation = new OsgiEmulation(getClass().getClassLoader());
+
+        // condition evaluators must be available before rules and segments are loaded, as their conditions are compiled when they are set
+        addConditionEvaluators();
+        addPropertyMergeStrategyExecutors();
+
+        definitionChangeBus.init();
+
+        definitionsService.setPersistenceService(persistenceService);
+        definitionsService.setBundleContext(osgiEmulation.getBundleContext());
+        definitionsService.postConstruct();
+
+        eventService.setPersistenceService(persistenceService);
+        eventService.setDefinitionsService(definitionsService);
+        eventService.setBundleContext(osgiEmulation.getBundleContext());
+        eventService.setPredefinedEventTypeIds(new HashSet<>(Arrays.asList("view", "login", "sessionCreated", "facebookLogin", "profileUpdated")));
+        eventService.setRestrictedEventTypeIds(new HashSet<>(Arrays.asList("sessionCreated", "sessionReassigned", "profileUpdated", "ruleFired")));
+        eventService.setThirdPartyConfiguration(new HashMap<String, String>());
+        eventService.init();
+
+        rulesService.setPersistenceService(persistenceService);
+        rulesService.setDefinitionsService(definitionsService);
+        rulesService.setEventService(eventService);
+        rulesService.setActionExecutorDispatcher(actionExecutorDispatcher);
+        rulesService.setBundleContext(osgiEmulation.getBundleContext());
+        rulesService.setDefinitionChangeBus(definitionChangeBus);
+        rulesService.setDefinitionsRefreshInterval(60000);
+        rulesService.setParallelEvaluation(parallelEvaluation);
+        rulesService.setParallelEvaluationThreads(parallelEvaluationThreads);
+        rulesService.setParallelEvaluationThreshold(parallelEvaluationThreshold);
+        rulesService.postConstruct();
+
+        segmentService.setPersistenceService(persistenceService);
+        segmentService.setDefinitionsService(definitionsService);
+        segmentService.setEventService(eventService);
+        segmentService.setRulesService(rulesService);
+        segmentService.setBundleContext(osgiEmulation.getBundleContext());
+        segmentService.setTaskExecutionPeriod(86400000);
+        segmentService.setSegmentUpdateBatchSize(1000);
+        segmentService.setDefinitionChangeBus(definitionChangeBus);
+        segmentService.setDefinitionsRefreshInterval(60000);
+        segmentService.postConstruct();
+
+        queryService.setPersistenceService(persistenceService);
+        queryService.setDefinitionsService(definitionsService);
+        queryService.postConstruct();
+
+        profileService.setPersistenceService(persistenceService);
+        profileService.setDefinitionsService(definitionsService);
+        profileService.setSegmentService(segmentService);
+        profileService.setQueryService(queryService);
+        profileService.setBundleContext(osgiEmulation.getBundleContext());
+        profileService.setPurgeProfileInterval(0);
+        profileService.setPurgeProfileInactiveTime(0);
+        profileService.setPurgeProfileExistTime(0);
+        profileService.setPurgeSessionsAndEventsTime(0);
+        profileService.setDefinitionChangeBus(definitionChangeBus);
+        profileService.setDefinitionsRefreshInterval(60000);
+        profileService.postConstruct();
+
+        configSharingService.setConfigProperties(new HashMap<String, Object>());
+        configSharingService.setBundleContext(osgiEmulation.getBundleContext());
+
+        privacyService.setPersistenceService(persistenceService);
+        privacyService.setEventService(eventService);
+        privacyService.setProfileService(profileService);
+        privacyService.setDefaultDeniedProperties(Collections.<String>emptyList());
+        privacyService.setBundleContext(osgiEmulation.getBundleContext());
+
+        addActionExecutors();
+        eventService.bind(osgiEmulation.registerService(EventListenerService.class, rulesService, null));
+    }
+
+    private void addConditionEvaluators() {
+        addConditionEvaluator("booleanConditionEvaluator", new BooleanConditionEvaluator());
+        addConditionEvaluator("notConditionEvaluator", new NotConditionEvaluator());
+        addConditionEvaluator("propertyConditionEvaluator", new PropertyConditionEvaluator());
+        addConditionEvaluator("matchAllConditionEvaluator", new MatchAllConditionEvaluator());
+        addConditionEvaluator("geoLocationByPointSessionConditionEvaluator", new GeoLocationByPointSessionConditionEvaluator());
+
+        SourceEventPropertyConditionEvaluator sourceEventPropertyConditionEvaluator = new SourceEventPropertyConditionEvaluator();
+        sourceEventPropertyConditionEvaluator.setDefinitionsService(definitionsService);
+        addConditionEvaluator("sourceEventPropertyConditionEvaluator", sourceEventPropertyConditionEvaluator);
+
+        PastEventConditionEvaluator pastEventConditionEvaluator = new PastEventConditionEvaluator();
+        pastEventConditionEvaluator.setDefinitionsService(definitionsService);
+        pastEventConditionEvaluator.setPersistenceService(persistenceService);
+        addConditionEvaluator("pastEventConditionEvaluator", pastEventConditionEvaluator);
+
+        addConditionEvaluator("hoverEventConditionEvaluator", new HoverEventConditionEvaluator());
+    }
+
+    private void addConditionEvaluator(String conditionEvaluatorId, ConditionEvaluator conditionEvaluator) {
+        conditionEvaluatorDispatcher.addEvaluator(conditionEvaluatorId, conditionEvaluator);
+    }
+
+    private void addPropertyMergeStrategyExecutors() {
+        addPropertyMergeStrategyExecutor("defaultPropertyMergeStrategyExecutor", new DefaultPropertyMergeStrategyExecutor());
+        addPropertyMergeStrategyExecutor("addPropertyMergeStrategyExecutor", new AddPropertyMergeStrategyExecutor());
+        addPropertyMergeStrategyExecutor("mostRecentPropertyMergeStrategyExecutor", new MostRecentPropertyMergeStrategyExecutor());
+        addPropertyMergeStrategyExecutor("oldestPropertyMergeStrategyExecutor", new OldestPropertyMergeStrategyExecutor());
+        addPropertyMergeStrategyExecutor("nonEmptyPropertyMergeStrategyExecutor", new NonEmptyPropertyMergeStrategyExecutor());
+    }
+
+    private void addPropertyMergeStrategyExecutor(String propertyMergeStrategyExecutorId, PropertyMergeStrategyExecutor propertyMergeStrategyExecutor) {
+        osgiEmulation.registerService(PropertyMergeStrategyExecutor.class, propertyMergeStrategyExecutor,
+                Collections.<String, Object>singletonMap("propertyMergeStrategyExecutorId", propertyMergeStrategyExecutorId));
+    }
+
+    private void addActionExecutors() {
+        AllEventToProfilePropertiesAction allEventToProfilePropertiesAction = new AllEventToProfilePropertiesAction();
+        allEventToProfilePropertiesAction.setProfileService(profileService);
+        allEventToProfilePropertiesAction.setPrivacyService(privacyService);
+        addActionExecutor("allEventToProfileProperties", allEventToProfilePropertiesAction);
+
+        EventToProfilePropertyAction eventToProfilePropertyAction = new EventToProfilePropertyAction();
+        eventToProfilePropertyAction.setPrivacyService(privacyService);
+        addActionExecutor("eventToProfileProperty", eventToProfilePropertyAction);
+
+        SetPropertyAction setPropertyAction = new SetPropertyAction();
+        setPropertyAction.setPrivacyService(privacyService);
+        addActionExecutor("setProperty", setPropertyAction);
+
+        EvaluateProfileSegmentsAction evaluateProfileSegmentsAction = new EvaluateProfileSegmentsAction();
+        evaluateProfileSegmentsAction.setSegmentService(segmentService);
+        addActionExecutor("evaluateProfileSegments", evaluateProfileSegmentsAction);
+
+        addActionExecutor("evaluateProfileAge", new EvaluateProfileAgeAction());
+
+        SetEventOccurenceCountAction setEventOccurenceCountAction = new SetEventOccurenceCountAction();
+        setEventOccurenceCountAction.setDefinitionsService(definitionsService);
+        setEventOccurenceCountAction.setPersistenceService(persistenceService);
+        addActionExecutor("setEventOccurenceCount", setEventOccurenceCountAction);
+
+        SendEventAction sendEventAction = new SendEventAction();
+        sendEventAction.setEventService(eventService);
+        addActionExecutor("sendEvent", sendEventAction);
+
+        MergeProfilesOnPropertyAction mergeProfilesOnPropertyAction = new MergeProfilesOnPropertyAction();
+        mergeProfilesOnPropertyAction.setProfileService(profileService);
+        mergeProfilesOnPropertyAction.setEventService(eventService);
+        mergeProfilesOnPropertyAction.setPersistenceService(persistenceService);
+        mergeProfilesOnPropertyAction.setDefinitionsService(definitionsService);
+        mergeProfilesOnPropertyAction.setPrivacyService(privacyService);
+        mergeProfilesOnPropertyAction.setConfigSharingService(configSharingService);
+        addActionExecutor("mergeProfilesOnProperty", mergeProfilesOnPropertyAction);
+    }
+
+    private void addActionExecutor(String actionExecutorId, ActionExecutor actionExecutor) {
+        rulesService.bindExecutor(osgiEmulation.registerService(ActionExecutor.class, actionExecutor,
+                Collections.<String, Object>singletonMap("actionExecutorId", actionExecutorId)));
+    }
+
+    /**
+     * Stops the services and their timers.
+     */
+    public void shutdown() {
+        rulesService.preDestroy();
+        segmentService.preDestroy();
+        profileService.preDestroy();
+        queryService.preDestroy();
+        eventService.destroy();
+        definitionsService.preDestroy();
+        try {
+            configSharingService.preDestroy();
+        } catch (Exception e) {
+            // the emulated bundle context never throws
+        }
+        definitionChangeBus.destroy();
+    }
+
+    public InMemoryPersistenceService getPersistenceService() {
+        return persistenceService;
+    }
+
+    public DefinitionsServiceImpl getDefinitionsService() {
+        return definitionsService;
+    }
+
+    public EventServiceImpl getEventService() {
+        return eventService;
+    }
+
+    public RulesServiceImpl getRulesService() {
+        return rulesService;
+    }
+
+    public SegmentServiceImpl getSegmentService() {
+        return segmentService;
+    }
+
+    public ProfileServiceImpl getProfileService() {
+        return profileService;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.replay;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.Session;
+import org.apache.unomi.api.rules.Rule;
+import org.apache.unomi.api.rules.RuleStatistics;
+import org.apache.unomi.api.segments.Scoring;
+import org.apache.unomi.api.segments.Segment;
+import org.apache.unomi.api.services.EventService;
+import org.apache.unomi.persistence.spi.CustomObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a recorded event stream against a set of rule, segment and scoring definitions, without Elasticsearch nor Karaf, and reports
+ * the throughput of the replay along with the match rate and cost of each rule.
+ *
+ * Definitions are read from the {@code rules}, {@code segments} and {@code scoring} folders of the definitions directory, in the same
+ * format as the predefined definitions of the plugins, which are also loaded from the classpath. Events are read from a file holding one
+ * JSON event per line, as stored in the event index. Profiles and sessions are created in memory when an event references them for the
+ * first time. Each profile is replayed by a single thread, in the order of the recording, and each pass of the replay uses new profiles
+ * and sessions so that passes are comparable.
+ *
+ * <pre>
+ * mvn -P rule-replay -pl rule-replay exec:java -Dexec.args="--definitions my-rules --events events.jsonl --threads 4 --iterations 3"
+ * </pre>
+ */
+public class RuleReplay {
+
+    private final ReplayEnvironment environment;
+    private final int threads;
+    private final AtomicLong failedEvents = new AtomicLong();
+
+    public RuleReplay(ReplayEnvironment environment, int threads) {
+        this.environment = environment;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (!options.containsKey("events")) {
+            System.err.println("Usage: RuleReplay --events <events.jsonl> [--definitions <directory>] [--threads <count>] [--warmup <passes>]"
+                    + " [--iterations <passes>] [--parallelEvaluation <threads>] [--parallelEvaluationThreshold <candidates>]");
+            System.exit(1);
+        }
+        int threads = Integer.parseInt(getOption(options, "threads", "1"));
+        int warmupPasses = Integer.parseInt(getOption(options, "warmup", "1"));
+        int passes = Integer.parseInt(getOption(options, "iterations", "1"));
+        int parallelEvaluationThreads = Integer.parseInt(getOption(options, "parallelEvaluation", "0"));
+        int parallelEvaluationThreshold = Integer.parseInt(getOption(options, "parallelEvaluationThreshold", "16"));
+
+        ReplayEnvironment environment = new ReplayEnvironment(parallelEvaluationThreads > 0, Math.max(parallelEvaluationThreads, 1), parallelEvaluationThreshold);
+        try {
+            if (options.containsKey("definitions")) {
+                loadDefinitions(environment, new File(options.get("definitions")));
+            }
+            List<Event> events = readEvents(new File(options.get("events")));
+
+            RuleReplay replay = new RuleReplay(environment, threads);
+            for (int i = 0; i < warmupPasses; i++) {
+                replay.replay(events, "warmup" + i);
+            }
+
+            Map<String, long[]> ruleCountersBefore = replay.getRuleCounters();
+            long allocatedBytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < passes; i++) {
+                allocatedBytes += replay.replay(events, "pass" + i);
+            }
+            long elapsedNanos = System.nanoTime() - start;
+            Map<String, long[]> ruleCountersAfter = replay.getRuleCounters();
+
+            replay.printReport(System.out, (long) events.size() * passes, elapsedNanos, allocatedBytes, ruleCountersBefore, ruleCountersAfter);
+        } finally {
+            environment.shutdown();
+        }
+        System.exit(0);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String getOption(Map<String, String> options, String name, String defaultValue) {
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+
+    /**
+     * Loads the segment, scoring and rule definitions found in the {@code segments}, {@code scoring} and {@code rules} folders of the
+     * specified directory.
+     *
+     * @param environment the environment in which the definitions are loaded
+     * @param directory   the definitions directory
+     * @throws IOException if a definition cannot be read
+     */
+    public static void loadDefinitions(ReplayEnvironment environment, File directory) throws IOException {
+        for (File file : listDefinitions(new File(directory, "segments"))) {
+            environment.getSegmentService().setSegmentDefinition(CustomObjectMapper.getObjectMapper().readValue(file, Segment.class));
+        }
+        for (File file : listDefinitions(new File(directory, "scoring"))) {
+            environment.getSegmentService().setScoringDefinition(CustomObjectMapper.getObjectMapper().readValue(file, Scoring.class));
+        }
+        for (File file : listDefinitions(new File(directory, "rules"))) {
+            environment.getRulesService().setRule(CustomObjectMapper.getObjectMapper().readValue(file, Rule.class));
+        }
+    }
+
+    private static List<File> listDefinitions(File directory) {
+        File[] files = directory.listFiles();
+        List<File> definitions = new ArrayList<>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(".json")) {
+                    definitions.add(file);
+                }
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * Reads a recorded event stream, holding one JSON event per line.
+     *
+     * @param file the file to read
+     * @return the recorded events
+     * @throws IOException if the file cannot be read or holds an invalid event
+     */
+    public static List<Event> readEvents(File file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    events.add(CustomObjectMapper.getObjectMapper().readValue(line, Event.class));
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Replays the specified events once, at full speed. The events of a profile, or of a session when they have no profile, are all
+     * replayed by the same thread.
+     *
+     * @param events   the recorded events
+     * @param passName a name for this pass, appended to the identifiers of the profiles and sessions
+     * @return the number of bytes allocated by the replay threads, or {@code 0} if the JVM cannot measure it
+     * @throws Exception if a replay thread failed
+     */
+    public long replay(List<Event> events, final String passName) throws Exception {
+        List<List<Event>> partitions = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<Event>());
+        }
+        for (Event event : events) {
+            String owner = event.getProfileId() != null ? event.getProfileId() : event.getSessionId();
+            partitions.get(owner != null ? Math.abs(owner.hashCode() % threads) : 0).add(event);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (final List<Event> partition : partitions) {
+                futures.add(executorService.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        long allocatedBytesBefore = getAllocatedBytes();
+                        for (Event event : partition) {
+                            try {
+                                replay(event, passName);
+                            } catch (RuntimeException e) {
+                                failedEvents.incrementAndGet();
+                            }
+                        }
+                        return getAllocatedBytes() - allocatedBytesBefore;
+                    }
+                }));
+            }
+            long allocatedBytes = 0;
+            for (Future<Long> future : futures) {
+                allocatedBytes += future.get();
+            }
+            return allocatedBytes;
+        } finally {
+            executorService.shutdown();
+            removeReplayedItems();
+        }
+    }
+
+    private void replay(Event recordedEvent, String passName) {
+        Date timestamp = recordedEvent.getTimeStamp() != null ? recordedEvent.getTimeStamp() : new Date();
+        String profileId = (recordedEvent.getProfileId() != null ? recordedEvent.getProfileId() : recordedEvent.getSessionId()) + "-" + passName;
+
+        int changes = EventService.NO_CHANGE;
+        Profile profile = environment.getProfileService().load(profileId);
+        if (profile == null) {
+            profile = new Profile(profileId);
+            profile.setProperty("firstVisit", timestamp);
+            changes |= EventService.PROFILE_UPDATED;
+        }
+        Session session = null;
+        if (recordedEvent.getSessionId() != null) {
+            session = environment.getProfileService().loadSession(recordedEvent.getSessionId() + "-" + passName, timestamp);
+            if (session == null) {
+                session = new Session(recordedEvent.getSessionId() + "-" + passName, profile, timestamp, recordedEvent.getScope());
+                changes |= EventService.SESSION_UPDATED;
+            } else {
+                session.setProfile(profile);
+            }
+        }
+
+        Event event = new Event(recordedEvent.getEventType(), session, profile, recordedEvent.getScope(), recordedEvent.getSource(),
+                recordedEvent.getTarget(), recordedEvent.getProperties(), timestamp);
+        changes |= environment.getEventService().send(event);
+
+        if ((changes & EventService.PROFILE_UPDATED) == EventService.PROFILE_UPDATED) {
+            environment.getProfileService().save(event.getProfile());
+        }
+        if ((changes & EventService.SESSION_UPDATED) == EventService.SESSION_UPDATED && session != null) {
+            environment.getProfileService().saveSession(session);
+        }
+    }
+
+    private void removeReplayedItems() {
+        environment.getPersistenceService().removeAll(Profile.ITEM_TYPE);
+        environment.getPersistenceService().removeAll(Session.ITEM_TYPE);
+        environment.getPersistenceService().removeAll(Event.ITEM_TYPE);
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemoryEnabled()) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Retrieves, for each rule, the number of times its conditions were evaluated, the number of times it matched, and the time spent in
+     * its conditions and actions, in milliseconds.
+     */
+    private Map<String, long[]> getRuleCounters() {
+        Map<String, long[]> ruleCounters = new TreeMap<>();
+        Map<String, Map<String, Double>> percentiles = environment.getRulesService().getRuleLatencyPercentiles();
+        for (Map.Entry<String, RuleStatistics> entry : environment.getRulesService().getAllRuleStatistics().entrySet()) {
+            RuleStatistics statistics = entry.getValue();
+            Map<String, Double> rulePercentiles = percentiles.get(entry.getKey());
+            ruleCounters.put(entry.getKey(), new long[]{
+                    rulePercentiles != null && rulePercentiles.get("conditions.count") != null ? rulePercentiles.get("conditions.count").longValue() : 0,
+                    statistics.getExecutionCount() + statistics.getLocalExecutionCount(),
+                    statistics.getConditionsTime() + statistics.getLocalConditionsTime(),
+                    statistics.getActionsTime() + statistics.getLocalActionsTime()
+            });
+        }
+        return ruleCounters;
+    }
+
+    private void printReport(PrintStream out, long eventCount, long elapsedNanos, long allocatedBytes, Map<String, long[]> ruleCountersBefore,
+                             Map<String, long[]> ruleCountersAfter) {
+        double elapsedSeconds = elapsedNanos / 1000000000.0;
+        out.println();
+        out.println(String.format("Replayed %d events in %.3f s on %d threads: %.1f events/s", eventCount, elapsedSeconds, threads, eventCount / elapsedSeconds));
+        if (failedEvents.get() > 0) {
+            out.println(String.format("%d events failed", failedEvents.get()));
+        }
+        if (allocatedBytes > 0) {
+            out.println(String.format("Allocated %.1f MB: %.1f MB/s, %.1f KB/event", allocatedBytes / 1048576.0, allocatedBytes / 1048576.0 / elapsedSeconds,
+                    allocatedBytes / 1024.0 / eventCount));
+        }
+
+        out.println();
+        out.println(String.format("%-50s %12s %10s %8s %10s %12s %12s %10s", "Rule", "Evaluations", "Matches", "Rate", "Matches/1k", "Conditions", "Actions", "us/event"));
+        for (Map.Entry<String, long[]> entry : ruleCountersAfter.entrySet()) {
+            long[] before = ruleCountersBefore.get(entry.getKey());
+            long[] counters = entry.getValue().clone();
+            for (int i = 0; before != null && i < counters.length; i++) {
+                counters[i] -= before[i];
+            }
+            if (counters[0] == 0 && counters[1] == 0) {
+                continue;
+            }
+            out.println(String.format("%-50s %12d %10d %7.2f%% %10.2f %10d ms %10d ms %10.2f", entry.getKey(), counters[0], counters[1],
+                    counters[0] > 0 ? 100.0 * counters[1] / counters[0] : 0, 1000.0 * counters[1] / eventCount, counters[2], counters[3],
+                    1000.0 * (counters[2] + counters[3]) / eventCount));
+        }
+
+        Map<String, Set<String>> rulesWithQueryFallback = environment.getRulesService().getRulesWithQueryFallback();
+        if (!rulesWithQueryFallback.isEmpty()) {
+            out.println();
+            out.println("Rules with conditions that cannot be evaluated in memory, which never match in this replay:");
+            for (Map.Entry<String, Set<String>> entry : rulesWithQueryFallback.entrySet()) {
+                out.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+    }
+}
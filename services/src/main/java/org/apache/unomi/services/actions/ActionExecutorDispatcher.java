@@ -17,12 +17,14 @@
 
 package org.apache.unomi.services.actions;
 
-import org.apache.commons.beanutils.PropertyUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.unomi.api.Event;
+import org.apache.unomi.api.TraceSpan;
 import org.apache.unomi.api.actions.Action;
 import org.apache.unomi.api.actions.ActionExecutor;
 import org.apache.unomi.api.services.EventService;
+import org.apache.unomi.persistence.spi.PropertyPath;
+import org.apache.unomi.persistence.spi.ScriptCache;
+import org.apache.unomi.persistence.spi.Tracer;
 import org.mvel2.MVEL;
 import org.mvel2.ParserConfiguration;
 import org.mvel2.ParserContext;
@@ -38,15 +40,29 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ActionExecutorDispatcher {
     private static final Logger logger = LoggerFactory.getLogger(ActionExecutorDispatcher.class.getName());
     private static final String VALUE_NAME_SEPARATOR = "::";
-    private final Map<String, Serializable> mvelExpressions = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_SCRIPTS = 1000;
+    private final ScriptCache<Serializable> mvelExpressions = new ScriptCache<>("actions", MAX_CACHED_SCRIPTS, new ScriptCache.Compiler<Serializable>() {
+        @Override
+        public Serializable compile(String script) {
+            final ClassLoader tccl = Thread.currentThread().getContextClassLoader();
+            try {
+                Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+                ParserConfiguration parserConfiguration = new ParserConfiguration();
+                parserConfiguration.setClassLoader(getClass().getClassLoader());
+                return MVEL.compileExpression(script, new ParserContext(parserConfiguration));
+            } finally {
+                Thread.currentThread().setContextClassLoader(tccl);
+            }
+        }
+    });
     private final Map<String, ValueExtractor> valueExtractors = new HashMap<>(11);
     private Map<String, ActionExecutor> executors = new ConcurrentHashMap<>();
 
     public ActionExecutorDispatcher() {
-        valueExtractors.put("profileProperty", new ValueExtractor() {
+        valueExtractors.put("profileProperty", new PropertyPathExtractor("properties.") {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                return PropertyUtils.getProperty(event.getProfile(), "properties." + valueAsString);
+            Object getTarget(Event event) {
+                return event.getProfile();
             }
         });
         valueExtractors.put("simpleProfileProperty", new ValueExtractor() {
@@ -55,10 +71,10 @@ public class ActionExecutorDispatcher {
                 return event.getProfile().getProperty(valueAsString);
             }
         });
-        valueExtractors.put("sessionProperty", new ValueExtractor() {
+        valueExtractors.put("sessionProperty", new PropertyPathExtractor("properties.") {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                return PropertyUtils.getProperty(event.getSession(), "properties." + valueAsString);
+            Object getTarget(Event event) {
+                return event.getSession();
             }
         });
         valueExtractors.put("simpleSessionProperty", new ValueExtractor() {
@@ -67,10 +83,10 @@ public class ActionExecutorDispatcher {
                 return event.getSession().getProperty(valueAsString);
             }
         });
-        valueExtractors.put("eventProperty", new ValueExtractor() {
+        valueExtractors.put("eventProperty", new PropertyPathExtractor("") {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                return PropertyUtils.getProperty(event, valueAsString);
+            Object getTarget(Event event) {
+                return event;
             }
         });
         valueExtractors.put("simpleEventProperty", new ValueExtractor() {
@@ -82,26 +98,39 @@ public class ActionExecutorDispatcher {
         valueExtractors.put("script", new ValueExtractor() {
             @Override
             public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                final ClassLoader tccl = Thread.currentThread().getContextClassLoader();
-                try {
-                    Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-                    if (!mvelExpressions.containsKey(valueAsString)) {
-                        ParserConfiguration parserConfiguration = new ParserConfiguration();
-                        parserConfiguration.setClassLoader(getClass().getClassLoader());
-                        mvelExpressions.put(valueAsString, MVEL.compileExpression(valueAsString, new ParserContext(parserConfiguration)));
-                    }
-                    Map<String, Object> ctx = new HashMap<>();
-                    ctx.put("event", event);
-                    ctx.put("session", event.getSession());
-                    ctx.put("profile", event.getProfile());
-                    return MVEL.executeExpression(mvelExpressions.get(valueAsString), ctx);
-                } finally {
-                    Thread.currentThread().setContextClassLoader(tccl);
-                }
+                return executeScript(getScriptExpression(valueAsString), event);
             }
         });
     }
 
+    private Serializable getScriptExpression(String script) {
+        return mvelExpressions.get(script);
+    }
+
+    private Object executeScript(Serializable expression, Event event) {
+        final ClassLoader tccl = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+            Map<String, Object> ctx = new HashMap<>();
+            ctx.put("event", event);
+            ctx.put("session", event.getSession());
+            ctx.put("profile", event.getProfile());
+            return MVEL.executeExpression(expression, ctx);
+        } finally {
+            Thread.currentThread().setContextClassLoader(tccl);
+        }
+    }
+
+    /**
+     * Sets the maximum number of scripts cached for the actions that are compiled on each execution, rules keep the compiled
+     * templates of their actions.
+     *
+     * @param maxCachedScripts the maximum number of cached scripts
+     */
+    public void setMaxCachedScripts(int maxCachedScripts) {
+        mvelExpressions.setMaxSize(maxCachedScripts);
+    }
+
     public void addExecutor(String name, ActionExecutor evaluator) {
         executors.put(name, evaluator);
     }
@@ -111,73 +140,109 @@ public class ActionExecutorDispatcher {
     }
 
     public Action getContextualAction(Action action, Event event) {
-        if (!hasContextualParameter(action.getParameterValues())) {
-            return action;
-        }
+        return compile(action).bind(event);
+    }
 
-        Map<String, Object> values = parseMap(event, action.getParameterValues());
-        Action n = new Action(action.getActionType());
-        n.setParameterValues(values);
-        return n;
+    /**
+     * Parses the parameters of the specified action once, so that it can then be bound to events without any string parsing.
+     *
+     * @param action the action to compile
+     * @return the action template
+     */
+    public ActionTemplate compile(Action action) {
+        Map<String, Object> parameterValues = action.getParameterValues();
+        return new ActionTemplate(action, parameterValues != null ? compileMap(parameterValues) : null);
     }
 
+    /**
+     * Compiles a parameter map, returning {@code null} if it contains no contextual parameter.
+     */
     @SuppressWarnings("unchecked")
-    private Map<String, Object> parseMap(Event event, Map<String, Object> map) {
-        Map<String, Object> values = new HashMap<>();
+    private Map<String, Object> compileMap(Map<String, Object> map) {
+        Map<String, Object> templates = null;
         for (Map.Entry<String, Object> entry : map.entrySet()) {
             Object value = entry.getValue();
+            Object template = null;
             if (value instanceof String) {
-                String s = (String) value;
-                try {
-                    // check if we have special values
-                    if (s.contains(VALUE_NAME_SEPARATOR)) {
-                        final String valueType = StringUtils.substringBefore(s, VALUE_NAME_SEPARATOR);
-                        final String valueAsString = StringUtils.substringAfter(s, VALUE_NAME_SEPARATOR);
-                        final ValueExtractor extractor = valueExtractors.get(valueType);
-                        if (extractor != null) {
-                            value = extractor.extract(valueAsString, event);
-                        }
-                    }
-                } catch (UnsupportedOperationException e) {
-                    throw e;
-                } catch (Exception e) {
-                    throw new UnsupportedOperationException(e);
-                }
+                template = compileValue((String) value);
             } else if (value instanceof Map) {
-                value = parseMap(event, (Map<String, Object>) value);
+                template = compileMap((Map<String, Object>) value);
+            }
+            if (template != null && templates == null) {
+                templates = new HashMap<>(map);
+            }
+            if (template != null) {
+                templates.put(entry.getKey(), template);
             }
-            values.put(entry.getKey(), value);
         }
-        return values;
+        return templates;
     }
 
-    @SuppressWarnings("unchecked")
-    private boolean hasContextualParameter(Map<String, Object> values) {
-        for (Map.Entry<String, Object> entry : values.entrySet()) {
-            Object value = entry.getValue();
-            if (value instanceof String) {
-                String s = (String) value;
-                if (s.contains(VALUE_NAME_SEPARATOR) && valueExtractors.containsKey(StringUtils.substringBefore(s, VALUE_NAME_SEPARATOR))) {
-                    return true;
+    private ActionTemplate.ParameterValue compileValue(String s) {
+        // check if we have special values
+        int separatorIndex = s.indexOf(VALUE_NAME_SEPARATOR);
+        if (separatorIndex < 0) {
+            return null;
+        }
+        final String valueType = s.substring(0, separatorIndex);
+        final String valueAsString = s.substring(separatorIndex + VALUE_NAME_SEPARATOR.length());
+        final ValueExtractor extractor = valueExtractors.get(valueType);
+        if (extractor == null) {
+            return null;
+        }
+        if ("script".equals(valueType)) {
+            final Serializable expression = getScriptExpression(valueAsString);
+            return new ActionTemplate.ParameterValue() {
+                @Override
+                public Object getValue(Event event) {
+                    return executeScript(expression, event);
                 }
-            } else if (value instanceof Map) {
-                if (hasContextualParameter((Map<String, Object>) value)) {
-                    return true;
+            };
+        }
+        if (extractor instanceof PropertyPathExtractor) {
+            final PropertyPathExtractor pathExtractor = (PropertyPathExtractor) extractor;
+            final PropertyPath path = pathExtractor.compile(valueAsString);
+            return new ActionTemplate.ParameterValue() {
+                @Override
+                public Object getValue(Event event) throws Exception {
+                    return path.getValue(pathExtractor.getTarget(event));
                 }
-            }
+            };
         }
-        return false;
+        return new ActionTemplate.ParameterValue() {
+            @Override
+            public Object getValue(Event event) throws Exception {
+                return extractor.extract(valueAsString, event);
+            }
+        };
     }
 
     public int execute(Action action, Event event) {
+        return execute(compile(action), event);
+    }
+
+    public int execute(ActionTemplate actionTemplate, Event event) {
+        Action action = actionTemplate.getAction();
         String actionKey = action.getActionType().getActionExecutor();
         if (actionKey == null) {
             throw new UnsupportedOperationException("No service defined for : " + action.getActionType());
         }
 
-        if (executors.containsKey(actionKey)) {
-            ActionExecutor actionExecutor = executors.get(actionKey);
-            return actionExecutor.execute(getContextualAction(action, event), event);
+        ActionExecutor actionExecutor = executors.get(actionKey);
+        if (actionExecutor != null) {
+            TraceSpan span = Tracer.begin("action", action.getActionTypeId());
+            try {
+                TraceSpan extractionSpan = Tracer.begin("extraction", action.getActionTypeId());
+                Action contextualAction;
+                try {
+                    contextualAction = actionTemplate.bind(event);
+                } finally {
+                    Tracer.end(extractionSpan);
+                }
+                return actionExecutor.execute(contextualAction, event);
+            } finally {
+                Tracer.end(span);
+            }
         }
         return EventService.NO_CHANGE;
     }
@@ -186,4 +251,26 @@ public class ActionExecutorDispatcher {
         Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException;
     }
 
+    /**
+     * Extracts values with property paths, which are resolved once when actions are compiled.
+     */
+    private static abstract class PropertyPathExtractor implements ValueExtractor {
+        private final String prefix;
+
+        PropertyPathExtractor(String prefix) {
+            this.prefix = prefix;
+        }
+
+        PropertyPath compile(String valueAsString) {
+            return PropertyPath.compile(prefix + valueAsString);
+        }
+
+        abstract Object getTarget(Event event);
+
+        @Override
+        public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+            return compile(valueAsString).getValue(getTarget(event));
+        }
+    }
+
 }
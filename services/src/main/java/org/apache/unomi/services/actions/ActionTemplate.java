@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.actions;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.actions.Action;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An action which parameters have been parsed once, when the rule was loaded. Literal values are kept as is, and references to
+ * contextual values ({@code profileProperty::}, {@code eventProperty::}, {@code script::}...) are replaced by {@link ParameterValue}s
+ * bound to their value extractor, so that binding the action to an event does not need any string parsing.
+ */
+public class ActionTemplate {
+
+    /**
+     * A reference to a contextual value, resolved against the event the action is executed for.
+     */
+    interface ParameterValue {
+        Object getValue(Event event) throws Exception;
+    }
+
+    private final Action action;
+
+    private final Map<String, Object> parameterTemplates;
+
+    ActionTemplate(Action action, Map<String, Object> parameterTemplates) {
+        this.action = action;
+        this.parameterTemplates = parameterTemplates;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * Determines whether some parameters of the action depend on the event.
+     *
+     * @return {@code true} if the action has contextual parameters, {@code false} otherwise
+     */
+    public boolean isContextual() {
+        return parameterTemplates != null;
+    }
+
+    /**
+     * Resolves the contextual parameters of the action for the specified event.
+     *
+     * @param event the event the action is executed for
+     * @return the action itself if it has no contextual parameter, or a new action with resolved parameter values
+     */
+    public Action bind(Event event) {
+        if (parameterTemplates == null) {
+            return action;
+        }
+        Action n = new Action(action.getActionType());
+        n.setParameterValues(bindMap(parameterTemplates, event));
+        return n;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> bindMap(Map<String, Object> templates, Event event) {
+        Map<String, Object> values = new HashMap<>(templates.size() * 2);
+        for (Map.Entry<String, Object> entry : templates.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof ParameterValue) {
+                try {
+                    value = ((ParameterValue) value).getValue(event);
+                } catch (UnsupportedOperationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new UnsupportedOperationException(e);
+                }
+            } else if (value instanceof Map) {
+                value = bindMap((Map<String, Object>) value, event);
+            }
+            values.put(entry.getKey(), value);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.karaf.cellar.core.ClusterManager;
+import org.apache.karaf.cellar.core.Configurations;
+import org.apache.karaf.cellar.core.Group;
+import org.apache.karaf.cellar.core.GroupManager;
+import org.apache.karaf.cellar.core.control.BasicSwitch;
+import org.apache.karaf.cellar.core.control.Switch;
+import org.apache.karaf.cellar.core.control.SwitchStatus;
+import org.apache.karaf.cellar.core.event.EventHandler;
+import org.apache.karaf.cellar.core.event.EventProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Notifies the services when definitions (rules, segments, scorings, property types...) are saved or removed, so that they can update
+ * their in-memory copy of the changed item instead of reloading all definitions periodically.
+ *
+ * Changes are first dispatched to the local listeners, then sent to the other nodes of the cluster group as a
+ * {@link DefinitionChangeEvent} through Karaf Cellar. A version is also stored for each item type in a cluster-wide map, so that services
+ * can detect, with a cheap periodic check, that they missed a notification and have to reload their definitions.
+ */
+public class DefinitionChangeBus implements EventHandler<DefinitionChangeEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(DefinitionChangeBus.class.getName());
+
+    public static final String DEFINITION_VERSIONS_MAP = "org.apache.unomi.definitions.versions";
+
+    private static final int MAX_LOCAL_VERSIONS = 100;
+
+    /**
+     * A listener for definition changes, either made locally or on another node of the cluster.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a definition has been saved or removed.
+         *
+         * @param itemType the item type of the changed definition
+         * @param itemId   the identifier of the changed definition
+         * @param removed  {@code true} if the definition has been removed, {@code false} if it has been created or updated
+         */
+        void onDefinitionChange(String itemType, String itemId, boolean removed);
+    }
+
+    private ClusterManager karafCellarClusterManager;
+    private EventProducer karafCellarEventProducer;
+    private GroupManager karafCellarGroupManager;
+    private String karafCellarGroupName = Configurations.DEFAULT_GROUP_NAME;
+
+    private final Switch eventSwitch = new BasicSwitch("definitionChangeBus");
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // the versions published by this node, mapped to the versions they replaced, so that services don't reload their own changes
+    private final Map<String, String> localVersions = Collections.synchronizedMap(new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_LOCAL_VERSIONS;
+        }
+    });
+
+    public void setKarafCellarClusterManager(ClusterManager karafCellarClusterManager) {
+        this.karafCellarClusterManager = karafCellarClusterManager;
+    }
+
+    public void setKarafCellarEventProducer(EventProducer karafCellarEventProducer) {
+        this.karafCellarEventProducer = karafCellarEventProducer;
+    }
+
+    public void setKarafCellarGroupManager(GroupManager karafCellarGroupManager) {
+        this.karafCellarGroupManager = karafCellarGroupManager;
+    }
+
+    public void setKarafCellarGroupName(String karafCellarGroupName) {
+        this.karafCellarGroupName = karafCellarGroupName;
+    }
+
+    public void init() {
+        eventSwitch.turnOn();
+        logger.info("Definition change bus initialized.");
+    }
+
+    public void destroy() {
+        eventSwitch.turnOff();
+        listeners.clear();
+        logger.info("Definition change bus shutdown.");
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Publishes a definition change to the local listeners and to the other nodes of the cluster group.
+     *
+     * @param itemType the item type of the changed definition
+     * @param itemId   the identifier of the changed definition
+     * @param removed  {@code true} if the definition has been removed, {@code false} if it has been created or updated
+     */
+    public void publish(String itemType, String itemId, boolean removed) {
+        notifyListeners(itemType, itemId, removed);
+
+        if (karafCellarClusterManager == null || karafCellarEventProducer == null || karafCellarGroupManager == null) {
+            return;
+        }
+        try {
+            String version = UUID.randomUUID().toString();
+            String previousVersion = getVersions().put(itemType, version);
+            localVersions.put(itemType + "/" + version, previousVersion != null ? previousVersion : "");
+            if (karafCellarEventProducer.getSwitch().getStatus().equals(SwitchStatus.OFF)) {
+                logger.warn("Cluster event producer is OFF, definition change for {} {} will only be seen by other nodes on their next version check", itemType, itemId);
+                return;
+            }
+            Group group = karafCellarGroupManager.findGroupByName(karafCellarGroupName);
+            if (group == null) {
+                logger.warn("Cluster group {} doesn't exist, cannot send definition change for {} {}", karafCellarGroupName, itemType, itemId);
+                return;
+            }
+            DefinitionChangeEvent event = new DefinitionChangeEvent(itemType, itemId, removed);
+            event.setSourceGroup(group);
+            karafCellarEventProducer.produce(event);
+        } catch (RuntimeException e) {
+            logger.error("Error while sending definition change for " + itemType + " " + itemId, e);
+        }
+    }
+
+    /**
+     * Retrieves the current cluster-wide version of the definitions of the specified item type. The version changes each time a definition
+     * of this type is published, services can compare it with the version they loaded to detect missed notifications.
+     *
+     * @param itemType the item type for which we want to retrieve the version
+     * @return the current version, an empty string if no change was ever published for this item type, or {@code null} if the cluster
+     * cannot be reached, in which case services should reload their definitions
+     */
+    public String getVersion(String itemType) {
+        if (karafCellarClusterManager == null) {
+            return null;
+        }
+        try {
+            String version = getVersions().get(itemType);
+            return version != null ? version : "";
+        } catch (RuntimeException e) {
+            logger.warn("Cannot read definition versions from the cluster: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a service that loaded its definitions at the specified version is up to date with the current version, that is if
+     * the versions are the same or if all the changes published since then were published by this node, and have therefore already been
+     * notified to the local listeners.
+     *
+     * @param itemType      the item type of the definitions
+     * @param loadedVersion the version at which the service loaded its definitions
+     * @param version       the current version, as returned by {@link #getVersion(String)}
+     * @return {@code true} if the service doesn't need to reload its definitions, {@code false} otherwise
+     */
+    public boolean isUpToDate(String itemType, String loadedVersion, String version) {
+        if (loadedVersion == null) {
+            return false;
+        }
+        for (int i = 0; version != null && i <= MAX_LOCAL_VERSIONS; i++) {
+            if (version.equals(loadedVersion)) {
+                return true;
+            }
+            version = localVersions.get(itemType + "/" + version);
+        }
+        return false;
+    }
+
+    @Override
+    public void handle(DefinitionChangeEvent event) {
+        if (eventSwitch.getStatus().equals(SwitchStatus.OFF)) {
+            return;
+        }
+        if (event.getSourceNode() != null && karafCellarClusterManager != null
+                && event.getSourceNode().getId().equals(karafCellarClusterManager.getNode().getId())) {
+            // local listeners have already been notified when the change was published
+            return;
+        }
+        if (event.getSourceGroup() != null && karafCellarGroupManager != null
+                && !karafCellarGroupManager.isLocalGroup(event.getSourceGroup().getName())) {
+            return;
+        }
+        logger.debug("Received {}", event);
+        notifyListeners(event.getItemType(), event.getItemId(), event.isRemoved());
+    }
+
+    @Override
+    public Class<DefinitionChangeEvent> getType() {
+        return DefinitionChangeEvent.class;
+    }
+
+    @Override
+    public Switch getSwitch() {
+        return eventSwitch;
+    }
+
+    private void notifyListeners(String itemType, String itemId, boolean removed) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onDefinitionChange(itemType, itemId, removed);
+            } catch (RuntimeException e) {
+                logger.error("Error while processing definition change for " + itemType + " " + itemId, e);
+            }
+        }
+    }
+
+    private Map<String, String> getVersions() {
+        return karafCellarClusterManager.getMap(DEFINITION_VERSIONS_MAP + Configurations.SEPARATOR + karafCellarGroupName);
+    }
+}
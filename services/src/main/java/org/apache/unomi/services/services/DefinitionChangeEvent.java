@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.karaf.cellar.core.event.Event;
+
+/**
+ * A cluster event sent by the {@link DefinitionChangeBus} when a definition (rule, segment, scoring, property type...) has been saved or
+ * removed on a node, so that the other nodes can update their in-memory copy of this definition.
+ */
+public class DefinitionChangeEvent extends Event {
+
+    private static final long serialVersionUID = -3925621532493658437L;
+
+    private String itemType;
+
+    private boolean removed;
+
+    public DefinitionChangeEvent(String itemType, String itemId, boolean removed) {
+        super(itemId);
+        this.itemType = itemType;
+        this.removed = removed;
+    }
+
+    public String getItemType() {
+        return itemType;
+    }
+
+    public String getItemId() {
+        return getId();
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return "DefinitionChangeEvent{itemType='" + itemType + "', itemId='" + getId() + "', removed=" + removed + '}';
+    }
+}
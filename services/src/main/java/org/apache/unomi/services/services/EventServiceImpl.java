@@ -22,12 +22,14 @@ import org.apache.unomi.api.Event;
 import org.apache.unomi.api.EventProperty;
 import org.apache.unomi.api.PartialList;
 import org.apache.unomi.api.Session;
+import org.apache.unomi.api.TraceSpan;
 import org.apache.unomi.api.actions.ActionPostExecutor;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventListenerService;
 import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.Tracer;
 import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -37,6 +39,8 @@ import org.slf4j.LoggerFactory;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class EventServiceImpl implements EventService {
     private static final Logger logger = LoggerFactory.getLogger(SegmentServiceImpl.class.getName());
@@ -55,6 +59,19 @@ public class EventServiceImpl implements EventService {
 
     private Map<String, ThirdPartyServer> thirdPartyServers = new HashMap<>();
 
+    /**
+     * Internal events which, when sent while another event is processed, are queued and processed once the current event is done
+     */
+    private static final Set<String> CASCADED_EVENT_TYPES = new HashSet<>(Arrays.asList("ruleFired", "profileUpdated"));
+
+    private final ThreadLocal<EventCascade> currentCascade = new ThreadLocal<>();
+
+    private final LongAdder cascadeCount = new LongAdder();
+    private final LongAdder cascadedEventCount = new LongAdder();
+    private final LongAdder deduplicatedEventCount = new LongAdder();
+    private final AtomicLong maxCascadeDepth = new AtomicLong();
+    private final AtomicLong maxCascadeFanOut = new AtomicLong();
+
     public void init() {
         logger.info("Event service initialized.");
     }
@@ -137,6 +154,45 @@ public class EventServiceImpl implements EventService {
     }
 
     public int send(Event event) {
+        EventCascade cascade = currentCascade.get();
+        if (cascade != null) {
+            if (CASCADED_EVENT_TYPES.contains(event.getEventType())) {
+                if (!cascade.enqueue(event)) {
+                    deduplicatedEventCount.increment();
+                }
+                // the changes made while processing the queued event will be returned by the send call that started the cascade
+                return NO_CHANGE;
+            }
+            return process(event);
+        }
+
+        cascade = new EventCascade();
+        currentCascade.set(cascade);
+        try {
+            cascade.markProcessed(event);
+            int changes = process(event);
+            // internal events are processed breadth-first, profileUpdated events last so that they see all the changes made to the profile
+            CascadedEvent cascadedEvent;
+            while ((cascadedEvent = cascade.poll()) != null) {
+                changes |= process(cascadedEvent.event);
+            }
+            updateCascadeStatistics(cascade);
+            return changes;
+        } finally {
+            currentCascade.remove();
+        }
+    }
+
+    private int process(Event event) {
+        TraceSpan span = Tracer.begin("event", event.getEventType());
+        try {
+            return doProcess(event);
+        } finally {
+            Tracer.end(span);
+        }
+    }
+
+    private int doProcess(Event event) {
         if (event.isPersistent()) {
             persistenceService.save(event);
         }
@@ -173,6 +229,30 @@ public class EventServiceImpl implements EventService {
         return changes;
     }
 
+    private void updateCascadeStatistics(EventCascade cascade) {
+        cascadeCount.increment();
+        cascadedEventCount.add(cascade.processedCount);
+        updateMax(maxCascadeDepth, cascade.maxDepth);
+        updateMax(maxCascadeFanOut, cascade.processedCount);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public Map<String, Long> getEventCascadeStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("cascades", cascadeCount.sum());
+        statistics.put("cascadedEvents", cascadedEventCount.sum());
+        statistics.put("deduplicatedEvents", deduplicatedEventCount.sum());
+        statistics.put("maxDepth", maxCascadeDepth.get());
+        statistics.put("maxFanOut", maxCascadeFanOut.get());
+        return statistics;
+    }
+
     @Override
     public List<EventProperty> getEventProperties() {
         Map<String, Map<String, Object>> mappings = persistenceService.getPropertiesMapping(Event.ITEM_TYPE);
@@ -289,4 +369,57 @@ public class EventServiceImpl implements EventService {
             eventListeners.remove(eventListenerService);
         }
     }
+
+    private static class CascadedEvent {
+        private final Event event;
+        private final int depth;
+
+        private CascadedEvent(Event event, int depth) {
+            this.event = event;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * The internal events produced while processing an external event, with at most one profileUpdated event per profile
+     */
+    private static class EventCascade {
+        private final Deque<CascadedEvent> queue = new ArrayDeque<>();
+        private final Deque<CascadedEvent> profileUpdates = new ArrayDeque<>();
+        private final Set<String> updatedProfileIds = new HashSet<>();
+        private int currentDepth = 0;
+        private int maxDepth = 0;
+        private int processedCount = 0;
+
+        private void markProcessed(Event event) {
+            if ("profileUpdated".equals(event.getEventType()) && event.getProfileId() != null) {
+                updatedProfileIds.add(event.getProfileId());
+            }
+        }
+
+        private boolean enqueue(Event event) {
+            if ("profileUpdated".equals(event.getEventType())) {
+                if (event.getProfileId() != null && !updatedProfileIds.add(event.getProfileId())) {
+                    return false;
+                }
+                profileUpdates.add(new CascadedEvent(event, currentDepth + 1));
+            } else {
+                queue.add(new CascadedEvent(event, currentDepth + 1));
+            }
+            return true;
+        }
+
+        private CascadedEvent poll() {
+            CascadedEvent cascadedEvent = queue.poll();
+            if (cascadedEvent == null) {
+                cascadedEvent = profileUpdates.poll();
+            }
+            if (cascadedEvent != null) {
+                currentDepth = cascadedEvent.depth;
+                maxDepth = Math.max(maxDepth, currentDepth);
+                processedCount++;
+            }
+            return cascadedEvent;
+        }
+    }
 }
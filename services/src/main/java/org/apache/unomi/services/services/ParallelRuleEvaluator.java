@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.unomi.persistence.spi.ConditionEvaluationScope;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates the conditions of the candidate rules of an event in parallel, on a bounded {@link ForkJoinPool}. The candidates are split in
+ * contiguous chunks, all of them evaluated in the concurrent {@link ConditionEvaluationScope} of the calling thread if it has one, so that
+ * shared sub-conditions are still evaluated once per event, and the results are returned in the order of the candidates so that the
+ * actions can still be executed by priority on the calling thread.
+ *
+ * When there are too few candidates for the split to pay off, or when the pool already has as many pending submissions as threads, the
+ * conditions are evaluated on the calling thread instead.
+ */
+public class ParallelRuleEvaluator {
+
+    /**
+     * The evaluation of the conditions of a single candidate. Implementations must only read the evaluated items.
+     *
+     * @param <T> the type of the candidates
+     */
+    public interface Matcher<T> {
+        boolean matches(T candidate);
+    }
+
+    private final ForkJoinPool pool;
+
+    private final int minimumCandidates;
+
+    public ParallelRuleEvaluator(int parallelism, int minimumCandidates) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.minimumCandidates = minimumCandidates;
+    }
+
+    /**
+     * Evaluates the specified candidates.
+     *
+     * @param candidates the candidates to evaluate
+     * @param matcher    the evaluation of a candidate
+     * @param <T>        the type of the candidates
+     * @return the results of the evaluations, in the order of the candidates
+     */
+    public <T> boolean[] evaluate(List<T> candidates, Matcher<T> matcher) {
+        boolean[] results = new boolean[candidates.size()];
+        ConditionEvaluationScope scope = ConditionEvaluationScope.current();
+        if (scope != null && !scope.isConcurrent()) {
+            scope = null;
+        }
+        if (candidates.size() < minimumCandidates || pool.getQueuedSubmissionCount() >= pool.getParallelism()) {
+            new EvaluationTask<T>(candidates, matcher, results, 0, candidates.size(), candidates.size(), scope).evaluate();
+        } else {
+            int chunkSize = Math.max(1, candidates.size() / (pool.getParallelism() * 2));
+            pool.invoke(new EvaluationTask<T>(candidates, matcher, results, 0, candidates.size(), chunkSize, scope));
+        }
+        return results;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class EvaluationTask<T> extends RecursiveAction {
+        private final List<T> candidates;
+        private final Matcher<T> matcher;
+        private final boolean[] results;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        private final ConditionEvaluationScope scope;
+
+        EvaluationTask(List<T> candidates, Matcher<T> matcher, boolean[] results, int from, int to, int chunkSize, ConditionEvaluationScope scope) {
+            this.candidates = candidates;
+            this.matcher = matcher;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+            this.scope = scope;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                evaluate();
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EvaluationTask<T>(candidates, matcher, results, from, middle, chunkSize, scope),
+                        new EvaluationTask<T>(candidates, matcher, results, middle, to, chunkSize, scope));
+            }
+        }
+
+        void evaluate() {
+            if (scope == null) {
+                ConditionEvaluationScope conditionEvaluationScope = ConditionEvaluationScope.open();
+                try {
+                    evaluateCandidates();
+                } finally {
+                    conditionEvaluationScope.close();
+                }
+                return;
+            }
+            ConditionEvaluationScope previousScope = scope.attach();
+            try {
+                evaluateCandidates();
+            } finally {
+                ConditionEvaluationScope.detach(previousScope);
+            }
+        }
+
+        private void evaluateCandidates() {
+            for (int i = from; i < to; i++) {
+                results[i] = matcher.matches(candidates.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.unomi.api.actions.Action;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.rules.Rule;
+import org.apache.unomi.api.services.DefinitionsService;
+import org.apache.unomi.services.actions.ActionExecutorDispatcher;
+import org.apache.unomi.services.actions.ActionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A rule along with the tagged parts of its condition and its action templates, which are prepared once when the rule is loaded instead
+ * of on each event.
+ */
+public class PreparedRule {
+
+    private final Rule rule;
+
+    private final boolean valid;
+
+    private final Condition eventCondition;
+
+    private final Condition sourceEventCondition;
+
+    private final Condition profileCondition;
+
+    private final Condition sessionCondition;
+
+    private final Condition trackedCondition;
+
+    private final List<ActionTemplate> actionTemplates;
+
+    public PreparedRule(Rule rule, DefinitionsService definitionsService, ActionExecutorDispatcher actionExecutorDispatcher) {
+        this.rule = rule;
+
+        Condition condition = rule.getCondition();
+        boolean valid = condition != null;
+        Condition eventCondition = null;
+        Condition sourceEventCondition = null;
+        Condition profileCondition = null;
+        Condition sessionCondition = null;
+        Condition trackedCondition = null;
+        if (valid) {
+            try {
+                eventCondition = definitionsService.extractConditionByTag(condition, "eventCondition");
+                sourceEventCondition = definitionsService.extractConditionByTag(condition, "sourceEventCondition");
+                profileCondition = definitionsService.extractConditionByTag(condition, "profileCondition");
+                sessionCondition = definitionsService.extractConditionByTag(condition, "sessionCondition");
+                trackedCondition = definitionsService.extractConditionByTag(condition, "trackedCondition");
+            } catch (IllegalArgumentException e) {
+                // the condition mixes tags in a way that cannot be split, the rule can never be evaluated
+                valid = false;
+            }
+        }
+        this.valid = valid;
+        this.eventCondition = eventCondition;
+        this.sourceEventCondition = sourceEventCondition;
+        this.profileCondition = profileCondition;
+        this.sessionCondition = sessionCondition;
+        this.trackedCondition = trackedCondition;
+
+        List<ActionTemplate> actionTemplates = new ArrayList<ActionTemplate>();
+        if (rule.getActions() != null) {
+            for (Action action : rule.getActions()) {
+                actionTemplates.add(actionExecutorDispatcher.compile(action));
+            }
+        }
+        this.actionTemplates = Collections.unmodifiableList(actionTemplates);
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
+
+    /**
+     * Determines whether the tagged conditions of this rule could be extracted.
+     *
+     * @return {@code true} if the tagged conditions could be extracted, {@code false} otherwise
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public Condition getEventCondition() {
+        return eventCondition;
+    }
+
+    public Condition getSourceEventCondition() {
+        return sourceEventCondition;
+    }
+
+    public Condition getProfileCondition() {
+        return profileCondition;
+    }
+
+    public Condition getSessionCondition() {
+        return sessionCondition;
+    }
+
+    public Condition getTrackedCondition() {
+        return trackedCondition;
+    }
+
+    public List<ActionTemplate> getActionTemplates() {
+        return actionTemplates;
+    }
+}
@@ -32,6 +32,7 @@ import org.apache.unomi.api.services.SegmentService;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.persistence.spi.PropertyHelper;
+import org.apache.unomi.persistence.spi.UnitOfWork;
 import org.osgi.framework.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,7 +41,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.*;
 
-public class ProfileServiceImpl implements ProfileService, SynchronousBundleListener {
+public class ProfileServiceImpl implements ProfileService, SynchronousBundleListener, DefinitionChangeBus.Listener {
 
     private static final Logger logger = LoggerFactory.getLogger(ProfileServiceImpl.class.getName());
 
@@ -54,6 +55,8 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
 
     private QueryService queryService;
 
+    private DefinitionChangeBus definitionChangeBus;
+
     private Condition purgeProfileQuery;
     private Integer purgeProfileExistTime = 0;
     private Integer purgeProfileInactiveTime = 0;
@@ -64,8 +67,28 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
 
     private Timer purgeProfileTimer;
 
+    private long definitionsRefreshInterval = 60000L;
+
+    private final Object propertyTypesLock = new Object();
+
     private List<PropertyType> allPropertyTypes;
 
+    private String loadedPropertyTypesVersion;
+
+    private boolean writeBehind = false;
+
+    private long writeBehindWindowInMillis = 1000L;
+
+
+    private volatile WriteBehindBuffer writeBehindBuffer;
+
+    private final UnitOfWork.ItemWriter itemWriter = new UnitOfWork.ItemWriter() {
+        @Override
+        public boolean save(Item item) {
+            return writeItem(item);
+        }
+    };
+
     public ProfileServiceImpl() {
         logger.info("Initializing profile service...");
     }
@@ -86,9 +109,29 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         this.segmentService = segmentService;
     }
 
+    public void setDefinitionChangeBus(DefinitionChangeBus definitionChangeBus) {
+        this.definitionChangeBus = definitionChangeBus;
+    }
+
+    public void setDefinitionsRefreshInterval(long definitionsRefreshInterval) {
+        this.definitionsRefreshInterval = definitionsRefreshInterval;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public void setWriteBehindWindowInMillis(long writeBehindWindowInMillis) {
+        this.writeBehindWindowInMillis = writeBehindWindowInMillis;
+    }
+
     public void postConstruct() {
         logger.debug("postConstruct {" + bundleContext.getBundle() + "}");
 
+        if (writeBehind) {
+            writeBehindBuffer = new WriteBehindBuffer(persistenceService, writeBehindWindowInMillis);
+        }
+        definitionChangeBus.addListener(this);
         processBundleStartup(bundleContext);
         for (Bundle bundle : bundleContext.getBundles()) {
             if (bundle.getBundleContext() != null) {
@@ -103,8 +146,14 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
 
     public void preDestroy() {
         bundleContext.removeBundleListener(this);
+        definitionChangeBus.removeListener(this);
         cancelPurge();
         cancelPropertyTypeLoad();
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null) {
+            writeBehindBuffer = null;
+            buffer.shutdown();
+        }
         logger.info("Profile service shutdown.");
     }
 
@@ -145,14 +194,55 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
             @Override
             public void run() {
                 try {
-                    allPropertyTypes = persistenceService.getAllItems(PropertyType.class);
+                    reloadPropertyTypesIfChanged();
                 } catch (Exception e) {
                     logger.error(e.getMessage(), e);
                 }
             }
         };
-        allPropertyTypesTimer.scheduleAtFixedRate(task, 0, 5000);
-        logger.info("Scheduled task for property type loading each 5s");
+        allPropertyTypesTimer.scheduleAtFixedRate(task, 0, definitionsRefreshInterval);
+        logger.info("Scheduled task for property type version check each {}ms", definitionsRefreshInterval);
+    }
+
+    /**
+     * Reloads all the property types, unless the cluster-wide version shows that no change has been published since the last load.
+     */
+    private void reloadPropertyTypesIfChanged() {
+        String version = definitionChangeBus.getVersion(PropertyType.ITEM_TYPE);
+        synchronized (propertyTypesLock) {
+            if (allPropertyTypes != null && definitionChangeBus.isUpToDate(PropertyType.ITEM_TYPE, loadedPropertyTypesVersion, version)) {
+                loadedPropertyTypesVersion = version;
+                return;
+            }
+            if (allPropertyTypes != null) {
+                // make sure the changes made on other nodes are visible to the query
+                persistenceService.refresh();
+            }
+            allPropertyTypes = persistenceService.getAllItems(PropertyType.class);
+            loadedPropertyTypesVersion = version;
+        }
+    }
+
+    public void onDefinitionChange(String itemType, String itemId, boolean removed) {
+        if (!PropertyType.ITEM_TYPE.equals(itemType)) {
+            return;
+        }
+        PropertyType propertyType = removed ? null : persistenceService.load(itemId, PropertyType.class);
+        synchronized (propertyTypesLock) {
+            if (allPropertyTypes == null) {
+                return;
+            }
+            List<PropertyType> propertyTypes = new ArrayList<PropertyType>(allPropertyTypes.size() + 1);
+            for (PropertyType existingPropertyType : allPropertyTypes) {
+                if (!itemId.equals(existingPropertyType.getItemId())) {
+                    propertyTypes.add(existingPropertyType);
+                }
+            }
+            if (propertyType != null) {
+                propertyTypes.add(propertyType);
+            }
+            allPropertyTypes = propertyTypes;
+        }
     }
 
     private void cancelPropertyTypeLoad() {
@@ -253,6 +343,11 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         return persistenceService.getAllItemsCount(Profile.ITEM_TYPE);
     }
 
+    public Map<String, Long> getWriteBehindStatistics() {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        return buffer != null ? buffer.getStatistics() : Collections.<String, Long>emptyMap();
+    }
+
     public <T extends Profile> PartialList<T> search(Query query, final Class<T> clazz) {
         return doSearch(query, clazz);
     }
@@ -280,17 +375,25 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
     @Override
     public boolean setPropertyType(PropertyType property) {
         PropertyType previousProperty = persistenceService.load(property.getItemId(), PropertyType.class);
+        boolean saved = false;
         if (previousProperty == null) {
-            return persistenceService.save(property);
+            saved = persistenceService.save(property);
         } else if (merge(previousProperty, property)) {
-            return persistenceService.save(previousProperty);
+            saved = persistenceService.save(previousProperty);
         }
-        return false;
+        if (saved) {
+            definitionChangeBus.publish(PropertyType.ITEM_TYPE, property.getItemId(), false);
+        }
+        return saved;
     }
 
     @Override
     public boolean deletePropertyType(String propertyId) {
-        return persistenceService.remove(propertyId, PropertyType.class);
+        boolean removed = persistenceService.remove(propertyId, PropertyType.class);
+        if (removed) {
+            definitionChangeBus.publish(PropertyType.ITEM_TYPE, propertyId, true);
+        }
+        return removed;
     }
 
     @Override
@@ -388,23 +491,63 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
     }
 
     public Profile load(String profileId) {
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork == null) {
+            return loadProfile(profileId);
+        }
+        Profile profile = unitOfWork.get(profileId, Profile.class);
+        if (profile == null) {
+            profile = loadProfile(profileId);
+            unitOfWork.put(Profile.class, profile);
+        }
+        return profile;
+    }
+
+    private Profile loadProfile(String profileId) {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null) {
+            Item profile = buffer.get(Profile.ITEM_TYPE, profileId);
+            if (profile instanceof Profile) {
+                return (Profile) profile;
+            }
+        }
         return persistenceService.load(profileId, Profile.class);
     }
 
+    /**
+     * Writes a profile or a session, behind the current request if write-behind is enabled.
+     */
+    private boolean writeItem(Item item) {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null && (item instanceof Session || (item instanceof Profile && !(item instanceof Persona)))) {
+            return buffer.put(item);
+        }
+        return persistenceService.save(item);
+    }
+
     public Profile save(Profile profile) {
         if (profile.getItemId() == null) {
             return null;
         }
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork != null) {
+            // the profile is written once, when the request completes
+            unitOfWork.save(Profile.class, profile, itemWriter);
+            return profile;
+        }
+        if (writeBehindBuffer != null) {
+            return writeItem(profile) ? profile : null;
+        }
         persistenceService.save(profile);
         return persistenceService.load(profile.getItemId(), Profile.class);
     }
 
     public boolean saveOrMerge(Profile profile) {
-        Profile previousProfile = persistenceService.load(profile.getItemId(), Profile.class);
+        Profile previousProfile = loadProfile(profile.getItemId());
         if (previousProfile == null) {
-            return persistenceService.save(profile);
+            return writeItem(profile);
         } else if (merge(previousProfile, profile)) {
-            return persistenceService.save(previousProfile);
+            return writeItem(previousProfile);
         }
 
         return false;
@@ -430,8 +573,18 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
             mergeCondition.setParameter("propertyName", "mergedWith");
             mergeCondition.setParameter("comparisonOperator", "equals");
             mergeCondition.setParameter("propertyValue", profileId);
+            WriteBehindBuffer buffer = writeBehindBuffer;
+            if (buffer != null) {
+                // the buffered saves would recreate the profiles once removed
+                buffer.remove(Profile.ITEM_TYPE, mergeCondition);
+                buffer.remove(Profile.ITEM_TYPE, profileId);
+            }
             persistenceService.removeByQuery(mergeCondition, Profile.class);
 
+            UnitOfWork unitOfWork = UnitOfWork.current();
+            if (unitOfWork != null) {
+                unitOfWork.evict(profileId, Profile.class);
+            }
             persistenceService.remove(profileId, Profile.class);
         }
     }
@@ -452,6 +605,8 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         }
 
         profilesToMerge = filteredProfilesToMerge;
+        // the events of the merged profiles were not recorded on the master profile
+        RaisedEventDeduplicator.markIncomplete(masterProfile);
 
         Set<String> allProfileProperties = new LinkedHashSet<>();
         for (Profile profile : profilesToMerge) {
@@ -530,7 +685,18 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
     }
 
     public Session loadSession(String sessionId, Date dateHint) {
-        Session s = persistenceService.load(sessionId, dateHint, Session.class);
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        Session s = unitOfWork != null ? unitOfWork.get(sessionId, Session.class) : null;
+        if (s != null) {
+            return s;
+        }
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        Item bufferedSession = buffer != null ? buffer.get(Session.ITEM_TYPE, sessionId) : null;
+        if (bufferedSession instanceof Session) {
+            s = (Session) bufferedSession;
+        } else {
+            s = persistenceService.load(sessionId, dateHint, Session.class);
+        }
         if (s == null && dateHint != null) {
             GregorianCalendar gc = new GregorianCalendar();
             gc.setTime(dateHint);
@@ -539,6 +705,9 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
                 s = persistenceService.load(sessionId, gc.getTime(), Session.class);
             }
         }
+        if (unitOfWork != null) {
+            unitOfWork.put(Session.class, s);
+        }
         return s;
     }
 
@@ -546,7 +715,12 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         if (session.getItemId() == null) {
             return null;
         }
-        return persistenceService.save(session) ? session : null;
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork != null) {
+            unitOfWork.save(Session.class, session, itemWriter);
+            return session;
+        }
+        return writeItem(session) ? session : null;
     }
 
     public PartialList<Session> findProfileSessions(String profileId) {
@@ -765,6 +939,7 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
                     propertyType.setTarget(target);
 
                     persistenceService.save(propertyType);
+                    definitionChangeBus.publish(PropertyType.ITEM_TYPE, propertyType.getItemId(), false);
                 }
             } catch (IOException e) {
                 logger.error("Error while loading properties " + predefinedPropertyTypeURL, e);
@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.Session;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.rules.Rule;
+import org.apache.unomi.api.services.EventService;
+
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks whether the event matched by a {@code raiseEventOnlyOnce} rule has already been raised for the profile or the session, querying the
+ * events index only when the answer cannot be found locally.
+ *
+ * The events seen by these rules are recorded as 64-bit fingerprints of their type and target in the {@code raisedEvents} system property of
+ * the profile and of the session. A recorded fingerprint means that the event has been raised. A missing one is only conclusive when all the
+ * events of the profile or session went through the rule: it must have been created after the rule was loaded on this node (plus one refresh
+ * interval, for the other nodes of the cluster to load it too), and its fingerprints must neither have been truncated nor come from a profile
+ * merge. The fingerprints seen on this node are also kept in a bounded cache, for the profiles and sessions that have not been saved yet.
+ */
+public class RaisedEventDeduplicator {
+
+    public static final String RAISED_EVENTS = "raisedEvents";
+
+    private static final String FINGERPRINTS = "fingerprints";
+    private static final String COMPLETE = "complete";
+
+    private static final int MAX_FINGERPRINTS = 1000;
+    private static final int MAX_CACHED_FINGERPRINTS = 50000;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final EventService eventService;
+
+    private final long refreshInterval;
+
+    private volatile Map<String, RuleEntry> rules = Collections.emptyMap();
+
+    private final Map<Long, Boolean> cachedFingerprints = Collections.synchronizedMap(new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_CACHED_FINGERPRINTS;
+        }
+    });
+
+    private final LongAdder cacheHitCount = new LongAdder();
+    private final LongAdder recordedHitCount = new LongAdder();
+    private final LongAdder notRaisedCount = new LongAdder();
+    private final LongAdder queryCount = new LongAdder();
+
+    public RaisedEventDeduplicator(EventService eventService, long refreshInterval) {
+        this.eventService = eventService;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Updates the time since which each {@code raiseEventOnlyOnce} rule has been loaded, keeping the previous one for the rules which scope
+     * and event condition did not change.
+     *
+     * @param preparedRules all the rules
+     */
+    public void updateRules(List<PreparedRule> preparedRules) {
+        long now = System.currentTimeMillis();
+        Map<String, RuleEntry> previousRules = rules;
+        Map<String, RuleEntry> newRules = new HashMap<String, RuleEntry>();
+        for (PreparedRule preparedRule : preparedRules) {
+            Rule rule = preparedRule.getRule();
+            if (!rule.getMetadata().isEnabled() || (!rule.isRaiseEventOnlyOnceForProfile() && !rule.isRaiseEventOnlyOnceForSession())) {
+                continue;
+            }
+            RuleEntry entry = previousRules.get(rule.getItemId());
+            if (entry == null || !entry.isSame(rule.getMetadata().getScope(), preparedRule.getEventCondition())) {
+                entry = new RuleEntry(rule.getMetadata().getScope(), preparedRule.getEventCondition(), now);
+            }
+            newRules.put(rule.getItemId(), entry);
+        }
+        rules = newRules;
+    }
+
+    /**
+     * Checks whether the specified event has already been raised for its profile or session.
+     *
+     * @param event   the event matched by the rule
+     * @param rule    the rule
+     * @param session {@code true} to check the session, {@code false} to check the profile
+     * @return {@code true} if the event has already been raised
+     * @see EventService#hasEventAlreadyBeenRaised(Event, boolean)
+     */
+    public boolean hasEventAlreadyBeenRaised(Event event, Rule rule, boolean session) {
+        Item owner = session ? event.getSession() : event.getProfile();
+        if (owner == null || event.getTarget() == null) {
+            queryCount.increment();
+            return eventService.hasEventAlreadyBeenRaised(event, session);
+        }
+        long fingerprint = getFingerprint(event);
+        long cacheKey = hash(fingerprint, owner.getItemType() + ":" + owner.getItemId());
+        if (cachedFingerprints.containsKey(cacheKey)) {
+            cacheHitCount.increment();
+            return true;
+        }
+
+        Map<String, Object> raisedEvents = getRaisedEvents(owner);
+        if (raisedEvents != null && containsFingerprint(raisedEvents, fingerprint)) {
+            recordedHitCount.increment();
+            cachedFingerprints.put(cacheKey, Boolean.TRUE);
+            return true;
+        }
+
+        RuleEntry ruleEntry = rules.get(rule.getItemId());
+        Date creationDate = getCreationDate(owner);
+        if ((raisedEvents == null || Boolean.TRUE.equals(raisedEvents.get(COMPLETE))) && ruleEntry != null && creationDate != null
+                && creationDate.getTime() >= ruleEntry.since + refreshInterval) {
+            notRaisedCount.increment();
+            return false;
+        }
+
+        queryCount.increment();
+        boolean raised = eventService.hasEventAlreadyBeenRaised(event, session);
+        if (raised) {
+            cachedFingerprints.put(cacheKey, Boolean.TRUE);
+        }
+        return raised;
+    }
+
+    /**
+     * Records the specified event as raised for its profile and/or session.
+     *
+     * @param event   the event
+     * @param profile {@code true} to record the event on the profile
+     * @param session {@code true} to record the event on the session
+     * @return the changes made to the profile and session, as {@link EventService} flags
+     */
+    public int recordRaisedEvent(Event event, boolean profile, boolean session) {
+        if (event.getTarget() == null) {
+            return EventService.NO_CHANGE;
+        }
+        long fingerprint = getFingerprint(event);
+        int changes = EventService.NO_CHANGE;
+        if (profile && event.getProfile() != null && recordFingerprint(event.getProfile(), fingerprint)) {
+            changes |= EventService.PROFILE_UPDATED;
+        }
+        if (session && event.getSession() != null && recordFingerprint(event.getSession(), fingerprint)) {
+            changes |= EventService.SESSION_UPDATED;
+        }
+        return changes;
+    }
+
+    /**
+     * Marks the events recorded on the specified profile as incomplete, when events of other profiles are merged into it.
+     *
+     * @param profile the profile
+     */
+    public static void markIncomplete(Profile profile) {
+        Map<String, Object> raisedEvents = getOrCreateRaisedEvents(profile.getSystemProperties());
+        raisedEvents.put(COMPLETE, false);
+    }
+
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("raisedEvents.cacheHits", cacheHitCount.sum());
+        statistics.put("raisedEvents.recordedHits", recordedHitCount.sum());
+        statistics.put("raisedEvents.notRaised", notRaisedCount.sum());
+        statistics.put("raisedEvents.queries", queryCount.sum());
+        statistics.put("raisedEvents.cached", (long) cachedFingerprints.size());
+        return statistics;
+    }
+
+    private boolean recordFingerprint(Item owner, long fingerprint) {
+        cachedFingerprints.put(hash(fingerprint, owner.getItemType() + ":" + owner.getItemId()), Boolean.TRUE);
+        Map<String, Object> systemProperties = getSystemProperties(owner);
+        Map<String, Object> raisedEvents = getOrCreateRaisedEvents(systemProperties);
+        if (containsFingerprint(raisedEvents, fingerprint)) {
+            return false;
+        }
+        @SuppressWarnings("unchecked")
+        List<Object> fingerprints = (List<Object>) raisedEvents.get(FINGERPRINTS);
+        if (fingerprints.size() >= MAX_FINGERPRINTS) {
+            // the missing fingerprints cannot be trusted anymore, the events index will be queried
+            if (Boolean.TRUE.equals(raisedEvents.get(COMPLETE))) {
+                raisedEvents.put(COMPLETE, false);
+                return true;
+            }
+            return false;
+        }
+        fingerprints.add(fingerprint);
+        return true;
+    }
+
+    private static Map<String, Object> getRaisedEvents(Item owner) {
+        Object raisedEvents = getSystemProperties(owner).get(RAISED_EVENTS);
+        if (raisedEvents instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = (Map<String, Object>) raisedEvents;
+            return map;
+        }
+        return null;
+    }
+
+    private static Map<String, Object> getOrCreateRaisedEvents(Map<String, Object> systemProperties) {
+        Object value = systemProperties.get(RAISED_EVENTS);
+        Map<String, Object> raisedEvents;
+        if (value instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = (Map<String, Object>) value;
+            raisedEvents = map;
+        } else {
+            raisedEvents = new LinkedHashMap<String, Object>();
+            raisedEvents.put(COMPLETE, true);
+            systemProperties.put(RAISED_EVENTS, raisedEvents);
+        }
+        if (!(raisedEvents.get(FINGERPRINTS) instanceof List)) {
+            raisedEvents.put(FINGERPRINTS, new ArrayList<Object>());
+        }
+        return raisedEvents;
+    }
+
+    private static boolean containsFingerprint(Map<String, Object> raisedEvents, long fingerprint) {
+        Object fingerprints = raisedEvents.get(FINGERPRINTS);
+        if (fingerprints instanceof List) {
+            for (Object value : (List<?>) fingerprints) {
+                if (value instanceof Number && ((Number) value).longValue() == fingerprint) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, Object> getSystemProperties(Item owner) {
+        return owner instanceof Session ? ((Session) owner).getSystemProperties() : ((Profile) owner).getSystemProperties();
+    }
+
+    private static Date getCreationDate(Item owner) {
+        if (owner instanceof Session) {
+            return ((Session) owner).getTimeStamp();
+        }
+        Object firstVisit = ((Profile) owner).getProperty("firstVisit");
+        if (firstVisit instanceof Date) {
+            return (Date) firstVisit;
+        } else if (firstVisit instanceof Number) {
+            return new Date(((Number) firstVisit).longValue());
+        } else if (firstVisit instanceof String) {
+            try {
+                return ISO8601Utils.parse((String) firstVisit, new ParsePosition(0));
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static long getFingerprint(Event event) {
+        long hash = hash(FNV_OFFSET_BASIS, event.getEventType());
+        hash = hash(hash, event.getTarget().getItemType());
+        return hash(hash, event.getTarget().getItemId());
+    }
+
+    /**
+     * FNV-1a hash of the characters of the specified string, followed by a separator.
+     */
+    private static long hash(long hash, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                hash ^= s.charAt(i);
+                hash *= FNV_PRIME;
+            }
+        }
+        hash ^= 0xffff;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+    private static class RuleEntry {
+        private final String scope;
+        private final Condition eventCondition;
+        private final long since;
+
+        RuleEntry(String scope, Condition eventCondition, long since) {
+            this.scope = scope;
+            this.eventCondition = eventCondition;
+            this.since = since;
+        }
+
+        boolean isSame(String scope, Condition eventCondition) {
+            return this.scope.equals(scope) && (this.eventCondition == null ? eventCondition == null : this.eventCondition.equals(eventCondition));
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+import org.apache.unomi.api.rules.Rule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * An immutable index of the enabled rules, by scope and by event type. The event types are read from the {@code eventTypeCondition} (or any
+ * {@code eventPropertyCondition} on the {@code eventType} property) found in the {@code eventCondition} part of each rule. Rules for which no
+ * event type can be determined are stored in a separate "any event type" bucket and are candidates for all events.
+ *
+ * Rules without any event condition, or which tagged conditions could not be extracted, are never matched and are therefore left out of
+ * the index. Candidates are always returned in the order of the list the index was built from, so that rule priorities are preserved.
+ */
+public class RuleIndex {
+
+    public static final String ANY_EVENT_TYPE = "*";
+
+    private static final Logger logger = LoggerFactory.getLogger(RuleIndex.class.getName());
+
+    private static final int[] EMPTY_BUCKET = new int[0];
+
+    private final PreparedRule[] rules;
+
+    private final Map<String, Map<String, int[]>> bucketsByScope = new HashMap<>();
+
+    private final Map<String, int[]> allRulesByScope = new HashMap<>();
+
+    public RuleIndex(List<PreparedRule> rules) {
+        this.rules = rules.toArray(new PreparedRule[rules.size()]);
+
+        Map<String, Map<String, List<Integer>>> buckets = new HashMap<>();
+        Map<String, List<Integer>> allRules = new HashMap<>();
+        for (int i = 0; i < this.rules.length; i++) {
+            Rule rule = this.rules[i].getRule();
+            if (!rule.getMetadata().isEnabled()) {
+                continue;
+            }
+            if (!this.rules[i].isValid()) {
+                logger.warn("Cannot extract tagged conditions from rule " + rule.getItemId() + ", it will not be evaluated");
+                continue;
+            }
+            Condition eventCondition = this.rules[i].getEventCondition();
+            if (eventCondition == null) {
+                continue;
+            }
+            Set<String> eventTypes = getEventTypes(eventCondition, Collections.<String, Object>emptyMap());
+            String scope = rule.getMetadata().getScope();
+            addToBucket(allRules, scope, i);
+            Map<String, List<Integer>> scopeBuckets = buckets.get(scope);
+            if (scopeBuckets == null) {
+                scopeBuckets = new HashMap<>();
+                buckets.put(scope, scopeBuckets);
+            }
+            if (eventTypes == null) {
+                addToBucket(scopeBuckets, ANY_EVENT_TYPE, i);
+            } else {
+                for (String eventType : eventTypes) {
+                    addToBucket(scopeBuckets, eventType, i);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Map<String, List<Integer>>> scopeEntry : buckets.entrySet()) {
+            Map<String, int[]> scopeBuckets = new HashMap<>();
+            for (Map.Entry<String, List<Integer>> bucketEntry : scopeEntry.getValue().entrySet()) {
+                scopeBuckets.put(bucketEntry.getKey(), toArray(bucketEntry.getValue()));
+            }
+            bucketsByScope.put(scopeEntry.getKey(), scopeBuckets);
+        }
+        for (Map.Entry<String, List<Integer>> entry : allRules.entrySet()) {
+            allRulesByScope.put(entry.getKey(), toArray(entry.getValue()));
+        }
+    }
+
+    /**
+     * Retrieves the rules that may match the specified event, based on its scope and event type, in priority order.
+     *
+     * @param event the event for which we want to retrieve candidate rules
+     * @return the list of candidate rules
+     */
+    public List<PreparedRule> getCandidateRules(Event event) {
+        String scope = event.getScope();
+        boolean includeScope = scope != null && !Metadata.SYSTEM_SCOPE.equals(scope);
+        String eventType = event.getEventType();
+
+        if (eventType != null && !isAscii(eventType)) {
+            // the event type may match an accented condition value once folded, we have to look at all rules
+            return merge(getAllRules(Metadata.SYSTEM_SCOPE),
+                    includeScope ? getAllRules(scope) : EMPTY_BUCKET);
+        }
+
+        String eventTypeKey = eventType != null ? eventType.toLowerCase() : null;
+        return merge(getBucket(Metadata.SYSTEM_SCOPE, ANY_EVENT_TYPE),
+                eventTypeKey != null ? getBucket(Metadata.SYSTEM_SCOPE, eventTypeKey) : EMPTY_BUCKET,
+                includeScope ? getBucket(scope, ANY_EVENT_TYPE) : EMPTY_BUCKET,
+                includeScope && eventTypeKey != null ? getBucket(scope, eventTypeKey) : EMPTY_BUCKET);
+    }
+
+    /**
+     * Determines whether any rule may match the specified event, based on its scope and event type.
+     *
+     * @param event the event to check
+     * @return {@code true} if at least one rule is a candidate for this event, {@code false} otherwise
+     */
+    public boolean hasCandidateRules(Event event) {
+        String scope = event.getScope();
+        boolean includeScope = scope != null && !Metadata.SYSTEM_SCOPE.equals(scope);
+        String eventType = event.getEventType();
+
+        if (eventType != null && !isAscii(eventType)) {
+            return getAllRules(Metadata.SYSTEM_SCOPE).length > 0 || (includeScope && getAllRules(scope).length > 0);
+        }
+
+        String eventTypeKey = eventType != null ? eventType.toLowerCase() : null;
+        return getBucket(Metadata.SYSTEM_SCOPE, ANY_EVENT_TYPE).length > 0
+                || (eventTypeKey != null && getBucket(Metadata.SYSTEM_SCOPE, eventTypeKey).length > 0)
+                || (includeScope && getBucket(scope, ANY_EVENT_TYPE).length > 0)
+                || (includeScope && eventTypeKey != null && getBucket(scope, eventTypeKey).length > 0);
+    }
+
+    /**
+     * Retrieves the number of rules in each bucket of this index. Keys are built as {@code scope/eventType}, {@link #ANY_EVENT_TYPE} being
+     * used for rules that apply to any event type.
+     *
+     * @return a map of bucket keys to the number of rules in the bucket
+     */
+    public Map<String, Integer> getBucketSizes() {
+        Map<String, Integer> bucketSizes = new TreeMap<>();
+        for (Map.Entry<String, Map<String, int[]>> scopeEntry : bucketsByScope.entrySet()) {
+            for (Map.Entry<String, int[]> bucketEntry : scopeEntry.getValue().entrySet()) {
+                bucketSizes.put(scopeEntry.getKey() + "/" + bucketEntry.getKey(), bucketEntry.getValue().length);
+            }
+        }
+        return bucketSizes;
+    }
+
+    /**
+     * Retrieves the total number of rules this index was built from, including disabled rules.
+     *
+     * @return the total number of rules
+     */
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    private int[] getBucket(String scope, String key) {
+        Map<String, int[]> scopeBuckets = bucketsByScope.get(scope);
+        if (scopeBuckets == null) {
+            return EMPTY_BUCKET;
+        }
+        int[] bucket = scopeBuckets.get(key);
+        return bucket != null ? bucket : EMPTY_BUCKET;
+    }
+
+    private int[] getAllRules(String scope) {
+        int[] bucket = allRulesByScope.get(scope);
+        return bucket != null ? bucket : EMPTY_BUCKET;
+    }
+
+    /**
+     * Merges sorted and disjoint buckets of rule positions, keeping the original rule order.
+     */
+    private List<PreparedRule> merge(int[]... buckets) {
+        int total = 0;
+        for (int[] bucket : buckets) {
+            total += bucket.length;
+        }
+        List<PreparedRule> result = new ArrayList<>(total);
+        int[] positions = new int[buckets.length];
+        for (int n = 0; n < total; n++) {
+            int best = -1;
+            for (int b = 0; b < buckets.length; b++) {
+                if (positions[b] < buckets[b].length && (best == -1 || buckets[b][positions[b]] < buckets[best][positions[best]])) {
+                    best = b;
+                }
+            }
+            result.add(rules[buckets[best][positions[best]++]]);
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves the set of event types the specified event condition is restricted to, or {@code null} if it may match any event type.
+     * Values are lower cased, as string comparisons in property conditions are case insensitive.
+     */
+    @SuppressWarnings("unchecked")
+    static Set<String> getEventTypes(Condition condition, Map<String, Object> context) {
+        ConditionType conditionType = condition.getConditionType();
+        if (conditionType == null) {
+            return null;
+        }
+        if (conditionType.getParentCondition() != null) {
+            Map<String, Object> parentContext = new HashMap<>(context);
+            parentContext.putAll(condition.getParameterValues());
+            return getEventTypes(conditionType.getParentCondition(), parentContext);
+        }
+
+        String conditionTypeId = condition.getConditionTypeId();
+        if ("booleanCondition".equals(conditionTypeId)) {
+            Object operator = resolveParameter(condition.getParameter("operator"), context);
+            Object subConditions = condition.getParameter("subConditions");
+            if (!(subConditions instanceof List)) {
+                return null;
+            }
+            boolean isAnd = "and".equalsIgnoreCase((String) operator);
+            Set<String> result = null;
+            for (Object subCondition : (List<Object>) subConditions) {
+                if (!(subCondition instanceof Condition)) {
+                    return null;
+                }
+                Set<String> subEventTypes = getEventTypes((Condition) subCondition, context);
+                if (isAnd) {
+                    if (subEventTypes != null) {
+                        if (result == null) {
+                            result = new HashSet<>(subEventTypes);
+                        } else {
+                            result.retainAll(subEventTypes);
+                        }
+                    }
+                } else {
+                    if (subEventTypes == null) {
+                        return null;
+                    }
+                    if (result == null) {
+                        result = new HashSet<>();
+                    }
+                    result.addAll(subEventTypes);
+                }
+            }
+            return result;
+        } else if ("eventPropertyCondition".equals(conditionTypeId) && "eventType".equals(resolveParameter(condition.getParameter("propertyName"), context))) {
+            Object operator = resolveParameter(condition.getParameter("comparisonOperator"), context);
+            if ("equals".equals(operator)) {
+                Object value = resolveParameter(condition.getParameter("propertyValue"), context);
+                if (value instanceof String && isAscii((String) value)) {
+                    return Collections.singleton(((String) value).toLowerCase());
+                }
+            } else if ("in".equals(operator)) {
+                Object values = resolveParameter(condition.getParameter("propertyValues"), context);
+                if (values instanceof List && !((List<Object>) values).isEmpty()) {
+                    Set<String> result = new HashSet<>();
+                    for (Object value : (List<Object>) values) {
+                        value = resolveParameter(value, context);
+                        if (!(value instanceof String) || !isAscii((String) value)) {
+                            return null;
+                        }
+                        result.add(((String) value).toLowerCase());
+                    }
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Object resolveParameter(Object value, Map<String, Object> context) {
+        if (value instanceof String) {
+            String s = (String) value;
+            if (s.startsWith("parameter::")) {
+                return context.get(s.substring("parameter::".length()));
+            } else if (s.startsWith("script::")) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addToBucket(Map<String, List<Integer>> buckets, String key, int position) {
+        List<Integer> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(position);
+    }
+
+    private static int[] toArray(List<Integer> positions) {
+        int[] result = new int[positions.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = positions.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.unomi.api.rules.RuleStatistics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The statistics of a rule collected on this node since the last synchronization with the persisted {@link RuleStatistics}. Counters are
+ * striped {@link LongAdder}s so that concurrent requests never lose updates nor contend on a lock, times are recorded in nanoseconds.
+ */
+public class RuleStatisticsCounters {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final String ruleId;
+
+    private final LongAdder executionCount = new LongAdder();
+    private final LongAdder conditionsNanos = new LongAdder();
+    private final LongAdder actionsNanos = new LongAdder();
+
+    private final LatencyHistogram conditionsHistogram = new LatencyHistogram();
+    private final LatencyHistogram actionsHistogram = new LatencyHistogram();
+
+    public RuleStatisticsCounters(String ruleId) {
+        this.ruleId = ruleId;
+    }
+
+    public String getRuleId() {
+        return ruleId;
+    }
+
+    public void recordConditions(long nanos) {
+        conditionsNanos.add(nanos);
+        conditionsHistogram.record(nanos);
+    }
+
+    public void recordExecution(long actionsNanos) {
+        executionCount.increment();
+        this.actionsNanos.add(actionsNanos);
+        actionsHistogram.record(actionsNanos);
+    }
+
+    public LatencyHistogram getConditionsHistogram() {
+        return conditionsHistogram;
+    }
+
+    public LatencyHistogram getActionsHistogram() {
+        return actionsHistogram;
+    }
+
+    /**
+     * Copies the values not synchronized yet into the local fields of the specified statistics. Times are converted to milliseconds.
+     *
+     * @param ruleStatistics the statistics to update
+     */
+    public void copyLocalValues(RuleStatistics ruleStatistics) {
+        ruleStatistics.setLocalExecutionCount(executionCount.sum());
+        ruleStatistics.setLocalConditionsTime(conditionsNanos.sum() / NANOS_PER_MILLI);
+        ruleStatistics.setLocalActionsTime(actionsNanos.sum() / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Adds the values not synchronized yet to the totals of the specified statistics and removes them from these counters. Sub-millisecond
+     * remainders of times are kept for the next synchronization. Updates made concurrently are never lost, they are either included in
+     * this drain or kept for the next one.
+     *
+     * @param ruleStatistics the statistics to update
+     * @return {@code true} if the statistics were modified, {@code false} if there was nothing to add
+     */
+    public boolean drainTo(RuleStatistics ruleStatistics) {
+        long executions = executionCount.sum();
+        executionCount.add(-executions);
+        long conditionsMillis = conditionsNanos.sum() / NANOS_PER_MILLI;
+        conditionsNanos.add(-conditionsMillis * NANOS_PER_MILLI);
+        long actionsMillis = actionsNanos.sum() / NANOS_PER_MILLI;
+        actionsNanos.add(-actionsMillis * NANOS_PER_MILLI);
+
+        ruleStatistics.setExecutionCount(ruleStatistics.getExecutionCount() + executions);
+        ruleStatistics.setConditionsTime(ruleStatistics.getConditionsTime() + conditionsMillis);
+        ruleStatistics.setActionsTime(ruleStatistics.getActionsTime() + actionsMillis);
+        return executions > 0 || conditionsMillis > 0 || actionsMillis > 0;
+    }
+}
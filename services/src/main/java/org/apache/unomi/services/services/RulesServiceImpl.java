@@ -21,7 +21,7 @@ import org.apache.unomi.api.Event;
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.Metadata;
 import org.apache.unomi.api.PartialList;
-import org.apache.unomi.api.actions.Action;
+import org.apache.unomi.api.TraceSpan;
 import org.apache.unomi.api.actions.ActionExecutor;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.query.Query;
@@ -31,9 +31,15 @@ import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventListenerService;
 import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.api.services.RulesService;
+import org.apache.unomi.persistence.spi.ConditionEvaluationScope;
+import org.apache.unomi.persistence.spi.PropertyAccessorStatistics;
+import org.apache.unomi.persistence.spi.ScriptCache;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
 import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.ProcessingStage;
+import org.apache.unomi.persistence.spi.Tracer;
 import org.apache.unomi.services.actions.ActionExecutorDispatcher;
+import org.apache.unomi.services.actions.ActionTemplate;
 import org.osgi.framework.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,8 +47,10 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-public class RulesServiceImpl implements RulesService, EventListenerService, SynchronousBundleListener {
+public class RulesServiceImpl implements RulesService, EventListenerService, SynchronousBundleListener, DefinitionChangeBus.Listener {
 
     public static final String RULE_QUERY_PREFIX = "rule_";
     private static final Logger logger = LoggerFactory.getLogger(RulesServiceImpl.class.getName());
@@ -55,12 +63,31 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
     private EventService eventService;
 
     private ActionExecutorDispatcher actionExecutorDispatcher;
-    private List<Rule> allRules;
+
+    private DefinitionChangeBus definitionChangeBus;
+    private long definitionsRefreshInterval = 60000L;
+
+    private boolean strictConditionEvaluation = false;
+
+    private final Object rulesLock = new Object();
+    private List<PreparedRule> allRules;
+    private RuleIndex ruleIndex;
+    private String loadedRulesVersion;
+    private RaisedEventDeduplicator raisedEventDeduplicator;
+
+    private boolean parallelEvaluation = false;
+    private int parallelEvaluationThreads = Runtime.getRuntime().availableProcessors();
+    private int parallelEvaluationThreshold = 16;
+    private ParallelRuleEvaluator parallelRuleEvaluator;
 
     private Timer rulesTimer;
     private Timer ruleStatisticsTimer;
 
-    private Map<String,RuleStatistics> allRuleStatistics = new HashMap<String,RuleStatistics>();
+    private final ConcurrentMap<String,RuleStatistics> allRuleStatistics = new ConcurrentHashMap<String,RuleStatistics>();
+
+    // the rules whose statistics could not be written on the last synchronization, merged from their local copy on the next one
+    private final Set<String> unsavedRuleStatistics = new HashSet<String>();
+    private final ConcurrentMap<String,RuleStatisticsCounters> allRuleStatisticsCounters = new ConcurrentHashMap<String,RuleStatisticsCounters>();
 
     public void setBundleContext(BundleContext bundleContext) {
         this.bundleContext = bundleContext;
@@ -82,6 +109,30 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         this.actionExecutorDispatcher = actionExecutorDispatcher;
     }
 
+    public void setDefinitionChangeBus(DefinitionChangeBus definitionChangeBus) {
+        this.definitionChangeBus = definitionChangeBus;
+    }
+
+    public void setDefinitionsRefreshInterval(long definitionsRefreshInterval) {
+        this.definitionsRefreshInterval = definitionsRefreshInterval;
+    }
+
+    public void setStrictConditionEvaluation(boolean strictConditionEvaluation) {
+        this.strictConditionEvaluation = strictConditionEvaluation;
+    }
+
+    public void setParallelEvaluation(boolean parallelEvaluation) {
+        this.parallelEvaluation = parallelEvaluation;
+    }
+
+    public void setParallelEvaluationThreads(int parallelEvaluationThreads) {
+        this.parallelEvaluationThreads = parallelEvaluationThreads;
+    }
+
+    public void setParallelEvaluationThreshold(int parallelEvaluationThreshold) {
+        this.parallelEvaluationThreshold = parallelEvaluationThreshold;
+    }
+
     public void bindExecutor(ServiceReference<ActionExecutor> actionExecutorServiceReference) {
         ActionExecutor actionExecutor = bundleContext.getService(actionExecutorServiceReference);
         actionExecutorDispatcher.addExecutor(actionExecutorServiceReference.getProperty("actionExecutorId").toString(), actionExecutor);
@@ -97,6 +148,12 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
     public void postConstruct() {
         logger.debug("postConstruct {" + bundleContext.getBundle() + "}");
 
+        raisedEventDeduplicator = new RaisedEventDeduplicator(eventService, definitionsRefreshInterval);
+        if (parallelEvaluation) {
+            parallelRuleEvaluator = new ParallelRuleEvaluator(parallelEvaluationThreads, parallelEvaluationThreshold);
+        }
+        definitionChangeBus.addListener(this);
+
         loadPredefinedRules(bundleContext);
         for (Bundle bundle : bundleContext.getBundles()) {
             if (bundle.getBundleContext() != null) {
@@ -112,7 +169,11 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
 
     public void preDestroy() {
         bundleContext.removeBundleListener(this);
+        definitionChangeBus.removeListener(this);
         cancelTimers();
+        if (parallelRuleEvaluator != null) {
+            parallelRuleEvaluator.shutdown();
+        }
         logger.info("Rule service shutdown.");
     }
 
@@ -160,132 +221,411 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
     }
 
     public Set<Rule> getMatchingRules(Event event) {
+        Set<PreparedRule> matchedPreparedRules = new LinkedHashSet<PreparedRule>();
+        getMatchingPreparedRules(event, matchedPreparedRules, false);
         Set<Rule> matchedRules = new LinkedHashSet<Rule>();
+        for (PreparedRule preparedRule : matchedPreparedRules) {
+            matchedRules.add(preparedRule.getRule());
+        }
+        return matchedRules;
+    }
 
+    /**
+     * Finds the rules matching the specified event.
+     *
+     * @param event              the event
+     * @param matchedRules       the set to which the matching rules are added
+     * @param recordRaisedEvent  {@code true} to record the event as raised for the {@code raiseEventOnlyOnce} rules that were candidates
+     * @return the changes made to the profile and session of the event when recording it
+     */
+    private int getMatchingPreparedRules(final Event event, Set<PreparedRule> matchedRules, boolean recordRaisedEvent) {
         Boolean hasEventAlreadyBeenRaisedForSession = null;
         Boolean hasEventAlreadyBeenRaisedForProfile = null;
+        boolean raiseEventOnlyOnceForProfile = false;
+        boolean raiseEventOnlyOnceForSession = false;
 
-        List<Rule> allItems = allRules;
+        RuleIndex index = ruleIndex;
+        if (index == null) {
+            return EventService.NO_CHANGE;
+        }
 
-        for (Rule rule : allItems) {
-            if (!rule.getMetadata().isEnabled()) {
-                continue;
+        TraceSpan candidatesSpan = Tracer.begin("rules", "candidates");
+        List<PreparedRule> candidateRules = index.getCandidateRules(event);
+        Tracer.setAttribute("count", candidateRules.size());
+        Tracer.end(candidatesSpan);
+
+        // shared sub-conditions are evaluated only once for this event, the event and its profile and session are not modified until
+        // the actions of the matching rules are executed. The scope is shared with the threads evaluating the conditions in parallel
+        ParallelRuleEvaluator evaluator = parallelRuleEvaluator;
+        ConditionEvaluationScope conditionEvaluationScope = evaluator != null ? ConditionEvaluationScope.openConcurrent() : ConditionEvaluationScope.open();
+        try {
+            // when enabled, the conditions of all the candidates are evaluated in parallel first, only the raiseEventOnlyOnce checks are then
+            // made in order of priority
+            boolean[] conditionsMatch = null;
+            if (evaluator != null) {
+                conditionsMatch = evaluator.evaluate(candidateRules, new ParallelRuleEvaluator.Matcher<PreparedRule>() {
+                    @Override
+                    public boolean matches(PreparedRule preparedRule) {
+                        Rule rule = preparedRule.getRule();
+                        if (!isCandidate(rule, event)) {
+                            return false;
+                        }
+                        long ruleConditionStartTime = System.nanoTime();
+                        boolean matches = matchesEventConditions(preparedRule, event) && matchesProfileConditions(preparedRule, event);
+                        updateRuleStatistics(getRuleStatisticsCounters(rule.getItemId()), ruleConditionStartTime);
+                        return matches;
+                    }
+                });
             }
-            RuleStatistics ruleStatistics = getLocalRuleStatistics(rule);
-            long ruleConditionStartTime = System.currentTimeMillis();
-            String scope = rule.getMetadata().getScope();
-            if (scope.equals(Metadata.SYSTEM_SCOPE) || scope.equals(event.getScope())) {
-                Condition eventCondition = definitionsService.extractConditionByTag(rule.getCondition(), "eventCondition");
-
-                if (eventCondition == null) {
-                    updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
-                    continue;
-                }
 
-                if (!persistenceService.testMatch(eventCondition, event)) {
-                    updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
+            for (int i = 0; i < candidateRules.size(); i++) {
+                PreparedRule preparedRule = candidateRules.get(i);
+                Rule rule = preparedRule.getRule();
+                if (!isCandidate(rule, event)) {
                     continue;
                 }
-
-                Condition sourceCondition = definitionsService.extractConditionByTag(rule.getCondition(), "sourceEventCondition");
-                if (sourceCondition != null && !persistenceService.testMatch(sourceCondition, event.getSource())) {
-                    updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
-                    continue;
+                raiseEventOnlyOnceForProfile |= rule.isRaiseEventOnlyOnceForProfile();
+                raiseEventOnlyOnceForSession |= rule.isRaiseEventOnlyOnceForSession();
+
+                TraceSpan ruleSpan = Tracer.begin("rule", rule.getItemId());
+                long ruleConditionStartTime = System.nanoTime();
+                boolean matches = conditionsMatch != null ? conditionsMatch[i] : matchesEventConditions(preparedRule, event);
+
+                if (matches && rule.isRaiseEventOnlyOnceForProfile()) {
+                    hasEventAlreadyBeenRaisedForProfile = hasEventAlreadyBeenRaisedForProfile != null ? hasEventAlreadyBeenRaisedForProfile : raisedEventDeduplicator.hasEventAlreadyBeenRaised(event, rule, false);
+                    matches = !hasEventAlreadyBeenRaisedForProfile;
+                } else if (matches && rule.isRaiseEventOnlyOnceForSession()) {
+                    hasEventAlreadyBeenRaisedForSession = hasEventAlreadyBeenRaisedForSession != null ? hasEventAlreadyBeenRaisedForSession : raisedEventDeduplicator.hasEventAlreadyBeenRaised(event, rule, true);
+                    matches = !hasEventAlreadyBeenRaisedForSession;
                 }
 
-                if (rule.isRaiseEventOnlyOnceForProfile()) {
-                    hasEventAlreadyBeenRaisedForProfile = hasEventAlreadyBeenRaisedForProfile != null ? hasEventAlreadyBeenRaisedForProfile : eventService.hasEventAlreadyBeenRaised(event, false);
-                    if (hasEventAlreadyBeenRaisedForProfile) {
-                        updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
-                        continue;
-                    }
-                } else if (rule.isRaiseEventOnlyOnceForSession()) {
-                    hasEventAlreadyBeenRaisedForSession = hasEventAlreadyBeenRaisedForSession != null ? hasEventAlreadyBeenRaisedForSession : eventService.hasEventAlreadyBeenRaised(event, true);
-                    if (hasEventAlreadyBeenRaisedForSession) {
-                        updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
-                        continue;
-                    }
+                if (conditionsMatch == null) {
+                    matches = matches && matchesProfileConditions(preparedRule, event);
+                    updateRuleStatistics(getRuleStatisticsCounters(rule.getItemId()), ruleConditionStartTime);
                 }
-
-                Condition profileCondition = definitionsService.extractConditionByTag(rule.getCondition(), "profileCondition");
-                if (profileCondition != null && !persistenceService.testMatch(profileCondition, event.getProfile())) {
-                    updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
-                    continue;
-                }
-                Condition sessionCondition = definitionsService.extractConditionByTag(rule.getCondition(), "sessionCondition");
-                if (sessionCondition != null && !persistenceService.testMatch(sessionCondition, event.getSession())) {
-                    updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
-                    continue;
+                Tracer.setAttribute("matched", matches);
+                Tracer.end(ruleSpan);
+                if (matches) {
+                    matchedRules.add(preparedRule);
                 }
-                matchedRules.add(rule);
             }
+        } finally {
+            conditionEvaluationScope.close();
         }
 
-        return matchedRules;
+        if (recordRaisedEvent && event.isPersistent() && (raiseEventOnlyOnceForProfile || raiseEventOnlyOnceForSession)) {
+            return raisedEventDeduplicator.recordRaisedEvent(event, raiseEventOnlyOnceForProfile, raiseEventOnlyOnceForSession);
+        }
+        return EventService.NO_CHANGE;
     }
 
-    private RuleStatistics getLocalRuleStatistics(Rule rule) {
-        RuleStatistics ruleStatistics = this.allRuleStatistics.get(rule.getItemId());
-        if (ruleStatistics == null) {
-            ruleStatistics = new RuleStatistics(rule.getItemId());
+    private boolean isCandidate(Rule rule, Event event) {
+        String scope = rule.getMetadata().getScope();
+        return rule.getMetadata().isEnabled() && (scope.equals(Metadata.SYSTEM_SCOPE) || scope.equals(event.getScope()));
+    }
+
+    private boolean matchesEventConditions(PreparedRule preparedRule, Event event) {
+        Condition eventCondition = preparedRule.getEventCondition();
+        if (eventCondition == null || !persistenceService.testMatch(eventCondition, event)) {
+            return false;
         }
-        return ruleStatistics;
+        Condition sourceCondition = preparedRule.getSourceEventCondition();
+        return sourceCondition == null || persistenceService.testMatch(sourceCondition, event.getSource());
     }
 
-    private void updateRuleStatistics(RuleStatistics ruleStatistics, long ruleConditionStartTime) {
-        long totalRuleConditionTime = System.currentTimeMillis() - ruleConditionStartTime;
-        ruleStatistics.setLocalConditionsTime(ruleStatistics.getLocalConditionsTime() + totalRuleConditionTime);
-        allRuleStatistics.put(ruleStatistics.getItemId(), ruleStatistics);
+    private boolean matchesProfileConditions(PreparedRule preparedRule, Event event) {
+        Condition profileCondition = preparedRule.getProfileCondition();
+        if (profileCondition != null && !persistenceService.testMatch(profileCondition, event.getProfile())) {
+            return false;
+        }
+        Condition sessionCondition = preparedRule.getSessionCondition();
+        return sessionCondition == null || persistenceService.testMatch(sessionCondition, event.getSession());
     }
 
-    private List<Rule> getAllRules() {
+    private RuleStatisticsCounters getRuleStatisticsCounters(String ruleId) {
+        RuleStatisticsCounters counters = allRuleStatisticsCounters.get(ruleId);
+        if (counters == null) {
+            counters = new RuleStatisticsCounters(ruleId);
+            RuleStatisticsCounters previousCounters = allRuleStatisticsCounters.putIfAbsent(ruleId, counters);
+            if (previousCounters != null) {
+                counters = previousCounters;
+            }
+        }
+        return counters;
+    }
+
+    private void updateRuleStatistics(RuleStatisticsCounters ruleStatistics, long ruleConditionStartTime) {
+        ruleStatistics.recordConditions(System.nanoTime() - ruleConditionStartTime);
+    }
+
+    private List<PreparedRule> getAllRules() {
         List<Rule> allItems = persistenceService.getAllItems(Rule.class, 0, -1, "priority").getList();
+        List<PreparedRule> preparedRules = new ArrayList<PreparedRule>(allItems.size());
         for (Rule rule : allItems) {
-            ParserHelper.resolveConditionType(definitionsService, rule.getCondition());
-            ParserHelper.resolveActionTypes(definitionsService, rule.getActions());
+            try {
+                preparedRules.add(prepareRule(rule));
+            } catch (IllegalArgumentException e) {
+                logger.error("Cannot prepare rule " + rule.getItemId() + ", it will be ignored", e);
+            }
+        }
+        return preparedRules;
+    }
+
+    private PreparedRule prepareRule(Rule rule) {
+        ParserHelper.resolveConditionType(definitionsService, rule.getCondition());
+        ParserHelper.resolveActionTypes(definitionsService, rule.getActions());
+        PreparedRule preparedRule = new PreparedRule(rule, definitionsService, actionExecutorDispatcher);
+        if (preparedRule.isValid()) {
+            if (strictConditionEvaluation && rule.getMetadata().isEnabled()) {
+                Set<String> conditionTypes = getConditionTypesWithoutEvaluator(preparedRule);
+                if (!conditionTypes.isEmpty()) {
+                    throw new IllegalArgumentException("Rule " + rule.getItemId() + " uses condition types without evaluator " + conditionTypes
+                            + ", which would be evaluated with Elasticsearch queries for each event");
+                }
+            }
+            compileCondition(preparedRule.getEventCondition());
+            compileCondition(preparedRule.getSourceEventCondition());
+            compileCondition(preparedRule.getProfileCondition());
+            compileCondition(preparedRule.getSessionCondition());
+        }
+        return preparedRule;
+    }
+
+    /**
+     * Retrieves the condition types used by the conditions evaluated when an event is received which have no in-memory evaluator.
+     */
+    private Set<String> getConditionTypesWithoutEvaluator(PreparedRule preparedRule) {
+        Set<String> conditionTypes = new TreeSet<String>();
+        for (Condition condition : Arrays.asList(preparedRule.getEventCondition(), preparedRule.getSourceEventCondition(),
+                preparedRule.getProfileCondition(), preparedRule.getSessionCondition())) {
+            if (condition != null) {
+                conditionTypes.addAll(persistenceService.getConditionTypesWithoutEvaluator(condition));
+            }
+        }
+        return conditionTypes;
+    }
+
+    public Map<String, Map<String, Long>> getProcessingStageStatistics() {
+        return ProcessingStage.getAllStatistics();
+    }
+
+    public Map<String, Long> getQueryFallbackStatistics() {
+        return persistenceService.getQueryFallbackStatistics();
+    }
+
+    public Map<String, Set<String>> getRulesWithQueryFallback() {
+        Map<String, Set<String>> result = new TreeMap<String, Set<String>>();
+        List<PreparedRule> rules = allRules;
+        if (rules == null) {
+            return result;
+        }
+        for (PreparedRule preparedRule : rules) {
+            if (!preparedRule.isValid()) {
+                continue;
+            }
+            Set<String> conditionTypes = getConditionTypesWithoutEvaluator(preparedRule);
+            if (!conditionTypes.isEmpty()) {
+                result.put(preparedRule.getRule().getItemId(), conditionTypes);
+            }
+        }
+        return result;
+    }
+
+    private void setAllRules(List<PreparedRule> rules) {
+        ruleIndex = new RuleIndex(rules);
+        allRules = rules;
+        raisedEventDeduplicator.updateRules(rules);
+    }
+
+    /**
+     * Reloads all the rules, unless the cluster-wide rule version shows that no change has been published since the last load.
+     */
+    private void reloadRulesIfChanged() {
+        String version = definitionChangeBus.getVersion(Rule.ITEM_TYPE);
+        synchronized (rulesLock) {
+            if (allRules != null && definitionChangeBus.isUpToDate(Rule.ITEM_TYPE, loadedRulesVersion, version)) {
+                loadedRulesVersion = version;
+                return;
+            }
+            if (allRules != null) {
+                // make sure the changes made on other nodes are visible to the query
+                persistenceService.refresh();
+            }
+            setAllRules(getAllRules());
+            loadedRulesVersion = version;
+        }
+    }
+
+    public void onDefinitionChange(String itemType, String itemId, boolean removed) {
+        if (!Rule.ITEM_TYPE.equals(itemType)) {
+            return;
+        }
+        synchronized (rulesLock) {
+            if (allRules == null) {
+                // rules have not been loaded yet, the change will be seen by the initial load
+                return;
+            }
+        }
+        Rule rule = removed ? null : persistenceService.load(itemId, Rule.class);
+        PreparedRule preparedRule = null;
+        if (rule != null) {
+            try {
+                preparedRule = prepareRule(rule);
+            } catch (IllegalArgumentException e) {
+                logger.error("Cannot prepare rule " + rule.getItemId() + ", it will be ignored", e);
+            }
+        }
+        synchronized (rulesLock) {
+            if (allRules == null) {
+                return;
+            }
+            List<PreparedRule> rules = new ArrayList<PreparedRule>(allRules.size() + 1);
+            for (PreparedRule r : allRules) {
+                if (!itemId.equals(r.getRule().getItemId())) {
+                    rules.add(r);
+                }
+            }
+            if (preparedRule != null) {
+                // keep the rules sorted by priority, after the rules having the same priority
+                int position = rules.size();
+                for (int i = 0; i < rules.size(); i++) {
+                    if (rules.get(i).getRule().getPriority() > rule.getPriority()) {
+                        position = i;
+                        break;
+                    }
+                }
+                rules.add(position, preparedRule);
+            }
+            setAllRules(rules);
+        }
+    }
+
+    private void compileCondition(Condition condition) {
+        if (condition != null) {
+            persistenceService.compileCondition(condition);
         }
-        return allItems;
     }
 
 
     public boolean canHandle(Event event) {
-        return true;
+        // events for which no rule subscribes, such as most internal events, skip rule matching altogether
+        RuleIndex index = ruleIndex;
+        return index != null && index.hasCandidateRules(event);
     }
 
     public int onEvent(Event event) {
-        Set<Rule> rules = getMatchingRules(event);
-
-        int changes = EventService.NO_CHANGE;
-        for (Rule rule : rules) {
+        Set<PreparedRule> rules = new LinkedHashSet<PreparedRule>();
+        int changes = getMatchingPreparedRules(event, rules, true);
+        for (PreparedRule preparedRule : rules) {
+            Rule rule = preparedRule.getRule();
             logger.debug("Fired rule " + rule.getMetadata().getId() + " for " + event.getEventType() + " - " + event.getItemId());
-            long actionsStartTime = System.currentTimeMillis();
-            for (Action action : rule.getActions()) {
-                changes |= actionExecutorDispatcher.execute(action, event);
+            TraceSpan actionsSpan = Tracer.begin("ruleActions", rule.getItemId());
+            long actionsStartTime = System.nanoTime();
+            try {
+                for (ActionTemplate actionTemplate : preparedRule.getActionTemplates()) {
+                    changes |= actionExecutorDispatcher.execute(actionTemplate, event);
+                }
+            } finally {
+                Tracer.end(actionsSpan);
             }
-            long totalActionsTime = System.currentTimeMillis() - actionsStartTime;
+            long totalActionsTime = System.nanoTime() - actionsStartTime;
             Event ruleFired = new Event("ruleFired", event.getSession(), event.getProfile(), event.getScope(), event, rule, event.getTimeStamp());
             ruleFired.getAttributes().putAll(event.getAttributes());
             ruleFired.setPersistent(false);
             changes |= eventService.send(ruleFired);
 
-            RuleStatistics ruleStatistics = getLocalRuleStatistics(rule);
-            ruleStatistics.setLocalExecutionCount(ruleStatistics.getLocalExecutionCount()+1);
-            ruleStatistics.setLocalActionsTime(ruleStatistics.getLocalActionsTime() + totalActionsTime);
-            this.allRuleStatistics.put(rule.getItemId(), ruleStatistics);
+            getRuleStatisticsCounters(rule.getItemId()).recordExecution(totalActionsTime);
         }
         return changes;
     }
 
     @Override
     public RuleStatistics getRuleStatistics(String ruleId) {
-        if (allRuleStatistics.containsKey(ruleId)) {
-            return allRuleStatistics.get(ruleId);
+        RuleStatistics ruleStatistics = allRuleStatistics.get(ruleId);
+        RuleStatisticsCounters counters = allRuleStatisticsCounters.get(ruleId);
+        if (ruleStatistics == null && counters == null) {
+            return persistenceService.load(ruleId, RuleStatistics.class);
         }
-        return persistenceService.load(ruleId, RuleStatistics.class);
+        return getCurrentRuleStatistics(ruleId, ruleStatistics, counters);
     }
 
     public Map<String,RuleStatistics> getAllRuleStatistics() {
-        return allRuleStatistics;
+        Map<String,RuleStatistics> result = new HashMap<String,RuleStatistics>();
+        for (RuleStatistics ruleStatistics : allRuleStatistics.values()) {
+            result.put(ruleStatistics.getItemId(), getCurrentRuleStatistics(ruleStatistics.getItemId(), ruleStatistics, allRuleStatisticsCounters.get(ruleStatistics.getItemId())));
+        }
+        for (RuleStatisticsCounters counters : allRuleStatisticsCounters.values()) {
+            if (!result.containsKey(counters.getRuleId())) {
+                result.put(counters.getRuleId(), getCurrentRuleStatistics(counters.getRuleId(), null, counters));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds a copy of the last synchronized statistics of a rule, with the local values not synchronized yet.
+     */
+    private RuleStatistics getCurrentRuleStatistics(String ruleId, RuleStatistics syncedRuleStatistics, RuleStatisticsCounters counters) {
+        RuleStatistics ruleStatistics = new RuleStatistics(ruleId);
+        if (syncedRuleStatistics != null) {
+            ruleStatistics.setExecutionCount(syncedRuleStatistics.getExecutionCount());
+            ruleStatistics.setConditionsTime(syncedRuleStatistics.getConditionsTime());
+            ruleStatistics.setActionsTime(syncedRuleStatistics.getActionsTime());
+            ruleStatistics.setLastSyncDate(syncedRuleStatistics.getLastSyncDate());
+        }
+        if (counters != null) {
+            counters.copyLocalValues(ruleStatistics);
+        }
+        return ruleStatistics;
+    }
+
+    public Map<String, Long> getConditionEvaluationStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("hits", ConditionEvaluationScope.getHitCount());
+        statistics.put("evaluations", ConditionEvaluationScope.getEvaluationCount());
+        statistics.put("propertyAccessors.compilations", PropertyAccessorStatistics.getCompilationCount());
+        statistics.put("propertyAccessors.compilationFailures", PropertyAccessorStatistics.getCompilationFailureCount());
+        statistics.put("propertyAccessors.compilationTime", PropertyAccessorStatistics.getCompilationTime());
+        statistics.put("propertyAccessors.cached", PropertyAccessorStatistics.getCachedAccessorCount());
+        statistics.put("propertyAccessors.fastPath", PropertyAccessorStatistics.getFastPathCount());
+        statistics.putAll(raisedEventDeduplicator.getStatistics());
+        return statistics;
+    }
+
+    public Map<String, Map<String, Long>> getScriptCacheStatistics() {
+        return ScriptCache.getAllStatistics();
+    }
+
+    public List<TraceSpan> getSlowestTraces() {
+        return Tracer.getSlowestTraces();
+    }
+
+    public Map<String, Map<String, Double>> getRuleLatencyPercentiles() {
+        Map<String, Map<String, Double>> result = new TreeMap<String, Map<String, Double>>();
+        for (RuleStatisticsCounters counters : allRuleStatisticsCounters.values()) {
+            Map<String, Double> percentiles = new LinkedHashMap<String, Double>();
+            addPercentiles(percentiles, "conditions", counters.getConditionsHistogram());
+            addPercentiles(percentiles, "actions", counters.getActionsHistogram());
+            result.put(counters.getRuleId(), percentiles);
+        }
+        return result;
+    }
+
+    private void addPercentiles(Map<String, Double> percentiles, String prefix, LatencyHistogram histogram) {
+        percentiles.put(prefix + ".count", (double) histogram.getCount());
+        percentiles.put(prefix + ".p50", histogram.getValueAtPercentile(50) / 1000000.0);
+        percentiles.put(prefix + ".p90", histogram.getValueAtPercentile(90) / 1000000.0);
+        percentiles.put(prefix + ".p99", histogram.getValueAtPercentile(99) / 1000000.0);
+        percentiles.put(prefix + ".p999", histogram.getValueAtPercentile(99.9) / 1000000.0);
+        percentiles.put(prefix + ".max", histogram.getValueAtPercentile(100) / 1000000.0);
+    }
+
+    public Map<String, Integer> getRuleIndexStatistics() {
+        RuleIndex index = ruleIndex;
+        if (index == null) {
+            return Collections.emptyMap();
+        }
+        return index.getBucketSizes();
     }
 
     public Set<Metadata> getRuleMetadatas() {
@@ -331,22 +671,24 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
             if (rule.getMetadata().isEnabled() && !rule.getMetadata().isMissingPlugins()) {
                 ParserHelper.resolveConditionType(definitionsService, condition);
                 definitionsService.extractConditionByTag(condition, "eventCondition");
+                // report invalid condition and action scripts now rather than when events are processed
+                prepareRule(rule);
             }
         }
         persistenceService.save(rule);
+        definitionChangeBus.publish(Rule.ITEM_TYPE, rule.getItemId(), false);
     }
 
     public Set<Condition> getTrackedConditions(Item source){
         Set<Condition> trackedConditions = new HashSet<>();
-        for (Rule r : allRules) {
-            if (!r.getMetadata().isEnabled()) {
+        for (PreparedRule r : allRules) {
+            if (!r.getRule().getMetadata().isEnabled() || !r.isValid()) {
                 continue;
             }
-            Condition trackedCondition = definitionsService.extractConditionByTag(r.getCondition(), "trackedCondition");
+            Condition trackedCondition = r.getTrackedCondition();
             if(trackedCondition != null){
-                Condition sourceEventPropertyCondition = definitionsService.extractConditionByTag(r.getCondition(), "sourceEventCondition");
+                Condition sourceEventPropertyCondition = r.getSourceEventCondition();
                 if(source != null && sourceEventPropertyCondition != null) {
-                    ParserHelper.resolveConditionType(definitionsService, sourceEventPropertyCondition);
                     if(persistenceService.testMatch(sourceEventPropertyCondition, source)){
                         trackedConditions.add(trackedCondition);
                     }
@@ -361,6 +703,7 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
 
     public void removeRule(String ruleId) {
         persistenceService.remove(ruleId, Rule.class);
+        definitionChangeBus.publish(Rule.ITEM_TYPE, ruleId, true);
     }
 
     private void initializeTimers() {
@@ -368,10 +711,14 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         TimerTask task = new TimerTask() {
             @Override
             public void run() {
-                allRules = getAllRules();
+                try {
+                    reloadRulesIfChanged();
+                } catch (Exception e) {
+                    logger.error("Error while reloading rules", e);
+                }
             }
         };
-        rulesTimer.schedule(task, 0, 1000);
+        rulesTimer.schedule(task, 0, definitionsRefreshInterval);
         ruleStatisticsTimer = new Timer();
         TimerTask statisticsTask = new TimerTask() {
             @Override
@@ -399,56 +746,42 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         for (RuleStatistics ruleStatistics : allPersistedRuleStatisticsList) {
             allPersistedRuleStatistics.put(ruleStatistics.getItemId(), ruleStatistics);
         }
-        // first we iterate over the rules we have in memory
-        for (RuleStatistics ruleStatistics : allRuleStatistics.values()) {
-            boolean mustPersist = false;
-            if (allPersistedRuleStatistics.containsKey(ruleStatistics.getItemId())) {
-                // we must sync with the data coming from the persistence service.
-                RuleStatistics persistedRuleStatistics = allPersistedRuleStatistics.get(ruleStatistics.getItemId());
-                ruleStatistics.setExecutionCount(persistedRuleStatistics.getExecutionCount() + ruleStatistics.getLocalExecutionCount());
-                if (ruleStatistics.getLocalExecutionCount() > 0) {
-                    ruleStatistics.setLocalExecutionCount(0);
-                    mustPersist = true;
-                }
-                ruleStatistics.setConditionsTime(persistedRuleStatistics.getConditionsTime() + ruleStatistics.getLocalConditionsTime());
-                if (ruleStatistics.getLocalConditionsTime() > 0) {
-                    ruleStatistics.setLocalConditionsTime(0);
-                    mustPersist = true;
-                }
-                ruleStatistics.setActionsTime(persistedRuleStatistics.getActionsTime() + ruleStatistics.getLocalActionsTime());
-                if (ruleStatistics.getLocalActionsTime() > 0) {
-                    ruleStatistics.setLocalActionsTime(0);
-                    mustPersist = true;
-                }
-                ruleStatistics.setLastSyncDate(new Date());
-            } else {
-                ruleStatistics.setExecutionCount(ruleStatistics.getExecutionCount() + ruleStatistics.getLocalExecutionCount());
-                if (ruleStatistics.getLocalExecutionCount() > 0) {
-                    ruleStatistics.setLocalExecutionCount(0);
-                    mustPersist = true;
+        // first we merge the values collected locally with the persisted ones. The statistics are written synchronously, in a single bulk
+        // request, as the drained counters would be lost, or overwritten by the next synchronization, if a batched write was late or failed
+        List<RuleStatistics> modifiedRuleStatistics = new ArrayList<>();
+        for (RuleStatisticsCounters counters : allRuleStatisticsCounters.values()) {
+            String ruleId = counters.getRuleId();
+            RuleStatistics ruleStatistics = unsavedRuleStatistics.contains(ruleId) ? allRuleStatistics.get(ruleId) : allPersistedRuleStatistics.get(ruleId);
+            if (ruleStatistics == null) {
+                RuleStatistics previousRuleStatistics = allRuleStatistics.get(ruleId);
+                ruleStatistics = new RuleStatistics(ruleId);
+                if (previousRuleStatistics != null) {
+                    ruleStatistics.setExecutionCount(previousRuleStatistics.getExecutionCount());
+                    ruleStatistics.setConditionsTime(previousRuleStatistics.getConditionsTime());
+                    ruleStatistics.setActionsTime(previousRuleStatistics.getActionsTime());
                 }
-                ruleStatistics.setConditionsTime(ruleStatistics.getConditionsTime() + ruleStatistics.getLocalConditionsTime());
-                if (ruleStatistics.getLocalConditionsTime() > 0) {
-                    ruleStatistics.setLocalConditionsTime(0);
-                    mustPersist = true;
-                }
-                ruleStatistics.setActionsTime(ruleStatistics.getActionsTime() + ruleStatistics.getLocalActionsTime());
-                if (ruleStatistics.getLocalActionsTime() > 0) {
-                    ruleStatistics.setLocalActionsTime(0);
-                    mustPersist = true;
-                }
-                ruleStatistics.setLastSyncDate(new Date());
             }
-            allRuleStatistics.put(ruleStatistics.getItemId(), ruleStatistics);
-            if (mustPersist) {
-                persistenceService.save(ruleStatistics);
+            boolean mustPersist = counters.drainTo(ruleStatistics);
+            ruleStatistics.setLastSyncDate(new Date());
+            allRuleStatistics.put(ruleId, ruleStatistics);
+            if (mustPersist || unsavedRuleStatistics.contains(ruleId)) {
+                modifiedRuleStatistics.add(ruleStatistics);
             }
         }
+        List<RuleStatistics> failedRuleStatistics = persistenceService.save(modifiedRuleStatistics);
+        for (RuleStatistics ruleStatistics : modifiedRuleStatistics) {
+            unsavedRuleStatistics.remove(ruleStatistics.getItemId());
+        }
+        for (RuleStatistics ruleStatistics : failedRuleStatistics) {
+            logger.warn("Couldn't save statistics of rule {}, they will be saved on the next synchronization", ruleStatistics.getItemId());
+            unsavedRuleStatistics.add(ruleStatistics.getItemId());
+        }
         // now let's iterate over the rules coming from the persistence service, as we may have new ones.
         for (RuleStatistics ruleStatistics : allPersistedRuleStatistics.values()) {
-            if (!allRuleStatistics.containsKey(ruleStatistics.getItemId())) {
+            if (!allRuleStatisticsCounters.containsKey(ruleStatistics.getItemId())) {
                 allRuleStatistics.put(ruleStatistics.getItemId(), ruleStatistics);
             }
         }
+        logger.debug("Synchronized statistics of {} rules", modifiedRuleStatistics.size() - failedRuleStatistics.size());
     }
 }
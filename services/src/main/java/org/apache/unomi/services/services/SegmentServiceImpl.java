@@ -29,8 +29,11 @@ import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.api.services.RulesService;
 import org.apache.unomi.api.services.SegmentService;
+import org.apache.unomi.persistence.spi.ConditionEvaluationScope;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.apache.unomi.persistence.spi.PastEventCounters;
 import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.aggregate.DateAggregate;
 import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -45,7 +48,7 @@ import java.net.URL;
 import java.security.MessageDigest;
 import java.util.*;
 
-public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentService, SynchronousBundleListener {
+public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentService, SynchronousBundleListener, DefinitionChangeBus.Listener {
 
     private static final Logger logger = LoggerFactory.getLogger(SegmentServiceImpl.class.getName());
 
@@ -55,9 +58,15 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
 
     private RulesService rulesService;
 
+    private DefinitionChangeBus definitionChangeBus;
+
     private long taskExecutionPeriod = 24L * 60L * 60L * 1000L;
+    private long definitionsRefreshInterval = 60000L;
+    private final Object definitionsLock = new Object();
     private List<Segment> allSegments;
     private List<Scoring> allScoring;
+    private String loadedSegmentsVersion;
+    private String loadedScoringVersion;
     private Timer segmentTimer;
     private int segmentUpdateBatchSize = 1000;
 
@@ -113,8 +122,17 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         this.segmentUpdateBatchSize = segmentUpdateBatchSize;
     }
 
+    public void setDefinitionChangeBus(DefinitionChangeBus definitionChangeBus) {
+        this.definitionChangeBus = definitionChangeBus;
+    }
+
+    public void setDefinitionsRefreshInterval(long definitionsRefreshInterval) {
+        this.definitionsRefreshInterval = definitionsRefreshInterval;
+    }
+
     public void postConstruct() {
         logger.debug("postConstruct {" + bundleContext.getBundle() + "}");
+        definitionChangeBus.addListener(this);
         loadPredefinedSegments(bundleContext);
         loadPredefinedScorings(bundleContext);
         for (Bundle bundle : bundleContext.getBundles()) {
@@ -130,6 +148,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
 
     public void preDestroy() {
         bundleContext.removeBundleListener(this);
+        definitionChangeBus.removeListener(this);
         cancelTimers();
         logger.info("Segment service shutdown.");
     }
@@ -221,11 +240,20 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
     private List<Segment> getAllSegmentDefinitions() {
         List<Segment> allItems = persistenceService.getAllItems(Segment.class);
         for (Segment segment : allItems) {
-            ParserHelper.resolveConditionType(definitionsService, segment.getCondition());
+            prepareSegment(segment);
         }
         return allItems;
     }
 
+    private void prepareSegment(Segment segment) {
+        ParserHelper.resolveConditionType(definitionsService, segment.getCondition());
+        try {
+            persistenceService.compileCondition(segment.getCondition());
+        } catch (IllegalArgumentException e) {
+            logger.error("Cannot compile the condition of segment " + segment.getItemId(), e);
+        }
+    }
+
     public Segment getSegmentDefinition(String segmentId) {
         Segment definition = persistenceService.load(segmentId, Segment.class);
         if (definition != null) {
@@ -237,10 +265,13 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
     public void setSegmentDefinition(Segment segment) {
         ParserHelper.resolveConditionType(definitionsService, segment.getCondition());
         if (segment.getMetadata().isEnabled() && !segment.getMetadata().isMissingPlugins()) {
+            // report invalid scripts now rather than when the segment is evaluated
+            persistenceService.compileCondition(segment.getCondition());
             updateAutoGeneratedRules(segment.getMetadata(), segment.getCondition());
         }
         // make sure we update the name and description metadata that might not match, so first we remove the entry from the map
         persistenceService.save(segment);
+        definitionChangeBus.publish(Segment.ITEM_TYPE, segment.getItemId(), false);
 
         updateExistingProfilesForSegment(segment);
     }
@@ -394,6 +425,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
             }
 
             persistenceService.remove(segmentId, Segment.class);
+            definitionChangeBus.publish(Segment.ITEM_TYPE, segmentId, true);
             List<Rule> previousRules = persistenceService.query("linkedItems", segmentId, null, Rule.class);
             clearAutoGeneratedRules(previousRules, segmentId);
         }
@@ -446,31 +478,37 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         Set<String> segments = new HashSet<String>();
         Map<String, Integer> scores = new HashMap<String, Integer>();
 
-        List<Segment> allSegments = this.allSegments;
-        for (Segment segment : allSegments) {
-            if (persistenceService.testMatch(segment.getCondition(), profile)) {
-                segments.add(segment.getMetadata().getId());
+        // segments and scoring elements often share sub-conditions, which are evaluated only once for this profile
+        ConditionEvaluationScope conditionEvaluationScope = ConditionEvaluationScope.open();
+        try {
+            List<Segment> allSegments = this.allSegments;
+            for (Segment segment : allSegments) {
+                if (persistenceService.testMatch(segment.getCondition(), profile)) {
+                    segments.add(segment.getMetadata().getId());
+                }
             }
-        }
 
-        List<Scoring> allScoring = this.allScoring;
-        Map<String, Integer> scoreModifiers = (Map<String, Integer>) profile.getSystemProperties().get("scoreModifiers");
-        for (Scoring scoring : allScoring) {
-            if (scoring.getMetadata().isEnabled()) {
-                int score = 0;
-                for (ScoringElement scoringElement : scoring.getElements()) {
-                    if (persistenceService.testMatch(scoringElement.getCondition(), profile)) {
-                        score += scoringElement.getValue();
+            List<Scoring> allScoring = this.allScoring;
+            Map<String, Integer> scoreModifiers = (Map<String, Integer>) profile.getSystemProperties().get("scoreModifiers");
+            for (Scoring scoring : allScoring) {
+                if (scoring.getMetadata().isEnabled()) {
+                    int score = 0;
+                    for (ScoringElement scoringElement : scoring.getElements()) {
+                        if (persistenceService.testMatch(scoringElement.getCondition(), profile)) {
+                            score += scoringElement.getValue();
+                        }
+                    }
+                    String scoringId = scoring.getMetadata().getId();
+                    if (scoreModifiers != null && scoreModifiers.containsKey(scoringId) && scoreModifiers.get(scoringId) != null) {
+                        score += scoreModifiers.get(scoringId);
+                    }
+                    if (score > 0) {
+                        scores.put(scoringId, score);
                     }
-                }
-                String scoringId = scoring.getMetadata().getId();
-                if (scoreModifiers != null && scoreModifiers.containsKey(scoringId) && scoreModifiers.get(scoringId) != null) {
-                    score += scoreModifiers.get(scoringId);
-                }
-                if (score > 0) {
-                    scores.put(scoringId, score);
                 }
             }
+        } finally {
+            conditionEvaluationScope.close();
         }
 
         return new SegmentsAndScores(segments, scores);
@@ -480,10 +518,15 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         List<Metadata> metadatas = new ArrayList<>();
 
         List<Segment> allSegments = this.allSegments;
-        for (Segment segment : allSegments) {
-            if (persistenceService.testMatch(segment.getCondition(), profile)) {
-                metadatas.add(segment.getMetadata());
+        ConditionEvaluationScope conditionEvaluationScope = ConditionEvaluationScope.open();
+        try {
+            for (Segment segment : allSegments) {
+                if (persistenceService.testMatch(segment.getCondition(), profile)) {
+                    metadatas.add(segment.getMetadata());
+                }
             }
+        } finally {
+            conditionEvaluationScope.close();
         }
 
         return metadatas;
@@ -500,13 +543,22 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
     private List<Scoring> getAllScoringDefinitions() {
         List<Scoring> allItems = persistenceService.getAllItems(Scoring.class);
         for (Scoring scoring : allItems) {
-            for (ScoringElement element : scoring.getElements()) {
-                ParserHelper.resolveConditionType(definitionsService, element.getCondition());
-            }
+            prepareScoring(scoring);
         }
         return allItems;
     }
 
+    private void prepareScoring(Scoring scoring) {
+        for (ScoringElement element : scoring.getElements()) {
+            ParserHelper.resolveConditionType(definitionsService, element.getCondition());
+            try {
+                persistenceService.compileCondition(element.getCondition());
+            } catch (IllegalArgumentException e) {
+                logger.error("Cannot compile a condition of scoring " + scoring.getItemId(), e);
+            }
+        }
+    }
+
     public Scoring getScoringDefinition(String scoringId) {
         Scoring definition = persistenceService.load(scoringId, Scoring.class);
         if (definition != null) {
@@ -523,11 +575,14 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         }
         for (ScoringElement element : scoring.getElements()) {
             if (scoring.getMetadata().isEnabled() && !scoring.getMetadata().isMissingPlugins()) {
+                // report invalid scripts now rather than when the scoring is evaluated
+                persistenceService.compileCondition(element.getCondition());
                 updateAutoGeneratedRules(scoring.getMetadata(), element.getCondition());
             }
         }
         // make sure we update the name and description metadata that might not match, so first we remove the entry from the map
         persistenceService.save(scoring);
+        definitionChangeBus.publish(Scoring.ITEM_TYPE, scoring.getItemId(), false);
 
         persistenceService.createMapping(Profile.ITEM_TYPE, String.format(
                 "{\n" +
@@ -687,6 +742,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
             }
 
             persistenceService.remove(scoringId, Scoring.class);
+            definitionChangeBus.publish(Scoring.ITEM_TYPE, scoringId, true);
             List<Rule> previousRules = persistenceService.query("linkedItems", scoringId, null, Rule.class);
             clearAutoGeneratedRules(previousRules, scoringId);
         }
@@ -720,7 +776,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
             previousRule.getLinkedItems().remove(idWithScope);
             if (previousRule.getLinkedItems().isEmpty()) {
                 // todo remove profile properties ?
-                persistenceService.remove(previousRule.getItemId(), Rule.class);
+                rulesService.removeRule(previousRule.getItemId());
             } else {
                 persistenceService.update(previousRule.getItemId(), null, Rule.class, "linkedItems", previousRule.getLinkedItems());
             }
@@ -751,7 +807,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
                     rule.setLinkedItems(Arrays.asList(metadata.getId()));
                     rules.add(rule);
 
-                    updateExistingProfilesForPastEventCondition(condition, parentCondition);
+                    scheduleRebuildPastEventCounters(condition, parentCondition);
                 } else {
                     rule.getLinkedItems().add(metadata.getId());
                     rules.add(rule);
@@ -814,6 +870,78 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         logger.info("Profiles past condition updated in {}ms", System.currentTimeMillis() - t);
     }
 
+    private void scheduleRebuildPastEventCounters(final Condition eventCondition, final Condition parentCondition) {
+        if (segmentTimer == null) {
+            rebuildPastEventCounters(eventCondition, parentCondition);
+            return;
+        }
+        segmentTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    rebuildPastEventCounters(eventCondition, parentCondition);
+                } catch (Exception e) {
+                    logger.error("Error while rebuilding past event counters", e);
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Back-fills the counters of a new past event condition on the existing profiles. Conditions limited to a number of days
+     * get their daily buckets, with a single aggregation of the events of the window by profile and by day, so that the counters
+     * can then be maintained and expired in memory as events arrive.
+     */
+    private void rebuildPastEventCounters(Condition eventCondition, Condition parentCondition) {
+        Integer numberOfDays = (Integer) parentCondition.getParameter("numberOfDays");
+        if (numberOfDays == null) {
+            updateExistingProfilesForPastEventCondition(eventCondition, parentCondition);
+            return;
+        }
+        long t = System.currentTimeMillis();
+        String propertyKey = (String) parentCondition.getParameter("generatedPropertyKey");
+        long today = PastEventCounters.getDay(t);
+        List<Condition> l = new ArrayList<Condition>();
+        Condition andCondition = new Condition();
+        andCondition.setConditionType(definitionsService.getConditionType("booleanCondition"));
+        andCondition.setParameter("operator", "and");
+        andCondition.setParameter("subConditions", l);
+
+        l.add(eventCondition);
+
+        Condition fromCondition = new Condition();
+        fromCondition.setConditionType(definitionsService.getConditionType("sessionPropertyCondition"));
+        fromCondition.setParameter("propertyName", "timeStamp");
+        fromCondition.setParameter("comparisonOperator", "greaterThanOrEqualTo");
+        fromCondition.setParameter("propertyValueDate", PastEventCounters.getDayStart(today - numberOfDays + 1));
+        l.add(fromCondition);
+
+        // daily buckets are aligned on UTC, like the days of the counters
+        Map<String, Map<String, Long>> eventCountByProfileAndDay = persistenceService.aggregateQuery(andCondition, new TermsAggregate("profileId"),
+                new DateAggregate("timeStamp", "1d", "epoch_millis"), Event.ITEM_TYPE);
+        Map<String, Map<Long, Long>> bucketsByProfile = new HashMap<>();
+        for (Map.Entry<String, Map<String, Long>> entry : eventCountByProfileAndDay.entrySet()) {
+            Map<Long, Long> buckets = new HashMap<>();
+            for (Map.Entry<String, Long> dayEntry : entry.getValue().entrySet()) {
+                buckets.put(PastEventCounters.getDay(Long.parseLong(dayEntry.getKey())), dayEntry.getValue());
+            }
+            if (!buckets.isEmpty()) {
+                bucketsByProfile.put(entry.getKey(), buckets);
+            }
+        }
+        for (Map.Entry<String, Map<Long, Long>> entry : bucketsByProfile.entrySet()) {
+            Map<String, Object> systemProperties = new HashMap<>();
+            PastEventCounters.setBuckets(systemProperties, propertyKey, entry.getValue(), numberOfDays, today);
+            try {
+                persistenceService.update(entry.getKey(), null, Profile.class, "systemProperties", systemProperties);
+            } catch (Exception e) {
+                logger.error("Error updating profile {} past event system properties", entry.getKey(), e);
+            }
+        }
+
+        logger.info("Past event counters of {} profiles rebuilt in {}ms", bucketsByProfile.size(), System.currentTimeMillis() - t);
+    }
+
     private void updateExistingProfilesForSegment(Segment segment) {
         long t = System.currentTimeMillis();
         Condition segmentCondition = new Condition();
@@ -999,11 +1127,75 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         task = new TimerTask() {
             @Override
             public void run() {
+                try {
+                    reloadDefinitionsIfChanged();
+                } catch (Exception e) {
+                    logger.error("Error while reloading segments and scorings", e);
+                }
+            }
+        };
+        segmentTimer.scheduleAtFixedRate(task, 0, definitionsRefreshInterval);
+    }
+
+    /**
+     * Reloads all the segments and scorings, unless the cluster-wide versions show that no change has been published since the last load.
+     */
+    private void reloadDefinitionsIfChanged() {
+        String segmentsVersion = definitionChangeBus.getVersion(Segment.ITEM_TYPE);
+        String scoringVersion = definitionChangeBus.getVersion(Scoring.ITEM_TYPE);
+        synchronized (definitionsLock) {
+            boolean reloadSegments = allSegments == null || !definitionChangeBus.isUpToDate(Segment.ITEM_TYPE, loadedSegmentsVersion, segmentsVersion);
+            boolean reloadScoring = allScoring == null || !definitionChangeBus.isUpToDate(Scoring.ITEM_TYPE, loadedScoringVersion, scoringVersion);
+            if ((reloadSegments && allSegments != null) || (reloadScoring && allScoring != null)) {
+                // make sure the changes made on other nodes are visible to the query
+                persistenceService.refresh();
+            }
+            if (reloadSegments) {
                 allSegments = getAllSegmentDefinitions();
+            }
+            if (reloadScoring) {
                 allScoring = getAllScoringDefinitions();
             }
-        };
-        segmentTimer.scheduleAtFixedRate(task, 0, 1000);
+            loadedSegmentsVersion = segmentsVersion;
+            loadedScoringVersion = scoringVersion;
+        }
+    }
+
+    public void onDefinitionChange(String itemType, String itemId, boolean removed) {
+        if (Segment.ITEM_TYPE.equals(itemType)) {
+            Segment segment = removed ? null : persistenceService.load(itemId, Segment.class);
+            if (segment != null) {
+                prepareSegment(segment);
+            }
+            synchronized (definitionsLock) {
+                if (allSegments != null) {
+                    allSegments = replaceItem(allSegments, itemId, segment);
+                }
+            }
+        } else if (Scoring.ITEM_TYPE.equals(itemType)) {
+            Scoring scoring = removed ? null : persistenceService.load(itemId, Scoring.class);
+            if (scoring != null) {
+                prepareScoring(scoring);
+            }
+            synchronized (definitionsLock) {
+                if (allScoring != null) {
+                    allScoring = replaceItem(allScoring, itemId, scoring);
+                }
+            }
+        }
+    }
+
+    private <T extends Item> List<T> replaceItem(List<T> items, String itemId, T newItem) {
+        List<T> result = new ArrayList<T>(items.size() + 1);
+        for (T item : items) {
+            if (!itemId.equals(item.getItemId())) {
+                result.add(item);
+            }
+        }
+        if (newItem != null) {
+            result.add(newItem);
+        }
+        return result;
     }
 
     private GregorianCalendar getDay(int offset) {
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers the saves of frequently updated items, such as profiles and sessions, and writes them behind the requests that saved them.
+ * The saves of an item within the same window are coalesced, only the latest state of the item being written, and the items of a window
+ * are written together in a single bulk request.
+ *
+ * The buffered items are returned by {@link #get(String, String)} until their write has succeeded, so that the requests processed by
+ * this node read their own writes. Other nodes, and queries, only see the changes once they are written. An item whose write fails is
+ * kept and written again with the next window. The remaining items are written on shutdown.
+ *
+ * The buffer keeps a serialized snapshot of each item rather than the item itself, and {@link #get(String, String)} returns a new copy
+ * of it, so that the requests reading an item concurrently, and the write of the item, never share a mutable instance.
+ */
+public class WriteBehindBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindBuffer.class.getName());
+
+    private final PersistenceService persistenceService;
+    private final long windowInMillis;
+
+    private final ConcurrentMap<String, BufferedItem> items = new ConcurrentHashMap<>();
+    // held while the items are written, so that a removal waits for the write of the item it removes
+    private final Object writeLock = new Object();
+    // whether items have been written since the last refresh of the persistence service, and may not be visible to queries yet
+    private volatile boolean unrefreshedWrites = false;
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private final AtomicLong totalFlushLag = new AtomicLong();
+    private final AtomicLong maxFlushLag = new AtomicLong();
+
+    /**
+     * @param persistenceService the persistence service writing the items
+     * @param windowInMillis     the time during which the saves of an item are coalesced before it is written
+     */
+    public WriteBehindBuffer(PersistenceService persistenceService, long windowInMillis) {
+        this.persistenceService = persistenceService;
+        this.windowInMillis = windowInMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "unomi-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(10L, windowInMillis / 2);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush(false);
+                } catch (Throwable t) {
+                    logger.error("Error while writing buffered items", t);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffers the save of an item, replacing any pending save of the same item. An item that cannot be serialized is written
+     * immediately instead.
+     *
+     * @param item the item to save
+     * @return {@code true} if the item has been buffered or written, {@code false} if it could not be written
+     */
+    public boolean put(Item item) {
+        String key = getKey(item.getItemType(), item.getItemId());
+        String source;
+        try {
+            source = CustomObjectMapper.getObjectMapper().writeValueAsString(item);
+        } catch (IOException e) {
+            logger.warn("Couldn't buffer " + item.getItemType() + " " + item.getItemId() + ", writing it immediately", e);
+            return persistenceService.save(item);
+        }
+        saves.incrementAndGet();
+        while (true) {
+            BufferedItem previous = items.get(key);
+            if (previous == null) {
+                if (items.putIfAbsent(key, new BufferedItem(item.getClass(), source, System.currentTimeMillis(), false)) == null) {
+                    return true;
+                }
+            } else {
+                // a pending save keeps its place in the window, a new one is started if the previous state is being written
+                long bufferedTime = previous.writing ? System.currentTimeMillis() : previous.bufferedTime;
+                if (items.replace(key, previous, new BufferedItem(item.getClass(), source, bufferedTime, false))) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the latest buffered state of an item.
+     *
+     * @param itemType the type of the item
+     * @param itemId   the identifier of the item
+     * @return a copy of the buffered item, or {@code null} if the item has no pending write on this node
+     */
+    public Item get(String itemType, String itemId) {
+        BufferedItem bufferedItem = items.get(getKey(itemType, itemId));
+        return bufferedItem != null ? bufferedItem.copy() : null;
+    }
+
+    /**
+     * Drops the pending save of an item before its removal, waiting for the write of the item if it is in progress, so that the write
+     * does not recreate the item once removed.
+     *
+     * @param itemType the type of the item
+     * @param itemId   the identifier of the item
+     */
+    public void remove(String itemType, String itemId) {
+        synchronized (writeLock) {
+            items.remove(getKey(itemType, itemId));
+        }
+    }
+
+    /**
+     * Drops the pending saves of the buffered items of a type matching a condition before their removal by query, waiting for the
+     * writes in progress. The persistence service is refreshed if items have been written since its last refresh, so that the query
+     * sees them.
+     *
+     * @param itemType  the type of the items
+     * @param condition the condition the items to remove match
+     */
+    public void remove(String itemType, Condition condition) {
+        String prefix = getKey(itemType, "");
+        synchronized (writeLock) {
+            for (Map.Entry<String, BufferedItem> entry : items.entrySet()) {
+                BufferedItem bufferedItem = entry.getValue();
+                if (entry.getKey().startsWith(prefix)) {
+                    Item item = bufferedItem.copy();
+                    if (item != null && persistenceService.testMatch(condition, item)) {
+                        items.remove(entry.getKey(), bufferedItem);
+                    }
+                }
+            }
+            if (unrefreshedWrites) {
+                unrefreshedWrites = false;
+                persistenceService.refresh();
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining items and stops the buffer.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(true);
+        if (!items.isEmpty()) {
+            logger.error("Couldn't write " + items.size() + " buffered items on shutdown");
+        }
+        items.clear();
+    }
+
+    /**
+     * Retrieves the statistics of the buffer: the number of items buffered and not yet written, the saves requested and the successful
+     * writes since startup, the writes that failed and have been retried, the coalescing ratio (saves per write, in percent), and the
+     * average and maximum time between the first save of an item and its write, in milliseconds.
+     *
+     * @return a map of statistic names to values
+     */
+    public Map<String, Long> getStatistics() {
+        long writeCount = writes.get();
+        long saveCount = saves.get();
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("queueSize", (long) items.size());
+        statistics.put("saves", saveCount);
+        statistics.put("writes", writeCount);
+        statistics.put("writeFailures", writeFailures.get());
+        statistics.put("coalescingRatioPercent", writeCount > 0 ? saveCount * 100L / writeCount : 0L);
+        statistics.put("averageFlushLagMillis", writeCount > 0 ? totalFlushLag.get() / writeCount : 0L);
+        statistics.put("maxFlushLagMillis", maxFlushLag.get());
+        return statistics;
+    }
+
+    private void flush(boolean all) {
+        synchronized (writeLock) {
+            long now = System.currentTimeMillis();
+            Map<Item, String> keys = new IdentityHashMap<>();
+            Map<String, BufferedItem> writtenItems = new LinkedHashMap<>();
+            List<Item> itemsToWrite = new ArrayList<>();
+            for (Map.Entry<String, BufferedItem> entry : items.entrySet()) {
+                BufferedItem bufferedItem = entry.getValue();
+                if (all || now - bufferedItem.bufferedTime >= windowInMillis) {
+                    Item item = bufferedItem.copy();
+                    if (item == null) {
+                        items.remove(entry.getKey(), bufferedItem);
+                        continue;
+                    }
+                    // the item is marked as being written, so that a concurrent save is not lost but written in the next window
+                    BufferedItem writtenItem = new BufferedItem(bufferedItem.itemClass, bufferedItem.source, bufferedItem.bufferedTime, true);
+                    if (items.replace(entry.getKey(), bufferedItem, writtenItem)) {
+                        keys.put(item, entry.getKey());
+                        writtenItems.put(entry.getKey(), writtenItem);
+                        itemsToWrite.add(item);
+                    }
+                }
+            }
+            if (itemsToWrite.isEmpty()) {
+                return;
+            }
+            List<Item> failedItems = persistenceService.save(itemsToWrite);
+            unrefreshedWrites = true;
+            for (Item failedItem : failedItems) {
+                // the item is written again with the next window, unless it has been saved again or removed in the meantime
+                String key = keys.get(failedItem);
+                BufferedItem writtenItem = writtenItems.remove(key);
+                items.replace(key, writtenItem, new BufferedItem(writtenItem.itemClass, writtenItem.source, writtenItem.bufferedTime, false));
+            }
+            writeFailures.addAndGet(failedItems.size());
+            if (!failedItems.isEmpty()) {
+                logger.error("Couldn't write " + failedItems.size() + " of " + itemsToWrite.size() + " buffered items, retrying with the next window");
+            }
+            for (Map.Entry<String, BufferedItem> entry : writtenItems.entrySet()) {
+                items.remove(entry.getKey(), entry.getValue());
+                long lag = now - entry.getValue().bufferedTime;
+                writes.incrementAndGet();
+                totalFlushLag.addAndGet(lag);
+                long max;
+                while ((max = maxFlushLag.get()) < lag && !maxFlushLag.compareAndSet(max, lag)) {
+                }
+            }
+        }
+    }
+
+    private static String getKey(String itemType, String itemId) {
+        return itemType + "/" + itemId;
+    }
+
+    private static class BufferedItem {
+        private final Class<? extends Item> itemClass;
+        private final String source;
+        private final long bufferedTime;
+        private final boolean writing;
+
+        BufferedItem(Class<? extends Item> itemClass, String source, long bufferedTime, boolean writing) {
+            this.itemClass = itemClass;
+            this.source = source;
+            this.bufferedTime = bufferedTime;
+            this.writing = writing;
+        }
+
+        Item copy() {
+            try {
+                return CustomObjectMapper.getObjectMapper().readValue(source, itemClass);
+            } catch (IOException e) {
+                logger.error("Couldn't read buffered " + itemClass.getSimpleName(), e);
+                return null;
+            }
+        }
+    }
+}
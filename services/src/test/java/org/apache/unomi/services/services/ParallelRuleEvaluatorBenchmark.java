@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of the evaluation of the candidate rules of an event on the calling thread and on the {@link ParallelRuleEvaluator}
+ * pool. The sample time mode reports the p50 and p99 percentiles, the {@code conditionCost} parameter is the amount of work spent on the
+ * conditions of each candidate. Run the {@link #main} method from the test classpath once the test sources are compiled, with the
+ * {@code -t} option of JMH to simulate concurrent requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelRuleEvaluatorBenchmark {
+
+    @Param({"8", "32", "128"})
+    private int candidateCount;
+
+    @Param({"100", "1000"})
+    private int conditionCost;
+
+    private List<Integer> candidates;
+
+    private ParallelRuleEvaluator serialEvaluator;
+
+    private ParallelRuleEvaluator parallelEvaluator;
+
+    private ParallelRuleEvaluator.Matcher<Integer> matcher;
+
+    @Setup
+    public void setup() {
+        candidates = new ArrayList<>(candidateCount);
+        for (int i = 0; i < candidateCount; i++) {
+            candidates.add(i);
+        }
+        serialEvaluator = new ParallelRuleEvaluator(1, Integer.MAX_VALUE);
+        parallelEvaluator = new ParallelRuleEvaluator(Runtime.getRuntime().availableProcessors(), 16);
+        matcher = new ParallelRuleEvaluator.Matcher<Integer>() {
+            @Override
+            public boolean matches(Integer candidate) {
+                Blackhole.consumeCPU(conditionCost);
+                return candidate % 3 == 0;
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        serialEvaluator.shutdown();
+        parallelEvaluator.shutdown();
+    }
+
+    @Benchmark
+    public boolean[] serial() {
+        return serialEvaluator.evaluate(candidates, matcher);
+    }
+
+    @Benchmark
+    public boolean[] parallel() {
+        return parallelEvaluator.evaluate(candidates, matcher);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(ParallelRuleEvaluatorBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
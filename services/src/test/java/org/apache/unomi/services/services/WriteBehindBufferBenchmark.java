@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the snapshots of the {@link WriteBehindBuffer}: the serialization of a profile on each save, and the copy of it
+ * on each read. The read replaces a load from Elasticsearch, which parses the same document after a network round trip, and the saves
+ * of a window are coalesced into one write, so the snapshots pay off as long as their cost stays well below the latency of a load.
+ * The {@code propertyCount} parameter is the number of properties, segments and scores of the profile. Run the {@link #main} method
+ * from the test classpath once the test sources are compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBehindBufferBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int propertyCount;
+
+    private Profile profile;
+
+    private String source;
+
+    @Setup
+    public void setup() throws IOException {
+        profile = new Profile("benchmark-profile");
+        Set<String> segments = new HashSet<>();
+        Map<String, Integer> scores = new HashMap<>();
+        for (int i = 0; i < propertyCount; i++) {
+            profile.setProperty("property" + i, i % 2 == 0 ? "value" + i : i);
+            segments.add("segment" + i);
+            scores.put("scoring" + i, i);
+        }
+        profile.setProperty("firstVisit", new Date());
+        profile.setSegments(segments);
+        profile.setScores(scores);
+        source = CustomObjectMapper.getObjectMapper().writeValueAsString(profile);
+    }
+
+    @Benchmark
+    public String snapshot() throws IOException {
+        return CustomObjectMapper.getObjectMapper().writeValueAsString(profile);
+    }
+
+    @Benchmark
+    public Profile copy() throws IOException {
+        return CustomObjectMapper.getObjectMapper().readValue(source, Profile.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(WriteBehindBufferBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
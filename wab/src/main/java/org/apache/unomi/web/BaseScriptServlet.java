@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.web;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves the base scripts appended by the {@link ContextServlet} to the context.js responses as cacheable resources, so that pages
+ * can load them once and request context.js with {@code includeBaseScript=false}, which then only contains the {@code cxs} variable.
+ * Since the base script extends the {@code cxs} variable, it must be loaded after context.js.
+ */
+public class BaseScriptServlet extends HttpServlet {
+    private static final Logger logger = LoggerFactory.getLogger(BaseScriptServlet.class.getName());
+
+    private static final long serialVersionUID = -3254512380474869528L;
+
+    private ScriptResource baseScript;
+    private ScriptResource impersonateBaseScript;
+
+    private int cacheMaxAgeInSeconds = 3600;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        baseScript = ScriptResource.load(getServletContext(), ContextServlet.BASE_SCRIPT_LOCATION);
+        impersonateBaseScript = ScriptResource.load(getServletContext(), ContextServlet.IMPERSONATE_BASE_SCRIPT_LOCATION);
+        logger.info("BaseScriptServlet initialized.");
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        HttpUtils.setupCORSHeaders(request, response);
+        if (request.getRequestURI().endsWith(ContextServlet.IMPERSONATE_BASE_SCRIPT_LOCATION)) {
+            impersonateBaseScript.serve(request, response, cacheMaxAgeInSeconds);
+        } else {
+            baseScript.serve(request, response, cacheMaxAgeInSeconds);
+        }
+    }
+
+    public void setCacheMaxAgeInSeconds(int cacheMaxAgeInSeconds) {
+        this.cacheMaxAgeInSeconds = cacheMaxAgeInSeconds;
+    }
+}
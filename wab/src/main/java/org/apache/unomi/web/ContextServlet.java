@@ -17,13 +17,17 @@
 
 package org.apache.unomi.web;
 
-import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.io.IOUtils;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.unomi.api.*;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.*;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.apache.unomi.persistence.spi.Tracer;
+import org.apache.unomi.persistence.spi.UnitOfWork;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,8 +40,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -46,6 +50,8 @@ import java.util.*;
 public class ContextServlet extends HttpServlet {
     public static final String BASE_SCRIPT_LOCATION = "/javascript/base.js";
     public static final String IMPERSONATE_BASE_SCRIPT_LOCATION = "/javascript/impersonateBase.js";
+    private static final byte[] SCRIPT_PREFIX = "window.digitalData = window.digitalData || {};\nvar cxs = ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SCRIPT_SUFFIX = ";\n".getBytes(StandardCharsets.UTF_8);
     public static final String PROFILE_OVERRIDE_MARKER = "---IGNORE---";
     private static final Logger logger = LoggerFactory.getLogger(ContextServlet.class.getName());
     private static final long serialVersionUID = 2928875830103325238L;
@@ -60,9 +66,19 @@ public class ContextServlet extends HttpServlet {
     private static final int MAX_COOKIE_AGE_IN_SECONDS = 60 * 60 * 24 * 365; // 1 year
     private int profileIdCookieMaxAgeInSeconds = MAX_COOKIE_AGE_IN_SECONDS;
 
+    private double traceSamplingRatio = 0;
+    private boolean traceRequestsAllowed = false;
+    private long maxPayloadSize = 10485760;
+    private RequestPipeline requestPipeline;
+
+    private ScriptResource baseScript;
+    private ScriptResource impersonateBaseScript;
+
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
+        baseScript = ScriptResource.load(getServletContext(), BASE_SCRIPT_LOCATION);
+        impersonateBaseScript = ScriptResource.load(getServletContext(), IMPERSONATE_BASE_SCRIPT_LOCATION);
         configSharingService.setProperty("profileIdCookieName", profileIdCookieName);
         configSharingService.setProperty("profileIdCookieDomain", profileIdCookieDomain);
         configSharingService.setProperty("profileIdCookieMaxAgeInSeconds", (Integer) profileIdCookieMaxAgeInSeconds);
@@ -71,12 +87,75 @@ public class ContextServlet extends HttpServlet {
 
     @Override
     public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException {
-        final Date timestamp = new Date();
-        if (request.getParameter("timestamp") != null) {
-            timestamp.setTime(Long.parseLong(request.getParameter("timestamp")));
+        final HttpServletRequest httpServletRequest = (HttpServletRequest) request;
+        final HttpServletResponse httpServletResponse = (HttpServletResponse) response;
+        boolean traceRequested = traceRequestsAllowed && HttpUtils.isTraceRequested(httpServletRequest);
+        Tracer tracer = traceRequested || Tracer.isSampled(traceSamplingRatio) ? Tracer.start("context") : null;
+        // profiles and sessions are read at most once during the request, and written once at its end
+        UnitOfWork unitOfWork = UnitOfWork.begin();
+        boolean async = false;
+        try {
+            final ContextRequestState state = parseRequest(httpServletRequest, httpServletResponse, traceRequested ? tracer : null);
+            if (state == null) {
+                return;
+            }
+            RequestPipeline.Step load = new RequestPipeline.Step() {
+                @Override
+                public boolean execute(HttpServletResponse response) throws IOException {
+                    loadProfileAndSession(state, response);
+                    return true;
+                }
+            };
+            RequestPipeline.Step rules = new RequestPipeline.Step() {
+                @Override
+                public boolean execute(HttpServletResponse response) throws IOException {
+                    processEvents(state, httpServletRequest, response);
+                    return true;
+                }
+            };
+            RequestPipeline.Step persist = new RequestPipeline.Step() {
+                @Override
+                public boolean execute(HttpServletResponse response) throws IOException {
+                    saveAndRespond(state, httpServletRequest, response);
+                    return true;
+                }
+            };
+            if (requestPipeline != null && requestPipeline.accepts(httpServletRequest)) {
+                async = true;
+                requestPipeline.process(httpServletRequest, httpServletResponse, tracer, unitOfWork, load, rules, persist);
+            } else {
+                load.execute(httpServletResponse);
+                rules.execute(httpServletResponse);
+                persist.execute(httpServletResponse);
+            }
+        } finally {
+            if (!async) {
+                try {
+                    if (unitOfWork != null) {
+                        unitOfWork.end();
+                    }
+                } finally {
+                    if (tracer != null) {
+                        tracer.stop();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses and validates a request on the container thread.
+     *
+     * @return the state of the request, or {@code null} if the request has already been answered
+     */
+    private ContextRequestState parseRequest(HttpServletRequest httpServletRequest, HttpServletResponse response, Tracer debugTracer) throws IOException {
+        ContextRequestState state = new ContextRequestState();
+        state.debugTracer = debugTracer;
+        state.timestamp = new Date();
+        if (httpServletRequest.getParameter("timestamp") != null) {
+            state.timestamp.setTime(Long.parseLong(httpServletRequest.getParameter("timestamp")));
         }
 
-        HttpServletRequest httpServletRequest = (HttpServletRequest) request;
         String httpMethod = httpServletRequest.getMethod();
 
         // set up CORS headers as soon as possible so that errors are not misconstrued on the client for CORS errors
@@ -85,79 +164,90 @@ public class ContextServlet extends HttpServlet {
         if ("options".equals(httpMethod.toLowerCase())) {
             response.flushBuffer();
             logger.debug("OPTIONS request received. No context will be returned.");
-            return;
+            return null;
         }
 
-        Profile profile = null;
-        Profile sessionProfile = null;
-
-        String cookieProfileId = null;
         Cookie[] cookies = httpServletRequest.getCookies();
         for (Cookie cookie : cookies) {
             if (profileIdCookieName.equals(cookie.getName())) {
-                cookieProfileId = cookie.getValue();
-            }
-        }
-
-        Session session = null;
-
-        String personaId = request.getParameter("personaId");
-        if (personaId != null) {
-            PersonaWithSessions personaWithSessions = profileService.loadPersonaWithSessions(personaId);
-            if (personaWithSessions == null) {
-                logger.error("Couldn't find persona with id=" + personaId);
-                profile = null;
-            } else {
-                profile = personaWithSessions.getPersona();
-                session = personaWithSessions.getLastSession();
+                state.cookieProfileId = cookie.getValue();
             }
         }
 
-        String sessionId = request.getParameter("sessionId");
-        boolean invalidateSession = request.getParameter("invalidateSession")!=null?new Boolean(request.getParameter("invalidateSession")):false;
-        boolean invalidateProfile = request.getParameter("invalidateProfile")!=null?new Boolean(request.getParameter("invalidateProfile")):false;
+        state.personaId = httpServletRequest.getParameter("personaId");
+        state.sessionId = httpServletRequest.getParameter("sessionId");
+        state.invalidateSession = httpServletRequest.getParameter("invalidateSession")!=null?new Boolean(httpServletRequest.getParameter("invalidateSession")):false;
+        state.invalidateProfile = httpServletRequest.getParameter("invalidateProfile")!=null?new Boolean(httpServletRequest.getParameter("invalidateProfile")):false;
 
-        if (cookieProfileId == null && sessionId == null && personaId == null) {
-            ((HttpServletResponse)response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+        if (state.cookieProfileId == null && state.sessionId == null && state.personaId == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
             logger.error("Couldn't find cookieProfileId, sessionId or personaId in incoming request! Stopped processing request. See debug level for more information");
             if (logger.isDebugEnabled()) {
                 logger.debug("Request dump:" + HttpUtils.dumpRequestInfo(httpServletRequest));
             }
-            return;
+            return null;
         }
 
-        ContextRequest contextRequest = null;
-        String scope = null;
-        String stringPayload = HttpUtils.getPayload(httpServletRequest);
-        if (stringPayload != null) {
-            ObjectMapper mapper = CustomObjectMapper.getObjectMapper();
-            JsonFactory factory = mapper.getFactory();
-            try {
-                contextRequest = mapper.readValue(factory.createParser(stringPayload), ContextRequest.class);
-            } catch (Exception e) {
-                logger.error("Cannot read payload " + stringPayload, e);
-                return;
+        ObjectMapper mapper = CustomObjectMapper.getObjectMapper();
+        JsonParser payloadParser = null;
+        try {
+            payloadParser = HttpUtils.getPayloadParser(httpServletRequest, mapper.getFactory(), maxPayloadSize);
+            if (payloadParser != null) {
+                state.contextRequest = mapper.readValue(payloadParser, ContextRequest.class);
+            }
+        } catch (PayloadTooLargeException e) {
+            logger.error("Cannot read payload: " + e.getMessage());
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+            return null;
+        } catch (Exception e) {
+            logger.error("Cannot read payload", e);
+            return null;
+        } finally {
+            if (payloadParser != null) {
+                payloadParser.close();
+            }
+        }
+        if (state.contextRequest != null) {
+            state.scope = state.contextRequest.getSource().getScope();
+        }
+        return state;
+    }
+
+    private void loadProfileAndSession(ContextRequestState state, HttpServletResponse response) throws IOException {
+        Profile profile = null;
+        Profile sessionProfile = null;
+        Session session = null;
+        Date timestamp = state.timestamp;
+        String sessionId = state.sessionId;
+
+        if (state.personaId != null) {
+            PersonaWithSessions personaWithSessions = profileService.loadPersonaWithSessions(state.personaId);
+            if (personaWithSessions == null) {
+                logger.error("Couldn't find persona with id=" + state.personaId);
+                profile = null;
+            } else {
+                profile = personaWithSessions.getPersona();
+                session = personaWithSessions.getLastSession();
             }
-            scope = contextRequest.getSource().getScope();
         }
 
         int changes = EventService.NO_CHANGE;
 
         if (profile == null) {
-            boolean profileCreated = false;
+            state.profileResolved = true;
 
             // Not a persona, resolve profile now
-            if (cookieProfileId == null || invalidateProfile) {
+            if (state.cookieProfileId == null || state.invalidateProfile) {
                 // no profileId cookie was found or the profile has to be invalidated, we generate a new one and create the profile in the profile service
                 profile = createNewProfile(null, response, timestamp);
-                profileCreated = true;
+                state.profileCreated = true;
             } else {
-                profile = profileService.load(cookieProfileId);
+                profile = profileService.load(state.cookieProfileId);
                 if (profile == null) {
                     // this can happen if we have an old cookie but have reset the server,
                     // or if we merged the profiles and somehow this cookie didn't get updated.
                     profile = createNewProfile(null, response, timestamp);
-                    profileCreated = true;
+                    state.profileCreated = true;
                 } else {
                     profile = checkMergedProfile(response, profile, session);
                 }
@@ -199,9 +289,24 @@ public class ContextServlet extends HttpServlet {
                     }
                 }
             }
+        }
+
+        state.profile = profile;
+        state.session = session;
+        state.changes = changes;
+    }
 
-            if (session == null || invalidateSession) {
-                sessionProfile = privacyService.isRequireAnonymousBrowsing(profile.getItemId()) ? privacyService.getAnonymousProfile(profile) : profile;
+    private void processEvents(ContextRequestState state, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Profile profile = state.profile;
+        Session session = state.session;
+        Date timestamp = state.timestamp;
+        String sessionId = state.sessionId;
+        String scope = state.scope;
+        int changes = state.changes;
+
+        if (state.profileResolved) {
+            if (session == null || state.invalidateSession) {
+                Profile sessionProfile = privacyService.isRequireAnonymousBrowsing(profile.getItemId()) ? privacyService.getAnonymousProfile(profile) : profile;
                 session = new Session(sessionId, sessionProfile, timestamp, scope);
 
                 if (sessionId != null && sessionId.trim().length() > 0) {
@@ -219,7 +324,7 @@ public class ContextServlet extends HttpServlet {
                 }
             }
 
-            if (profileCreated) {
+            if (state.profileCreated) {
                 changes |= EventService.PROFILE_UPDATED;
 
                 Event profileUpdated = new Event("profileUpdated", session, profile, scope, null, profile, timestamp);
@@ -236,10 +341,22 @@ public class ContextServlet extends HttpServlet {
         ContextResponse data = new ContextResponse();
         data.setProfileId(profile.getItemId());
 
-        if (contextRequest != null){
-            changes |= handleRequest(contextRequest, profile, session, data, request, response, timestamp);
+        if (state.contextRequest != null){
+            changes |= handleRequest(state.contextRequest, profile, session, data, request, response, timestamp);
         }
 
+        state.session = session;
+        state.data = data;
+        state.changes = changes;
+    }
+
+    private void saveAndRespond(ContextRequestState state, HttpServletRequest httpServletRequest, HttpServletResponse response) throws IOException {
+        Profile profile = state.profile;
+        Session session = state.session;
+        ContextResponse data = state.data;
+        Tracer debugTracer = state.debugTracer;
+        int changes = state.changes;
+
         if ((changes & EventService.PROFILE_UPDATED) == EventService.PROFILE_UPDATED) {
             profileService.save(profile);
         }
@@ -247,29 +364,44 @@ public class ContextServlet extends HttpServlet {
             profileService.saveSession(session);
         }
 
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork != null) {
+            // write the changes before answering, so that the next request of the client sees them
+            unitOfWork.flush();
+        }
+
+        ObjectMapper mapper = CustomObjectMapper.getObjectMapper();
 
         String extension = httpServletRequest.getRequestURI().substring(httpServletRequest.getRequestURI().lastIndexOf(".") + 1);
         boolean noScript = "json".equals(extension);
-        String contextAsJSONString = CustomObjectMapper.getObjectMapper().writeValueAsString(data);
-        Writer responseWriter;
         response.setCharacterEncoding("UTF-8");
         if (noScript) {
-            responseWriter = response.getWriter();
             response.setContentType("application/json");
-            IOUtils.write(contextAsJSONString, responseWriter);
+        }
+        OutputStream outputStream = response.getOutputStream();
+        if (!noScript) {
+            outputStream.write(SCRIPT_PREFIX);
+        }
+        // the context is written straight to the response, the generator leaves the stream open for the base script
+        JsonGenerator generator = mapper.getFactory().createGenerator(outputStream, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (debugTracer != null) {
+            ObjectNode context = mapper.valueToTree(data);
+            context.putObject("debug").set("trace", mapper.valueToTree(debugTracer.stop()));
+            mapper.writeValue(generator, context);
         } else {
-            responseWriter = response.getWriter();
-            responseWriter.append("window.digitalData = window.digitalData || {};\n")
-                    .append("var cxs = ")
-                    .append(contextAsJSONString)
-                    .append(";\n");
-
-            // now we copy the base script source code
-            InputStream baseScriptStream = getServletContext().getResourceAsStream(profile instanceof Persona ? IMPERSONATE_BASE_SCRIPT_LOCATION : BASE_SCRIPT_LOCATION);
-            IOUtils.copy(baseScriptStream, responseWriter);
+            mapper.writeValue(generator, data);
+        }
+        generator.close();
+        if (!noScript) {
+            outputStream.write(SCRIPT_SUFFIX);
+            if (!"false".equals(httpServletRequest.getParameter("includeBaseScript"))) {
+                // the base script is loaded once, and can also be cached by the clients from the BaseScriptServlet
+                outputStream.write((profile instanceof Persona ? impersonateBaseScript : baseScript).getContent());
+            }
         }
 
-        responseWriter.flush();
+        outputStream.flush();
     }
 
     private Profile checkMergedProfile(ServletResponse response, Profile profile, Session session) {
@@ -453,4 +585,41 @@ public class ContextServlet extends HttpServlet {
     public void setConfigSharingService(ConfigSharingService configSharingService) {
         this.configSharingService = configSharingService;
     }
+
+    public void setTraceSamplingRatio(double traceSamplingRatio) {
+        this.traceSamplingRatio = traceSamplingRatio;
+    }
+
+    public void setTraceRequestsAllowed(boolean traceRequestsAllowed) {
+        this.traceRequestsAllowed = traceRequestsAllowed;
+    }
+
+    public void setMaxPayloadSize(long maxPayloadSize) {
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    public void setRequestPipeline(RequestPipeline requestPipeline) {
+        this.requestPipeline = requestPipeline;
+    }
+
+    /**
+     * The state of a request, handed over from one processing step to the next.
+     */
+    private static class ContextRequestState {
+        private Tracer debugTracer;
+        private Date timestamp;
+        private String cookieProfileId;
+        private String personaId;
+        private String sessionId;
+        private boolean invalidateSession;
+        private boolean invalidateProfile;
+        private ContextRequest contextRequest;
+        private String scope;
+        private boolean profileResolved;
+        private boolean profileCreated;
+        private Profile profile;
+        private Session session;
+        private ContextResponse data;
+        private int changes;
+    }
 }
@@ -17,13 +17,15 @@
 
 package org.apache.unomi.web;
 
-import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.unomi.api.*;
 import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.api.services.PrivacyService;
 import org.apache.unomi.api.services.ProfileService;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.apache.unomi.persistence.spi.Tracer;
+import org.apache.unomi.persistence.spi.UnitOfWork;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +49,11 @@ public class EventsCollectorServlet extends HttpServlet {
     private ProfileService profileService;
     private PrivacyService privacyService;
 
+    private double traceSamplingRatio = 0;
+    private boolean traceRequestsAllowed = false;
+    private long maxPayloadSize = 10485760;
+    private RequestPipeline requestPipeline;
+
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
@@ -78,29 +85,128 @@ public class EventsCollectorServlet extends HttpServlet {
         response.flushBuffer();
     }
 
-    private void doEvent(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        Date timestamp = new Date();
+    private void doEvent(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        boolean traceRequested = traceRequestsAllowed && HttpUtils.isTraceRequested(request);
+        Tracer tracer = traceRequested || Tracer.isSampled(traceSamplingRatio) ? Tracer.start("eventcollector") : null;
+        // profiles and sessions are read at most once during the request, and written once at its end
+        UnitOfWork unitOfWork = UnitOfWork.begin();
+        boolean async = false;
+        try {
+            final EventsRequest eventsRequest = parseRequest(request, response, traceRequested ? tracer : null);
+            if (eventsRequest == null) {
+                return;
+            }
+            RequestPipeline.Step load = new RequestPipeline.Step() {
+                @Override
+                public boolean execute(HttpServletResponse response) throws IOException {
+                    return loadSessionAndProfile(eventsRequest, request);
+                }
+            };
+            RequestPipeline.Step rules = new RequestPipeline.Step() {
+                @Override
+                public boolean execute(HttpServletResponse response) throws IOException {
+                    return processEvents(eventsRequest, request, response);
+                }
+            };
+            RequestPipeline.Step persist = new RequestPipeline.Step() {
+                @Override
+                public boolean execute(HttpServletResponse response) throws IOException {
+                    return saveAndRespond(eventsRequest, response);
+                }
+            };
+            if (requestPipeline != null && requestPipeline.accepts(request)) {
+                // the payload is read on the container thread, so that slow uploads do not hold the threads of the pipeline
+                if (!readPayload(eventsRequest, response)) {
+                    return;
+                }
+                async = true;
+                requestPipeline.process(request, response, tracer, unitOfWork, load, rules, persist);
+            } else if (load.execute(response) && rules.execute(response)) {
+                persist.execute(response);
+            }
+        } finally {
+            if (!async) {
+                try {
+                    if (unitOfWork != null) {
+                        unitOfWork.end();
+                    }
+                } finally {
+                    if (tracer != null) {
+                        tracer.stop();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses and validates a request on the container thread.
+     *
+     * @return the state of the request, or {@code null} if the request is invalid
+     */
+    private EventsRequest parseRequest(HttpServletRequest request, HttpServletResponse response, Tracer debugTracer) throws IOException {
+        EventsRequest eventsRequest = new EventsRequest();
+        eventsRequest.debugTracer = debugTracer;
+        eventsRequest.timestamp = new Date();
         if (request.getParameter("timestamp") != null) {
-            timestamp.setTime(Long.parseLong(request.getParameter("timestamp")));
+            eventsRequest.timestamp.setTime(Long.parseLong(request.getParameter("timestamp")));
         }
 
 //        logger.debug(HttpUtils.dumpRequestInfo(request));
 
         HttpUtils.setupCORSHeaders(request, response);
 
-        String sessionId = request.getParameter("sessionId");
-        if (sessionId == null) {
+        eventsRequest.sessionId = request.getParameter("sessionId");
+        if (eventsRequest.sessionId == null) {
             logger.error("No sessionId found in incoming request, aborting processing. See debug level for more information");
             if (logger.isDebugEnabled()) {
                 logger.debug("Request dump:" + HttpUtils.dumpRequestInfo(request));
             }
-            return;
+            return null;
+        }
+
+        eventsRequest.mapper = CustomObjectMapper.getObjectMapper();
+        JsonParser payloadParser;
+        try {
+            payloadParser = HttpUtils.getPayloadParser(request, eventsRequest.mapper.getFactory(), maxPayloadSize);
+        } catch (PayloadTooLargeException e) {
+            logger.error("Cannot read payload: " + e.getMessage());
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+            return null;
+        }
+        if (payloadParser == null){
+            logger.error("No event payload found for request, aborting !");
+            return null;
         }
+        eventsRequest.events = new EventsPayloadReader(payloadParser, eventsRequest.mapper);
+        return eventsRequest;
+    }
 
-        Session session = profileService.loadSession(sessionId, timestamp);
+    /**
+     * Reads and validates the whole payload of a request up front.
+     *
+     * @return {@code false} if the payload is invalid and the request has been answered
+     */
+    private boolean readPayload(EventsRequest eventsRequest, HttpServletResponse response) throws IOException {
+        try {
+            eventsRequest.events.readAll();
+            return true;
+        } catch (PayloadTooLargeException e) {
+            logger.error("Cannot read payload: " + e.getMessage());
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+        } catch (IOException e) {
+            logger.error("Cannot read payload", e);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid payload");
+        }
+        return false;
+    }
+
+    private boolean loadSessionAndProfile(EventsRequest eventsRequest, HttpServletRequest request) throws IOException {
+        Session session = profileService.loadSession(eventsRequest.sessionId, eventsRequest.timestamp);
         if (session == null) {
-            logger.error("No session found for sessionId={}, aborting request !", sessionId);
-            return;
+            logger.error("No session found for sessionId={}, aborting request !", eventsRequest.sessionId);
+            eventsRequest.events.close();
+            return false;
         }
 
         String profileIdCookieName = "context-profile-id";
@@ -112,7 +218,8 @@ public class EventsCollectorServlet extends HttpServlet {
             profile = profileService.load(sessionProfile.getItemId());
             if (profile == null || profile instanceof Persona) {
                 logger.error("No valid profile found or persona found for profileId={}, aborting request !", session.getProfileId());
-                return;
+                eventsRequest.events.close();
+                return false;
             }
         } else {
             // Session uses anonymous profile, try to find profile from cookie
@@ -124,76 +231,113 @@ public class EventsCollectorServlet extends HttpServlet {
             }
             if (profile == null) {
                 logger.error("No valid profile found or persona found for profileId={}, aborting request !", session.getProfileId());
-                return;
+                eventsRequest.events.close();
+                return false;
             }
         }
+        eventsRequest.session = session;
+        eventsRequest.sessionProfile = sessionProfile;
+        eventsRequest.profile = profile;
+        return true;
+    }
 
-        String payload = HttpUtils.getPayload(request);
-        if (payload == null){
-            logger.error("No event payload found for request, aborting !");
-            return;
-        }
-
-        ObjectMapper mapper = CustomObjectMapper.getObjectMapper();
-        JsonFactory factory = mapper.getFactory();
-        EventsCollectorRequest events = null;
-        try {
-            events = mapper.readValue(factory.createParser(payload), EventsCollectorRequest.class);
-        } catch (Exception e) {
-            logger.error("Cannot read payload " + payload,e);
-            return;
-        }
-        if (events == null || events.getEvents() == null) {
-            logger.error("No events found in payload");
-            return;
-        }
+    private boolean processEvents(EventsRequest eventsRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Session session = eventsRequest.session;
+        Profile sessionProfile = eventsRequest.sessionProfile;
+        Profile profile = eventsRequest.profile;
+        Date timestamp = eventsRequest.timestamp;
 
         String thirdPartyId = eventService.authenticateThirdPartyServer(((HttpServletRequest)request).getHeader("X-Unomi-Peer"), request.getRemoteAddr());
 
         int changes = 0;
+        int processedEvents = 0;
 
         List<String> filteredEventTypes = privacyService.getFilteredEventTypes(profile.getItemId());
 
-        for (Event event : events.getEvents()){
-            if(event.getEventType() != null){
-                Event eventToSend = new Event(event.getEventType(), session, profile, event.getScope(), event.getSource(), event.getTarget(), event.getProperties(), timestamp);
-                if (sessionProfile.isAnonymousProfile()) {
-                    // Do not keep track of profile in event
-                    eventToSend.setProfileId(null);
-                }
-
-                if (!eventService.isEventAllowed(event, thirdPartyId)) {
-                    logger.debug("Event is not allowed : {}", event.getEventType());
-                    continue;
-                }
-                if (filteredEventTypes != null && filteredEventTypes.contains(event.getEventType())) {
-                    logger.debug("Profile is filtering event type {}", event.getEventType());
-                    continue;
-                }
-
-                eventToSend.getAttributes().put(Event.HTTP_REQUEST_ATTRIBUTE, request);
-                eventToSend.getAttributes().put(Event.HTTP_RESPONSE_ATTRIBUTE, response);
-                logger.debug("Received event " + event.getEventType() + " for profile=" + sessionProfile.getItemId() + " session=" + session.getItemId() + " target=" + event.getTarget() + " timestamp=" + timestamp);
-                int eventChanged = eventService.send(eventToSend);
-                //if the event execution changes the profile
-                if ((eventChanged & EventService.PROFILE_UPDATED) == EventService.PROFILE_UPDATED) {
-                    profile = eventToSend.getProfile();
+        // events are processed as they are parsed, a payload that turns out to be invalid stops the processing of the remaining ones
+        EventsPayloadReader events = eventsRequest.events;
+        try {
+            Event event;
+            while ((event = events.nextEvent()) != null) {
+                if(event.getEventType() != null){
+                    Event eventToSend = new Event(event.getEventType(), session, profile, event.getScope(), event.getSource(), event.getTarget(), event.getProperties(), timestamp);
+                    if (sessionProfile.isAnonymousProfile()) {
+                        // Do not keep track of profile in event
+                        eventToSend.setProfileId(null);
+                    }
+
+                    if (!eventService.isEventAllowed(event, thirdPartyId)) {
+                        logger.debug("Event is not allowed : {}", event.getEventType());
+                        continue;
+                    }
+                    if (filteredEventTypes != null && filteredEventTypes.contains(event.getEventType())) {
+                        logger.debug("Profile is filtering event type {}", event.getEventType());
+                        continue;
+                    }
+
+                    eventToSend.getAttributes().put(Event.HTTP_REQUEST_ATTRIBUTE, request);
+                    eventToSend.getAttributes().put(Event.HTTP_RESPONSE_ATTRIBUTE, response);
+                    logger.debug("Received event " + event.getEventType() + " for profile=" + sessionProfile.getItemId() + " session=" + session.getItemId() + " target=" + event.getTarget() + " timestamp=" + timestamp);
+                    int eventChanged = eventService.send(eventToSend);
+                    //if the event execution changes the profile
+                    if ((eventChanged & EventService.PROFILE_UPDATED) == EventService.PROFILE_UPDATED) {
+                        profile = eventToSend.getProfile();
+                    }
+                    changes |= eventChanged;
+                    processedEvents++;
                 }
-                changes |= eventChanged;
             }
+            if (!events.isEventsFound()) {
+                logger.error("No events found in payload");
+                return false;
+            }
+        } catch (PayloadTooLargeException e) {
+            logger.error("Cannot read payload: " + e.getMessage());
+            eventsRequest.payloadTooLarge = e;
+        } catch (Exception e) {
+            logger.error("Cannot read payload, " + processedEvents + " event(s) were already processed", e);
+            eventsRequest.invalidPayload = "Invalid payload, " + processedEvents + " event(s) were already processed";
+        } finally {
+            events.close();
+            eventsRequest.profile = profile;
+            eventsRequest.changes = changes;
         }
+        return true;
+    }
 
+    private boolean saveAndRespond(EventsRequest eventsRequest, HttpServletResponse response) throws IOException {
+        int changes = eventsRequest.changes;
         if ((changes & EventService.PROFILE_UPDATED) == EventService.PROFILE_UPDATED) {
-            profileService.save(profile);
+            profileService.save(eventsRequest.profile);
         }
         if ((changes & EventService.SESSION_UPDATED) == EventService.SESSION_UPDATED) {
-            profileService.saveSession(session);
+            profileService.saveSession(eventsRequest.session);
         }
 
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork != null) {
+            // write the changes before answering, so that the next request of the client sees them
+            unitOfWork.flush();
+        }
+
+        if (eventsRequest.payloadTooLarge != null) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, eventsRequest.payloadTooLarge.getMessage());
+            return false;
+        }
+        if (eventsRequest.invalidPayload != null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, eventsRequest.invalidPayload);
+            return false;
+        }
 
         PrintWriter responseWriter = response.getWriter();
-        responseWriter.append("{\"updated\":" + changes + "}");
+        if (eventsRequest.debugTracer != null) {
+            String trace = eventsRequest.mapper.writeValueAsString(eventsRequest.debugTracer.stop());
+            responseWriter.append("{\"updated\":" + changes + ",\"debug\":{\"trace\":" + trace + "}}");
+        } else {
+            responseWriter.append("{\"updated\":" + changes + "}");
+        }
         responseWriter.flush();
+        return true;
     }
 
     public void setEventService(EventService eventService) {
@@ -207,4 +351,37 @@ public class EventsCollectorServlet extends HttpServlet {
     public void setPrivacyService(PrivacyService privacyService) {
         this.privacyService = privacyService;
     }
+
+    public void setTraceSamplingRatio(double traceSamplingRatio) {
+        this.traceSamplingRatio = traceSamplingRatio;
+    }
+
+    public void setTraceRequestsAllowed(boolean traceRequestsAllowed) {
+        this.traceRequestsAllowed = traceRequestsAllowed;
+    }
+
+    public void setMaxPayloadSize(long maxPayloadSize) {
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    public void setRequestPipeline(RequestPipeline requestPipeline) {
+        this.requestPipeline = requestPipeline;
+    }
+
+    /**
+     * The state of a request, handed over from one processing step to the next.
+     */
+    private static class EventsRequest {
+        private Tracer debugTracer;
+        private Date timestamp;
+        private String sessionId;
+        private ObjectMapper mapper;
+        private EventsPayloadReader events;
+        private Session session;
+        private Profile sessionProfile;
+        private Profile profile;
+        private int changes;
+        private PayloadTooLargeException payloadTooLarge;
+        private String invalidPayload;
+    }
 }
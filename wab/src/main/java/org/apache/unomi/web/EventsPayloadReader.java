@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.web;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.EventsCollectorRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads the events of an {@link EventsCollectorRequest} payload one at a time, so that a batch is never held in memory as a whole: each
+ * event can be processed, and then collected, before the next one is parsed. The events can also be read up front with
+ * {@link #readAll()}, when they are processed on another thread than the one receiving the request.
+ */
+public class EventsPayloadReader implements Closeable {
+
+    private final JsonParser parser;
+    private final ObjectMapper mapper;
+    private boolean started;
+    private boolean inEvents;
+    private boolean eventsFound;
+    private Iterator<Event> readEvents;
+
+    /**
+     * @param parser a parser over the payload, positioned on its first token or before it
+     * @param mapper the mapper used to deserialize the events
+     */
+    public EventsPayloadReader(JsonParser parser, ObjectMapper mapper) {
+        this.parser = parser;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Reads the next event of the payload.
+     *
+     * @return the next event, or {@code null} if all the events have been read
+     * @throws IOException if the payload cannot be read or is not a valid events collector request
+     */
+    public Event nextEvent() throws IOException {
+        if (readEvents != null) {
+            return readEvents.hasNext() ? readEvents.next() : null;
+        }
+        if (!started) {
+            started = true;
+            inEvents = findEvents();
+            eventsFound = inEvents;
+        }
+        if (!inEvents) {
+            return null;
+        }
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            inEvents = false;
+            return null;
+        }
+        if (token == null) {
+            throw new JsonParseException("Unexpected end of payload", parser.getCurrentLocation());
+        }
+        return mapper.readValue(parser, Event.class);
+    }
+
+    /**
+     * Reads and validates the remaining events of the payload, and closes the parser. The events are then returned by
+     * {@link #nextEvent()} from memory, the payload being held as a whole, within its maximum size.
+     *
+     * @throws IOException if the payload cannot be read or is not a valid events collector request
+     */
+    public void readAll() throws IOException {
+        List<Event> events = new ArrayList<>();
+        try {
+            Event event;
+            while ((event = nextEvent()) != null) {
+                events.add(event);
+            }
+        } finally {
+            parser.close();
+        }
+        readEvents = events.iterator();
+    }
+
+    /**
+     * Checks whether the payload contains a list of events. Only meaningful once {@link #nextEvent()} has been called.
+     *
+     * @return {@code true} if the payload contains a list of events, even empty
+     */
+    public boolean isEventsFound() {
+        return eventsFound;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    private boolean findEvents() throws IOException {
+        JsonToken token = parser.getCurrentToken() != null ? parser.getCurrentToken() : parser.nextToken();
+        if (token != JsonToken.START_OBJECT) {
+            throw new JsonParseException("Expected an object with an events field", parser.getCurrentLocation());
+        }
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            token = parser.nextToken();
+            if ("events".equals(fieldName) && token == JsonToken.START_ARRAY) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+}
@@ -17,6 +17,8 @@
 
 package org.apache.unomi.web;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import org.apache.unomi.api.Persona;
 import org.apache.unomi.api.Profile;
 
@@ -25,7 +27,10 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -49,6 +54,15 @@ public class HttpUtils {
         }
     }
 
+    /**
+     * Checks whether the client asked for the trace of the request, with the {@code X-Unomi-Trace} header or the
+     * {@code trace} parameter.
+     */
+    public static boolean isTraceRequested(HttpServletRequest httpServletRequest) {
+        String header = httpServletRequest.getHeader("X-Unomi-Trace");
+        return (header != null && !"false".equalsIgnoreCase(header)) || Boolean.parseBoolean(httpServletRequest.getParameter("trace"));
+    }
+
     public static String dumpRequestInfo(HttpServletRequest httpServletRequest) {
         StringBuilder stringBuilder = new StringBuilder();
         stringBuilder.append("\n");
@@ -152,4 +166,93 @@ public class HttpUtils {
         }
         return null;
     }
+
+    /**
+     * Creates a parser reading the JSON payload of a request directly from its body, or from its {@code payload} parameter for GET
+     * requests, without first copying it into a string.
+     *
+     * @param request        the request
+     * @param factory        the factory used to create the parser
+     * @param maxPayloadSize the maximum size of the payload in bytes, or {@code 0} for no limit
+     * @return a parser positioned on the first token of the payload, or {@code null} if the request has no payload
+     * @throws PayloadTooLargeException if the payload is known to exceed the maximum size; a parser reading a body larger than
+     *                                  announced throws it while parsing
+     */
+    public static JsonParser getPayloadParser(HttpServletRequest request, JsonFactory factory, long maxPayloadSize) throws IOException {
+        JsonParser parser = null;
+        if ("post".equals(request.getMethod().toLowerCase())) {
+            if (maxPayloadSize > 0 && request.getContentLength() > maxPayloadSize) {
+                throw new PayloadTooLargeException(maxPayloadSize);
+            }
+            InputStream inputStream = request.getInputStream();
+            if (maxPayloadSize > 0) {
+                inputStream = new LimitedInputStream(inputStream, maxPayloadSize);
+            }
+            // Jackson detects the UTF encodings by itself, other declared encodings are decoded as before
+            String characterEncoding = request.getCharacterEncoding();
+            if (characterEncoding != null && !characterEncoding.toUpperCase().startsWith("UTF")) {
+                parser = factory.createParser(new InputStreamReader(inputStream, characterEncoding));
+            } else {
+                parser = factory.createParser(inputStream);
+            }
+        } else if ("get".equals(request.getMethod().toLowerCase()) && request.getParameter("payload") != null) {
+            String payload = request.getParameter("payload");
+            if (maxPayloadSize > 0 && payload.length() > maxPayloadSize) {
+                throw new PayloadTooLargeException(maxPayloadSize);
+            }
+            parser = factory.createParser(payload);
+        }
+        if (parser != null && parser.nextToken() == null) {
+            parser.close();
+            return null;
+        }
+        return parser;
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long maxSize;
+        private long count;
+
+        LimitedInputStream(InputStream inputStream, long maxSize) {
+            super(inputStream);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long read) throws PayloadTooLargeException {
+            count += read;
+            if (count > maxSize) {
+                throw new PayloadTooLargeException(maxSize);
+            }
+        }
+    }
 }
@@ -0,0 +1,507 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.web;
+
+import org.apache.unomi.persistence.spi.ProcessingStage;
+import org.apache.unomi.persistence.spi.Tracer;
+import org.apache.unomi.persistence.spi.UnitOfWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Processes the requests of the public servlets asynchronously, so that a slow Elasticsearch or a slow action does not exhaust the
+ * threads of the HTTP container. Once a servlet has parsed and validated a request, the rest of its processing is split into three
+ * steps, each executed by its own bounded {@link ProcessingStage}: loading the profile and the session, processing the events and
+ * rules, and persisting the changes before writing the response. A request reserves a slot in each stage when it is accepted, and
+ * is rejected with a 503 status and a {@code Retry-After} header when any of the stages is full, so that the queues stay bounded
+ * and a request already accepted is never dropped. A request that times out or fails in the container is cancelled: its remaining
+ * steps are skipped and the writes to its response are ignored, but its unit of work is still ended. A request that times out
+ * before any of its steps started is answered with a 503 status and a {@code Retry-After} header, and with a 500 status otherwise,
+ * as its events may already have been processed.
+ */
+public class RequestPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(RequestPipeline.class.getName());
+
+    /**
+     * A step of the processing of a request.
+     */
+    public interface Step {
+
+        /**
+         * Executes the step.
+         *
+         * @param response the response of the request, whose writes are ignored once the request has been cancelled
+         * @return {@code true} if the processing continues with the next step, {@code false} if the request has been answered
+         * @throws IOException if the response cannot be written
+         */
+        boolean execute(HttpServletResponse response) throws IOException;
+    }
+
+    private boolean enabled = false;
+    private long timeoutInMillis = 30000;
+    private int retryAfterInSeconds = 5;
+    private int loadThreads = 8;
+    private int loadQueueSize = 1000;
+    private int rulesThreads = 8;
+    private int rulesQueueSize = 1000;
+    private int persistThreads = 4;
+    private int persistQueueSize = 1000;
+
+    private ProcessingStage[] stages;
+
+    public void init() {
+        if (enabled) {
+            stages = new ProcessingStage[] {
+                    ProcessingStage.start("load", loadThreads, loadQueueSize),
+                    ProcessingStage.start("rules", rulesThreads, rulesQueueSize),
+                    ProcessingStage.start("persist", persistThreads, persistQueueSize)
+            };
+            logger.info("Asynchronous request processing enabled");
+        }
+    }
+
+    public void destroy() {
+        if (stages != null) {
+            for (ProcessingStage stage : stages) {
+                stage.shutdown();
+            }
+            stages = null;
+        }
+    }
+
+    /**
+     * Checks whether a request can be processed asynchronously, which requires the pipeline to be enabled and the container to support
+     * asynchronous processing for the servlet.
+     *
+     * @param request the request
+     * @return {@code true} if the request can be processed by {@link #process}
+     */
+    public boolean accepts(HttpServletRequest request) {
+        return stages != null && request.isAsyncSupported();
+    }
+
+    /**
+     * Processes the load, rules and persist steps of a request asynchronously. The trace and the unit of work of the request are
+     * detached from the current thread, attached to the thread executing each step, and completed along with the request, even
+     * when the request is cancelled by the container.
+     *
+     * @param request    the request
+     * @param response   the response
+     * @param tracer     the trace of the request, may be {@code null}
+     * @param unitOfWork the unit of work of the request, may be {@code null}
+     * @param load       the step loading the profile and the session
+     * @param rules      the step processing the events and rules
+     * @param persist    the step saving the changes and writing the response
+     * @throws IOException if the request is rejected and the rejection cannot be sent
+     */
+    public void process(HttpServletRequest request, HttpServletResponse response, Tracer tracer, UnitOfWork unitOfWork,
+                        Step load, Step rules, Step persist) throws IOException {
+        ProcessingStage[] stages = this.stages;
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(timeoutInMillis);
+        if (tracer != null) {
+            Tracer.detach();
+        }
+        if (unitOfWork != null) {
+            UnitOfWork.detach();
+        }
+        AsyncRequest asyncRequest = new AsyncRequest(asyncContext, response, tracer, unitOfWork, stages, new Step[] {load, rules, persist});
+        asyncContext.addListener(asyncRequest);
+        if (stages != null && asyncRequest.reserve()) {
+            asyncRequest.submit(0);
+        } else {
+            logger.warn("Request processing queues are full, rejecting request");
+            response.setHeader("Retry-After", String.valueOf(retryAfterInSeconds));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            asyncRequest.complete();
+        }
+    }
+
+    private class AsyncRequest implements AsyncListener {
+        private final AsyncContext asyncContext;
+        private final HttpServletResponse response;
+        private final HttpServletResponse cancellableResponse;
+        private final Tracer tracer;
+        private final UnitOfWork unitOfWork;
+        private final ProcessingStage[] stages;
+        private final Step[] steps;
+        // set under the lock of the cancellable response, so that a step never writes to the response once the request is cancelled;
+        // the steps not yet started are skipped, and the unit of work is still ended when the running step finishes
+        private volatile boolean cancelled = false;
+        private boolean started = false;
+        // the index of the first stage whose reserved slot has not been used yet
+        private int unusedSlot;
+
+        AsyncRequest(AsyncContext asyncContext, HttpServletResponse response, Tracer tracer, UnitOfWork unitOfWork, ProcessingStage[] stages,
+                     Step[] steps) {
+            this.asyncContext = asyncContext;
+            this.response = response;
+            this.cancellableResponse = new CancellableResponse(response);
+            this.tracer = tracer;
+            this.unitOfWork = unitOfWork;
+            this.stages = stages;
+            this.steps = steps;
+        }
+
+        /**
+         * Reserves a slot in each stage.
+         *
+         * @return {@code true} if the slots have been reserved, {@code false} if a stage is full
+         */
+        boolean reserve() {
+            for (int i = 0; i < stages.length; i++) {
+                if (!stages[i].tryReserve()) {
+                    for (int j = 0; j < i; j++) {
+                        stages[j].release();
+                    }
+                    unusedSlot = stages.length;
+                    return false;
+                }
+            }
+            unusedSlot = 0;
+            return true;
+        }
+
+        void submit(final int index) {
+            unusedSlot = index + 1;
+            stages[index].execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (executeStep(index) && index + 1 < steps.length) {
+                        submit(index + 1);
+                    } else {
+                        complete();
+                    }
+                }
+            });
+        }
+
+        private boolean executeStep(int index) {
+            synchronized (cancellableResponse) {
+                if (cancelled) {
+                    return false;
+                }
+                started = true;
+            }
+            attach();
+            try {
+                return steps[index].execute(cancellableResponse);
+            } catch (Throwable t) {
+                logger.error("Error while processing request", t);
+                if (!cancellableResponse.isCommitted()) {
+                    try {
+                        cancellableResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } catch (IOException e) {
+                        logger.debug("Couldn't send error response", e);
+                    }
+                }
+                return false;
+            } finally {
+                detach();
+            }
+        }
+
+        void complete() {
+            if (stages != null) {
+                for (int i = unusedSlot; i < stages.length; i++) {
+                    stages[i].release();
+                }
+                unusedSlot = stages.length;
+            }
+            attach();
+            try {
+                if (unitOfWork != null) {
+                    unitOfWork.end();
+                }
+            } catch (Throwable t) {
+                logger.error("Error while saving request changes", t);
+            } finally {
+                if (tracer != null) {
+                    tracer.stop();
+                }
+                try {
+                    asyncContext.complete();
+                } catch (IllegalStateException e) {
+                    // the request has been cancelled and already completed
+                    logger.debug("Request already completed", e);
+                }
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            logger.warn("Request not processed within the asynchronous timeout of " + timeoutInMillis + "ms, cancelling it");
+            synchronized (cancellableResponse) {
+                cancelled = true;
+                if (!response.isCommitted()) {
+                    if (started) {
+                        // the request must not be retried, as its events may already have been processed
+                        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } else {
+                        response.setHeader("Retry-After", String.valueOf(retryAfterInSeconds));
+                        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    }
+                }
+            }
+            asyncContext.complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            logger.warn("Request failed in the container, cancelling it", event.getThrowable());
+            synchronized (cancellableResponse) {
+                cancelled = true;
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+
+        /**
+         * The response handed to the steps, which ignores the writes once the request has been cancelled, as the container may have
+         * already answered and recycled the underlying response.
+         */
+        private class CancellableResponse extends HttpServletResponseWrapper {
+
+            CancellableResponse(HttpServletResponse response) {
+                super(response);
+            }
+
+            @Override
+            public boolean isCommitted() {
+                return cancelled || super.isCommitted();
+            }
+
+            @Override
+            public PrintWriter getWriter() throws IOException {
+                final PrintWriter writer;
+                synchronized (this) {
+                    // the writes are ignored once cancelled, so the writer of the underlying response is never used
+                    writer = cancelled ? null : super.getWriter();
+                }
+                return new PrintWriter(new Writer() {
+                    @Override
+                    public void write(char[] cbuf, int off, int len) {
+                        synchronized (CancellableResponse.this) {
+                            if (!cancelled) {
+                                writer.write(cbuf, off, len);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void flush() {
+                        synchronized (CancellableResponse.this) {
+                            if (!cancelled) {
+                                writer.flush();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                        synchronized (CancellableResponse.this) {
+                            if (!cancelled) {
+                                writer.close();
+                            }
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public ServletOutputStream getOutputStream() throws IOException {
+                final ServletOutputStream outputStream;
+                synchronized (this) {
+                    outputStream = cancelled ? null : super.getOutputStream();
+                }
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        synchronized (CancellableResponse.this) {
+                            if (!cancelled) {
+                                outputStream.write(b);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        synchronized (CancellableResponse.this) {
+                            if (!cancelled) {
+                                outputStream.write(b, off, len);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        synchronized (CancellableResponse.this) {
+                            if (!cancelled) {
+                                outputStream.flush();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        synchronized (CancellableResponse.this) {
+                            if (!cancelled) {
+                                outputStream.close();
+                            }
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public void sendError(int sc, String msg) throws IOException {
+                synchronized (this) {
+                    if (!cancelled) {
+                        super.sendError(sc, msg);
+                    }
+                }
+            }
+
+            @Override
+            public void sendError(int sc) throws IOException {
+                synchronized (this) {
+                    if (!cancelled) {
+                        super.sendError(sc);
+                    }
+                }
+            }
+
+            @Override
+            public void sendRedirect(String location) throws IOException {
+                synchronized (this) {
+                    if (!cancelled) {
+                        super.sendRedirect(location);
+                    }
+                }
+            }
+
+            @Override
+            public void addCookie(Cookie cookie) {
+                synchronized (this) {
+                    if (!cancelled) {
+                        super.addCookie(cookie);
+                    }
+                }
+            }
+
+            @Override
+            public void setHeader(String name, String value) {
+                synchronized (this) {
+                    if (!cancelled) {
+                        super.setHeader(name, value);
+                    }
+                }
+            }
+
+            @Override
+            public void addHeader(String name, String value) {
+                synchronized (this) {
+                    if (!cancelled) {
+                        super.addHeader(name, value);
+                    }
+                }
+            }
+
+            @Override
+            public void setStatus(int sc) {
+                synchronized (this) {
+                    if (!cancelled) {
+                        super.setStatus(sc);
+                    }
+                }
+            }
+        }
+
+        private void attach() {
+            if (tracer != null) {
+                tracer.attach();
+            }
+            if (unitOfWork != null) {
+                unitOfWork.attach();
+            }
+        }
+
+        private void detach() {
+            if (tracer != null) {
+                Tracer.detach();
+            }
+            if (unitOfWork != null) {
+                UnitOfWork.detach();
+            }
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setTimeoutInMillis(long timeoutInMillis) {
+        this.timeoutInMillis = timeoutInMillis;
+    }
+
+    public void setRetryAfterInSeconds(int retryAfterInSeconds) {
+        this.retryAfterInSeconds = retryAfterInSeconds;
+    }
+
+    public void setLoadThreads(int loadThreads) {
+        this.loadThreads = loadThreads;
+    }
+
+    public void setLoadQueueSize(int loadQueueSize) {
+        this.loadQueueSize = loadQueueSize;
+    }
+
+    public void setRulesThreads(int rulesThreads) {
+        this.rulesThreads = rulesThreads;
+    }
+
+    public void setRulesQueueSize(int rulesQueueSize) {
+        this.rulesQueueSize = rulesQueueSize;
+    }
+
+    public void setPersistThreads(int persistThreads) {
+        this.persistThreads = persistThreads;
+    }
+
+    public void setPersistQueueSize(int persistQueueSize) {
+        this.persistQueueSize = persistQueueSize;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.web;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A static script of the web application, loaded once and kept both raw and gzip-compressed, along with an entity tag identifying its
+ * content, so that it can be served without reading or compressing it again on every request.
+ */
+public class ScriptResource {
+
+    private final byte[] content;
+    private final byte[] gzippedContent;
+    private final String etag;
+
+    private ScriptResource(byte[] content) throws IOException {
+        this.content = content;
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream(content.length / 2);
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(gzipped);
+        gzipOutputStream.write(content);
+        gzipOutputStream.close();
+        this.gzippedContent = gzipped.toByteArray();
+        this.etag = "\"" + digest(content) + "\"";
+    }
+
+    /**
+     * Loads a script from the resources of the web application.
+     *
+     * @param servletContext the servlet context of the web application
+     * @param path           the path of the script
+     * @return the loaded script
+     * @throws ServletException if the script cannot be found or read
+     */
+    public static ScriptResource load(ServletContext servletContext, String path) throws ServletException {
+        InputStream inputStream = servletContext.getResourceAsStream(path);
+        if (inputStream == null) {
+            throw new ServletException("Couldn't find script " + path);
+        }
+        try {
+            return new ScriptResource(IOUtils.toByteArray(inputStream));
+        } catch (IOException e) {
+            throw new ServletException("Couldn't read script " + path, e);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Retrieves the raw content of the script, which must not be modified.
+     *
+     * @return the UTF-8 encoded content of the script
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Serves the script as a cacheable resource: a request whose {@code If-None-Match} header matches the entity tag of the script is
+     * answered with a 304 status, and the compressed content is sent to the clients accepting gzip.
+     *
+     * @param request              the request
+     * @param response             the response
+     * @param cacheMaxAgeInSeconds the maximum time clients may cache the script without revalidating it
+     * @throws IOException if the response cannot be written
+     */
+    public void serve(HttpServletRequest request, HttpServletResponse response, int cacheMaxAgeInSeconds) throws IOException {
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "public, max-age=" + cacheMaxAgeInSeconds);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (matchesEtag(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType("application/javascript");
+        response.setCharacterEncoding("UTF-8");
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        byte[] body = content;
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            response.setHeader("Content-Encoding", "gzip");
+            body = gzippedContent;
+        }
+        response.setContentLength(body.length);
+        OutputStream outputStream = response.getOutputStream();
+        outputStream.write(body);
+        outputStream.flush();
+    }
+
+    private boolean matchesEtag(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String digest(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
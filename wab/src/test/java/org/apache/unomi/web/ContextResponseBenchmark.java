@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.web;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.unomi.api.ContextResponse;
+import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the CPU time and the allocations of a context.js response written as the {@link ContextServlet} used to, serializing the
+ * context into a string and reading the base script on every request, with the response streamed through a {@link JsonGenerator} and
+ * followed by the preloaded base script. The GC profiler reports the bytes allocated per response in {@code gc.alloc.rate.norm}. Run
+ * the {@link #main} method from the test classpath once the test sources are compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextResponseBenchmark {
+
+    private static final byte[] SCRIPT_PREFIX = "window.digitalData = window.digitalData || {};\nvar cxs = ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SCRIPT_SUFFIX = ";\n".getBytes(StandardCharsets.UTF_8);
+
+    private ObjectMapper mapper;
+    private ContextResponse data;
+    private byte[] baseScript;
+
+    @Setup
+    public void setup() throws IOException {
+        mapper = CustomObjectMapper.getObjectMapper();
+        data = new ContextResponse();
+        data.setProfileId("0e6bc1a2-4d2f-4f8b-9b4c-1c2e3d4f5a6b");
+        data.setSessionId("7a8b9c0d-1e2f-3a4b-5c6d-7e8f9a0b1c2d");
+        Map<String, Object> profileProperties = new HashMap<>();
+        profileProperties.put("firstName", "Jane");
+        profileProperties.put("lastName", "Doe");
+        profileProperties.put("nbOfVisits", 42);
+        profileProperties.put("lastVisit", "2017-06-01T12:00:00Z");
+        data.setProfileProperties(profileProperties);
+        data.setSessionProperties(new HashMap<String, Object>());
+        Set<String> segments = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            segments.add("segment-" + i);
+        }
+        data.setProfileSegments(segments);
+        Map<String, Boolean> filteringResults = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            filteringResults.put("filter-" + i, i % 2 == 0);
+        }
+        data.setFilteringResults(filteringResults);
+        baseScript = IOUtils.toByteArray(readBaseScript());
+    }
+
+    @Benchmark
+    public void stringResponse() throws IOException {
+        String contextAsJSONString = mapper.writeValueAsString(data);
+        Writer responseWriter = new OutputStreamWriter(new NullOutputStream(), StandardCharsets.UTF_8);
+        responseWriter.append("window.digitalData = window.digitalData || {};\n")
+                .append("var cxs = ")
+                .append(contextAsJSONString)
+                .append(";\n");
+        InputStream baseScriptStream = readBaseScript();
+        IOUtils.copy(baseScriptStream, responseWriter);
+        baseScriptStream.close();
+        responseWriter.flush();
+    }
+
+    @Benchmark
+    public void streamedResponse() throws IOException {
+        OutputStream outputStream = new NullOutputStream();
+        outputStream.write(SCRIPT_PREFIX);
+        JsonGenerator generator = mapper.getFactory().createGenerator(outputStream, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        mapper.writeValue(generator, data);
+        generator.close();
+        outputStream.write(SCRIPT_SUFFIX);
+        outputStream.write(baseScript);
+        outputStream.flush();
+    }
+
+    private InputStream readBaseScript() {
+        return ContextResponseBenchmark.class.getResourceAsStream(ContextServlet.BASE_SCRIPT_LOCATION);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(ContextResponseBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.EventsCollectorRequest;
+import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the allocations of the events collector payload parsing when the body is first copied into a string, as
+ * {@link HttpUtils#getPayload} does, and when the events are streamed from the body with an {@link EventsPayloadReader}. The GC profiler
+ * reports the bytes allocated per batch in {@code gc.alloc.rate.norm}. Run the {@link #main} method from the test classpath once the
+ * test sources are compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventsPayloadBenchmark {
+
+    @Param({"10", "1000"})
+    private int eventCount;
+
+    private ObjectMapper mapper;
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        mapper = CustomObjectMapper.getObjectMapper();
+        StringBuilder builder = new StringBuilder("{\"events\":[");
+        for (int i = 0; i < eventCount; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"eventType\":\"view\",\"scope\":\"mobile-app\",")
+                    .append("\"source\":{\"itemType\":\"site\",\"scope\":\"mobile-app\",\"itemId\":\"app\"},")
+                    .append("\"target\":{\"itemType\":\"page\",\"scope\":\"mobile-app\",\"itemId\":\"screen-").append(i).append("\",")
+                    .append("\"properties\":{\"pageInfo\":{\"pageName\":\"Screen ").append(i).append("\",\"referringURL\":\"app://home\"}}},")
+                    .append("\"properties\":{\"position\":").append(i).append(",\"visible\":true}}");
+        }
+        builder.append("]}");
+        payload = builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void stringPayload(Blackhole blackhole) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line);
+        }
+        EventsCollectorRequest events = mapper.readValue(mapper.getFactory().createParser(buffer.toString()), EventsCollectorRequest.class);
+        for (Event event : events.getEvents()) {
+            blackhole.consume(event);
+        }
+    }
+
+    @Benchmark
+    public void streamedPayload(Blackhole blackhole) throws IOException {
+        EventsPayloadReader events = new EventsPayloadReader(mapper.getFactory().createParser(new ByteArrayInputStream(payload)), mapper);
+        try {
+            Event event;
+            while ((event = events.nextEvent()) != null) {
+                blackhole.consume(event);
+            }
+        } finally {
+            events.close();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(EventsPayloadBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+}